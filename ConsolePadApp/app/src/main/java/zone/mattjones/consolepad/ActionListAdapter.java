@@ -0,0 +1,135 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ActionListAdapter.java
+ * Author: Matt Jones
+ * Date: 2019.10.09
+ * Desc: Shows a list of console actions as LongPressButtons. Buttons are recycled as the list
+ *       scrolls and binding one only swaps its text and icons, which come from a shared cache.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ActionListAdapter extends BaseAdapter implements LongPressButton.OnPressListener {
+    /** Interface for handling a button being held until its action should run. */
+    public interface ActionHandler {
+        /**
+         * Get ready to run an action whose button was just pressed. The button still has to be
+         * held, so this must not have side effects on the console.
+         * @param action The action whose button was pressed.
+         */
+        void prepareAction(ConsoleAction action);
+
+        /**
+         * An action that was prepared won't run after all.
+         * @param action The action whose button was let go.
+         */
+        void cancelPreparedAction(ConsoleAction action);
+
+        /**
+         * Run an action.
+         * @param action The action whose button was held.
+         */
+        void handleAction(ConsoleAction action);
+    }
+
+    /** Inflates new buttons. */
+    private final LayoutInflater mInflater;
+
+    /** The icons for every button. */
+    private final TintedIconCache mIconCache;
+
+    /** The color of a button's icon while it isn't pressed. */
+    private final int mIconColor;
+
+    /** The color of a button's icon while it's pressed. */
+    private final int mActiveIconColor;
+
+    /** The object responsible for running actions. */
+    private final ActionHandler mHandler;
+
+    /** The actions being shown. */
+    private final ArrayList<ConsoleAction> mActions = new ArrayList<>();
+
+    /**
+     * @param context The context to inflate buttons and load icons with.
+     * @param handler The object responsible for running actions.
+     */
+    public ActionListAdapter(Context context, ActionHandler handler) {
+        mInflater = LayoutInflater.from(context);
+        mIconCache = new TintedIconCache(context.getResources());
+        mIconColor = context.getResources().getColor(R.color.icon_color_default, null);
+        mActiveIconColor = context.getResources().getColor(R.color.icon_color_selected, null);
+        mHandler = handler;
+    }
+
+    /**
+     * Replace the actions being shown.
+     * @param actions The new actions in the order they should be shown.
+     */
+    public void setActions(List<ConsoleAction> actions) {
+        mActions.clear();
+        mActions.addAll(actions);
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mActions.size();
+    }
+
+    @Override
+    public ConsoleAction getItem(int i) {
+        return mActions.get(i);
+    }
+
+    @Override
+    public long getItemId(int i) {
+        return i;
+    }
+
+    @Override
+    public void onPressStarted(View view) {
+        mHandler.prepareAction((ConsoleAction) view.getTag());
+    }
+
+    @Override
+    public void onPressCanceled(View view) {
+        mHandler.cancelPreparedAction((ConsoleAction) view.getTag());
+    }
+
+    @Override
+    public View getView(int i, View convertView, ViewGroup parent) {
+        LongPressButton button = (LongPressButton) convertView;
+        if (button == null) {
+            button = (LongPressButton) mInflater.inflate(R.layout.button, parent, false);
+            // The listener is set once; it finds the action the button is showing at the time.
+            button.setOnClickListener(
+                    (v) -> mHandler.handleAction((ConsoleAction) v.getTag()));
+            button.setOnPressListener(this);
+        }
+
+        ConsoleAction action = mActions.get(i);
+        if (button.getTag() == action) return button;
+
+        button.setTag(action);
+        button.resetPress();
+        if (action.label != null) {
+            button.setButtonText(action.label);
+        } else {
+            button.setButtonText(action.labelId);
+        }
+        button.setButtonIcons(mIconCache.get(action.imageId, mIconColor),
+                mIconCache.get(action.imageId, mActiveIconColor));
+        return button;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleAction.java
+ * Author: Matt Jones
+ * Date: 2019.10.09
+ * Desc: An action the app can ask the console to perform, as shown in the main list. The
+ *       built-in set is defined in res/values/actions.xml so adding one doesn't need new code.
+ *       Macros the user made are actions too; see MacroStore.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+
+import java.util.ArrayList;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.StringRes;
+
+public class ConsoleAction {
+    /** The resource ID of the image to use for the button icon. */
+    @DrawableRes
+    public final int imageId;
+    /** The ID of the text to place next to the icon. */
+    @StringRes
+    public final int labelId;
+    /** The text to place next to the icon when there is no labelId, e.g. a macro's name. */
+    public final String label;
+    /** The ID of the action to perform on the host device. */
+    public final String actionId;
+
+    public ConsoleAction(@DrawableRes int imageId, @StringRes int labelId, String actionId) {
+        this.imageId = imageId;
+        this.labelId = labelId;
+        this.label = null;
+        this.actionId = actionId;
+    }
+
+    public ConsoleAction(@DrawableRes int imageId, String label, String actionId) {
+        this.imageId = imageId;
+        this.labelId = 0;
+        this.label = label;
+        this.actionId = actionId;
+    }
+
+    /**
+     * Load the built-in actions.
+     * @param resources The resources the actions are defined in.
+     * @return The actions in the order they should be shown.
+     */
+    public static ArrayList<ConsoleAction> loadDefaults(Resources resources) {
+        TypedArray icons = resources.obtainTypedArray(R.array.action_icons);
+        TypedArray labels = resources.obtainTypedArray(R.array.action_labels);
+        String[] actionIds = resources.getStringArray(R.array.action_ids);
+
+        ArrayList<ConsoleAction> actions = new ArrayList<>(actionIds.length);
+        for (int i = 0; i < actionIds.length; i++) {
+            actions.add(new ConsoleAction(
+                    icons.getResourceId(i, 0), labels.getResourceId(i, 0), actionIds[i]));
+        }
+        icons.recycle();
+        labels.recycle();
+        return actions;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleRegistry.java
+ * Author: Matt Jones
+ * Date: 2019.09.28
+ * Desc: Remembers the last console the app talked to across launches so it can be contacted
+ *       directly instead of waiting on a broadcast.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import zone.mattjones.consolepad.client.ConsoleRecord;
+import zone.mattjones.consolepad.client.UdpNetworkTask;
+
+public class ConsoleRegistry implements UdpNetworkTask.Registry {
+    /** The name of the preferences file the registry is stored in. */
+    private static final String PREFS_NAME = "console_registry";
+
+    // Keys for the stored values.
+    private static final String KEY_IP = "ip";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_RTT_MS = "rtt_ms";
+    private static final String KEY_LAST_SEEN_MS = "last_seen_ms";
+
+    /** The backing storage. */
+    private final SharedPreferences mPrefs;
+
+    /** The in-memory copy of the last console so reads don't hit the disk. */
+    private volatile ConsoleRecord mLastConsole;
+
+    /**
+     * @param context The context used to open the preferences file.
+     */
+    public ConsoleRegistry(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String ip = mPrefs.getString(KEY_IP, null);
+        if (ip != null) {
+            mLastConsole = new ConsoleRecord(ip, mPrefs.getString(KEY_NAME, null),
+                    mPrefs.getLong(KEY_RTT_MS, UdpNetworkTask.SOCKET_TIMEOUT_MS),
+                    mPrefs.getLong(KEY_LAST_SEEN_MS, 0));
+        }
+    }
+
+    /** @return The last console that responded or null if there hasn't been one. */
+    public ConsoleRecord getLastConsole() {
+        return mLastConsole;
+    }
+
+    @Override
+    public void recordConsole(String ip, String name, long rttMs) {
+        ConsoleRecord record = new ConsoleRecord(ip, name, rttMs, System.currentTimeMillis());
+        mLastConsole = record;
+        mPrefs.edit()
+                .putString(KEY_IP, record.ip)
+                .putString(KEY_NAME, record.name)
+                .putLong(KEY_RTT_MS, record.rttMs)
+                .putLong(KEY_LAST_SEEN_MS, record.lastSeenMs)
+                .apply();
+    }
+}
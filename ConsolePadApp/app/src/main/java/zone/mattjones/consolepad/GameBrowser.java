@@ -0,0 +1,85 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GameBrowser.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: A dialog for finding a game in the console's library and starting it. The list narrows
+ *       as the search is typed, matching the start of any word of a game's name.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+
+import java.util.function.Consumer;
+
+import zone.mattjones.consolepad.protocol.RomEntry;
+
+public class GameBrowser {
+    /** The most games listed at once; a search narrows it down from there. */
+    private static final int MAX_LISTED = 500;
+
+    /** The activity the dialog is shown in. */
+    private final Activity mActivity;
+
+    /** The games. */
+    private final GameLibrary mLibrary;
+
+    /** Run with the game that was picked. */
+    private final Consumer<RomEntry> mOnLaunch;
+
+    /**
+     * @param activity The activity the dialog is shown in.
+     * @param library The games.
+     * @param onLaunch Run with the game that was picked.
+     */
+    public GameBrowser(Activity activity, GameLibrary library, Consumer<RomEntry> onLaunch) {
+        mActivity = activity;
+        mLibrary = library;
+        mOnLaunch = onLaunch;
+    }
+
+    /** Show the games, tapping one starts it. */
+    public void show() {
+        View view = mActivity.getLayoutInflater().inflate(R.layout.game_browser, null);
+        EditText search = (EditText) view.findViewById(R.id.game_search);
+        ListView list = (ListView) view.findViewById(R.id.game_list);
+        ArrayAdapter<RomEntry> adapter =
+                new ArrayAdapter<>(mActivity, android.R.layout.simple_list_item_1);
+        adapter.addAll(mLibrary.search("", MAX_LISTED));
+        list.setAdapter(adapter);
+
+        AlertDialog dialog = new AlertDialog.Builder(mActivity)
+                .setTitle(mActivity.getString(R.string.games_title, mLibrary.size()))
+                .setMessage(mLibrary.size() == 0 ? mActivity.getString(R.string.games_empty) : null)
+                .setView(view)
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+        list.setOnItemClickListener((parent, itemView, position, id) -> {
+            dialog.dismiss();
+            mOnLaunch.accept(adapter.getItem(position));
+        });
+        search.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence text, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence text, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable text) {
+                adapter.clear();
+                adapter.addAll(mLibrary.search(text.toString(), MAX_LISTED));
+            }
+        });
+        dialog.show();
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GameLibrary.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: The app's copy of the console's game library (see RomCatalog), saved between launches so
+ *       connecting again only asks for what changed since last time. Loading and saving happen
+ *       on a background thread; syncs queued before the copy is loaded wait for it, so a saved
+ *       library is never fetched in full again just because it was slow to read.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import zone.mattjones.consolepad.client.ConsoleSession;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.LargeResponse;
+import zone.mattjones.consolepad.protocol.RomCatalog;
+import zone.mattjones.consolepad.protocol.RomEntry;
+import zone.mattjones.consolepad.protocol.RomIndexPage;
+
+public class GameLibrary {
+    /** The name of the file the library is saved in. */
+    private static final String FILE_NAME = "rom_catalog.bin";
+
+    /** The file the library is saved in. */
+    private final File mFile;
+
+    /** The games. */
+    private final RomCatalog mCatalog = new RomCatalog();
+
+    /** Loads and saves the library, one task at a time in the order they were queued. */
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
+    /** Whether the saved library has been read. Only searched after that. */
+    private volatile boolean mLoaded;
+
+    /** @param context The context whose files directory the library is saved in. */
+    public GameLibrary(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mWorker.execute(this::load);
+    }
+
+    /**
+     * Ask the console for what changed since the library was last synced, once it's loaded.
+     * @param session The session to the console.
+     */
+    public void sync(ConsoleSession session) {
+        mWorker.execute(() -> session.send(buildSyncRequest()));
+    }
+
+    /**
+     * Apply a page of changes from the console and ask for the next one if there is one. The
+     * page is parsed and applied in the background; the response mustn't be used after this.
+     * @param response A response holding a page (see ConsoleResponse.isRomIndexPage()).
+     * @param session The session to ask for the next page on.
+     */
+    public void applyPage(ConsoleResponse response, ConsoleSession session) {
+        mWorker.execute(() -> {
+            RomIndexPage page = response.getRomIndexPage();
+            if (page == null || !mCatalog.apply(page)) return;
+            if (page.hasMore()) {
+                session.send(buildSyncRequest());
+                return;
+            }
+            // Only save once the whole sync is in; a sync cut short starts over from the last one.
+            mCatalog.prepareSearch();
+            save();
+        });
+    }
+
+    /**
+     * @param query The words to look for; see RomCatalog.search().
+     * @param limit The most games to return.
+     * @return The games found sorted by name, or none if the library isn't loaded yet.
+     */
+    public List<RomEntry> search(String query, int limit) {
+        if (!mLoaded) return Collections.emptyList();
+        return mCatalog.search(query, limit);
+    }
+
+    /**
+     * @param hash The hash of a game.
+     * @return The game or null if it isn't in the library.
+     */
+    public RomEntry get(String hash) {
+        return mCatalog.get(hash);
+    }
+
+    /** @return The number of games. */
+    public int size() {
+        return mCatalog.size();
+    }
+
+    /** Stop the background thread once any pending save is done. */
+    public void close() {
+        mWorker.shutdown();
+    }
+
+    /** @return The sync request for the library's version, asking for it in fragments. */
+    private String buildSyncRequest() {
+        return LargeResponse.wrapRequest(mCatalog.buildSyncRequest(), true);
+    }
+
+    /** Read the saved library, leaving it empty if there isn't one. */
+    private void load() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            mCatalog.readFrom(in);
+        } catch (IOException e) {
+            // Nothing saved yet or it's unreadable; the first sync fetches everything.
+        }
+        mCatalog.prepareSearch();
+        mLoaded = true;
+    }
+
+    /** Save the library, replacing the saved copy in one step. */
+    private void save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            mCatalog.writeTo(out);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(mFile)) temp.delete();
+    }
+}
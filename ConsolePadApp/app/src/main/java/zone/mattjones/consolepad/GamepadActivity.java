@@ -0,0 +1,106 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadActivity.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: Turns the phone into a controller for the console. Touches on the GamepadView are
+ *       streamed straight to the console while the activity is in the foreground, and the top of
+ *       the screen shows whether the console is acking them and how long a round trip takes.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.IOException;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+
+public class GamepadActivity extends Activity {
+    /** The IP of the console to stream to. */
+    public static final String EXTRA_CONSOLE_IP = "console_ip";
+
+    /** The name of the console, for the status text. */
+    public static final String EXTRA_CONSOLE_NAME = "console_name";
+
+    /** The time between updates of the status text. */
+    private static final long STATUS_UPDATE_INTERVAL_MS = 500;
+
+    /** Posts status updates while the activity is in the foreground. */
+    private final Handler mHandler = new Handler();
+
+    /** Updates the status text and schedules the next update. */
+    private final Runnable mStatusUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateStatusUi();
+            mHandler.postDelayed(this, STATUS_UPDATE_INTERVAL_MS);
+        }
+    };
+
+    /** The controller on screen. */
+    private GamepadView mGamepad;
+
+    /** The stream to the console while the activity is in the foreground. */
+    private GamepadStream mStream;
+
+    /** The IP of the console. */
+    private String mConsoleIp;
+
+    /** The name of the console. */
+    private String mConsoleName;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_gamepad);
+        mConsoleIp = getIntent().getStringExtra(EXTRA_CONSOLE_IP);
+        mConsoleName = getIntent().getStringExtra(EXTRA_CONSOLE_NAME);
+        mGamepad = (GamepadView) findViewById(R.id.gamepad);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        try {
+            mStream = new GamepadStream(mConsoleIp, ConsoleProtocol.GAMEPAD_PORT);
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.generic_console_error, Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+        mStream.start();
+        mGamepad.setStateListener(mStream::setState);
+        mStatusUpdater.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mStatusUpdater);
+        if (mStream == null) return;
+        // Letting go of the screen to leave shouldn't leave a button held on the console.
+        mGamepad.setStateListener(null);
+        mStream.close();
+        mStream = null;
+    }
+
+    /** Show whether the console is receiving the stream. */
+    private void updateStatusUi() {
+        TextView status = (TextView) findViewById(R.id.gamepad_status);
+        if (mStream.isConsoleReceiving()) {
+            status.setText(getResources().getString(R.string.gamepad_status_streaming,
+                    mConsoleName, mStream.getRoundTripMs()));
+            status.setTextColor(getResources().getColor(R.color.purple_primary, null));
+        } else {
+            status.setText(getResources().getString(R.string.gamepad_status_waiting, mConsoleName));
+            status.setTextColor(
+                    getResources().getColor(R.color.connection_status_none_color, null));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadStream.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: Streams the on-screen controller to the console over its own UDP socket (see
+ *       GamepadFrame). A change goes out as soon as it happens, limited to MAX_RATE_HZ, and is
+ *       repeated at that rate until the console acks it. Once acked, the state is only resent
+ *       every IDLE_INTERVAL_MS so the console knows the phone is still there. Every frame
+ *       carries the whole state, so a lost frame is made up for by the next one rather than
+ *       resent. Acks arrive on a second thread and give the round-trip time.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import zone.mattjones.consolepad.protocol.GamepadEncoder;
+import zone.mattjones.consolepad.protocol.GamepadFrame;
+import zone.mattjones.consolepad.protocol.GamepadState;
+
+public class GamepadStream {
+    /** The most frames sent per second. */
+    public static final int MAX_RATE_HZ = 250;
+
+    /** The longest time between frames while nothing changes. */
+    public static final long IDLE_INTERVAL_MS = 50;
+
+    /** The time without acks after which the console is considered not to be receiving. */
+    public static final long ACK_TIMEOUT_MS = 1000;
+
+    /** The shortest time between frames. */
+    private static final long MIN_INTERVAL_NANOS = 1000000000L / MAX_RATE_HZ;
+
+    /** The socket frames are sent and acks received on. */
+    private final DatagramSocket mSocket;
+
+    /** Writes the frames. Guarded by itself since acks are handled on another thread. */
+    private final GamepadEncoder mEncoder = new GamepadEncoder();
+
+    /** Guards the pending state and the flags below. */
+    private final Object mLock = new Object();
+
+    /** The latest state from the UI, waiting to be sent. */
+    private final GamepadState mPending = new GamepadState();
+
+    /** Whether mPending changed since it was last sent. */
+    private boolean mChanged;
+
+    /** Whether close() was called. */
+    private volatile boolean mClosed;
+
+    /** The time the last ack arrived according to System.nanoTime(), or 0 if none has. */
+    private volatile long mLastAckNanos;
+
+    /** The round-trip time from the last ack. */
+    private volatile long mRoundTripMicros;
+
+    /**
+     * Open the socket. Nothing is sent until start() is called.
+     * @param consoleIp The IP of the console.
+     * @param port The port the console receives the stream on.
+     * @throws IOException If the socket could not be opened.
+     */
+    public GamepadStream(String consoleIp, int port) throws IOException {
+        mSocket = new DatagramSocket();
+        mSocket.connect(new InetSocketAddress(consoleIp, port));
+        mSocket.setSoTimeout((int) ACK_TIMEOUT_MS);
+    }
+
+    /** Start sending and listening for acks on background threads. */
+    public void start() {
+        startThread("GamepadStreamSend", this::sendFrames);
+        startThread("GamepadStreamAcks", this::receiveAcks);
+    }
+
+    /**
+     * Send a new state as soon as the rate allows.
+     * @param state The state. It is copied, so the caller may reuse it.
+     */
+    public void setState(GamepadState state) {
+        synchronized (mLock) {
+            if (mPending.sameAs(state)) return;
+            mPending.copyFrom(state);
+            mChanged = true;
+            mLock.notify();
+        }
+    }
+
+    /** Release everything on the console and stop streaming. */
+    public void close() {
+        synchronized (mLock) {
+            mPending.clear();
+            mChanged = true;
+            mClosed = true;
+            mLock.notify();
+        }
+    }
+
+    /** @return Whether the console acked a frame recently. */
+    public boolean isConsoleReceiving() {
+        long lastAckNanos = mLastAckNanos;
+        return lastAckNanos != 0 && System.nanoTime() - lastAckNanos < ACK_TIMEOUT_MS * 1000000;
+    }
+
+    /** @return The round-trip time of the last acked frame in ms. */
+    public long getRoundTripMs() {
+        return mRoundTripMicros / 1000;
+    }
+
+    /**
+     * Start a daemon thread at the priority Android gives to UI-critical work.
+     * @param name The name of the thread.
+     * @param body What the thread runs.
+     */
+    private static void startThread(String name, Runnable body) {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            body.run();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Send frames as the state changes until closed, then send the released state once. */
+    private void sendFrames() {
+        GamepadState state = new GamepadState();
+        ByteBuffer out = ByteBuffer.allocate(GamepadFrame.MAX_FRAME_SIZE);
+        DatagramPacket packet = new DatagramPacket(out.array(), 0);
+        long lastSentNanos = System.nanoTime() - MIN_INTERVAL_NANOS;
+        // The first frame sent with the current state.
+        int changeSequence = 0;
+        boolean closed = false;
+        while (!closed) {
+            boolean changed;
+            synchronized (mLock) {
+                // Wait for a change, but no longer than the idle interval, and then for the rate.
+                while (true) {
+                    long intervalNanos = mChanged || needsRepeat(changeSequence)
+                            ? MIN_INTERVAL_NANOS : IDLE_INTERVAL_MS * 1000000;
+                    long waitNanos = intervalNanos - (System.nanoTime() - lastSentNanos);
+                    if (waitNanos <= 0) break;
+                    try {
+                        mLock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                changed = mChanged;
+                state.copyFrom(mPending);
+                mChanged = false;
+                closed = mClosed;
+            }
+
+            lastSentNanos = System.nanoTime();
+            out.clear();
+            synchronized (mEncoder) {
+                int sequence = mEncoder.encode(out, state, lastSentNanos / 1000);
+                if (changed) changeSequence = sequence;
+            }
+            packet.setLength(out.position());
+            try {
+                mSocket.send(packet);
+            } catch (IOException e) {
+                // Lost like any other frame; the next one replaces it.
+            }
+        }
+        mSocket.close();
+    }
+
+    /**
+     * Whether to keep sending at the full rate after a change. A change is repeated until the
+     * console acks it, so a lost frame is made up for within one interval rather than one idle
+     * interval, but only while the console is acking at all.
+     * @param changeSequence The first frame sent with the current state.
+     * @return Whether the change should be sent again right away.
+     */
+    private boolean needsRepeat(int changeSequence) {
+        if (!isConsoleReceiving()) return false;
+        synchronized (mEncoder) {
+            return !mEncoder.isAcked(changeSequence);
+        }
+    }
+
+    /** Handle acks until the socket is closed. */
+    private void receiveAcks() {
+        byte[] receiveBuffer = new byte[GamepadFrame.ACK_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        while (!mClosed) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                mSocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                // Nothing listening on the console's port shows up here on some devices.
+                if (mSocket.isClosed()) return;
+                continue;
+            }
+
+            long sentMicros;
+            synchronized (mEncoder) {
+                sentMicros = mEncoder.handleAck(
+                        ByteBuffer.wrap(receiveBuffer, 0, packet.getLength()));
+            }
+            if (sentMicros < 0) continue;
+            long nowNanos = System.nanoTime();
+            mRoundTripMicros = nowNanos / 1000 - sentMicros;
+            mLastAckNanos = nowNanos;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadView.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: An on-screen controller laid out like an Xbox 360 pad: two sticks, a D-pad, face buttons,
+ *       shoulders, triggers and the buttons in the middle. Every finger is tracked separately, a
+ *       finger that slides off a button onto another presses the new one, and a finger that
+ *       starts on a stick keeps steering it until it lifts. Controls are drawn directly so a
+ *       touch never waits on layout.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.SparseIntArray;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.View;
+
+import zone.mattjones.consolepad.protocol.GamepadState;
+
+public class GamepadView extends View {
+    /** Interface for hearing about changes to the controller. Called on the main thread. */
+    public interface StateListener {
+        /**
+         * The controller changed.
+         * @param state The new state. It is reused, so copy it to keep it.
+         */
+        void onStateChanged(GamepadState state);
+    }
+
+    /** A single control drawn on screen. */
+    private static class Control {
+        /** The button bit or one of the CONTROL_* values below. */
+        final int id;
+        /** The center as a fraction of the view's width and height. */
+        final float x;
+        final float y;
+        /** The radius as a fraction of the view's height. */
+        final float radius;
+        /** The text drawn on the control. */
+        final String label;
+
+        Control(int id, float x, float y, float radius, String label) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.radius = radius;
+            this.label = label;
+        }
+
+        /** @return Whether this control is a stick rather than a button. */
+        boolean isStick() {
+            return id == CONTROL_LEFT_STICK || id == CONTROL_RIGHT_STICK;
+        }
+    }
+
+    // Controls that aren't button bits. Negative so they can't clash with one.
+    private static final int CONTROL_LEFT_STICK = -1;
+    private static final int CONTROL_RIGHT_STICK = -2;
+    private static final int CONTROL_LEFT_TRIGGER = -3;
+    private static final int CONTROL_RIGHT_TRIGGER = -4;
+
+    /** The value of a pointer not on any control. */
+    private static final int NO_CONTROL = -1;
+
+    /** The fraction of a stick's radius that its knob covers. */
+    private static final float KNOB_FRACTION = 0.45f;
+
+    /** The width of control outlines in DP. */
+    private static final int OUTLINE_WIDTH_DP = 2;
+
+    /** Everything drawn, in the order drawn. Touches go to the first one hit. */
+    private static final Control[] CONTROLS = {
+            new Control(CONTROL_LEFT_TRIGGER, 0.08f, 0.1f, 0.08f, "LT"),
+            new Control(GamepadState.BUTTON_LEFT_SHOULDER, 0.22f, 0.1f, 0.08f, "LB"),
+            new Control(GamepadState.BUTTON_RIGHT_SHOULDER, 0.78f, 0.1f, 0.08f, "RB"),
+            new Control(CONTROL_RIGHT_TRIGGER, 0.92f, 0.1f, 0.08f, "RT"),
+            new Control(GamepadState.BUTTON_BACK, 0.4f, 0.2f, 0.06f, "\u25C0"),
+            new Control(GamepadState.BUTTON_GUIDE, 0.5f, 0.2f, 0.07f, "\u2302"),
+            new Control(GamepadState.BUTTON_START, 0.6f, 0.2f, 0.06f, "\u25B6"),
+            new Control(CONTROL_LEFT_STICK, 0.17f, 0.5f, 0.2f, ""),
+            new Control(GamepadState.BUTTON_DPAD_UP, 0.36f, 0.62f, 0.08f, "\u2191"),
+            new Control(GamepadState.BUTTON_DPAD_DOWN, 0.36f, 0.9f, 0.08f, "\u2193"),
+            new Control(GamepadState.BUTTON_DPAD_LEFT, 0.29f, 0.76f, 0.08f, "\u2190"),
+            new Control(GamepadState.BUTTON_DPAD_RIGHT, 0.43f, 0.76f, 0.08f, "\u2192"),
+            new Control(GamepadState.BUTTON_Y, 0.83f, 0.34f, 0.09f, "Y"),
+            new Control(GamepadState.BUTTON_A, 0.83f, 0.66f, 0.09f, "A"),
+            new Control(GamepadState.BUTTON_X, 0.75f, 0.5f, 0.09f, "X"),
+            new Control(GamepadState.BUTTON_B, 0.91f, 0.5f, 0.09f, "B"),
+            new Control(CONTROL_RIGHT_STICK, 0.62f, 0.72f, 0.17f, ""),
+    };
+
+    /** The state shown, handed to the listener on every change. */
+    private final GamepadState mState = new GamepadState();
+
+    /** The control each finger is on, keyed by pointer ID, as an index into CONTROLS. */
+    private final SparseIntArray mPointerControls = new SparseIntArray();
+
+    /** Where each stick's finger is relative to the stick's center, as a fraction of its radius. */
+    private final float[] mStickOffsets = new float[4];
+
+    /** The state before the latest touch, to tell what changed. */
+    private final GamepadState mPreviousState = new GamepadState();
+
+    /** Paint for control outlines. */
+    private final Paint mOutlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /** Paint for pressed controls and stick knobs. */
+    private final Paint mFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /** Paint for labels. */
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    /** The object that hears about changes. */
+    private StateListener mListener;
+
+    public GamepadView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float dpToPx = getResources().getDisplayMetrics().density;
+        mOutlinePaint.setStyle(Paint.Style.STROKE);
+        mOutlinePaint.setStrokeWidth(OUTLINE_WIDTH_DP * dpToPx);
+        mOutlinePaint.setColor(context.getColor(R.color.icon_color_default));
+        mFillPaint.setColor(context.getColor(R.color.purple_primary));
+        mLabelPaint.setColor(context.getColor(R.color.button_text_default));
+        mLabelPaint.setTextAlign(Paint.Align.CENTER);
+    }
+
+    /**
+     * @param listener The object that hears about changes.
+     */
+    public void setStateListener(StateListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mLabelPaint.setTextSize(h * 0.05f);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        float labelOffset = (mLabelPaint.descent() + mLabelPaint.ascent()) / 2;
+        for (int i = 0; i < CONTROLS.length; i++) {
+            Control control = CONTROLS[i];
+            float x = control.x * getWidth();
+            float y = control.y * getHeight();
+            float radius = control.radius * getHeight();
+            canvas.drawCircle(x, y, radius, mOutlinePaint);
+            if (control.isStick()) {
+                int stick = stickIndex(control);
+                canvas.drawCircle(x + mStickOffsets[stick] * radius,
+                        y + mStickOffsets[stick + 1] * radius, radius * KNOB_FRACTION,
+                        isPressed(i) ? mFillPaint : mOutlinePaint);
+                continue;
+            }
+            if (isPressed(i)) canvas.drawCircle(x, y, radius, mFillPaint);
+            canvas.drawText(control.label, x, y - labelOffset, mLabelPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+        int index = event.getActionIndex();
+        switch (action) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN:
+                mPointerControls.put(event.getPointerId(index),
+                        findControl(event.getX(index), event.getY(index), true));
+                break;
+            case MotionEvent.ACTION_MOVE:
+                for (int i = 0; i < event.getPointerCount(); i++) {
+                    int pointerId = event.getPointerId(i);
+                    int control = mPointerControls.get(pointerId, NO_CONTROL);
+                    // Sticks keep their finger; anything else follows it.
+                    if (control != NO_CONTROL && CONTROLS[control].isStick()) continue;
+                    mPointerControls.put(
+                            pointerId, findControl(event.getX(i), event.getY(i), false));
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                mPointerControls.delete(event.getPointerId(index));
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mPointerControls.clear();
+                break;
+            default:
+                return true;
+        }
+        updateState(event);
+        return true;
+    }
+
+    /**
+     * Work out the state from where the fingers are and tell the listener if it changed.
+     * @param event The latest touch event.
+     */
+    private void updateState(MotionEvent event) {
+        mPreviousState.copyFrom(mState);
+        mState.clear();
+        for (int i = 0; i < mStickOffsets.length; i++) mStickOffsets[i] = 0;
+        for (int i = 0; i < mPointerControls.size(); i++) {
+            int controlIndex = mPointerControls.valueAt(i);
+            if (controlIndex == NO_CONTROL) continue;
+            Control control = CONTROLS[controlIndex];
+            if (control.id == CONTROL_LEFT_TRIGGER) {
+                mState.leftTrigger = GamepadState.TRIGGER_MAX;
+            } else if (control.id == CONTROL_RIGHT_TRIGGER) {
+                mState.rightTrigger = GamepadState.TRIGGER_MAX;
+            } else if (control.isStick()) {
+                int pointerIndex = event.findPointerIndex(mPointerControls.keyAt(i));
+                updateStick(control, event.getX(pointerIndex), event.getY(pointerIndex));
+            } else {
+                mState.buttons |= control.id;
+            }
+        }
+
+        if (mState.sameAs(mPreviousState)) return;
+        if ((mState.buttons & ~mPreviousState.buttons) != 0
+                || mState.leftTrigger > mPreviousState.leftTrigger
+                || mState.rightTrigger > mPreviousState.rightTrigger) {
+            performHapticFeedback(HapticFeedbackConstants.VIRTUAL_KEY);
+        }
+        invalidate();
+        if (mListener != null) mListener.onStateChanged(mState);
+    }
+
+    /**
+     * Point a stick at a finger.
+     * @param control The stick.
+     * @param x The finger's x in the view.
+     * @param y The finger's y in the view.
+     */
+    private void updateStick(Control control, float x, float y) {
+        float radius = control.radius * getHeight();
+        float dx = (x - control.x * getWidth()) / radius;
+        float dy = (y - control.y * getHeight()) / radius;
+        float length = (float) Math.hypot(dx, dy);
+        if (length > 1) {
+            dx /= length;
+            dy /= length;
+        }
+        int stick = stickIndex(control);
+        mStickOffsets[stick] = dx;
+        mStickOffsets[stick + 1] = dy;
+
+        // Screen y grows downward but up is positive on a controller.
+        int axisX = Math.round(dx * GamepadState.AXIS_MAX);
+        int axisY = Math.round(-dy * GamepadState.AXIS_MAX);
+        if (control.id == CONTROL_LEFT_STICK) {
+            mState.leftX = axisX;
+            mState.leftY = axisY;
+        } else {
+            mState.rightX = axisX;
+            mState.rightY = axisY;
+        }
+    }
+
+    /**
+     * @param control A stick.
+     * @return The index of the stick's x offset in mStickOffsets; y follows it.
+     */
+    private static int stickIndex(Control control) {
+        return control.id == CONTROL_LEFT_STICK ? 0 : 2;
+    }
+
+    /**
+     * @param x A position in the view.
+     * @param y A position in the view.
+     * @param includeSticks Whether sticks can be hit; only a new finger can grab one.
+     * @return The index in CONTROLS of the first control hit, or NO_CONTROL.
+     */
+    private int findControl(float x, float y, boolean includeSticks) {
+        for (int i = 0; i < CONTROLS.length; i++) {
+            Control control = CONTROLS[i];
+            if (!includeSticks && control.isStick()) continue;
+            float radius = control.radius * getHeight();
+            if (Math.hypot(x - control.x * getWidth(), y - control.y * getHeight()) <= radius) {
+                return i;
+            }
+        }
+        return NO_CONTROL;
+    }
+
+    /**
+     * @param controlIndex The index of a control in CONTROLS.
+     * @return Whether a finger is on it.
+     */
+    private boolean isPressed(int controlIndex) {
+        for (int i = 0; i < mPointerControls.size(); i++) {
+            if (mPointerControls.valueAt(i) == controlIndex) return true;
+        }
+        return false;
+    }
+}
@@ -4,17 +4,19 @@
  * File: LongPressButton.java
  * Author: Matt Jones
  * Date: 2019.09.06
- * Desc: A view that shifts color when pressed and held until the action is performed.
+ * Desc: A view that shifts color when pressed and held until the action is performed. The fill
+ *       is drawn by clipping the active view to the press progress, driven by one animator that
+ *       each button reuses for every press.
  */
 
 package zone.mattjones.consolepad;
 
 import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
 import android.content.Context;
-import android.graphics.Color;
-import android.graphics.PorterDuff;
-import android.graphics.Rect;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -27,6 +29,21 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 public class LongPressButton extends FrameLayout implements GestureDetector.OnGestureListener {
+    /** Interface for hearing about a press before it's long enough to perform the action. */
+    public interface OnPressListener {
+        /**
+         * The button was just pressed and its action will run if it is held.
+         * @param view The button.
+         */
+        void onPressStarted(View view);
+
+        /**
+         * The button was let go or the press turned into a scroll before the action ran.
+         * @param view The button.
+         */
+        void onPressCanceled(View view);
+    }
+
     /** A shared deceleration interpolator for all button animations to use. */
     private static final Interpolator SHARED_INTERPOLATOR = new DecelerateInterpolator();
 
@@ -51,67 +68,86 @@ public class LongPressButton extends FrameLayout implements GestureDetector.OnGe
     /** Gesture detector for simplifying gesture recognition. */
     private final GestureDetector mGestureDetector;
 
+    /** The background color of the active view while the button is held. */
+    private final int mActiveColor;
+
+    /** The background color of the active view once the action was performed. */
+    private final int mConfirmedColor;
+
+    /**
+     * The animator that fills the button while it's held. It is created once and restarted for
+     * every press so pressing doesn't allocate.
+     */
+    private final ValueAnimator mFillAnimator = ValueAnimator.ofFloat(0, 1);
+
+    /** Ends the confirmation shown after the action is performed. */
+    private final Runnable mConfirmDoneRunnable = () -> {
+        mIsConfirming = false;
+        cleanupAnimation();
+    };
+
     /** The listener that runs this button's action when completed. */
-    private final Animator.AnimatorListener mAnimatorListener = new Animator.AnimatorListener() {
-        /** Whether the animation was canceled. */
+    private final Animator.AnimatorListener mAnimatorListener = new AnimatorListenerAdapter() {
+        /** Whether the current run of the animation was canceled. */
         private boolean mIsCanceled;
 
         @Override
         public void onAnimationStart(Animator animator) {
+            mIsCanceled = false;
             mActiveGroup.setVisibility(View.VISIBLE);
             setLongClickable(true);
         }
 
         @Override
         public void onAnimationEnd(Animator animator) {
-            if (mIsCanceled) {
-                cleanupAnimation();
-                return;
-            }
+            if (mIsCanceled) return;
+            mIsPressing = false;
             if (mClickListener != null) mClickListener.onClick(LongPressButton.this);
-            mActiveGroup.setBackgroundColor(
-                    getResources().getColor(R.color.purple_secondary, null));
-            mConfirmRunnable = () -> cleanupAnimation();
-            postDelayed(() -> {
-                mConfirmRunnable.run();
-                mConfirmRunnable = null;
-            }, CONFIRM_DURATION_MS);
+            mActiveGroup.setBackgroundColor(mConfirmedColor);
+            mIsConfirming = true;
+            postDelayed(mConfirmDoneRunnable, CONFIRM_DURATION_MS);
         }
 
         @Override
         public void onAnimationCancel(Animator animator) {
             mIsCanceled = true;
         }
-
-        @Override
-        public void onAnimationRepeat(Animator animator) { }
     };
 
-    /** Responsible for making the changes to the view when the animation ticks. */
-    private ValueAnimator.AnimatorUpdateListener mAnimatorUpdateListener;
-
-    /** The animator responsible for scrolling the background while the button is being held. */
-    private ValueAnimator mScrollAnimator;
-
     /** The action triggered after the button is held for long enough. */
     private OnClickListener mClickListener;
 
+    /** Told when a press starts and when it ends without the action running. */
+    private OnPressListener mPressListener;
+
     /** The view of that button that is shown while the button is not active. */
     private ViewGroup mInactiveGroup;
 
     /** The view of that button that is shown while the button is active. */
     private ViewGroup mActiveGroup;
 
-    /** The dimensions of the view at the start of the animation. */
-    private Rect mOriginalDimensions;
+    /** The label shown while the button is not active. */
+    private TextView mLabel;
+
+    /** The label shown while the button is active. */
+    private TextView mActiveLabel;
+
+    /** The icon shown while the button is not active. */
+    private ImageView mIcon;
+
+    /** The icon shown while the button is active. */
+    private ImageView mActiveIcon;
+
+    /** How much of the active view is showing from the left edge, in range [0, 1]. */
+    private float mFillFraction;
 
-    /** The rect used to clip the active view as it animates across the screen. */
-    private Rect mAnimatedClipRect;
+    /** Whether the button is showing that its action was performed; touches are ignored. */
+    private boolean mIsConfirming;
 
-    /** Wait to reset the background color after a confirmed, selection. */
-    private Runnable mConfirmRunnable;
+    /** Whether a press is in progress. */
+    private boolean mIsPressing;
 
-    /** The time of the last down event. */
+    /** The time of the last down event according to the event clock. */
     private long mDownEventTime;
 
     /** Default constructor for use in XML. */
@@ -119,41 +155,53 @@ public class LongPressButton extends FrameLayout implements GestureDetector.OnGe
         super(context, atts);
 
         mDpToPx = getResources().getDisplayMetrics().density;
-        mGestureDetector = new GestureDetector(this);
-
-        mOriginalDimensions = new Rect();
-        mAnimatedClipRect = new Rect(0, 0, 0, 0);
+        mGestureDetector = new GestureDetector(context, this);
+        mActiveColor = getResources().getColor(R.color.purple_primary, null);
+        mConfirmedColor = getResources().getColor(R.color.purple_secondary, null);
+
+        mFillAnimator.setDuration(LONG_PRESS_DURATION_MS);
+        mFillAnimator.setInterpolator(SHARED_INTERPOLATOR);
+        mFillAnimator.addListener(mAnimatorListener);
+        mFillAnimator.addUpdateListener((animator) -> {
+            // The interpolated fraction is the value for a 0 to 1 animation and isn't boxed.
+            mFillFraction = animator.getAnimatedFraction();
+            // Only this view's own drawing changes; the children's display lists are reused.
+            invalidate();
+        });
     }
 
     @Override
     protected void onFinishInflate() {
         super.onFinishInflate();
 
-        // Tint the icons since they aren't by default.
-        setIconColor((ImageView) findViewById(R.id.button_icon),
-                getResources().getColor(R.color.icon_color_default));
-        setIconColor((ImageView) findViewById(R.id.button_icon_active),
-                getResources().getColor(R.color.icon_color_selected));
+        // Find the children once so rebinding a recycled button doesn't search for them.
+        mLabel = (TextView) findViewById(R.id.button_label);
+        mActiveLabel = (TextView) findViewById(R.id.button_label_active);
+        mIcon = (ImageView) findViewById(R.id.button_icon);
+        mActiveIcon = (ImageView) findViewById(R.id.button_icon_active);
 
         mInactiveGroup = (ViewGroup) findViewById(R.id.inactive_button);
-        addOnLayoutChangeListener(new OnLayoutChangeListener() {
-            @Override
-            public void onLayoutChange(
-                    View view, int l, int t, int r, int b, int ol, int ot, int or, int ob) {
-                mOriginalDimensions.set(0, 0, r - l, b - t);
+        mActiveGroup = (ViewGroup) findViewById(R.id.active_button);
+    }
 
-            }
-        });
+    @Override
+    protected boolean drawChild(Canvas canvas, View child, long drawingTime) {
+        if (child != mActiveGroup) return super.drawChild(canvas, child, drawingTime);
+
+        // Reveal the active view from the left as the button fills rather than moving its clip
+        // bounds, which would invalidate all of its children every frame.
+        if (mFillFraction <= 0) return false;
+        int saveCount = canvas.save();
+        canvas.clipRect(0, 0, getWidth() * mFillFraction, getHeight());
+        boolean result = super.drawChild(canvas, child, drawingTime);
+        canvas.restoreToCount(saveCount);
+        return result;
+    }
 
-        mActiveGroup = (ViewGroup) findViewById(R.id.active_button);
-        mActiveGroup.setClipBounds(mAnimatedClipRect);
-
-        mAnimatorUpdateListener = (animator) -> {
-            float v = (float) animator.getAnimatedValue();
-            mAnimatedClipRect.set(mOriginalDimensions.left, mOriginalDimensions.top,
-                    (int) (mOriginalDimensions.right * v), mOriginalDimensions.bottom);
-            mActiveGroup.setClipBounds(mAnimatedClipRect);
-        };
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        resetPress();
     }
 
     @Override
@@ -163,31 +211,34 @@ public class LongPressButton extends FrameLayout implements GestureDetector.OnGe
     }
 
     /**
-     * Interpolate between two colors.
-     * @param start The start color.
-     * @param end The end color.
-     * @param f The fraction in range [0, 1].
-     * @return The interpolated color.
+     * Set the listener told about presses before the action runs, e.g. to get ready for it.
+     * @param listener The listener or null.
      */
-    private int interpolateColor(int start, int end, float f) {
-        return Color.argb(
-                (Color.alpha(start) * (1 - f) + Color.alpha(end) * f) / 255.f,
-                (Color.red(start) * (1 - f) + Color.red(end) * f) / 255.f,
-                (Color.green(start) * (1 - f) + Color.green(end) * f) / 255.f,
-                (Color.blue(start) * (1 - f) + Color.blue(end) * f) / 255.f);
+    public void setOnPressListener(OnPressListener listener) {
+        mPressListener = listener;
     }
 
     /** Cancel the running animation and reset state. */
     private void cleanupAnimation() {
-        if (mScrollAnimator == null) return;
-        mScrollAnimator.removeAllListeners();
-        mScrollAnimator.cancel();
-        mScrollAnimator = null;
-        mActiveGroup.setVisibility(View.GONE);
-
-        mAnimatedClipRect.set(0, 0, 0, 0);
-        mActiveGroup.setBackgroundColor(
-                getResources().getColor(R.color.purple_primary, null));
+        if (mIsPressing) {
+            mIsPressing = false;
+            if (mPressListener != null) mPressListener.onPressCanceled(this);
+        }
+        if (mIsConfirming) return;
+        mFillAnimator.cancel();
+        mFillFraction = 0;
+        mActiveGroup.setVisibility(View.INVISIBLE);
+        mActiveGroup.setBackgroundColor(mActiveColor);
+        invalidate();
+    }
+
+    /**
+     * Stop a press that is in progress, e.g. because the button is about to show something else.
+     */
+    public void resetPress() {
+        removeCallbacks(mConfirmDoneRunnable);
+        mIsConfirming = false;
+        cleanupAnimation();
     }
 
     /**
@@ -195,63 +246,54 @@ public class LongPressButton extends FrameLayout implements GestureDetector.OnGe
      * @param stringResourceId The resource ID of the string to use.
      */
     public void setButtonText(int stringResourceId) {
-        ((TextView) findViewById(R.id.button_label)).setText(stringResourceId);
-        ((TextView) findViewById(R.id.button_label_active)).setText(stringResourceId);
+        mLabel.setText(stringResourceId);
+        mActiveLabel.setText(stringResourceId);
     }
 
     /**
-     * Set this button's icon.
-     * @param iconId The ID of the drawable for the button to display.
+     * Set the label for this button.
+     * @param text The text to use.
      */
-    public void setButtonIcon(int iconId) {
-        ImageView activeIcon = (ImageView) findViewById(R.id.button_icon_active);
-        ImageView inactiveIcon = (ImageView) findViewById(R.id.button_icon);
-
-        // Make sure to call mutate() on the drawables so Android doesn't try sharing a single
-        // resource instance.
-        activeIcon.setImageDrawable(getResources().getDrawable(iconId, null).mutate());
-        setIconColor(activeIcon, getResources().getColor(R.color.icon_color_selected));
-
-
-        inactiveIcon.setImageDrawable(getResources().getDrawable(iconId, null).mutate());
-        setIconColor(inactiveIcon, getResources().getColor(R.color.icon_color_default));
+    public void setButtonText(CharSequence text) {
+        mLabel.setText(text);
+        mActiveLabel.setText(text);
     }
 
     /**
-     * Set the color of the icon.
-     * @param color The color to set the icon to. The original colors are overridden by this value.
+     * Set this button's icons. They should already be tinted; see TintedIconCache.
+     * @param icon The icon to show while the button is not active.
+     * @param activeIcon The icon to show while the button is active.
      */
-    private void setIconColor(ImageView iconView, int color) {
-        iconView.setColorFilter(color, PorterDuff.Mode.SRC_IN);
+    public void setButtonIcons(Drawable icon, Drawable activeIcon) {
+        mIcon.setImageDrawable(icon);
+        mActiveIcon.setImageDrawable(activeIcon);
     }
 
     @Override
     public boolean onInterceptTouchEvent(MotionEvent event) {
-        if (mConfirmRunnable != null) return false;
+        if (mIsConfirming) return false;
         handleMotionEvent(event);
         return mGestureDetector.onTouchEvent(event);
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        if (mConfirmRunnable != null) return false;
+        if (mIsConfirming) return false;
         handleMotionEvent(event);
         return mGestureDetector.onTouchEvent(event);
     }
 
     /**
-     * Handle incoming motion events to this view.
+     * Handle incoming motion events to this view. This runs for every touch event, so it must not
+     * allocate.
      * @param event The event to handle.
      */
     private void handleMotionEvent(MotionEvent event) {
-        if (event.getActionMasked() == MotionEvent.ACTION_DOWN && mScrollAnimator == null) {
-            mDownEventTime = System.currentTimeMillis();
-            mScrollAnimator = ValueAnimator.ofFloat(0, 1);
-            mScrollAnimator.setDuration(LONG_PRESS_DURATION_MS);
-            mScrollAnimator.addListener(mAnimatorListener);
-            mScrollAnimator.addUpdateListener(mAnimatorUpdateListener);
-            mScrollAnimator.setInterpolator(SHARED_INTERPOLATOR);
-            mScrollAnimator.start();
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN && !mIsPressing) {
+            mIsPressing = true;
+            mDownEventTime = event.getEventTime();
+            mFillAnimator.start();
+            if (mPressListener != null) mPressListener.onPressStarted(this);
         } else if (event.getActionMasked() == MotionEvent.ACTION_UP
                 || event.getActionMasked() == MotionEvent.ACTION_CANCEL
                 ||!isTouchInViewYArea(event)) {
@@ -259,7 +301,7 @@ public class LongPressButton extends FrameLayout implements GestureDetector.OnGe
             cleanupAnimation();
         }
 
-        if (System.currentTimeMillis() - mDownEventTime > TIME_TO_INTERCEPT_LONG_PRESS) {
+        if (event.getEventTime() - mDownEventTime > TIME_TO_INTERCEPT_LONG_PRESS) {
             getParent().requestDisallowInterceptTouchEvent(true);
         }
     }
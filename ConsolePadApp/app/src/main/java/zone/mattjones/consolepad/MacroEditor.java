@@ -0,0 +1,118 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: MacroEditor.java
+ * Author: Matt Jones
+ * Date: 2019.10.13
+ * Desc: Dialogs for making and deleting macros. A new macro is named and its steps are picked
+ *       from the built-in actions; they run in the order they were picked.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MacroEditor {
+    /** The activity the dialogs are shown in. */
+    private final Activity mActivity;
+
+    /** Where macros are saved. */
+    private final MacroStore mStore;
+
+    /** The actions a macro can be made from. */
+    private final List<ConsoleAction> mBuiltIns;
+
+    /** Run after a macro is saved or deleted. */
+    private final Runnable mOnChanged;
+
+    /**
+     * @param activity The activity the dialogs are shown in.
+     * @param store Where macros are saved.
+     * @param builtIns The actions a macro can be made from.
+     * @param onChanged Run after a macro is saved or deleted.
+     */
+    public MacroEditor(Activity activity, MacroStore store, List<ConsoleAction> builtIns,
+            Runnable onChanged) {
+        mActivity = activity;
+        mStore = store;
+        mBuiltIns = builtIns;
+        mOnChanged = onChanged;
+    }
+
+    /** Show the existing macros, tapping one offers to delete it, or go straight to a new one. */
+    public void show() {
+        List<MacroStore.Macro> macros = mStore.getMacros();
+        if (macros.isEmpty()) {
+            showNewMacro();
+            return;
+        }
+
+        String[] names = new String[macros.size()];
+        for (int i = 0; i < names.length; i++) names[i] = macros.get(i).name;
+        new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.macros_title)
+                .setItems(names, (dialog, which) -> confirmDelete(names[which]))
+                .setPositiveButton(R.string.macro_new, (dialog, which) -> showNewMacro())
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /** Ask for a name and steps and save them as a macro. */
+    private void showNewMacro() {
+        String[] labels = new String[mBuiltIns.size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = mActivity.getString(mBuiltIns.get(i).labelId);
+        }
+        // The steps in the order they were checked.
+        ArrayList<String> steps = new ArrayList<>();
+
+        EditText name = new EditText(mActivity);
+        name.setHint(R.string.macro_name_hint);
+        name.setSingleLine();
+
+        new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.macro_new_title)
+                .setView(name)
+                .setMultiChoiceItems(labels, null, (dialog, which, isChecked) -> {
+                    String actionId = mBuiltIns.get(which).actionId;
+                    if (isChecked) {
+                        steps.add(actionId);
+                    } else {
+                        steps.remove(actionId);
+                    }
+                })
+                .setPositiveButton(R.string.macro_save, (dialog, which) -> {
+                    String macroName = name.getText().toString().trim();
+                    if (macroName.isEmpty() || steps.isEmpty()) {
+                        Toast.makeText(mActivity, R.string.macro_invalid, Toast.LENGTH_LONG)
+                                .show();
+                        return;
+                    }
+                    mStore.saveMacro(new MacroStore.Macro(macroName, steps));
+                    mOnChanged.run();
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Ask before deleting a macro.
+     * @param name The name of the macro.
+     */
+    private void confirmDelete(String name) {
+        new AlertDialog.Builder(mActivity)
+                .setMessage(mActivity.getString(R.string.macro_delete_confirm, name))
+                .setPositiveButton(R.string.macro_delete, (dialog, which) -> {
+                    mStore.deleteMacro(name);
+                    mOnChanged.run();
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+}
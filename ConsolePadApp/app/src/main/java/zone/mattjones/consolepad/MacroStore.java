@@ -0,0 +1,145 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: MacroStore.java
+ * Author: Matt Jones
+ * Date: 2019.10.13
+ * Desc: Remembers the macros the user made across launches. A macro is a named list of the
+ *       built-in actions that is sent to the console as a single batch (see ActionBatch), so it
+ *       takes one round trip no matter how many steps it has.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import zone.mattjones.consolepad.protocol.ActionBatch;
+
+public class MacroStore {
+    /** A named list of actions. */
+    public static class Macro {
+        /** The name shown on the macro's button. */
+        public final String name;
+        /** The IDs of the actions to run, in order. */
+        public final List<String> steps;
+
+        public Macro(String name, List<String> steps) {
+            this.name = name;
+            this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+        }
+
+        /**
+         * Make the action that runs this macro.
+         * @param builtIns The built-in actions; the macro uses the icon of its first step.
+         * @return The action.
+         */
+        public ConsoleAction toAction(List<ConsoleAction> builtIns) {
+            int imageId = 0;
+            for (ConsoleAction action : builtIns) {
+                if (action.actionId.equals(steps.get(0))) imageId = action.imageId;
+            }
+            return new ConsoleAction(imageId, name, ActionBatch.encode(steps));
+        }
+    }
+
+    /** The name of the preferences file the macros are stored in. */
+    private static final String PREFS_NAME = "macros";
+
+    // Keys for the stored values.
+    private static final String KEY_MACROS = "macros";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_STEPS = "steps";
+
+    /** The backing storage. */
+    private final SharedPreferences mPrefs;
+
+    /** The in-memory copy of the macros in the order they were made. */
+    private final ArrayList<Macro> mMacros = new ArrayList<>();
+
+    /**
+     * @param context The context used to open the preferences file.
+     */
+    public MacroStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        try {
+            JSONArray macros = new JSONArray(mPrefs.getString(KEY_MACROS, "[]"));
+            for (int i = 0; i < macros.length(); i++) {
+                JSONObject macro = macros.getJSONObject(i);
+                JSONArray steps = macro.getJSONArray(KEY_STEPS);
+                ArrayList<String> stepList = new ArrayList<>(steps.length());
+                for (int j = 0; j < steps.length(); j++) stepList.add(steps.getString(j));
+                if (stepList.isEmpty()) continue;
+                mMacros.add(new Macro(macro.getString(KEY_NAME), stepList));
+            }
+        } catch (JSONException e) {
+            // Storage is corrupt; start over rather than failing to launch.
+            mMacros.clear();
+        }
+    }
+
+    /** @return The macros in the order they were made. */
+    public List<Macro> getMacros() {
+        return Collections.unmodifiableList(mMacros);
+    }
+
+    /**
+     * Add a macro, replacing any macro with the same name.
+     * @param macro The macro to add.
+     */
+    public void saveMacro(Macro macro) {
+        int index = indexOf(macro.name);
+        if (index >= 0) {
+            mMacros.set(index, macro);
+        } else {
+            mMacros.add(macro);
+        }
+        write();
+    }
+
+    /**
+     * Forget a macro.
+     * @param name The name of the macro.
+     */
+    public void deleteMacro(String name) {
+        int index = indexOf(name);
+        if (index < 0) return;
+        mMacros.remove(index);
+        write();
+    }
+
+    /**
+     * @param name The name of a macro.
+     * @return The index of the macro with that name or -1 if there isn't one.
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < mMacros.size(); i++) {
+            if (mMacros.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /** Save the macros to storage. */
+    private void write() {
+        JSONArray macros = new JSONArray();
+        try {
+            for (Macro macro : mMacros) {
+                macros.put(new JSONObject()
+                        .put(KEY_NAME, macro.name)
+                        .put(KEY_STEPS, new JSONArray(macro.steps)));
+            }
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers, which macros don't have.
+            throw new IllegalStateException(e);
+        }
+        mPrefs.edit().putString(KEY_MACROS, macros.toString()).apply();
+    }
+}
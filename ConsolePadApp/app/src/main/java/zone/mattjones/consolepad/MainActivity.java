@@ -10,37 +10,144 @@
 package zone.mattjones.consolepad;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
 import android.view.View;
-import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.List;
 
-public class MainActivity extends Activity implements UdpNetworkTask.ResponseHandler {
-    /** Information representing a button in the app. */
-    public static class ConsoleButtonInfo {
-        /** The resource ID of the image to use for the button icon. */
-        public final int imageId;
-        /** The ID of the text to place next to the icon. */
-        public final int labelId;
-        /** The ID of the action to perform on the host device. */
-        public final String actionId;
+import zone.mattjones.consolepad.client.ConsoleDiscoveryTask;
+import zone.mattjones.consolepad.client.ConsoleRecord;
+import zone.mattjones.consolepad.client.ConsoleSession;
+import zone.mattjones.consolepad.client.LocalAddressIndex;
+import zone.mattjones.consolepad.client.NetworkExecutor;
+import zone.mattjones.consolepad.client.NetworkRequest;
+import zone.mattjones.consolepad.client.NetworkStats;
+import zone.mattjones.consolepad.client.StatusSubscription;
+import zone.mattjones.consolepad.client.UdpNetworkService;
+import zone.mattjones.consolepad.client.UdpNetworkTask;
+import zone.mattjones.consolepad.protocol.ActionBatch;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.JobEvent;
+import zone.mattjones.consolepad.protocol.RomEntry;
+import zone.mattjones.consolepad.protocol.RttEstimator;
 
-        public ConsoleButtonInfo(int imageId, int labelId, String actionId) {
-            this.imageId = imageId;
-            this.labelId = labelId;
-            this.actionId = actionId;
-        }
-    }
+public class MainActivity extends Activity implements UdpNetworkTask.ResponseHandler,
+        ConsoleDiscoveryTask.DiscoveryHandler, ActionListAdapter.ActionHandler,
+        StatusSubscription.StatusHandler {
+    /** The min time between automatic status checks when returning to the app. */
+    private static final long STATUS_REFRESH_INTERVAL_MS = 30000;
+
+    /** The min time to wait for a remembered console before broadcasting instead. */
+    private static final long CACHED_CONSOLE_MIN_TIMEOUT_MS = 250;
+
+    /** The multiple of a remembered console's RTT to wait before broadcasting instead. */
+    private static final long CACHED_CONSOLE_RTT_MULTIPLIER = 4;
+
+    /** The request code used when asking where to export diagnostics. */
+    private static final int REQUEST_EXPORT_DIAGNOSTICS = 1;
+
+    /** The suggested name of an exported diagnostics file. */
+    private static final String DIAGNOSTICS_FILE_NAME = "consolepad-diagnostics.txt";
+
+    /** Runs all of the app's network requests and hands their results to the main thread. */
+    private final NetworkExecutor mNetworkExecutor =
+            new NetworkExecutor().setCallbackExecutor(new Handler(Looper.getMainLooper())::post);
+
+    /** The addresses of this device, refreshed whenever connectivity changes. */
+    private final LocalAddressIndex mLocalAddresses = new LocalAddressIndex();
+
+    /** Latency and drop statistics for every request, shown on the diagnostics screen. */
+    private final NetworkStats mNetworkStats = new NetworkStats(
+            Build.MANUFACTURER + " " + Build.MODEL + " (Android " + Build.VERSION.RELEASE + ")");
+
+    /** Owns the UDP socket used for discovery. */
+    private final UdpNetworkService mUdpService =
+            new UdpNetworkService(mLocalAddresses, mNetworkStats, Build.DEVICE);
+
+    /** Keeps the local address index current as networks come and go. */
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    mLocalAddresses.refresh();
+                    // A new network may carry multicast even if the last one didn't.
+                    mUdpService.getDiscoveryMode().reset();
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties properties) {
+                    mLocalAddresses.refresh();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    mLocalAddresses.refresh();
+                }
+            };
+
+    /** Remembers the console between launches. */
+    private ConsoleRegistry mRegistry;
+
+    /** Remembers the user's macros between launches. */
+    private MacroStore mMacroStore;
+
+    /** The app's copy of the console's game library. */
+    private GameLibrary mGameLibrary;
+
+    /** The built-in actions, which macros are made from. */
+    private ArrayList<ConsoleAction> mBuiltInActions;
+
+    /** Shows the built-in actions followed by the macros. */
+    private ActionListAdapter mActionAdapter;
+
+    /** The time of the last response from the console according to elapsedRealtime(). */
+    private long mLastContactMs;
+
+    /** The connection to the console once it has been found. */
+    private ConsoleSession mSession;
+
+    /** The console's pushed status, open whenever there is a session. */
+    private StatusSubscription mStatusSubscription;
 
-    /** The current network task. */
-    private UdpNetworkTask mCurrentNetTask;
+    /** Whether the console is pushing its status, so it never needs to be polled. */
+    private boolean mStatusLive;
+
+    /** Whether the console stopped sending its status. */
+    private boolean mConsoleLost;
+
+    /** What the console is running according to its last status or null if unknown. */
+    private String mConsoleActivity;
+
+    /** The jobs started on the console that haven't ended yet, keyed by job ID. */
+    private final LongSparseArray<JobEvent> mRunningJobs = new LongSparseArray<>();
+
+    /** Warms up the session while a button is held, or null if nothing is being held. */
+    private NetworkRequest mWarmUpRequest;
+
+    /** An action waiting to be sent once discovery finds a console. */
+    private String mPendingAction;
 
     /** The IP of the console. */
     private String mConsoleIp;
@@ -53,62 +160,130 @@ public class MainActivity extends Activity implements UdpNetworkTask.ResponseHan
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        final ArrayList<ConsoleButtonInfo> actionItems = new ArrayList<>();
-        actionItems.add(new ConsoleButtonInfo(
-                R.drawable.house, R.string.button_home, UdpNetworkTask.ACTION_HOME));
-        actionItems.add(new ConsoleButtonInfo(
-                R.drawable.emulationstation, R.string.button_emulationstation,
-                UdpNetworkTask.ACTION_EMULATION_STATION));
-        actionItems.add(new ConsoleButtonInfo(
-                R.drawable.steam, R.string.button_steam, UdpNetworkTask.ACTION_STEAM));
-        actionItems.add(new ConsoleButtonInfo(
-                R.drawable.zzz, R.string.button_power_off, UdpNetworkTask.ACTION_POWER_OFF));
-
-        // Allow tapping on the status to make an info request and "connect".
+        mRegistry = new ConsoleRegistry(this);
+        getSystemService(ConnectivityManager.class).registerDefaultNetworkCallback(
+                mNetworkCallback);
+
+        // Allow tapping on the status to look for consoles and pick which one to "connect" to.
         findViewById(R.id.connection_status).setOnClickListener((v) -> {
-            handleButtonClick(UdpNetworkTask.ACTION_INFO);
+            mNetworkExecutor.submit(new ConsoleDiscoveryTask(
+                    this, mUdpService, ConsoleDiscoveryTask.DEFAULT_WINDOW_MS));
+        });
+        // Long-pressing it shows what the network has been doing.
+        findViewById(R.id.connection_status).setOnLongClickListener((v) -> {
+            showDiagnostics();
+            return true;
         });
 
+        mMacroStore = new MacroStore(this);
+        mBuiltInActions = ConsoleAction.loadDefaults(getResources());
+        MacroEditor macroEditor =
+                new MacroEditor(this, mMacroStore, mBuiltInActions, this::updateActions);
+
         ListView actionList = (ListView) findViewById(R.id.action_list);
-        actionList.setAdapter(new BaseAdapter() {
-            @Override
-            public int getCount() {
-                return actionItems.size();
-            }
+        View macroFooter = getLayoutInflater().inflate(R.layout.macro_footer, actionList, false);
+        macroFooter.setOnClickListener((v) -> macroEditor.show());
+        actionList.addFooterView(macroFooter);
+        View gamepadFooter =
+                getLayoutInflater().inflate(R.layout.gamepad_footer, actionList, false);
+        gamepadFooter.setOnClickListener((v) -> openGamepad());
+        actionList.addFooterView(gamepadFooter);
+        mGameLibrary = new GameLibrary(this);
+        GameBrowser gameBrowser = new GameBrowser(
+                this, mGameLibrary, (game) -> handleButtonClick(game.getLaunchAction()));
+        View gamesFooter = getLayoutInflater().inflate(R.layout.games_footer, actionList, false);
+        gamesFooter.setOnClickListener((v) -> openGames(gameBrowser));
+        actionList.addFooterView(gamesFooter);
+        mActionAdapter = new ActionListAdapter(this, this);
+        actionList.setAdapter(mActionAdapter);
+        updateActions();
+    }
 
-            @Override
-            public Object getItem(int i) {
-                return actionItems.get(i);
-            }
+    /** Show the built-in actions and the current macros. */
+    private void updateActions() {
+        ArrayList<ConsoleAction> actions = new ArrayList<>(mBuiltInActions);
+        for (MacroStore.Macro macro : mMacroStore.getMacros()) {
+            actions.add(macro.toAction(mBuiltInActions));
+        }
+        mActionAdapter.setActions(actions);
+    }
 
-            @Override
-            public long getItemId(int i) {
-                return i;
-            }
+    /** Switch to streaming the on-screen controller to the console. */
+    private void openGamepad() {
+        if (mConsoleIp == null) {
+            Toast.makeText(this, R.string.gamepad_no_console, Toast.LENGTH_LONG).show();
+            discoverConsole();
+            return;
+        }
+        startActivity(new Intent(this, GamepadActivity.class)
+                .putExtra(GamepadActivity.EXTRA_CONSOLE_IP, mConsoleIp)
+                .putExtra(GamepadActivity.EXTRA_CONSOLE_NAME, mConnectedConsoleName));
+    }
+
+    /**
+     * Show the console's games to pick one to start.
+     * @param browser The dialog that shows them.
+     */
+    private void openGames(GameBrowser browser) {
+        if (mSession == null) {
+            Toast.makeText(this, R.string.games_no_console, Toast.LENGTH_LONG).show();
+            discoverConsole();
+            return;
+        }
+        browser.show();
+    }
 
-            @Override
-            public View getView(int i, View view, ViewGroup viewGroup) {
-                View button = getLayoutInflater().inflate(R.layout.button, null);
-                ConsoleButtonInfo item = actionItems.get(i);
+    @Override
+    protected void onResume() {
+        super.onResume();
 
-                ((LongPressButton) button).setButtonText(item.labelId);
-                ((LongPressButton) button).setButtonIcon(item.imageId);
-                button.setOnClickListener((v) -> handleButtonClick(item.actionId));
+        // A console that pushes its status keeps the UI current on its own.
+        if (mSession != null && mStatusLive) return;
 
-                return button;
-            }
-        });
+        // Otherwise update the UI in case the console went offline, unless we heard from it
+        // recently.
+        if (mSession != null
+                && SystemClock.elapsedRealtime() - mLastContactMs < STATUS_REFRESH_INTERVAL_MS) {
+            return;
+        }
+        handleButtonClick(ConsoleProtocol.ACTION_INFO);
+    }
 
-        // Fake a button press to init the UI.
-        handleButtonClick(UdpNetworkTask.ACTION_INFO);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getSystemService(ConnectivityManager.class).unregisterNetworkCallback(mNetworkCallback);
+        closeSession();
+        mNetworkExecutor.shutdown();
+        mUdpService.close();
+        mGameLibrary.close();
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
+    public void prepareAction(ConsoleAction action) {
+        // Use the hold to get everything the action needs ready so it goes out the moment the
+        // hold completes. Without a session that means finding the console, which is harmless
+        // if the button is let go.
+        if (mSession == null) {
+            discoverConsole();
+            return;
+        }
+        cancelPreparedAction(action);
+        mWarmUpRequest = mSession.warmUp();
+    }
 
-        // Fake a button press to update the UI in case the console went offline.
-        handleButtonClick(UdpNetworkTask.ACTION_INFO);
+    @Override
+    public void cancelPreparedAction(ConsoleAction action) {
+        if (mWarmUpRequest == null) return;
+        mWarmUpRequest.cancel();
+        mWarmUpRequest = null;
+    }
+
+    @Override
+    public void handleAction(ConsoleAction action) {
+        // The warm-up is done or about to be; leave it to finish.
+        mWarmUpRequest = null;
+        handleButtonClick(action.actionId);
     }
 
     /**
@@ -116,41 +291,331 @@ public class MainActivity extends Activity implements UdpNetworkTask.ResponseHan
      * @param actionId The action ID of the button that was clicked.
      */
     private void handleButtonClick(String actionId) {
-        // TODO(Matt): UDP should only be used to find the console. After that, a TCP connection
-        //             should handle the rest of the communications.
+        if (mSession != null) {
+            mSession.send(actionId);
+            return;
+        }
+
+        // UDP is only used to find the console. Actions other than INFO are held until the
+        // session is open.
+        if (!ConsoleProtocol.ACTION_INFO.equals(actionId)) mPendingAction = actionId;
+        discoverConsole();
+    }
+
+    /**
+     * Look for the console. The console from the last launch is asked directly first and the
+     * whole network is only asked if it doesn't answer quickly.
+     */
+    private void discoverConsole() {
+        ConsoleRecord cached = mRegistry.getLastConsole();
+        UdpNetworkTask task;
+        if (cached == null) {
+            task = new UdpNetworkTask(
+                    this, mUdpService, UdpNetworkTask.BROADCAST_IP, ConsoleProtocol.ACTION_INFO);
+        } else {
+            long timeoutMs = Math.min(UdpNetworkTask.SOCKET_TIMEOUT_MS, Math.max(
+                    CACHED_CONSOLE_MIN_TIMEOUT_MS, cached.rttMs * CACHED_CONSOLE_RTT_MULTIPLIER));
+            task = new UdpNetworkTask(this, mUdpService, cached.ip, ConsoleProtocol.ACTION_INFO)
+                    .setFallback(timeoutMs, UdpNetworkTask.BROADCAST_IP);
+        }
+        mNetworkExecutor.submit(task.setRegistry(mRegistry));
+    }
+
+    /** Close the session to the console if there is one. */
+    private void closeSession() {
+        if (mSession == null) return;
+        mSession.close();
+        mSession = null;
+        mWarmUpRequest = null;
+        mStatusSubscription.close();
+        mStatusSubscription = null;
+        mStatusLive = false;
+        mConsoleLost = false;
+        mConsoleActivity = null;
+        mRunningJobs.clear();
+    }
 
-        String ip = mConsoleIp == null ? UdpNetworkTask.BROADCAST_IP : mConsoleIp;
-        UdpNetworkTask task = new UdpNetworkTask(this, ip, actionId);
-        task.execute();
+    @Override
+    public void handleResponse(ConsoleResponse response) {
+        mLastContactMs = SystemClock.elapsedRealtime();
+        // Most responses are a plain OK, which has nothing more to look at.
+        if (!response.isOk()) {
+            int failedStep = findFailedStep(response.getBatchResults());
+            if (failedStep >= 0) {
+                Toast.makeText(this, getResources().getString(
+                        R.string.macro_step_failed, failedStep + 1), Toast.LENGTH_LONG).show();
+            }
+            JobEvent job = response.getJobEvent();
+            if (job != null) updateJob(job);
+            if (response.isRomIndexPage() && mSession != null) {
+                mGameLibrary.applyPage(response, mSession);
+            }
+        }
+        if (mSession != null) return;
+        connectToConsole(response.getRemoteIp(), response.getDeviceName());
     }
 
     @Override
-    public void handleResponse(
-            ArrayList<String> messageParts, boolean error, int messageId, String remoteIp) {
-        mCurrentNetTask = null;
-
-        // If there was an error, reset the connection info.
-        if (error) {
-            mConnectedConsoleName = null;
-            mConsoleIp = null;
-            runOnUiThread(() -> {
-                Toast.makeText(this, messageId, Toast.LENGTH_LONG).show();
-                updateConnectionStatusUi();
-            });
+    public void handleError(int errorCode) {
+        // The connection is fine when the console refused something; only say so.
+        if (errorCode == UdpNetworkTask.ERROR_REFUSED) {
+            Toast.makeText(this, R.string.action_refused_error, Toast.LENGTH_LONG).show();
             return;
         }
 
-        // Decode the message. The message is always the last component of the data.
-        byte[] decodedMessage =
-                Base64.getDecoder().decode(messageParts.get(messageParts.size() - 1));
-        String decodedMessageString = new String(decodedMessage, Charset.forName("UTF8"));
+        // Nor does an action that was never sent because too many were waiting say anything.
+        if (errorCode == UdpNetworkTask.ERROR_DROPPED) {
+            Toast.makeText(this, R.string.action_dropped_error, Toast.LENGTH_LONG).show();
+            return;
+        }
 
-        if (mConsoleIp == null) {
-            mConsoleIp = remoteIp;
-            mConnectedConsoleName = messageParts.get(2);
-            runOnUiThread(() -> {
-                updateConnectionStatusUi();
-            });
+        // Forget the console; the next action looks for it again.
+        mConnectedConsoleName = null;
+        mConsoleIp = null;
+        mPendingAction = null;
+        closeSession();
+        Toast.makeText(this, getErrorMessageId(errorCode), Toast.LENGTH_LONG).show();
+        updateConnectionStatusUi();
+    }
+
+    /**
+     * @param errorCode One of the UdpNetworkTask.ERROR_* values.
+     * @return The string ID of the message telling the user about the error.
+     */
+    private static int getErrorMessageId(int errorCode) {
+        switch (errorCode) {
+            case UdpNetworkTask.ERROR_NO_HOST:
+                return R.string.no_host_error;
+            case UdpNetworkTask.ERROR_TIMEOUT:
+                return R.string.response_timeout_error;
+            default:
+                return R.string.generic_console_error;
+        }
+    }
+
+    /**
+     * @param results The results of a batch or null if the response wasn't for one.
+     * @return The index of the step that stopped the batch or -1 if every step ran.
+     */
+    private static int findFailedStep(List<String> results) {
+        if (results == null) return -1;
+        return results.indexOf(ActionBatch.STEP_FAILED);
+    }
+
+    @Override
+    public void handleConsolesFound(ArrayList<ConsoleRecord> consoles) {
+        if (consoles.isEmpty()) {
+            Toast.makeText(this, R.string.no_host_error, Toast.LENGTH_LONG).show();
+            return;
+        }
+        mLastContactMs = SystemClock.elapsedRealtime();
+        if (consoles.size() == 1) {
+            selectConsole(consoles.get(0));
+            return;
+        }
+
+        String[] labels = new String[consoles.size()];
+        for (int i = 0; i < labels.length; i++) {
+            ConsoleRecord console = consoles.get(i);
+            labels[i] = getResources().getString(R.string.console_choice_label,
+                    console.name, console.ip, console.rttMs);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.choose_console_title)
+                .setItems(labels, (dialog, which) -> selectConsole(consoles.get(which)))
+                .show();
+    }
+
+    /**
+     * Track a job the console is running and show how it ended.
+     * @param event The latest event of the job.
+     */
+    private void updateJob(JobEvent event) {
+        if (!event.isFinished()) {
+            mRunningJobs.put(event.jobId, event);
+            updateConnectionStatusUi();
+            return;
+        }
+
+        // Jobs are only tracked once their action was sent from here.
+        boolean wasRunning = mRunningJobs.get(event.jobId) != null;
+        mRunningJobs.remove(event.jobId);
+        if (JobEvent.STATE_DONE.equals(event.state) || JobEvent.STATE_FAILED.equals(event.state)) {
+            mNetworkStats.recordRoundTrip("job", event.action, event.elapsedMs);
+        }
+        if (wasRunning && JobEvent.STATE_FAILED.equals(event.state)) {
+            Toast.makeText(this, getResources().getString(R.string.job_failed,
+                    getActionLabel(event.action), event.exitCode), Toast.LENGTH_LONG).show();
+        }
+        updateConnectionStatusUi();
+    }
+
+    /**
+     * Ask the console how the jobs it was running are doing, e.g. after pushes may have been
+     * missed while it wasn't responding.
+     */
+    private void checkRunningJobs() {
+        if (mSession == null) return;
+        for (int i = 0; i < mRunningJobs.size(); i++) {
+            mSession.send(ConsoleProtocol.ACTION_JOB_STATUS_PREFIX + mRunningJobs.keyAt(i));
+        }
+    }
+
+    /**
+     * @param actionId The ID of a built-in action or a game launch.
+     * @return The action's label, the game's name or the ID if it's neither.
+     */
+    private String getActionLabel(String actionId) {
+        if (actionId.startsWith(ConsoleProtocol.ACTION_LAUNCH_PREFIX)) {
+            RomEntry game = mGameLibrary.get(
+                    actionId.substring(ConsoleProtocol.ACTION_LAUNCH_PREFIX.length()));
+            if (game != null) return game.name;
+        }
+        for (ConsoleAction action : mBuiltInActions) {
+            if (action.actionId.equals(actionId)) return getString(action.labelId);
+        }
+        return actionId;
+    }
+
+    @Override
+    public void handleJobEvent(StatusSubscription subscription, JobEvent event) {
+        runOnUiThread(() -> {
+            if (subscription != mStatusSubscription) return;
+            mLastContactMs = SystemClock.elapsedRealtime();
+            updateJob(event);
+        });
+    }
+
+    @Override
+    public void handleStatus(StatusSubscription subscription, String activity) {
+        runOnUiThread(() -> {
+            if (subscription != mStatusSubscription) return;
+            mLastContactMs = SystemClock.elapsedRealtime();
+            // Jobs may have ended while the console was out of touch.
+            if (mConsoleLost) checkRunningJobs();
+            boolean changed = !mStatusLive || mConsoleLost || !activity.equals(mConsoleActivity);
+            mStatusLive = true;
+            mConsoleLost = false;
+            mConsoleActivity = activity;
+            // Most pushes are heartbeats that change nothing.
+            if (changed) updateConnectionStatusUi();
+        });
+    }
+
+    @Override
+    public void handleStatusLost(StatusSubscription subscription) {
+        runOnUiThread(() -> {
+            if (subscription != mStatusSubscription) return;
+            mStatusLive = false;
+            mConsoleLost = true;
+            mConsoleActivity = null;
+            updateConnectionStatusUi();
+        });
+    }
+
+    @Override
+    public void handleStatusUnsupported(StatusSubscription subscription) {
+        // Fall back to checking on the console when the app is resumed.
+        runOnUiThread(() -> {
+            if (subscription != mStatusSubscription) return;
+            mStatusLive = false;
+        });
+    }
+
+    /**
+     * Make a console the target of all actions and remember it for next time.
+     * @param console The console that was picked.
+     */
+    private void selectConsole(ConsoleRecord console) {
+        mRegistry.recordConsole(console.ip, console.name, console.rttMs);
+        if (mSession != null && console.ip.equals(mSession.getRemoteIp())) return;
+        closeSession();
+        connectToConsole(console.ip, console.name);
+    }
+
+    /**
+     * Open a session to a console that was found. Everything after discovery goes over it.
+     * @param ip The IP of the console.
+     * @param name The name the console reported.
+     */
+    private void connectToConsole(String ip, String name) {
+        mConsoleIp = ip;
+        mConnectedConsoleName = name;
+        mSession = new ConsoleSession(this, mNetworkExecutor, mUdpService.getRttEstimator(ip),
+                mNetworkStats, mUdpService.getReassemblyPool(), Build.DEVICE, mConsoleIp);
+        mStatusSubscription = new StatusSubscription(this, Build.DEVICE, mConsoleIp);
+        mStatusSubscription.start();
+        mGameLibrary.sync(mSession);
+        if (mPendingAction != null) {
+            mSession.send(mPendingAction);
+            mPendingAction = null;
+        }
+        updateConnectionStatusUi();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_EXPORT_DIAGNOSTICS) return;
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) return;
+        exportDiagnostics(data.getData());
+    }
+
+    /** Show the network statistics collected so far with options to export or reset them. */
+    private void showDiagnostics() {
+        View view = getLayoutInflater().inflate(R.layout.diagnostics, null);
+        TextView report = (TextView) view.findViewById(R.id.diagnostics_report);
+        report.setText(buildDiagnosticsReport(false));
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.diagnostics_title)
+                .setView(view)
+                .setPositiveButton(R.string.diagnostics_export, (dialog, which) -> {
+                    Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                            .addCategory(Intent.CATEGORY_OPENABLE)
+                            .setType("text/plain")
+                            .putExtra(Intent.EXTRA_TITLE, DIAGNOSTICS_FILE_NAME);
+                    startActivityForResult(intent, REQUEST_EXPORT_DIAGNOSTICS);
+                })
+                .setNeutralButton(R.string.diagnostics_reset, (dialog, which) -> {
+                    mNetworkStats.reset();
+                })
+                .setNegativeButton(R.string.diagnostics_close, null)
+                .show();
+    }
+
+    /**
+     * @param includeBuckets Whether to include every histogram bucket in the report.
+     * @return The network statistics and connection state as text.
+     */
+    private String buildDiagnosticsReport(boolean includeBuckets) {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        if (mConsoleIp != null) {
+            RttEstimator estimator = mUdpService.getRttEstimator(mConsoleIp);
+            out.println("console: " + mConnectedConsoleName + " (" + mConsoleIp + ")");
+            out.println("smoothed rtt: " + estimator.getSmoothedRttMs() + " ms, timeout: "
+                    + estimator.getTimeoutMs() + " ms");
+            out.println();
+        }
+        mNetworkStats.writeReport(out, includeBuckets);
+        return text.toString();
+    }
+
+    /**
+     * Write the full diagnostics report to a file the user picked.
+     * @param uri The file to write.
+     */
+    private void exportDiagnostics(Uri uri) {
+        String report = buildDiagnosticsReport(true);
+        try (OutputStream stream = getContentResolver().openOutputStream(uri)) {
+            if (stream == null) throw new IOException("Could not open " + uri);
+            OutputStreamWriter writer = new OutputStreamWriter(stream, Charset.forName("UTF8"));
+            writer.write(report);
+            writer.flush();
+            Toast.makeText(this, R.string.diagnostics_exported, Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.diagnostics_export_error, Toast.LENGTH_LONG).show();
         }
     }
 
@@ -164,9 +629,23 @@ public class MainActivity extends Activity implements UdpNetworkTask.ResponseHan
             status.setText(R.string.connection_status_none);
             status.setTextColor(
                     getResources().getColor(R.color.connection_status_none_color, null));
+        } else if (mConsoleLost) {
+            status.setText(getResources().getString(
+                    R.string.connection_status_lost, mConnectedConsoleName));
+            status.setTextColor(
+                    getResources().getColor(R.color.connection_status_none_color, null));
         } else {
             String base = getResources().getString(R.string.connection_status_connected);
-            status.setText(base + " " + mConnectedConsoleName);
+            String text = base + " " + mConnectedConsoleName;
+            if (mConsoleActivity != null && !mConsoleActivity.isEmpty()) {
+                text += " " + getResources().getString(
+                        R.string.connection_status_activity, mConsoleActivity);
+            }
+            if (mRunningJobs.size() > 0) {
+                text += " " + getResources().getString(R.string.connection_status_job,
+                        getActionLabel(mRunningJobs.valueAt(0).action));
+            }
+            status.setText(text);
             status.setTextColor(getResources().getColor(R.color.purple_primary, null));
         }
     }
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: TintedIconCache.java
+ * Author: Matt Jones
+ * Date: 2019.10.09
+ * Desc: A cache of tinted icons keyed by drawable and tint color. Each icon is loaded and tinted
+ *       once; every view showing it gets its own drawable backed by the same bitmap and tint, so
+ *       binding a list item doesn't load anything.
+ */
+
+package zone.mattjones.consolepad;
+
+import android.content.res.Resources;
+import android.graphics.PorterDuff;
+import android.graphics.drawable.Drawable;
+import android.util.LongSparseArray;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.DrawableRes;
+import androidx.annotation.MainThread;
+
+@MainThread
+public class TintedIconCache {
+    /** The resources icons are loaded from. */
+    private final Resources mResources;
+
+    /** The shared state of each tinted icon keyed by makeKey(). */
+    private final LongSparseArray<Drawable.ConstantState> mIcons = new LongSparseArray<>();
+
+    /**
+     * @param resources The resources icons are loaded from.
+     */
+    public TintedIconCache(Resources resources) {
+        mResources = resources;
+    }
+
+    /**
+     * Get an icon tinted a single color.
+     * @param iconId The resource ID of the drawable.
+     * @param tint The color the icon's original colors are replaced with.
+     * @return A new drawable that shares its bitmap and tint with every other copy.
+     */
+    public Drawable get(@DrawableRes int iconId, @ColorInt int tint) {
+        long key = makeKey(iconId, tint);
+        Drawable.ConstantState state = mIcons.get(key);
+        if (state == null) {
+            // mutate() so the tint isn't applied to the resource's own shared state.
+            Drawable icon = mResources.getDrawable(iconId, null).mutate();
+            icon.setTintMode(PorterDuff.Mode.SRC_IN);
+            icon.setTint(tint);
+            state = icon.getConstantState();
+            // A drawable that can't share its state is returned as is and loaded again next time.
+            if (state == null) return icon;
+            mIcons.put(key, state);
+        }
+        return state.newDrawable(mResources);
+    }
+
+    /**
+     * @param iconId The resource ID of the drawable.
+     * @param tint The tint color.
+     * @return A key combining both.
+     */
+    private static long makeKey(@DrawableRes int iconId, @ColorInt int tint) {
+        return ((long) iconId << 32) | (tint & 0xffffffffL);
+    }
+}
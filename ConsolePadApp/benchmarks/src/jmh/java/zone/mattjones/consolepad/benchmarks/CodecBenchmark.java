@@ -0,0 +1,149 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: CodecBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.08
+ * Desc: Compares MessageCodec against the original string based message handling: building a
+ *       message with a StringBuilder, and splitting a response and decoding its base 64 payload
+ *       the way UdpNetworkTask.doInBackground() and MainActivity.handleResponse() used to.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    /** The device name used in every message. */
+    private static final String DEVICE_NAME = "ConsolePad";
+
+    /** A fixed timestamp so every run encodes the same bytes. */
+    private static final long TIMESTAMP = 1567889516854L;
+
+    /** The payload: a short action or a response about as large as a status report. */
+    @Param({"INFO", "LONG"})
+    public String payload;
+
+    /** The message being encoded. */
+    private String mMessage;
+
+    /** The codec under test. */
+    private MessageCodec mCodec;
+
+    /** The buffer messages are encoded into. */
+    private ByteBuffer mOut;
+
+    /** A response in the text format. */
+    private byte[] mTextResponse;
+
+    /** A response in the binary format. */
+    private byte[] mBinaryResponse;
+
+    /** The reused decoded message. */
+    private ConsoleMessage mDecoded;
+
+    @Setup
+    public void setUp() {
+        if ("LONG".equals(payload)) {
+            StringBuilder builder = new StringBuilder();
+            while (builder.length() < 1024) builder.append("Emulation Station is running. ");
+            mMessage = builder.toString();
+        } else {
+            mMessage = payload;
+        }
+        mCodec = new MessageCodec(DEVICE_NAME);
+        mOut = ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+        mDecoded = new ConsoleMessage();
+
+        mCodec.encode(mOut, MessageCodec.FORMAT_TEXT, TIMESTAMP, TIMESTAMP - 1, mMessage);
+        mTextResponse = copyOut();
+        mCodec.encode(mOut, MessageCodec.FORMAT_BINARY, TIMESTAMP, TIMESTAMP - 1, mMessage);
+        mBinaryResponse = copyOut();
+    }
+
+    /** @return The bytes encoded into mOut, which is cleared for the next message. */
+    private byte[] copyOut() {
+        byte[] bytes = new byte[mOut.position()];
+        System.arraycopy(mOut.array(), 0, bytes, 0, bytes.length);
+        mOut.clear();
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(ConsoleProtocol.MAGIC_PREFIX);
+        builder.append(ConsoleProtocol.SEPARATOR);
+        builder.append(TIMESTAMP);
+        builder.append(ConsoleProtocol.SEPARATOR);
+        builder.append(DEVICE_NAME);
+        builder.append(ConsoleProtocol.SEPARATOR);
+        builder.append(new String(
+                Base64.getEncoder().encode(mMessage.getBytes(Charset.forName("UTF8")))));
+        builder.append(ConsoleProtocol.SEPARATOR);
+        return builder.toString().getBytes(Charset.forName("UTF8"));
+    }
+
+    @Benchmark
+    public int encodeText() {
+        mOut.clear();
+        mCodec.encode(mOut, MessageCodec.FORMAT_TEXT, TIMESTAMP, mMessage);
+        return mOut.position();
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        mOut.clear();
+        mCodec.encode(mOut, MessageCodec.FORMAT_BINARY, TIMESTAMP, mMessage);
+        return mOut.position();
+    }
+
+    @Benchmark
+    public String decodeLegacy() {
+        String data = new String(mTextResponse, 0, mTextResponse.length, Charset.forName("UTF8"));
+        String[] dataSections = data.split("\\" + ConsoleProtocol.SEPARATOR);
+        if (!ConsoleProtocol.MAGIC_PREFIX.equals(dataSections[0])) return null;
+        ArrayList<String> parts = new ArrayList<>();
+        for (int i = 0; i < dataSections.length; i++) parts.add(dataSections[i]);
+
+        // What the activity did with the parts once they were handed over.
+        byte[] decodedMessage = Base64.getDecoder().decode(parts.get(3));
+        return new String(decodedMessage, Charset.forName("UTF8"));
+    }
+
+    @Benchmark
+    public boolean decodeText() {
+        return MessageCodec.decode(ByteBuffer.wrap(mTextResponse), mDecoded);
+    }
+
+    @Benchmark
+    public boolean decodeBinary() {
+        return MessageCodec.decode(ByteBuffer.wrap(mBinaryResponse), mDecoded);
+    }
+
+    @Benchmark
+    public String decodeTextToString() {
+        MessageCodec.decode(ByteBuffer.wrap(mTextResponse), mDecoded);
+        return mDecoded.getPayloadString();
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: DiscoveryBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.19
+ * Desc: How long discovery takes to find a console, the way ConsoleDiscoveryTask does it: INFO
+ *       goes to the multicast group and is sent again as a broadcast if nothing answers within
+ *       DiscoveryMode.MULTICAST_TIMEOUT_MS. The console either joined the group on loopback or
+ *       didn't, like an old console or a network that drops multicast. Loopback can't broadcast,
+ *       so the fallback is sent straight to the console's address instead. With remember off
+ *       every discovery starts with a new DiscoveryMode, which is what the first one after
+ *       joining a network costs; with it on the mode learns to skip the group.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.DiscoveryMode;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.responder.ConsoleResponder;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class DiscoveryBenchmark {
+    /** The time to wait for an answer to the fallback before failing. */
+    private static final int SOCKET_TIMEOUT_MS = 1000;
+
+    /** Whether the console joined the multicast group. */
+    @Param({"true", "false"})
+    public boolean joined;
+
+    /** Whether the outcome of each discovery is kept for the next one. */
+    @Param({"true", "false"})
+    public boolean remember;
+
+    /** The console. */
+    private ConsoleResponder mResponder;
+
+    /** Sends to the group on loopback and receives the answers. */
+    private MulticastSocket mSocket;
+
+    /** Encodes requests. */
+    private final MessageCodec mCodec = new MessageCodec("BenchClient");
+
+    /** The buffer requests are encoded into. */
+    private final ByteBuffer mOut = ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The buffer answers are read into. */
+    private final byte[] mIn = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+
+    /** The reused decoded answer. */
+    private final ConsoleMessage mResponse = new ConsoleMessage();
+
+    /** The group. */
+    private InetAddress mGroup;
+
+    /** The console's own address, standing in for broadcast. */
+    private InetAddress mAddress;
+
+    /** Whether to ask the group, kept between discoveries if remember is on. */
+    private DiscoveryMode mMode = new DiscoveryMode();
+
+    /** The ID of the last request. */
+    private long mLastId;
+
+    @Setup
+    public void setUp() throws IOException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(
+                InetAddress.getLoopbackAddress());
+        mGroup = InetAddress.getByName(ConsoleProtocol.MULTICAST_GROUP);
+        mAddress = InetAddress.getLoopbackAddress();
+        if (joined) {
+            // Datagrams to the group only reach sockets bound to every address.
+            mResponder = new ConsoleResponder("Bench", null, 0, 1);
+            mResponder.joinDiscoveryGroup(loopback);
+        } else {
+            mResponder = new ConsoleResponder("Bench", mAddress, 0, 1);
+        }
+        mResponder.start();
+        mSocket = new MulticastSocket();
+        mSocket.setNetworkInterface(loopback);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSocket.close();
+        mResponder.close();
+    }
+
+    @Benchmark
+    public long discover() throws IOException {
+        if (!remember) mMode = new DiscoveryMode();
+        // Like the app's IDs, also the time it was sent; the responder drops ones that look old.
+        long id = Math.max(System.currentTimeMillis(), mLastId + 1);
+        mLastId = id;
+        mOut.clear();
+        mCodec.encode(mOut, MessageCodec.FORMAT_TEXT, id, ConsoleProtocol.ACTION_INFO);
+        boolean multicast = mMode.shouldTryMulticast();
+        if (multicast) {
+            send(mGroup);
+            if (receive(id, (int) DiscoveryMode.MULTICAST_TIMEOUT_MS)) {
+                mMode.onMulticastAnswered();
+                return id;
+            }
+        }
+        send(mAddress);
+        if (!receive(id, SOCKET_TIMEOUT_MS)) throw new IOException("No answer to " + id);
+        if (multicast) mMode.onBroadcastAnswered();
+        return id;
+    }
+
+    /**
+     * Send the encoded request to the console's port.
+     * @param address The group or the console's address.
+     */
+    private void send(InetAddress address) throws IOException {
+        mSocket.send(new DatagramPacket(mOut.array(), mOut.position(),
+                new InetSocketAddress(address, mResponder.getPort())));
+    }
+
+    /**
+     * Wait for the answer to a request, skipping any other datagram.
+     * @param id The ID of the request.
+     * @param timeoutMs The longest to wait.
+     * @return Whether it was answered in time.
+     */
+    private boolean receive(long id, int timeoutMs) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        DatagramPacket packet = new DatagramPacket(mIn, mIn.length);
+        while (true) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) return false;
+            mSocket.setSoTimeout((int) remainingMs);
+            packet.setLength(mIn.length);
+            try {
+                mSocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            MessageCodec.decode(ByteBuffer.wrap(mIn, 0, packet.getLength()), mResponse);
+            if (mResponse.getReplyTo() == id) return true;
+        }
+    }
+}
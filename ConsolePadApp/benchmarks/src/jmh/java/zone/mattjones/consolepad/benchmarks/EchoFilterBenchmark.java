@@ -0,0 +1,98 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: EchoFilterBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.08
+ * Desc: The check run on every received packet to drop our own broadcasts. The original code
+ *       compared the sender against a list of this device's addresses; LocalAddressIndex keeps
+ *       them in a hash set instead. A phone has a handful of addresses, a desktop with VPNs and
+ *       virtual adapters many more.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EchoFilterBenchmark {
+    /** The number of addresses the device has. */
+    @Param({"4", "32"})
+    public int addressCount;
+
+    /** The addresses as the original code kept them. */
+    private ArrayList<InetAddress> mAddressList;
+
+    /** The addresses as LocalAddressIndex keeps them. */
+    private Set<InetAddress> mAddressSet;
+
+    /** A sender that isn't this device, the common case and the worst one for the list. */
+    private InetAddress mConsole;
+
+    /** A sender that is this device. */
+    private InetAddress mEcho;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        mAddressList = new ArrayList<>();
+        for (int i = 0; i < addressCount; i++) {
+            // A mix of IPv4 and IPv6 like a real interface list.
+            mAddressList.add(i % 2 == 0
+                    ? InetAddress.getByAddress(new byte[] {10, 0, (byte) (i / 256), (byte) i})
+                    : InetAddress.getByName("fe80::" + Integer.toHexString(i + 1)));
+        }
+        mAddressSet = Collections.unmodifiableSet(new HashSet<>(mAddressList));
+        mConsole = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 20});
+        mEcho = mAddressList.get(addressCount - 1);
+    }
+
+    /**
+     * @param sender The sender of a packet.
+     * @return Whether the original list scan thinks the packet is an echo.
+     */
+    private boolean isEchoLegacy(InetAddress sender) {
+        boolean isEcho = false;
+        for (InetAddress ip : mAddressList) {
+            isEcho = sender.equals(ip);
+            if (isEcho) break;
+        }
+        return isEcho;
+    }
+
+    @Benchmark
+    public boolean legacyConsole() {
+        return isEchoLegacy(mConsole);
+    }
+
+    @Benchmark
+    public boolean legacyEcho() {
+        return isEchoLegacy(mEcho);
+    }
+
+    @Benchmark
+    public boolean indexConsole() {
+        return mAddressSet.contains(mConsole);
+    }
+
+    @Benchmark
+    public boolean indexEcho() {
+        return mAddressSet.contains(mEcho);
+    }
+}
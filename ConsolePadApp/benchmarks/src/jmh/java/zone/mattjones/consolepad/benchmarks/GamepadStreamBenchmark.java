@@ -0,0 +1,185 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadStreamBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: End-to-end latency of the gamepad stream on loopback: from a change on the phone to the
+ *       GamepadReceiver handing it to the virtual controller. The sender works like the app's
+ *       GamepadStream, sending at rateHz and repeating a change every interval until it shows up,
+ *       and lossPercent of frames and acks are dropped before they reach the socket. Each
+ *       operation is one change; the wait for the next tick happens in an untimed setup, so the
+ *       sample times are the latency a player would feel, including the intervals lost frames
+ *       cost. Run it in SampleTime mode and look at the percentiles, not the mean.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import zone.mattjones.consolepad.protocol.GamepadEncoder;
+import zone.mattjones.consolepad.protocol.GamepadFrame;
+import zone.mattjones.consolepad.protocol.GamepadState;
+import zone.mattjones.consolepad.responder.GamepadReceiver;
+import zone.mattjones.consolepad.responder.VirtualController;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class GamepadStreamBenchmark {
+    /** A controller that lets the benchmark wait for a particular state. */
+    private static class WaitingController implements VirtualController {
+        /** The leftX of the last state delivered; each change gets a new one. */
+        private int mLastMark;
+
+        @Override
+        public synchronized void update(GamepadState state) {
+            mLastMark = state.leftX;
+            notifyAll();
+        }
+
+        @Override
+        public void release() {}
+
+        /**
+         * Wait for a state to be delivered.
+         * @param mark The leftX of the state.
+         * @param timeoutNanos The max time to wait.
+         * @return Whether it was delivered.
+         */
+        synchronized boolean await(int mark, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (mLastMark != mark) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                wait(remaining / 1000000, (int) (remaining % 1000000));
+            }
+            return true;
+        }
+    }
+
+    /** The frames sent per second. */
+    @Param({"60", "125", "250"})
+    public int rateHz;
+
+    /** The percentage of frames and acks dropped on the way. */
+    @Param({"0", "5", "20"})
+    public int lossPercent;
+
+    /** Receives the stream and hands it to mController. */
+    private GamepadReceiver mReceiver;
+
+    /** Where the receiver delivers states. */
+    private final WaitingController mController = new WaitingController();
+
+    /** The sender's socket. */
+    private DatagramSocket mSocket;
+
+    /** Writes frames. Guarded by itself since acks are handled on another thread. */
+    private final GamepadEncoder mEncoder = new GamepadEncoder();
+
+    /** The state being sent; leftX is bumped for every change so it can be recognized. */
+    private final GamepadState mState = new GamepadState();
+
+    /** The buffer frames are encoded into. */
+    private final ByteBuffer mOut = ByteBuffer.allocate(GamepadFrame.MAX_FRAME_SIZE);
+
+    /** Picks which frames are lost. Only used on the benchmark thread. */
+    private final Random mFrameLoss = new Random(1);
+
+    /** The time between frames. */
+    private long mIntervalNanos;
+
+    /** The time the last frame was sent according to System.nanoTime(). */
+    private long mLastSentNanos;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        mReceiver = new GamepadReceiver(InetAddress.getLoopbackAddress(), 0, mController);
+        mReceiver.start();
+        mSocket = new DatagramSocket();
+        mSocket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                mReceiver.getPort()));
+        mIntervalNanos = TimeUnit.SECONDS.toNanos(1) / rateHz;
+
+        Thread acks = new Thread(this::receiveAcks, "GamepadStreamBenchmarkAcks");
+        acks.setDaemon(true);
+        acks.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        mSocket.close();
+        mReceiver.close();
+    }
+
+    /** Wait for the next tick so frames go out at rateHz. Not timed. */
+    @Setup(Level.Invocation)
+    public void waitForTick() {
+        long waitNanos = mIntervalNanos - (System.nanoTime() - mLastSentNanos);
+        if (waitNanos > 0) LockSupport.parkNanos(waitNanos);
+    }
+
+    @Benchmark
+    public int change() throws IOException, InterruptedException {
+        int mark = (short) (mState.leftX + 1);
+        mState.leftX = mark;
+        mState.buttons ^= GamepadState.BUTTON_A;
+        while (true) {
+            send();
+            if (mController.await(mark, mIntervalNanos)) return mark;
+        }
+    }
+
+    /** Send the current state, unless this frame is one of the ones lost. */
+    private void send() throws IOException {
+        mLastSentNanos = System.nanoTime();
+        mOut.clear();
+        synchronized (mEncoder) {
+            mEncoder.encode(mOut, mState, mLastSentNanos / 1000);
+        }
+        if (mFrameLoss.nextInt(100) < lossPercent) return;
+        mSocket.send(new DatagramPacket(mOut.array(), mOut.position()));
+    }
+
+    /** Hand acks to the encoder until the socket is closed, dropping lossPercent of them. */
+    private void receiveAcks() {
+        Random ackLoss = new Random(2);
+        byte[] receiveBuffer = new byte[GamepadFrame.ACK_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        while (true) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                mSocket.receive(packet);
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            if (ackLoss.nextInt(100) < lossPercent) continue;
+            synchronized (mEncoder) {
+                mEncoder.handleAck(ByteBuffer.wrap(receiveBuffer, 0, packet.getLength()));
+            }
+        }
+    }
+}
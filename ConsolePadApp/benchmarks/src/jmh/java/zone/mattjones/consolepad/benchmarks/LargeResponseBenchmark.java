@@ -0,0 +1,183 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LargeResponseBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.17
+ * Desc: Fetching a large response over UDP from a ConsoleResponder on loopback, the way the app
+ *       does: one LARGE request, then a FRAGMENTS request for whatever is still missing once the
+ *       fragments stop coming. lossPercent of fragments are dropped after they arrive, so the
+ *       cost of selective retransmit shows up in the times. The roundTrips and responses
+ *       counters say how many requests each response took.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.FragmentFrame;
+import zone.mattjones.consolepad.protocol.FragmentReassembler;
+import zone.mattjones.consolepad.protocol.LargeResponse;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.protocol.ReassemblyPool;
+import zone.mattjones.consolepad.responder.ConsoleResponder;
+
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class LargeResponseBenchmark {
+    /** The action whose response is large. */
+    private static final String ACTION_LIST = "LIST";
+
+    /** How long without a fragment before the missing ones are asked for. */
+    private static final int QUIET_MS = 20;
+
+    /** The longest list of missing fragments in one request, the same as the app's. */
+    private static final int MAX_MISSING_LIST_LENGTH = 1024;
+
+    /** Request IDs; the responder treats a repeated ID as a retry. */
+    private static final AtomicLong sLastId = new AtomicLong(System.currentTimeMillis());
+
+    /** The requests sent and the responses they fetched; the ratio is requests per response. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long roundTrips;
+        public long responses;
+    }
+
+    /** The size of the response in bytes before compression. */
+    @Param({"300000"})
+    public int responseSize;
+
+    /** Whether the client lets the responder deflate the response. */
+    @Param({"true", "false"})
+    public boolean deflate;
+
+    /** The percentage of fragments dropped on the way. */
+    @Param({"0", "5", "20"})
+    public int lossPercent;
+
+    /** The responder under test. */
+    private ConsoleResponder mResponder;
+
+    /** The client's socket. */
+    private DatagramSocket mSocket;
+
+    /** Encodes requests. */
+    private final MessageCodec mCodec = new MessageCodec("BenchClient");
+
+    /** The buffer requests are encoded into. */
+    private final ByteBuffer mOut = ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The buffer fragments are read into. */
+    private final byte[] mIn = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+
+    /** Puts the response back together; the pool is the same size as the app's. */
+    private final FragmentReassembler mReassembler =
+            new FragmentReassembler(new ReassemblyPool(2 * 1024 * 1024));
+
+    /** The reused response. */
+    private final ConsoleMessage mResponse = new ConsoleMessage();
+
+    /** Picks which fragments are lost. */
+    private final Random mLoss = new Random(1);
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        // Something like a game list: compressible, but not trivially.
+        Random random = new Random(2);
+        StringBuilder list = new StringBuilder(responseSize);
+        while (list.length() < responseSize) {
+            list.append("{\"name\":\"Game ").append(random.nextInt(100000))
+                    .append("\",\"system\":\"SNES\",\"size\":").append(random.nextInt())
+                    .append("},");
+        }
+        String response = list.substring(0, responseSize);
+
+        mResponder = new ConsoleResponder("Bench", InetAddress.getLoopbackAddress(), 0, 2);
+        mResponder.setHandler(ACTION_LIST, action -> response);
+        mResponder.start();
+        mSocket = new DatagramSocket();
+        // The whole response arrives in one burst; the kernel shouldn't be the one losing it.
+        mSocket.setReceiveBufferSize(2 * FragmentFrame.MAX_RESPONSE_SIZE);
+        mSocket.setSoTimeout(QUIET_MS);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        mSocket.close();
+        mResponder.close();
+    }
+
+    @Benchmark
+    public long fetch(Counters counters) throws IOException {
+        long requestId = sLastId.incrementAndGet();
+        send(requestId, LargeResponse.wrapRequest(ACTION_LIST, deflate));
+        counters.roundTrips++;
+
+        DatagramPacket packet = new DatagramPacket(mIn, mIn.length);
+        try {
+            while (true) {
+                packet.setLength(mIn.length);
+                try {
+                    mSocket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (!mReassembler.hasStarted()) {
+                        send(requestId, LargeResponse.wrapRequest(ACTION_LIST, deflate));
+                    } else {
+                        send(sLastId.incrementAndGet(), LargeResponse.wrapFragmentsRequest(
+                                requestId, mReassembler.getMissing(MAX_MISSING_LIST_LENGTH)));
+                    }
+                    counters.roundTrips++;
+                    continue;
+                }
+                if (mLoss.nextInt(100) < lossPercent) continue;
+                ByteBuffer in = ByteBuffer.wrap(mIn, 0, packet.getLength());
+                if (!FragmentFrame.isFragment(in) || FragmentFrame.getReplyTo(in) != requestId) {
+                    continue;
+                }
+                if (mReassembler.add(in) == FragmentReassembler.RESULT_COMPLETE) break;
+            }
+            if (!mReassembler.finish(mResponse)) throw new IOException("Bad response");
+            counters.responses++;
+            return mResponse.getReplyTo();
+        } finally {
+            mReassembler.release();
+        }
+    }
+
+    /**
+     * Send a request to the responder.
+     * @param id The request's ID.
+     * @param action The action.
+     */
+    private void send(long id, String action) throws IOException {
+        mOut.clear();
+        mCodec.encode(mOut, MessageCodec.FORMAT_TEXT, id, action);
+        mSocket.send(new DatagramPacket(mOut.array(), mOut.position(),
+                InetAddress.getLoopbackAddress(), mResponder.getPort()));
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LoopbackBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.08
+ * Desc: Full request/response round trips against a ConsoleResponder on loopback, over UDP and
+ *       over a TCP session. Each operation sends inFlight requests before waiting for their
+ *       responses, and more client threads can be added with JMH's -t option, so throughput can
+ *       be compared at different levels of concurrency. Loopback has no real network delay, so
+ *       these numbers show the cost of the protocol and the responder, not of Wi-Fi.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.responder.ConsoleResponder;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoopbackBenchmark {
+    /** The time to wait for a response before failing; loopback should never need this. */
+    private static final int SOCKET_TIMEOUT_MS = 1000;
+
+    /** Request IDs for every client thread; the responder treats a repeated ID as a retry. */
+    private static final AtomicLong sLastId = new AtomicLong(System.currentTimeMillis());
+
+    /** The responder shared by every client thread. */
+    @State(Scope.Benchmark)
+    public static class Responder {
+        /** The number of worker threads in the responder. */
+        @Param({"4"})
+        public int workers;
+
+        /** The responder under test. */
+        ConsoleResponder mResponder;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            mResponder = new ConsoleResponder(
+                    "Bench", InetAddress.getLoopbackAddress(), 0, workers);
+            mResponder.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            mResponder.close();
+        }
+    }
+
+    /** A single client with its own sockets. */
+    @State(Scope.Thread)
+    public static class Client {
+        /** The number of requests sent before waiting for responses. */
+        @Param({"1", "4", "16"})
+        public int inFlight;
+
+        /** Encodes requests. */
+        final MessageCodec mCodec = new MessageCodec("BenchClient");
+
+        /** The buffer requests are encoded into, with room for a frame header. */
+        final ByteBuffer mOut = ByteBuffer.allocate(
+                ConsoleProtocol.FRAME_HEADER_SIZE + ConsoleProtocol.MAX_PACKET_SIZE);
+
+        /** The buffer responses are read into. */
+        final byte[] mIn = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+
+        /** The reused decoded response. */
+        final ConsoleMessage mResponse = new ConsoleMessage();
+
+        /** The UDP socket. */
+        DatagramSocket mUdpSocket;
+
+        /** The TCP session. The responder decodes either format, so it isn't negotiated. */
+        Socket mTcpSocket;
+
+        /** The stream responses are read from. */
+        DataInputStream mTcpInput;
+
+        /** The stream requests are written to. */
+        DataOutputStream mTcpOutput;
+
+        /** The address of the responder. */
+        InetAddress mAddress;
+
+        /** The port of the responder. */
+        int mPort;
+
+        @Setup(Level.Trial)
+        public void connect(Responder responder) throws IOException {
+            mAddress = InetAddress.getLoopbackAddress();
+            mPort = responder.mResponder.getPort();
+            mUdpSocket = new DatagramSocket();
+            mUdpSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            mTcpSocket = new Socket(mAddress, mPort);
+            mTcpSocket.setTcpNoDelay(true);
+            mTcpSocket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            mTcpInput = new DataInputStream(mTcpSocket.getInputStream());
+            mTcpOutput = new DataOutputStream(mTcpSocket.getOutputStream());
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            mUdpSocket.close();
+            mTcpSocket.close();
+        }
+    }
+
+    @Benchmark
+    public long udpRoundTrip(Client client) throws IOException {
+        for (int i = 0; i < client.inFlight; i++) {
+            client.mOut.clear();
+            client.mCodec.encode(client.mOut, MessageCodec.FORMAT_TEXT, sLastId.incrementAndGet(),
+                    ConsoleProtocol.ACTION_INFO);
+            client.mUdpSocket.send(new DatagramPacket(client.mOut.array(),
+                    client.mOut.position(), client.mAddress, client.mPort));
+        }
+
+        long lastReply = 0;
+        DatagramPacket packet = new DatagramPacket(client.mIn, client.mIn.length);
+        for (int i = 0; i < client.inFlight; i++) {
+            packet.setLength(client.mIn.length);
+            client.mUdpSocket.receive(packet);
+            MessageCodec.decode(ByteBuffer.wrap(client.mIn, 0, packet.getLength()),
+                    client.mResponse);
+            lastReply = client.mResponse.getReplyTo();
+        }
+        return lastReply;
+    }
+
+    @Benchmark
+    public long tcpRoundTrip(Client client) throws IOException {
+        ByteBuffer out = client.mOut;
+        for (int i = 0; i < client.inFlight; i++) {
+            out.clear();
+            out.position(ConsoleProtocol.FRAME_HEADER_SIZE);
+            client.mCodec.encode(out, MessageCodec.FORMAT_BINARY, sLastId.incrementAndGet(),
+                    ConsoleProtocol.ACTION_INFO);
+            out.putInt(0, out.position() - ConsoleProtocol.FRAME_HEADER_SIZE);
+            client.mTcpOutput.write(out.array(), 0, out.position());
+        }
+        client.mTcpOutput.flush();
+
+        long lastReply = 0;
+        for (int i = 0; i < client.inFlight; i++) {
+            int length = client.mTcpInput.readInt();
+            client.mTcpInput.readFully(client.mIn, 0, length);
+            MessageCodec.decode(ByteBuffer.wrap(client.mIn, 0, length), client.mResponse);
+            lastReply = client.mResponse.getReplyTo();
+        }
+        return lastReply;
+    }
+}
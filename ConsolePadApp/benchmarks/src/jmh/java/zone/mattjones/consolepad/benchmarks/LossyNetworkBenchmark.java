@@ -0,0 +1,130 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LossyNetworkBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.20
+ * Desc: The latency of a command as the user feels it, sent by the real client through a
+ *       LossyProxy at different levels of loss. The client's RttEstimator is kept across
+ *       commands like the app's, so a command that follows a lost one starts from the backed off
+ *       timeout. A command that fails after MAX_TRANSMISSIONS sends is timed too; that is how
+ *       long the user waited for the error. Look at the p50 and p99 rows of the sample-time
+ *       results rather than the mean.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import zone.mattjones.consolepad.client.LocalAddressIndex;
+import zone.mattjones.consolepad.client.NetworkExecutor;
+import zone.mattjones.consolepad.client.NetworkStats;
+import zone.mattjones.consolepad.client.UdpNetworkService;
+import zone.mattjones.consolepad.client.UdpNetworkTask;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.responder.ConsoleResponder;
+import zone.mattjones.consolepad.responder.LossyProxy;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class LossyNetworkBenchmark {
+    /** The start of every command's action; the rest makes each one different. */
+    private static final String ACTION_COMMAND_PREFIX = "COMMAND:";
+
+    /** The delay each way, about what a phone on home Wi-Fi sees. */
+    private static final long DELAY_MS = 2;
+
+    /** The most extra delay each way, enough to reorder datagrams sent close together. */
+    private static final int JITTER_MS = 20;
+
+    /** The percentage of datagrams that arrive twice. */
+    private static final int DUPLICATE_PERCENT = 5;
+
+    /** The percentage of datagrams lost in each direction. */
+    @Param({"0", "5", "20"})
+    public int lossPercent;
+
+    /** The console. */
+    private ConsoleResponder mResponder;
+
+    /** The bad network in front of it. */
+    private LossyProxy mProxy;
+
+    /** The client's socket, sending to the proxy. */
+    private UdpNetworkService mService;
+
+    /** Runs the client's requests one at a time, none merged or dropped. */
+    private NetworkExecutor mExecutor;
+
+    /** The IP commands are sent to; the port is the proxy's. */
+    private String mIp;
+
+    /** The number of commands sent so far, which makes each action different. */
+    private long mCommands;
+
+    /** Gets the outcome of each command. */
+    private final ArrayBlockingQueue<Boolean> mDone = new ArrayBlockingQueue<>(1);
+
+    /** Hands each outcome to mDone. */
+    private final UdpNetworkTask.ResponseHandler mHandler = new UdpNetworkTask.ResponseHandler() {
+        @Override
+        public void handleResponse(ConsoleResponse response) {
+            mDone.add(response.isOk());
+        }
+
+        @Override
+        public void handleError(int errorCode) {
+            mDone.add(false);
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mResponder = new ConsoleResponder("LossyBox", InetAddress.getLoopbackAddress(), 0, 2);
+        mResponder.setPrefixHandler(
+                ACTION_COMMAND_PREFIX, (action) -> ConsoleProtocol.RESPONSE_OK);
+        mResponder.start();
+        mProxy = new LossyProxy(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), mResponder.getPort()), 1);
+        mProxy.setLoss(lossPercent / 100.0)
+                .setDuplication(DUPLICATE_PERCENT / 100.0)
+                .setDelay(DELAY_MS, JITTER_MS);
+        mProxy.start();
+        mService = new UdpNetworkService(
+                new LocalAddressIndex(), new NetworkStats("bench"), "LossyNetworkBenchmark")
+                .setPorts(0, mProxy.getPort());
+        mExecutor = new NetworkExecutor(1, 1, false);
+        mIp = InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+        mService.close();
+        mProxy.close();
+        mResponder.close();
+    }
+
+    @Benchmark
+    public boolean command() throws InterruptedException {
+        mExecutor.submit(new UdpNetworkTask(
+                mHandler, mService, mIp, ACTION_COMMAND_PREFIX + mCommands++));
+        return mDone.take();
+    }
+}
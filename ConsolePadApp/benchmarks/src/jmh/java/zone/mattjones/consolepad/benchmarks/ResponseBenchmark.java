@@ -0,0 +1,112 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ResponseBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.22
+ * Desc: Compares handing a decoded response to the app as a ConsoleResponse against the list of
+ *       strings it used to get: the message split into parts with a base 64 payload, which the
+ *       activity decoded and tried every structured format on. Run with -prof gc to see the
+ *       allocation per response.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import zone.mattjones.consolepad.protocol.ActionBatch;
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.JobEvent;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.protocol.RomIndexPage;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+    /** The device name used in every message. */
+    private static final String DEVICE_NAME = "EmulatorBox";
+
+    /** The IP the response came from. */
+    private static final String REMOTE_IP = "192.168.1.20";
+
+    /** A fixed timestamp so every run decodes the same bytes. */
+    private static final long TIMESTAMP = 1567889516854L;
+
+    /** The response: the usual OK or a job starting. */
+    @Param({"OK", "JOB"})
+    public String payload;
+
+    /** The decoded message, as the session holds it. */
+    private ConsoleMessage mMessage;
+
+    /** The payload bytes, which the message keeps to itself. */
+    private byte[] mPayloadBytes;
+
+    /** Makes the typed responses. */
+    private ConsoleResponse.Factory mFactory;
+
+    @Setup
+    public void setUp() {
+        String text = "JOB".equals(payload)
+                ? "JOB:17:RUNNING:0:0:ECHO" : ConsoleProtocol.RESPONSE_OK;
+        ByteBuffer buffer = ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+        new MessageCodec(DEVICE_NAME).encode(
+                buffer, MessageCodec.FORMAT_BINARY, TIMESTAMP, TIMESTAMP - 1, text);
+        buffer.flip();
+        mMessage = new ConsoleMessage();
+        MessageCodec.decode(buffer, mMessage);
+        mPayloadBytes = text.getBytes(Charset.forName("UTF8"));
+        mFactory = new ConsoleResponse.Factory();
+    }
+
+    @Benchmark
+    public void handleLegacy(Blackhole blackhole) {
+        // What ConsoleMessage.toParts() made on the network thread.
+        ArrayList<String> parts = new ArrayList<>();
+        parts.add(ConsoleProtocol.MAGIC_PREFIX);
+        parts.add(Long.toString(TIMESTAMP));
+        parts.add(mMessage.getDeviceName());
+        parts.add(Base64.getEncoder().encodeToString(
+                Arrays.copyOf(mPayloadBytes, mPayloadBytes.length)));
+
+        // What the activity did with them.
+        byte[] decoded = Base64.getDecoder().decode(parts.get(parts.size() - 1));
+        String text = new String(decoded, Charset.forName("UTF8"));
+        List<String> results = ActionBatch.decodeResults(text);
+        blackhole.consume(results);
+        blackhole.consume(JobEvent.decode(text));
+        blackhole.consume(RomIndexPage.decode(text));
+        blackhole.consume(parts.get(2));
+    }
+
+    @Benchmark
+    public void handleTyped(Blackhole blackhole) {
+        ConsoleResponse response = mFactory.create(mMessage, REMOTE_IP);
+        // What MainActivity.handleResponse() does with it.
+        if (!response.isOk()) {
+            blackhole.consume(response.getBatchResults());
+            blackhole.consume(response.getJobEvent());
+            blackhole.consume(response.isRomIndexPage());
+        }
+        blackhole.consume(response.getDeviceName());
+    }
+}
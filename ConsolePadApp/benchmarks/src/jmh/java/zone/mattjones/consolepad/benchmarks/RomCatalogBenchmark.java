@@ -0,0 +1,152 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RomCatalogBenchmark.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: Searching and syncing the app's copy of the game library. A search looks words up in
+ *       RomCatalog's sorted word array; the simple alternative lowercases and checks every name.
+ *       A delta sync is a page from the console's RomIndex for a few renamed games, sent as text
+ *       and applied, which is all reconnecting costs once the full library has been fetched.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import zone.mattjones.consolepad.protocol.RomCatalog;
+import zone.mattjones.consolepad.protocol.RomEntry;
+import zone.mattjones.consolepad.protocol.RomIndexPage;
+import zone.mattjones.consolepad.responder.RomIndex;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RomCatalogBenchmark {
+    /** The words game names are made of. */
+    private static final String[] WORDS = {
+            "super", "mario", "zelda", "kart", "legend", "of", "the", "final", "fantasy",
+            "street", "fighter", "sonic", "metroid", "kirby", "donkey", "kong", "world", "tennis",
+            "golf", "party", "star", "fox", "wars", "racing", "adventure", "island", "castle"};
+
+    /** The systems games are spread across. */
+    private static final String[] SYSTEMS = {"n64", "snes", "gba", "gc", "psx"};
+
+    /** The query searched for, two partial words. */
+    private static final String QUERY = "zel leg";
+
+    /** The most results a search returns, as many as the app lists. */
+    private static final int LIMIT = 500;
+
+    /** The number of games renamed between delta syncs. */
+    private static final int CHANGES_PER_SYNC = 10;
+
+    /** The number of games in the library. */
+    @Param({"1000", "50000"})
+    public int gameCount;
+
+    /** The console's index. */
+    private RomIndex mIndex;
+
+    /** The app's copy, kept in sync with mIndex. */
+    private RomCatalog mCatalog;
+
+    /** The games as they were added. */
+    private ArrayList<RomEntry> mGames;
+
+    /** Picks the games to rename. */
+    private Random mRandom;
+
+    /** The file mIndex would be saved to; it never is. */
+    private File mIndexFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mIndexFile = File.createTempFile("rom_index", ".tsv");
+        mIndexFile.delete();
+        mIndex = new RomIndex(mIndexFile);
+        mRandom = new Random(1);
+        mGames = new ArrayList<>(gameCount);
+        for (int i = 0; i < gameCount; i++) {
+            RomEntry game = new RomEntry(String.format("%016x", i),
+                    SYSTEMS[mRandom.nextInt(SYSTEMS.length)],
+                    WORDS[mRandom.nextInt(WORDS.length)] + " "
+                            + WORDS[mRandom.nextInt(WORDS.length)] + " "
+                            + WORDS[mRandom.nextInt(WORDS.length)] + " " + i);
+            mGames.add(game);
+            mIndex.put(game, "roms/" + game.system + "/" + game.name, i, i);
+        }
+        mCatalog = new RomCatalog();
+        while (true) {
+            RomIndexPage page = syncPage();
+            if (!page.hasMore()) break;
+        }
+        // Build the word array outside the measurements.
+        mCatalog.search(QUERY, LIMIT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mIndexFile.delete();
+    }
+
+    /**
+     * Send the next page from the index to the catalog as text.
+     * @return The page.
+     */
+    private RomIndexPage syncPage() {
+        String request = mCatalog.buildSyncRequest();
+        RomIndexPage page = RomIndexPage.decode(mIndex.getPage(
+                RomIndexPage.getRequestIndexId(request),
+                RomIndexPage.getRequestVersion(request)).encode());
+        mCatalog.apply(page);
+        return page;
+    }
+
+    @Benchmark
+    public List<RomEntry> searchWordIndex() {
+        return mCatalog.search(QUERY, LIMIT);
+    }
+
+    @Benchmark
+    public List<RomEntry> searchLinearScan() {
+        String[] terms = QUERY.split(" ");
+        ArrayList<RomEntry> results = new ArrayList<>();
+        for (RomEntry game : mGames) {
+            String name = " " + game.name.toLowerCase(Locale.ROOT);
+            boolean matches = true;
+            for (String term : terms) matches &= name.contains(" " + term);
+            if (matches) results.add(game);
+        }
+        results.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
+        return results.size() > LIMIT ? results.subList(0, LIMIT) : results;
+    }
+
+    /** Rename a few games on the console and sync them to the app, then search once. */
+    @Benchmark
+    public List<RomEntry> deltaSyncAndSearch() {
+        for (int i = 0; i < CHANGES_PER_SYNC; i++) {
+            RomEntry game = mGames.get(mRandom.nextInt(gameCount));
+            mIndex.put(new RomEntry(game.hash, game.system,
+                    WORDS[mRandom.nextInt(WORDS.length)] + " " + game.hash), game.name, 0, 0);
+        }
+        syncPage();
+        return mCatalog.search(QUERY, LIMIT);
+    }
+}
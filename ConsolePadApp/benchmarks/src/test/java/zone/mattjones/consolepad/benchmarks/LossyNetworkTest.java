@@ -0,0 +1,173 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LossyNetworkTest.java
+ * Author: Matt Jones
+ * Date: 2019.10.20
+ * Desc: Command round trips from the real client, a UdpNetworkTask on a UdpNetworkService,
+ *       through a LossyProxy in front of a ConsoleResponder. Every command is a different action,
+ *       so the test fails if the proxy's repeats and the client's retries ever made the responder
+ *       run one twice, or if an answered command never ran. That is what keeps POWER_OFF from
+ *       happening twice. How long the commands take depends on the machine, so it isn't checked
+ *       here; LossyNetworkBenchmark measures it.
+ */
+
+package zone.mattjones.consolepad.benchmarks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import zone.mattjones.consolepad.client.LocalAddressIndex;
+import zone.mattjones.consolepad.client.NetworkExecutor;
+import zone.mattjones.consolepad.client.NetworkStats;
+import zone.mattjones.consolepad.client.UdpNetworkService;
+import zone.mattjones.consolepad.client.UdpNetworkTask;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.RttEstimator;
+import zone.mattjones.consolepad.responder.ConsoleResponder;
+import zone.mattjones.consolepad.responder.LossyProxy;
+
+@RunWith(Parameterized.class)
+public class LossyNetworkTest {
+    /** The start of every command's action; the rest makes each one different. */
+    private static final String ACTION_COMMAND_PREFIX = "COMMAND:";
+
+    /** The delay each way, about what a phone on home Wi-Fi sees. */
+    private static final long DELAY_MS = 2;
+
+    /** The most extra delay each way, enough to reorder datagrams sent close together. */
+    private static final int JITTER_MS = 20;
+
+    /** The percentage of datagrams that arrive twice. */
+    private static final int DUPLICATE_PERCENT = 5;
+
+    /** The number of commands sent in each scenario. */
+    private static final int COMMAND_COUNT = 20;
+
+    /** Longer than any command can take, even sent MAX_TRANSMISSIONS times. */
+    private static final long COMMAND_TIMEOUT_MS = 4 * RttEstimator.MAX_TIMEOUT_MS;
+
+    /** The scenarios: the percentage of datagrams lost in each direction. */
+    @Parameters(name = "{0}% loss")
+    public static Collection<Object[]> scenarios() {
+        return Arrays.asList(new Object[][] {{0}, {5}, {20}});
+    }
+
+    /** The percentage of datagrams lost in each direction. */
+    @Parameter
+    public int lossPercent;
+
+    /** The console. */
+    private ConsoleResponder mResponder;
+
+    /** The bad network in front of it. */
+    private LossyProxy mProxy;
+
+    /** The client's socket, sending to the proxy. */
+    private UdpNetworkService mService;
+
+    /** Runs the client's requests one at a time, none merged or dropped. */
+    private final NetworkExecutor mExecutor = new NetworkExecutor(1, 1, false);
+
+    /** The number of times each command ran, keyed by action. */
+    private final ConcurrentHashMap<String, AtomicInteger> mRuns = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mResponder = new ConsoleResponder("LossyBox", InetAddress.getLoopbackAddress(), 0, 2);
+        mResponder.setPrefixHandler(ACTION_COMMAND_PREFIX, (action) -> {
+            mRuns.computeIfAbsent(action, (key) -> new AtomicInteger()).incrementAndGet();
+            return ConsoleProtocol.RESPONSE_OK;
+        });
+        mResponder.start();
+        mProxy = new LossyProxy(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), mResponder.getPort()), 1);
+        mProxy.setLoss(lossPercent / 100.0)
+                .setDuplication(DUPLICATE_PERCENT / 100.0)
+                .setDelay(DELAY_MS, JITTER_MS);
+        mProxy.start();
+        mService = new UdpNetworkService(
+                new LocalAddressIndex(), new NetworkStats("test"), "LossyNetworkTest")
+                .setPorts(0, mProxy.getPort());
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+        mService.close();
+        mProxy.close();
+        mResponder.close();
+    }
+
+    @Test
+    public void commandsRunOnce() throws InterruptedException {
+        int answered = 0;
+        for (int i = 0; i < COMMAND_COUNT; i++) {
+            String action = ACTION_COMMAND_PREFIX + i;
+            boolean ok = command(action);
+            if (ok) answered++;
+
+            AtomicInteger runs = mRuns.get(action);
+            if (ok) assertTrue(action + " was answered but never ran", runs != null);
+            if (runs != null) assertEquals(action + " ran more than once", 1, runs.get());
+        }
+
+        // Every send of the last command could still be on its way through the proxy.
+        Thread.sleep(2 * (DELAY_MS + JITTER_MS));
+        for (Map.Entry<String, AtomicInteger> run : mRuns.entrySet()) {
+            assertEquals(run.getKey() + " ran more than once", 1, run.getValue().get());
+        }
+
+        // Failing all MAX_TRANSMISSIONS sends is the only excuse for a command going unanswered.
+        double failRate = Math.pow(1 - Math.pow(1 - lossPercent / 100.0, 2),
+                RttEstimator.MAX_TRANSMISSIONS);
+        assertTrue((COMMAND_COUNT - answered) + " commands failed",
+                COMMAND_COUNT - answered <= Math.max(1, 3 * failRate * COMMAND_COUNT));
+    }
+
+    /**
+     * Send a command the way the app does and wait for it to be answered or fail.
+     * @param action The command's action.
+     * @return Whether it was answered.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private boolean command(String action) throws InterruptedException {
+        ArrayBlockingQueue<Boolean> done = new ArrayBlockingQueue<>(1);
+        String ip = InetAddress.getLoopbackAddress().getHostAddress();
+        mExecutor.submit(new UdpNetworkTask(new UdpNetworkTask.ResponseHandler() {
+            @Override
+            public void handleResponse(ConsoleResponse response) {
+                done.add(response.isOk());
+            }
+
+            @Override
+            public void handleError(int errorCode) {
+                done.add(false);
+            }
+        }, mService, ip, action));
+        Boolean ok = done.poll(COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(action + " never finished", ok);
+        return ok;
+    }
+}
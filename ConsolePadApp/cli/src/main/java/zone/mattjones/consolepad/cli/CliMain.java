@@ -0,0 +1,273 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: CliMain.java
+ * Author: Matt Jones
+ * Date: 2019.10.21
+ * Desc: Talks to a console from the command line, for scripts, hotkeys and load tests:
+ *
+ *       consolepad [--host IP] [--port 19002] [--local-port 19002] [--name NAME]
+ *                  [--batch FILE] [--pipeline 1] [--repeat 1] [--quiet] [--stats]
+ *                  [--discover] [ACTION...]
+ *
+ *       The actions come from the arguments, or one per line from --batch FILE ("-" for stdin)
+ *       or stdin if there are none; blank lines and lines starting with # are skipped. Each
+ *       response is printed on its own line in the order the actions were given, and each
+ *       failure goes to stderr instead, with a non-zero exit status. With --pipeline N the
+ *       actions go over N connections at once. --repeat sends the whole list that many times
+ *       and --stats prints the latency and drop report at the end, which together with --quiet
+ *       makes a load generator.
+ *
+ *       With --host the console is connected to right away, which is what hotkeys want: nothing
+ *       but the TCP session is set up. Without it the console that answers discovery fastest is
+ *       used, and --discover lists every console that answered instead of sending anything.
+ *       --local-port 0 lets discovery run next to a Java responder on the same machine.
+ */
+
+package zone.mattjones.consolepad.cli;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zone.mattjones.consolepad.client.ConsoleDiscoveryTask;
+import zone.mattjones.consolepad.client.ConsoleRecord;
+import zone.mattjones.consolepad.client.LocalAddressIndex;
+import zone.mattjones.consolepad.client.NetworkExecutor;
+import zone.mattjones.consolepad.client.NetworkStats;
+import zone.mattjones.consolepad.client.UdpNetworkService;
+import zone.mattjones.consolepad.client.UdpNetworkTask;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+
+public class CliMain {
+    /** The exit status when a command failed or no console was found. */
+    private static final int EXIT_FAILED = 1;
+
+    /** The exit status when the arguments were bad. */
+    private static final int EXIT_USAGE = 2;
+
+    /** The name used if neither --name nor the environment gives one. */
+    private static final String DEFAULT_NAME = "ConsolePadCli";
+
+    /** The usage shown for bad arguments. */
+    private static final String USAGE = "usage: consolepad [--host IP] [--port 19002] "
+            + "[--local-port 19002] [--name NAME] [--batch FILE] [--pipeline 1] [--repeat 1] "
+            + "[--quiet] [--stats] [--discover] [ACTION...]";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = null;
+        int port = ConsoleProtocol.DEFAULT_PORT;
+        int localPort = ConsoleProtocol.DEFAULT_PORT;
+        String name = getDefaultName();
+        String batch = null;
+        int pipeline = 1;
+        int repeat = 1;
+        boolean quiet = false;
+        boolean stats = false;
+        boolean discoverOnly = false;
+        ArrayList<String> actions = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--host".equals(arg)) {
+                    host = args[++i];
+                } else if ("--port".equals(arg)) {
+                    port = Integer.parseInt(args[++i]);
+                } else if ("--local-port".equals(arg)) {
+                    localPort = Integer.parseInt(args[++i]);
+                } else if ("--name".equals(arg)) {
+                    name = args[++i];
+                } else if ("--batch".equals(arg)) {
+                    batch = args[++i];
+                } else if ("--pipeline".equals(arg)) {
+                    pipeline = Integer.parseInt(args[++i]);
+                } else if ("--repeat".equals(arg)) {
+                    repeat = Integer.parseInt(args[++i]);
+                } else if ("--quiet".equals(arg)) {
+                    quiet = true;
+                } else if ("--stats".equals(arg)) {
+                    stats = true;
+                } else if ("--discover".equals(arg)) {
+                    discoverOnly = true;
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                } else {
+                    actions.add(arg);
+                }
+            }
+            if (pipeline < 1 || repeat < 1) {
+                throw new IllegalArgumentException("--pipeline and --repeat must be at least 1");
+            }
+            if (batch != null && !actions.isEmpty()) {
+                throw new IllegalArgumentException("Actions can't be given with --batch");
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException
+                    ? "Missing value for " + args[args.length - 1] : e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+        }
+
+        NetworkStats networkStats = new NetworkStats(
+                "command line (" + System.getProperty("os.name") + ")");
+        if (host == null || discoverOnly) {
+            ArrayList<ConsoleRecord> consoles = discover(networkStats, name, localPort, port);
+            if (discoverOnly) {
+                for (ConsoleRecord console : consoles) {
+                    System.out.println(console.ip + "\t" + console.name + "\t" + console.rttMs);
+                }
+                System.exit(consoles.isEmpty() ? EXIT_FAILED : 0);
+            }
+            if (consoles.isEmpty()) {
+                System.err.println("No console answered");
+                System.exit(EXIT_FAILED);
+            }
+            host = consoles.get(0).ip;
+        }
+
+        System.exit(run(host, port, name, pipeline, repeat, quiet, stats, networkStats, batch,
+                actions));
+    }
+
+    /**
+     * Send every action and print the results.
+     * @param host The IP of the console.
+     * @param port The console's port.
+     * @param name The name this client gives the console.
+     * @param pipeline The number of actions in flight at once.
+     * @param repeat The number of times to send the list of actions.
+     * @param quiet Whether to leave responses out of the output.
+     * @param stats Whether to print the latency and drop report at the end.
+     * @param networkStats Where round trips are recorded.
+     * @param batch The file to read actions from, "-" for stdin, or null.
+     * @param actions The actions from the arguments.
+     * @return The exit status.
+     */
+    private static int run(String host, int port, String name, int pipeline, int repeat,
+            boolean quiet, boolean stats, NetworkStats networkStats, String batch,
+            ArrayList<String> actions) throws IOException, InterruptedException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, Charset.forName("UTF8"))));
+        AtomicLong failures = new AtomicLong();
+        // Open the connections while the actions are being read.
+        CommandPipeline commands = new CommandPipeline(host, port, name, pipeline, networkStats,
+                (index, action, payload, errorCode) -> {
+                    if (payload == null) {
+                        failures.incrementAndGet();
+                        System.err.println("Command " + (index + 1) + " (" + action
+                                + ") failed: " + getErrorLabel(errorCode));
+                    } else if (!quiet) {
+                        out.println(payload);
+                        // Scripts reading responses one at a time shouldn't wait for the end.
+                        out.flush();
+                    }
+                });
+
+        long startNanos = System.nanoTime();
+        long sent = 0;
+        if (actions.isEmpty()) {
+            BufferedReader reader = openBatch(batch);
+            String line;
+            // Without repeats the actions are sent as they are read, so a stream of them works.
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (repeat > 1) {
+                    actions.add(line);
+                } else {
+                    commands.submit(line);
+                    sent++;
+                }
+            }
+            reader.close();
+        }
+        for (int i = 0; i < repeat && !actions.isEmpty(); i++) {
+            for (String action : actions) commands.submit(action);
+            sent += actions.size();
+        }
+        commands.finish();
+        long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+        out.flush();
+
+        if (stats) {
+            PrintWriter err = new PrintWriter(System.err);
+            err.println(String.format("%d commands in %d ms (%.1f/s), %d failed", sent,
+                    elapsedMs, sent * 1000.0 / Math.max(1, elapsedMs), failures.get()));
+            err.println();
+            networkStats.writeReport(err, false);
+        }
+        // Only a run of more than a command a ms waits here, so the next run's IDs are new.
+        UdpNetworkTask.awaitClockPastRequestIds();
+        return failures.get() == 0 ? 0 : EXIT_FAILED;
+    }
+
+    /**
+     * Find the consoles on the network.
+     * @param stats Where drops and setup times are recorded.
+     * @param name The name this client gives the console.
+     * @param localPort The port to send from.
+     * @param port The port consoles listen on.
+     * @return The consoles that answered, fastest first.
+     */
+    private static ArrayList<ConsoleRecord> discover(NetworkStats stats, String name,
+            int localPort, int port) throws InterruptedException {
+        UdpNetworkService service = new UdpNetworkService(new LocalAddressIndex(), stats, name)
+                .setPorts(localPort, port);
+        NetworkExecutor executor = new NetworkExecutor();
+        ArrayBlockingQueue<ArrayList<ConsoleRecord>> found = new ArrayBlockingQueue<>(1);
+        try {
+            executor.submit(new ConsoleDiscoveryTask(
+                    found::add, service, ConsoleDiscoveryTask.DEFAULT_WINDOW_MS));
+            return found.take();
+        } finally {
+            executor.shutdown();
+            service.close();
+        }
+    }
+
+    /**
+     * @param batch The file to read actions from, "-" or null for stdin.
+     * @return A reader for the actions.
+     */
+    private static BufferedReader openBatch(String batch) throws IOException {
+        InputStream in = batch == null || "-".equals(batch)
+                ? System.in : new FileInputStream(batch);
+        return new BufferedReader(new InputStreamReader(in, Charset.forName("UTF8")));
+    }
+
+    /** @return The name of this machine from the environment, which is quicker than a lookup. */
+    private static String getDefaultName() {
+        String name = System.getenv("COMPUTERNAME");
+        if (name == null) name = System.getenv("HOSTNAME");
+        return name != null && !name.isEmpty() ? name : DEFAULT_NAME;
+    }
+
+    /**
+     * @param errorCode One of the UdpNetworkTask.ERROR_* values.
+     * @return A short description of the error.
+     */
+    private static String getErrorLabel(int errorCode) {
+        switch (errorCode) {
+            case UdpNetworkTask.ERROR_NO_HOST:
+                return "unknown host";
+            case UdpNetworkTask.ERROR_TIMEOUT:
+                return "no response";
+            case UdpNetworkTask.ERROR_REFUSED:
+                return "refused by the console";
+            case UdpNetworkTask.ERROR_DROPPED:
+                return "dropped before it was sent";
+            default:
+                return "connection failed";
+        }
+    }
+}
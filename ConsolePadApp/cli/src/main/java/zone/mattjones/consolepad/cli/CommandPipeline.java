@@ -0,0 +1,202 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: CommandPipeline.java
+ * Author: Matt Jones
+ * Date: 2019.10.21
+ * Desc: Sends a stream of commands to a console over several ConsoleSessions at once. Each
+ *       session is a lane with its own connection and at most one command on it, so up to one
+ *       command per lane is in flight and a slow one only holds up its own lane. Results are
+ *       handed back in the order the commands were submitted, whichever lane finished first.
+ *       Every command is sent, even a repeat of the one before it, since the executor doesn't
+ *       merge them the way the app's does.
+ */
+
+package zone.mattjones.consolepad.cli;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import zone.mattjones.consolepad.client.ConsoleSession;
+import zone.mattjones.consolepad.client.NetworkExecutor;
+import zone.mattjones.consolepad.client.NetworkStats;
+import zone.mattjones.consolepad.client.UdpNetworkTask;
+import zone.mattjones.consolepad.protocol.ActionBatch;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.FragmentFrame;
+import zone.mattjones.consolepad.protocol.ReassemblyPool;
+import zone.mattjones.consolepad.protocol.RttEstimator;
+
+public class CommandPipeline {
+    /** Interface for handling the results of commands. */
+    public interface ResultHandler {
+        /**
+         * Handle the result of a command. Called once per command, in the order they were
+         * submitted, on a network thread.
+         * @param index The position of the command, starting at 0.
+         * @param action The action that was sent.
+         * @param payload The console's response or null if the command failed.
+         * @param errorCode What went wrong, one of the UdpNetworkTask.ERROR_* values, or 0.
+         */
+        void handleResult(long index, String action, String payload, int errorCode);
+    }
+
+    /** The result of a command that finished before one submitted ahead of it. */
+    private static class Result {
+        /** The action that was sent. */
+        final String action;
+        /** The console's response or null if the command failed. */
+        final String payload;
+        /** What went wrong, if anything. */
+        final int errorCode;
+
+        Result(String action, String payload, int errorCode) {
+            this.action = action;
+            this.payload = payload;
+            this.errorCode = errorCode;
+        }
+    }
+
+    /** A session with at most one command on it. */
+    private class Lane implements UdpNetworkTask.ResponseHandler {
+        /** The connection this lane's commands go over. */
+        private final ConsoleSession mSession;
+
+        /** The position of the command on the lane. */
+        private long mIndex;
+
+        /** The action on the lane. */
+        private String mAction;
+
+        /** The responses still to come before the command on the lane is done. */
+        private int mRemaining;
+
+        Lane(String deviceName, String host, int port) {
+            mSession = new ConsoleSession(this, mExecutor, mRttEstimator, mStats, mReassemblyPool,
+                    deviceName, host, port);
+        }
+
+        /**
+         * Send a command. The lane must be idle.
+         * @param index The position of the command.
+         * @param action The action to send.
+         */
+        void send(long index, String action) {
+            mIndex = index;
+            mAction = action;
+            // An older console is sent a batch one step at a time, with a response for each.
+            List<String> steps = ActionBatch.decode(action);
+            mRemaining = steps == null ? 1 : steps.size();
+            mSession.send(action);
+        }
+
+        @Override
+        public void handleResponse(ConsoleResponse response) {
+            // A console that ran the whole batch answers it at once.
+            if (response.getBatchResults() != null) mRemaining = 1;
+            if (--mRemaining > 0) return;
+            finish(new Result(mAction, response.getPayload(), 0));
+        }
+
+        @Override
+        public void handleError(int errorCode) {
+            // The session gives up on the rest of a batch after an error.
+            finish(new Result(mAction, null, errorCode));
+        }
+
+        /**
+         * Hand over the result of the command on the lane and make the lane free.
+         * @param result The result.
+         */
+        private void finish(Result result) {
+            complete(mIndex, result);
+            mIdle.add(this);
+        }
+    }
+
+    /** Runs the lanes' requests, one thread per lane. */
+    private final NetworkExecutor mExecutor;
+
+    /** The RTT estimate for the console, shared by the lanes. */
+    private final RttEstimator mRttEstimator = new RttEstimator();
+
+    /** Where round trips, drops and setup times are recorded. */
+    private final NetworkStats mStats;
+
+    /** Holds fragments of large responses until they are whole. */
+    private final ReassemblyPool mReassemblyPool;
+
+    /** Where results are handed in order. */
+    private final ResultHandler mHandler;
+
+    /** Every lane. */
+    private final Lane[] mLanes;
+
+    /** The lanes without a command on them. */
+    private final ArrayBlockingQueue<Lane> mIdle;
+
+    /** Results waiting for one submitted before them, keyed by position. Guarded by this. */
+    private final HashMap<Long, Result> mFinished = new HashMap<>();
+
+    /** The position of the next result to hand over. Guarded by this. */
+    private long mNextResult;
+
+    /** The position of the next command submitted. */
+    private long mNextIndex;
+
+    /**
+     * Open the lanes. They start connecting right away.
+     * @param host The IP or name of the console.
+     * @param port The console's TCP port.
+     * @param deviceName The name this client gives the console.
+     * @param lanes The number of connections, which is the most commands in flight at once.
+     * @param stats Where round trips, drops and setup times are recorded.
+     * @param handler Where results are handed in order.
+     */
+    public CommandPipeline(String host, int port, String deviceName, int lanes,
+            NetworkStats stats, ResultHandler handler) {
+        // Each lane can have a warm up and a command waiting; neither is ever dropped.
+        mExecutor = new NetworkExecutor(lanes, 2 * lanes, false);
+        mStats = stats;
+        mReassemblyPool = new ReassemblyPool(lanes * FragmentFrame.MAX_RESPONSE_SIZE);
+        mHandler = handler;
+        mLanes = new Lane[lanes];
+        mIdle = new ArrayBlockingQueue<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            mLanes[i] = new Lane(deviceName, host, port);
+            mIdle.add(mLanes[i]);
+        }
+    }
+
+    /**
+     * Send a command on the next free lane, waiting for one if they are all busy.
+     * @param action The action to send.
+     * @throws InterruptedException If interrupted while waiting for a lane.
+     */
+    public void submit(String action) throws InterruptedException {
+        mIdle.take().send(mNextIndex++, action);
+    }
+
+    /**
+     * Wait for every command to finish and close the connections.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void finish() throws InterruptedException {
+        for (int i = 0; i < mLanes.length; i++) mIdle.take();
+        for (Lane lane : mLanes) lane.mSession.close();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Keep a result and hand over every one that is next in line.
+     * @param index The position of the command.
+     * @param result Its result.
+     */
+    private synchronized void complete(long index, Result result) {
+        mFinished.put(index, result);
+        while ((result = mFinished.remove(mNextResult)) != null) {
+            mHandler.handleResult(mNextResult++, result.action, result.payload, result.errorCode);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleDiscoveryTask.java
+ * Author: Matt Jones
+ * Date: 2019.09.29
+ * Desc: A network request that broadcasts an INFO message and collects every console that
+ *       responds within a time window, ranked by how quickly each one answered. The message goes
+ *       to the consoles' multicast group first and is only broadcast, within the same window, if
+ *       none answers there quickly (see DiscoveryMode).
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.DiscoveryMode;
+
+public class ConsoleDiscoveryTask extends NetworkRequest {
+    /** Interface for handling the result of discovery. Called on the executor's callback thread. */
+    public interface DiscoveryHandler {
+        /**
+         * Handle the consoles that were found.
+         * @param consoles The consoles that responded, fastest first. This is empty if none did.
+         */
+        void handleConsolesFound(ArrayList<ConsoleRecord> consoles);
+    }
+
+    /** The default time to wait for consoles to respond. */
+    public static final long DEFAULT_WINDOW_MS = 750;
+
+    /** The object responsible for handling the consoles that were found. */
+    private final DiscoveryHandler mHandler;
+
+    /** The service that owns the UDP socket. */
+    private final UdpNetworkService mService;
+
+    /** The time to wait for consoles to respond. */
+    private final long mWindowMs;
+
+    /** The exchange collecting responses once the broadcast was sent. */
+    private volatile UdpNetworkService.Exchange mExchange;
+
+    /**
+     * @param handler The object responsible for handling the consoles that were found.
+     * @param service The service that owns the UDP socket.
+     * @param windowMs The time to wait for consoles to respond.
+     */
+    public ConsoleDiscoveryTask(
+            DiscoveryHandler handler, UdpNetworkService service, long windowMs) {
+        mHandler = handler;
+        mService = service;
+        mWindowMs = windowMs;
+    }
+
+    @Override
+    public String getKey() {
+        return "discovery";
+    }
+
+    @Override
+    public boolean canCoalesce() {
+        return true;
+    }
+
+    @Override
+    protected void onCanceled() {
+        UdpNetworkService.Exchange exchange = mExchange;
+        if (exchange != null) mService.cancel(exchange);
+    }
+
+    @Override
+    protected void onDropped() {
+        // Not getting to look is the same as nobody answering.
+        deliver(() -> mHandler.handleConsolesFound(new ArrayList<>()));
+    }
+
+    @Override
+    protected void run() {
+        ArrayList<ConsoleRecord> consoles;
+        UdpNetworkService.Exchange exchange = null;
+        DiscoveryMode discovery = mService.getDiscoveryMode();
+        boolean multicast = discovery.shouldTryMulticast();
+        try {
+            exchange = mService.send(
+                    multicast ? UdpNetworkTask.MULTICAST_IP : UdpNetworkTask.BROADCAST_IP,
+                    ConsoleProtocol.ACTION_INFO, true);
+            mExchange = exchange;
+            // A cancel that raced with sending wouldn't have seen the exchange.
+            if (isCanceled()) mService.cancel(exchange);
+            long multicastWindowMs =
+                    multicast ? Math.min(mWindowMs, DiscoveryMode.MULTICAST_TIMEOUT_MS) : 0;
+            boolean fellBack = false;
+            if (multicast && exchange.awaitAll(multicastWindowMs).isEmpty()) {
+                fellBack = true;
+                mService.broadcast(exchange);
+            }
+            // Responses keep being collected, so this returns those from both waits.
+            consoles = exchange.awaitAll(mWindowMs - multicastWindowMs);
+            if (multicast && !consoles.isEmpty()) {
+                if (fellBack) {
+                    discovery.onBroadcastAnswered();
+                } else {
+                    discovery.onMulticastAnswered();
+                }
+            }
+        } catch (IOException e) {
+            // Not being able to send the broadcast is the same as nobody answering.
+            consoles = new ArrayList<>();
+        } finally {
+            if (exchange != null) mService.finish(exchange);
+        }
+
+        ArrayList<ConsoleRecord> found = consoles;
+        if (!isCanceled()) deliver(() -> mHandler.handleConsolesFound(found));
+    }
+}
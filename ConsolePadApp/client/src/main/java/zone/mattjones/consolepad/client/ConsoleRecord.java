@@ -0,0 +1,29 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleRecord.java
+ * Author: Matt Jones
+ * Date: 2019.10.21
+ * Desc: Information about a console that responded, as found by discovery or remembered by the
+ *       app between launches.
+ */
+
+package zone.mattjones.consolepad.client;
+
+public class ConsoleRecord {
+    /** The IP of the console. */
+    public final String ip;
+    /** The name the console reported. */
+    public final String name;
+    /** The round-trip time of the last request in ms. */
+    public final long rttMs;
+    /** The wall-clock time the console was last heard from. */
+    public final long lastSeenMs;
+
+    public ConsoleRecord(String ip, String name, long rttMs, long lastSeenMs) {
+        this.ip = ip;
+        this.name = name;
+        this.rttMs = rttMs;
+        this.lastSeenMs = lastSeenMs;
+    }
+}
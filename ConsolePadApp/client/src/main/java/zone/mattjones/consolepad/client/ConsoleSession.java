@@ -0,0 +1,496 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleSession.java
+ * Author: Matt Jones
+ * Date: 2019.09.14
+ * Desc: A long-lived TCP connection to a console that was found via UDP. Messages use the same
+ *       format as the UDP protocol but each one is prefixed with its length in bytes as a 4 byte
+ *       big-endian integer:
+ *
+ *       [length][!!ConsoleMessage:|current_time_ms|machine_name|base_64_message|]
+ *
+ *       When a connection opens, the session asks the console to switch to the binary format of
+ *       MessageCodec and keeps the text format if the console doesn't know how. A message that
+ *       isn't answered in time is sent again on a new connection with the same ID so the console
+ *       can tell it's a retry. A batch sent to a console that doesn't know about batches, which
+ *       answers it with a plain OK, is sent again one step at a time; any other answer that isn't
+ *       the batch's results is an error, since the console may have refused it on purpose. The
+ *       response to a request wrapped with LargeResponse arrives as a run of fragment frames,
+ *       which are put back together before it is delivered.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import zone.mattjones.consolepad.protocol.ActionBatch;
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.FragmentFrame;
+import zone.mattjones.consolepad.protocol.FragmentReassembler;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.protocol.ReassemblyPool;
+import zone.mattjones.consolepad.protocol.RttEstimator;
+
+public class ConsoleSession {
+    /** How long the connection can be idle before warming up checks that it still works. */
+    private static final long WARM_UP_CHECK_IDLE_MS = 10000;
+
+    /** The response the console sends when it agrees to use the binary format. */
+    private static final byte[] FORMAT_BINARY_ACCEPTED =
+            ConsoleProtocol.RESPONSE_FORMAT_BINARY.getBytes(Charset.forName("UTF8"));
+
+    /** The response of a console that ran an action, or ignored one it doesn't know. */
+    private static final byte[] RESPONSE_OK =
+            ConsoleProtocol.RESPONSE_OK.getBytes(Charset.forName("UTF8"));
+
+    /** The start of the response to a batch from a console that knows how to run one. */
+    private static final byte[] BATCH_RESULTS_PREFIX =
+            ConsoleProtocol.ACTION_BATCH_PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The IP of the console this session is connected to. */
+    private final String mRemoteIp;
+
+    /** The console's TCP port. */
+    private final int mPort;
+
+    /** The object responsible for handing responses from the console. */
+    private final UdpNetworkTask.ResponseHandler mHandler;
+
+    /** Runs the session's network requests. */
+    private final NetworkExecutor mExecutor;
+
+    /** Tracks the round-trip time to the console to pick how long to wait for responses. */
+    private final RttEstimator mRttEstimator;
+
+    /** Where round trips, drops and setup times are recorded. */
+    private final NetworkStats mStats;
+
+    /** Held while using the connection so only one message is on the wire at a time. */
+    private final Object mConnectionLock = new Object();
+
+    /** Encodes outgoing messages. Only used while holding mConnectionLock. */
+    private final MessageCodec mCodec;
+
+    /** The buffer outgoing frames are built in, including the length prefix. */
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocate(
+            ConsoleProtocol.FRAME_HEADER_SIZE + ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The buffer incoming frames are read into. */
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The most recent message from the console, reused for every response. */
+    private final ConsoleMessage mResponse = new ConsoleMessage();
+
+    /** Makes the responses handed to the handler. Only used while holding mConnectionLock. */
+    private final ConsoleResponse.Factory mResponseFactory = new ConsoleResponse.Factory();
+
+    /** Puts large responses back together. Only used while holding mConnectionLock. */
+    private final FragmentReassembler mReassembler;
+
+    /** The time of the last response on the connection according to nowMs(). */
+    private long mLastExchangeMs;
+
+    /** The format used for outgoing messages on the current connection. */
+    private int mFormat = MessageCodec.FORMAT_TEXT;
+
+    /** Whether the session was closed; queued messages are dropped once this is set. */
+    private volatile boolean mClosed;
+
+    /** The TCP socket to the console or null if there is no open connection. */
+    private volatile Socket mSocket;
+
+    /** The stream that framed messages are read from. */
+    private DataInputStream mInput;
+
+    /** The stream that framed messages are written to. */
+    private DataOutputStream mOutput;
+
+    /** A request that sends a single message over the session. */
+    private class SendRequest extends NetworkRequest {
+        /** The action to send. */
+        private final String mMessage;
+
+        SendRequest(String message) {
+            mMessage = message;
+        }
+
+        @Override
+        public String getKey() {
+            return "tcp:" + mRemoteIp + ":" + mMessage;
+        }
+
+        @Override
+        public boolean canCoalesce() {
+            return ConsoleProtocol.ACTION_INFO.equals(mMessage);
+        }
+
+        @Override
+        protected void onDropped() {
+            reportError(this, UdpNetworkTask.ERROR_DROPPED);
+        }
+
+        @Override
+        protected void run() {
+            synchronized (mConnectionLock) {
+                if (!sendOnConnection(this, mMessage)) return;
+                List<String> steps = ActionBatch.decode(mMessage);
+                if (steps == null || mResponse.payloadStartsWith(BATCH_RESULTS_PREFIX)) {
+                    deliverResponse(this);
+                    return;
+                }
+
+                // Anything but a plain OK came from a console that saw the batch and didn't run it,
+                // so sending the steps again could run them twice or after a refusal.
+                if (!mResponse.payloadEquals(RESPONSE_OK)) {
+                    reportError(this, UdpNetworkTask.ERROR_REFUSED);
+                    return;
+                }
+
+                // Older consoles answer a batch with OK without running any of it; send each step.
+                for (String step : steps) {
+                    if (!sendOnConnection(this, step)) return;
+                    deliverResponse(this);
+                }
+            }
+        }
+    }
+
+    /** A request that opens the connection and checks an idle one without telling the handler. */
+    private class WarmUpRequest extends NetworkRequest {
+        @Override
+        public String getKey() {
+            return "tcp:" + mRemoteIp + ":warm";
+        }
+
+        @Override
+        public boolean canCoalesce() {
+            return true;
+        }
+
+        @Override
+        protected void run() {
+            synchronized (mConnectionLock) {
+                if (mClosed || isCanceled()) return;
+                try {
+                    boolean wasConnected = mSocket != null;
+                    ensureConnected();
+                    if (!wasConnected || nowMs() - mLastExchangeMs < WARM_UP_CHECK_IDLE_MS) {
+                        return;
+                    }
+                    exchange(UdpNetworkTask.nextRequestId(), ConsoleProtocol.ACTION_INFO,
+                            mRttEstimator.getTimeoutMs());
+                } catch (IOException e) {
+                    // Start over on the next message rather than finding out then.
+                    closeSocket();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param handler The object responsible for handing responses from the console.
+     * @param executor The executor to run network requests on.
+     * @param rttEstimator The RTT estimate for the console, shared with UDP requests to it.
+     * @param stats Where round trips, drops and setup times are recorded.
+     * @param reassemblyPool Where fragments of large responses are kept until they are whole.
+     * @param deviceName The name this device gives the console in every message.
+     * @param remoteIp The IP of the console that responded to UDP discovery.
+     */
+    public ConsoleSession(UdpNetworkTask.ResponseHandler handler, NetworkExecutor executor,
+            RttEstimator rttEstimator, NetworkStats stats, ReassemblyPool reassemblyPool,
+            String deviceName, String remoteIp) {
+        this(handler, executor, rttEstimator, stats, reassemblyPool, deviceName, remoteIp,
+                ConsoleProtocol.DEFAULT_PORT);
+    }
+
+    /**
+     * @param handler The object responsible for handing responses from the console.
+     * @param executor The executor to run network requests on.
+     * @param rttEstimator The RTT estimate for the console, shared with UDP requests to it.
+     * @param stats Where round trips, drops and setup times are recorded.
+     * @param reassemblyPool Where fragments of large responses are kept until they are whole.
+     * @param deviceName The name this device gives the console in every message.
+     * @param remoteIp The IP of the console.
+     * @param port The console's TCP port, for a console not on the default one.
+     */
+    public ConsoleSession(UdpNetworkTask.ResponseHandler handler, NetworkExecutor executor,
+            RttEstimator rttEstimator, NetworkStats stats, ReassemblyPool reassemblyPool,
+            String deviceName, String remoteIp, int port) {
+        mHandler = handler;
+        mExecutor = executor;
+        mRttEstimator = rttEstimator;
+        mStats = stats;
+        mReassembler = new FragmentReassembler(reassemblyPool);
+        mCodec = new MessageCodec(deviceName);
+        mRemoteIp = remoteIp;
+        mPort = port;
+
+        // Start connecting right away so the first message doesn't pay for it.
+        mExecutor.submit(new WarmUpRequest());
+    }
+
+    /**
+     * Get the connection ready for a message that is likely to be sent soon, e.g. while a button
+     * is being held. A connection that has been idle for a while is checked with an INFO message
+     * so a dead one is replaced before the real message needs it. Failures are not reported; the
+     * real message will retry and report them.
+     * @return The request doing the work, which should be canceled if the message won't be sent.
+     */
+    public NetworkRequest warmUp() {
+        return mExecutor.submit(new WarmUpRequest());
+    }
+
+    /** @return The IP of the console this session talks to. */
+    public String getRemoteIp() {
+        return mRemoteIp;
+    }
+
+    /**
+     * Send a message to the console. The response is delivered to the handler on the executor's
+     * callback thread.
+     * @param message The action to send.
+     * @return The request that will send the message, which can be canceled until it is sent.
+     */
+    public NetworkRequest send(String message) {
+        return mExecutor.submit(new SendRequest(message));
+    }
+
+    /** Close the connection and stop the session. Messages that weren't sent yet are dropped. */
+    public void close() {
+        mClosed = true;
+        Socket socket = mSocket;
+        if (socket == null) return;
+        try {
+            // Closing from here unblocks any read that is in progress.
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do; the socket is unusable either way.
+        }
+    }
+
+    /**
+     * Write a message and wait for the response, sending it again on a new connection if the
+     * connection was dropped or the console didn't answer in time. Failures are reported to the
+     * handler. Requires mConnectionLock.
+     * @param request The request sending the message.
+     * @param message The action to send.
+     * @return Whether the response is in mResponse, ready to deliver.
+     */
+    private boolean sendOnConnection(NetworkRequest request, String message) {
+        if (mClosed || request.isCanceled()) return false;
+        long requestStartMs = nowMs();
+        // Every copy of the message has the same ID so the console only acts on it once.
+        long id = UdpNetworkTask.nextRequestId();
+        long timeoutMs = mRttEstimator.getTimeoutMs();
+        for (int transmissions = 1; ; transmissions++) {
+            boolean canRetry = !mClosed && !request.isCanceled()
+                    && transmissions < RttEstimator.MAX_TRANSMISSIONS;
+            try {
+                // Connecting isn't part of the round trip, so only time a warm connection.
+                boolean wasConnected = mSocket != null;
+                ensureConnected();
+                long startNanos = System.nanoTime();
+                exchange(id, message, timeoutMs);
+                // A response to a retry may belong to any copy, so it isn't a clean sample.
+                if (transmissions == 1 && wasConnected) {
+                    mRttEstimator.addSample((System.nanoTime() - startNanos) / 1000000);
+                }
+                mStats.recordRoundTrip("tcp", message, nowMs() - requestStartMs);
+                return true;
+            } catch (SocketTimeoutException se) {
+                closeSocket();
+                mStats.count(NetworkStats.TIMED_OUT);
+                mRttEstimator.onTimeout();
+                timeoutMs = RttEstimator.backoff(timeoutMs, 1);
+                if (canRetry) {
+                    mStats.count(NetworkStats.RETRANSMITTED);
+                    continue;
+                }
+                reportError(request, UdpNetworkTask.ERROR_TIMEOUT);
+                return false;
+            } catch (UnknownHostException ue) {
+                closeSocket();
+                reportError(request, UdpNetworkTask.ERROR_NO_HOST);
+                return false;
+            } catch (IOException ie) {
+                closeSocket();
+                // The console may have restarted or the connection went idle; try a new one.
+                if (canRetry) {
+                    mStats.count(NetworkStats.RETRANSMITTED);
+                    continue;
+                }
+                reportError(request, UdpNetworkTask.ERROR_GENERIC);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Hand the response in mResponse to the handler unless the request or session was canceled.
+     * Requires mConnectionLock.
+     * @param request The request the response is for.
+     */
+    private void deliverResponse(NetworkRequest request) {
+        if (mClosed || request.isCanceled()) return;
+        ConsoleResponse response = mResponseFactory.create(mResponse, mRemoteIp);
+        request.deliver(() -> {
+            if (!mClosed) mHandler.handleResponse(response);
+        });
+    }
+
+    /**
+     * Tell the handler a message failed unless it or the session was canceled.
+     * @param request The request that failed.
+     * @param errorCode What went wrong, one of the UdpNetworkTask.ERROR_* values.
+     */
+    private void reportError(NetworkRequest request, int errorCode) {
+        if (mClosed || request.isCanceled()) return;
+        mStats.count(NetworkStats.FAILED);
+        request.deliver(() -> {
+            if (!mClosed) mHandler.handleError(errorCode);
+        });
+    }
+
+    /**
+     * Write a single framed message and read the response into mResponse.
+     * @param id The ID of the request; responses to other requests are skipped.
+     * @param message The action to send.
+     * @param timeoutMs The max time to wait for the response.
+     * @throws IOException If the connection failed or the console sent a malformed frame.
+     */
+    private void exchange(long id, String message, long timeoutMs) throws IOException {
+        mSocket.setSoTimeout((int) timeoutMs);
+        mSendBuffer.clear();
+        mSendBuffer.position(ConsoleProtocol.FRAME_HEADER_SIZE);
+        mCodec.encode(mSendBuffer, mFormat, id, message);
+        mSendBuffer.putInt(0, mSendBuffer.position() - ConsoleProtocol.FRAME_HEADER_SIZE);
+        mOutput.write(mSendBuffer.array(), 0, mSendBuffer.position());
+        mOutput.flush();
+
+        // Read frames until the response to this request arrives. Late responses to an earlier
+        // request are dropped; consoles that don't send a reply ID are trusted to be in order.
+        try {
+            while (true) {
+                int length = mInput.readInt();
+                if (length <= 0 || length >= ConsoleProtocol.MAX_PACKET_SIZE) {
+                    throw new SocketException("Bad frame length: " + length);
+                }
+                mReceiveBuffer.clear();
+                mInput.readFully(mReceiveBuffer.array(), 0, length);
+                mReceiveBuffer.limit(length);
+                if (FragmentFrame.isFragment(mReceiveBuffer)) {
+                    if (FragmentFrame.getReplyTo(mReceiveBuffer) != id) {
+                        mStats.count(NetworkStats.DROPPED_UNMATCHED);
+                    } else if (addFragment()) {
+                        mLastExchangeMs = nowMs();
+                        return;
+                    }
+                    continue;
+                }
+                if (!MessageCodec.decode(mReceiveBuffer, mResponse)) {
+                    mStats.count(NetworkStats.DROPPED_MALFORMED);
+                    continue;
+                }
+                if (mResponse.getReplyTo() == 0 || mResponse.getReplyTo() == id) {
+                    mLastExchangeMs = nowMs();
+                    return;
+                }
+                mStats.count(NetworkStats.DROPPED_UNMATCHED);
+            }
+        } finally {
+            mReassembler.release();
+        }
+    }
+
+    /**
+     * Keep the fragment in mReceiveBuffer and put the response together in mResponse once it is
+     * the last one. Requires mConnectionLock.
+     * @return Whether the response is whole.
+     * @throws IOException If the fragment can't be kept, so the request has to be sent again.
+     */
+    private boolean addFragment() throws IOException {
+        switch (mReassembler.add(mReceiveBuffer)) {
+            case FragmentReassembler.RESULT_COMPLETE:
+                if (mReassembler.finish(mResponse)) return true;
+                throw new SocketException("Bad large response");
+            case FragmentReassembler.RESULT_NO_BUFFER:
+                // Nothing is sent twice on a connection, so a dropped fragment is gone for good.
+                mStats.count(NetworkStats.DROPPED_NO_BUFFER);
+                throw new SocketException("No buffer for fragment");
+            case FragmentReassembler.RESULT_MALFORMED:
+                mStats.count(NetworkStats.DROPPED_MALFORMED);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Open a connection to the console if there isn't one already. Requires mConnectionLock.
+     * @throws IOException If the connection could not be made.
+     */
+    private void ensureConnected() throws IOException {
+        if (mSocket != null) return;
+        if (mClosed) throw new SocketException("Session closed");
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            long startMs = nowMs();
+            socket.connect(new InetSocketAddress(mRemoteIp, mPort),
+                    (int) UdpNetworkTask.SOCKET_TIMEOUT_MS);
+            long connectedMs = nowMs();
+            mStats.count(NetworkStats.CONNECTED);
+            mStats.recordSetup(NetworkStats.SETUP_TCP_CONNECT, connectedMs - startMs);
+            mInput = new DataInputStream(socket.getInputStream());
+            mOutput = new DataOutputStream(socket.getOutputStream());
+            mSocket = socket;
+            if (mClosed) throw new SocketException("Session closed");
+
+            // Each connection starts in the text format until the console agrees to switch.
+            mFormat = MessageCodec.FORMAT_TEXT;
+            exchange(UdpNetworkTask.nextRequestId(), ConsoleProtocol.ACTION_FORMAT_BINARY,
+                    UdpNetworkTask.SOCKET_TIMEOUT_MS);
+            if (mResponse.payloadEquals(FORMAT_BINARY_ACCEPTED)) {
+                mFormat = MessageCodec.FORMAT_BINARY;
+            }
+            mStats.recordSetup(NetworkStats.SETUP_TCP_FORMAT, nowMs() - connectedMs);
+        } catch (IOException e) {
+            closeSocket();
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** @return A monotonic time in ms, only meaningful compared to another. */
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Close the current connection if there is one. Requires mConnectionLock. */
+    private void closeSocket() {
+        if (mSocket == null) return;
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Nothing else to do; the socket is unusable either way.
+        }
+        mSocket = null;
+        mInput = null;
+        mOutput = null;
+    }
+}
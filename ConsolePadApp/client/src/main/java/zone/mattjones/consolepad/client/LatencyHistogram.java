@@ -0,0 +1,145 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LatencyHistogram.java
+ * Author: Matt Jones
+ * Date: 2019.10.12
+ * Desc: A fixed-size histogram of times in ms. Small values get a bucket each and larger ones
+ *       share buckets that grow with the value (four per power of two), so any time up to about
+ *       a minute lands in a bucket at most 25% wide. Recording never allocates or locks, which
+ *       makes it cheap enough to call on every request.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    /** Values below this get a bucket each. */
+    private static final int LINEAR_LIMIT = 8;
+
+    /** The number of buckets each power of two is split into past LINEAR_LIMIT, as a shift. */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /** The largest value with its own bucket; larger values are counted in the last one. */
+    private static final long MAX_VALUE_MS = 65535;
+
+    /** The number of buckets. */
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE_MS) + 1;
+
+    /** The number of values in each bucket. */
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /** The number of values recorded. */
+    private final AtomicLong mCount = new AtomicLong();
+
+    /** The sum of all values recorded. */
+    private final AtomicLong mTotalMs = new AtomicLong();
+
+    /** The largest value recorded. */
+    private final AtomicLong mMaxMs = new AtomicLong();
+
+    /**
+     * Record a time.
+     * @param valueMs The time in ms. Negative values are counted as 0.
+     */
+    public void record(long valueMs) {
+        valueMs = Math.max(0, valueMs);
+        mBuckets.incrementAndGet(bucketIndex(Math.min(MAX_VALUE_MS, valueMs)));
+        mCount.incrementAndGet();
+        mTotalMs.addAndGet(valueMs);
+        while (true) {
+            long max = mMaxMs.get();
+            if (valueMs <= max || mMaxMs.compareAndSet(max, valueMs)) break;
+        }
+    }
+
+    /** @return The number of values recorded. */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** @return The mean of the values recorded or 0 if there are none. */
+    public long getMeanMs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalMs.get() / count;
+    }
+
+    /** @return The largest value recorded. */
+    public long getMaxMs() {
+        return mMaxMs.get();
+    }
+
+    /**
+     * Estimate a percentile. The result is the top of the bucket the percentile falls in, so it
+     * errs high, but never past the largest value recorded.
+     * @param percentile The percentile in range (0, 100].
+     * @return The estimate in ms or 0 if nothing was recorded.
+     */
+    public long getPercentileMs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) return Math.min(mMaxMs.get(), bucketUpperBound(i));
+        }
+        return mMaxMs.get();
+    }
+
+    /** @return The number of buckets. */
+    public int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * @param index The index of a bucket.
+     * @return The number of values in that bucket.
+     */
+    public long getCountInBucket(int index) {
+        return mBuckets.get(index);
+    }
+
+    /**
+     * @param index The index of a bucket.
+     * @return The smallest value counted in that bucket.
+     */
+    public static long bucketLowerBound(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int subBuckets = 1 << SUB_BUCKET_BITS;
+        int octave = (index - LINEAR_LIMIT) >> SUB_BUCKET_BITS;
+        int subBucket = (index - LINEAR_LIMIT) & (subBuckets - 1);
+        return (long) (subBuckets + subBucket) << (octave + 1);
+    }
+
+    /**
+     * @param index The index of a bucket.
+     * @return The largest value counted in that bucket.
+     */
+    public static long bucketUpperBound(int index) {
+        return index == BUCKET_COUNT - 1 ? Long.MAX_VALUE : bucketLowerBound(index + 1) - 1;
+    }
+
+    /** Forget everything recorded so far. Values recorded during the reset may be lost. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mBuckets.set(i, 0);
+        mCount.set(0);
+        mTotalMs.set(0);
+        mMaxMs.set(0);
+    }
+
+    /**
+     * @param valueMs A time in range [0, MAX_VALUE_MS].
+     * @return The index of the bucket the time is counted in.
+     */
+    private static int bucketIndex(long valueMs) {
+        if (valueMs < LINEAR_LIMIT) return (int) valueMs;
+        // The highest bit picks the power of two and the next bits pick the bucket within it.
+        int highBit = 63 - Long.numberOfLeadingZeros(valueMs);
+        int subBucket =
+                (int) (valueMs >> (highBit - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return LINEAR_LIMIT + ((highBit - 3) << SUB_BUCKET_BITS) + subBucket;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LocalAddressIndex.java
+ * Author: Matt Jones
+ * Date: 2019.10.05
+ * Desc: The set of addresses that belong to this device, used to throw away our own broadcasts
+ *       when they come back to us. The set is built off the receive path and swapped in whole
+ *       when connectivity changes, so checking a packet is a single hash lookup.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+public class LocalAddressIndex {
+    /** The current addresses. Never modified after being published. */
+    private volatile Set<InetAddress> mAddresses = Collections.emptySet();
+
+    /** Whether the addresses were loaded at least once. */
+    private volatile boolean mLoaded;
+
+    /**
+     * @param address The address to check.
+     * @return Whether the address belongs to this device.
+     */
+    public boolean contains(InetAddress address) {
+        return mAddresses.contains(address);
+    }
+
+    /** Load the addresses if they haven't been yet. This does I/O; don't call on the UI thread. */
+    public void ensureLoaded() {
+        if (!mLoaded) refresh();
+    }
+
+    /**
+     * Rebuild the set of addresses. This should be called whenever the device's network
+     * connections change. This does I/O; don't call on the UI thread.
+     */
+    public void refresh() {
+        HashSet<InetAddress> addresses = new HashSet<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface curInterface = interfaces.nextElement();
+                if (curInterface.isLoopback()) continue;
+                Enumeration<InetAddress> addrs = curInterface.getInetAddresses();
+                while (addrs.hasMoreElements()) {
+                    InetAddress curAddr = addrs.nextElement();
+                    if (curAddr.isLoopbackAddress() && !curAddr.isLinkLocalAddress()) continue;
+                    addresses.add(curAddr);
+                }
+            }
+        } catch (SocketException e) {
+            // Keep the old set; it's better than nothing until the next change.
+            return;
+        }
+        mAddresses = Collections.unmodifiableSet(addresses);
+        mLoaded = true;
+    }
+}
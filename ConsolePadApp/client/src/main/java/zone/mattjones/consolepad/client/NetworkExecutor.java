@@ -0,0 +1,184 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: NetworkExecutor.java
+ * Author: Matt Jones
+ * Date: 2019.09.21
+ * Desc: Runs network requests off the main thread. Requests wait in an explicit queue so that
+ *       duplicates can be merged and stale ones dropped before they ever touch the network, and
+ *       only a few are allowed to run at once. A dropped request tells its handler (see
+ *       NetworkRequest.onDropped()). Scripts that need every request sent, in order, can turn the
+ *       merging off.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class NetworkExecutor {
+    /** The default max number of requests allowed to run at the same time. */
+    public static final int MAX_IN_FLIGHT = 2;
+
+    /** The default max number of requests waiting to run; the oldest is dropped past this. */
+    public static final int MAX_QUEUED = 8;
+
+    /** The max number of requests allowed to run at the same time. */
+    private final int mMaxInFlight;
+
+    /** The max number of requests waiting to run. */
+    private final int mMaxQueued;
+
+    /** Whether requests with the same key are merged or replaced; see submit(). */
+    private final boolean mMergeDuplicates;
+
+    /** Guards the queue and in-flight list. */
+    private final Object mLock = new Object();
+
+    /** Requests waiting for a free thread. */
+    private final ArrayDeque<NetworkRequest> mQueue = new ArrayDeque<>();
+
+    /** Requests that are currently running. */
+    private final ArrayList<NetworkRequest> mInFlight = new ArrayList<>();
+
+    /** The threads requests run on. Never given more than mMaxInFlight jobs at once. */
+    private final ExecutorService mThreads;
+
+    /** Where requests hand their results to their handlers. */
+    private volatile Executor mCallbackExecutor = Runnable::run;
+
+    /** Whether the executor was shut down. */
+    private boolean mShutdown;
+
+    /** An executor for the app: a couple of requests at once, with duplicates merged. */
+    public NetworkExecutor() {
+        this(MAX_IN_FLIGHT, MAX_QUEUED, true);
+    }
+
+    /**
+     * @param maxInFlight The max number of requests allowed to run at the same time.
+     * @param maxQueued The max number of requests waiting to run; the oldest is dropped past
+     *                  this.
+     * @param mergeDuplicates Whether requests with the same key are merged or replaced. If not,
+     *                        every request runs, in the order it was submitted.
+     */
+    public NetworkExecutor(int maxInFlight, int maxQueued, boolean mergeDuplicates) {
+        mMaxInFlight = maxInFlight;
+        mMaxQueued = maxQueued;
+        mMergeDuplicates = mergeDuplicates;
+        mThreads = Executors.newFixedThreadPool(maxInFlight, (r) -> {
+            Thread thread = new Thread(r, "ConsolePadNetwork");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Hand results to handlers somewhere other than the network thread that got them, e.g. the
+     * app's main thread. Only applies to requests submitted after this.
+     * @param callbackExecutor Where requests hand their results to their handlers.
+     * @return This executor for chaining.
+     */
+    public NetworkExecutor setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    /**
+     * Queue a request to run.
+     * @param request The request to run.
+     * @return The request that will handle the work. This is an existing request if the new one
+     *         was merged into it.
+     */
+    public NetworkRequest submit(NetworkRequest request) {
+        synchronized (mLock) {
+            if (mShutdown) {
+                request.cancel();
+                return request;
+            }
+
+            // Requests without side effects can piggyback on one that is queued or running.
+            if (mMergeDuplicates && request.canCoalesce()) {
+                NetworkRequest existing = findActive(request.getKey());
+                if (existing != null) return existing;
+            }
+            request.setCallbackExecutor(mCallbackExecutor);
+
+            // A newer request replaces one with the same key that hasn't started yet.
+            Iterator<NetworkRequest> it = mQueue.iterator();
+            while (mMergeDuplicates && it.hasNext()) {
+                NetworkRequest queued = it.next();
+                if (!queued.getKey().equals(request.getKey())) continue;
+                it.remove();
+                queued.onDropped();
+            }
+
+            mQueue.add(request);
+            if (mQueue.size() > mMaxQueued) mQueue.poll().onDropped();
+            startQueuedRequests();
+        }
+        return request;
+    }
+
+    /** Cancel every queued and running request. */
+    public void cancelAll() {
+        synchronized (mLock) {
+            for (NetworkRequest request : mQueue) request.cancel();
+            mQueue.clear();
+            for (NetworkRequest request : mInFlight) request.cancel();
+        }
+    }
+
+    /** Cancel everything and stop accepting new requests. */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            cancelAll();
+        }
+        mThreads.shutdown();
+    }
+
+    /**
+     * Find a queued or running request that hasn't been canceled.
+     * @param key The key of the request.
+     * @return The request or null.
+     */
+    private NetworkRequest findActive(String key) {
+        for (NetworkRequest request : mInFlight) {
+            if (!request.isCanceled() && request.getKey().equals(key)) return request;
+        }
+        for (NetworkRequest request : mQueue) {
+            if (!request.isCanceled() && request.getKey().equals(key)) return request;
+        }
+        return null;
+    }
+
+    /** Move requests from the queue onto threads while there is room. Requires mLock. */
+    private void startQueuedRequests() {
+        while (mInFlight.size() < mMaxInFlight && !mQueue.isEmpty()) {
+            NetworkRequest request = mQueue.poll();
+            if (request.isCanceled()) continue;
+            mInFlight.add(request);
+            mThreads.execute(() -> runRequest(request));
+        }
+    }
+
+    /**
+     * Run a single request and then start the next one.
+     * @param request The request to run.
+     */
+    private void runRequest(NetworkRequest request) {
+        try {
+            if (!request.isCanceled()) request.run();
+        } finally {
+            synchronized (mLock) {
+                mInFlight.remove(request);
+                if (!mShutdown) startQueuedRequests();
+            }
+        }
+    }
+}
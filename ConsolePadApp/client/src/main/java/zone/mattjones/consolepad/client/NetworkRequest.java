@@ -0,0 +1,79 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: NetworkRequest.java
+ * Author: Matt Jones
+ * Date: 2019.09.21
+ * Desc: A unit of network work that is run by a NetworkExecutor and can be canceled at any time.
+ *       Its results are handed to its handler on the executor's callback thread, e.g. the app's
+ *       main thread, and never after it was canceled on that thread.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.util.concurrent.Executor;
+
+public abstract class NetworkRequest {
+    /** Whether this request was canceled, either by the UI or by a newer request. */
+    private volatile boolean mCanceled;
+
+    /** Where results are handed to the handler; set by the executor before the request runs. */
+    private volatile Executor mCallbackExecutor;
+
+    /**
+     * @return A key identifying what this request does. Queued requests with the same key are
+     *         either merged or replaced when a new one is submitted.
+     */
+    public abstract String getKey();
+
+    /**
+     * @return Whether a new request with the same key can be dropped in favor of this one. This
+     *         should only be true for requests that have no side effects on the console.
+     */
+    public boolean canCoalesce() {
+        return false;
+    }
+
+    /** Cancel the request. Its handler will not be notified of the result. */
+    public void cancel() {
+        mCanceled = true;
+        onCanceled();
+    }
+
+    /** @return Whether the request was canceled. */
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Called on the canceling thread after cancel() so subclasses can interrupt blocking work,
+     * for example by closing a socket.
+     */
+    protected void onCanceled() { }
+
+    /**
+     * Called by the executor instead of run() when the request is dropped before it started,
+     * because a newer one replaced it or too many were waiting. Subclasses tell their handler so
+     * an action never just disappears.
+     */
+    protected void onDropped() { }
+
+    /** Do the work for this request. This is called on a network thread. */
+    protected abstract void run();
+
+    /**
+     * Hand a result to the request's handler on the callback thread. It is dropped if the
+     * request is canceled before it gets there.
+     * @param callback The call to the handler.
+     */
+    protected void deliver(Runnable callback) {
+        mCallbackExecutor.execute(() -> {
+            if (!isCanceled()) callback.run();
+        });
+    }
+
+    /** @param callbackExecutor Where results are handed to the handler. */
+    void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: NetworkStats.java
+ * Author: Matt Jones
+ * Date: 2019.10.12
+ * Desc: Counters and latency histograms for a client's network traffic. Round trips are kept per
+ *       transport and action, measured from the time a request starts to the time its response
+ *       arrives, including any retries, so they show what the user waited for. Memory use is
+ *       fixed: there is a cap on the number of actions tracked and each histogram is a fixed size.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+
+public class NetworkStats {
+    /** A UDP packet was dropped because this device sent it. */
+    public static final int DROPPED_ECHO = 0;
+
+    /** A packet was dropped because it was too large. */
+    public static final int DROPPED_OVERSIZED = 1;
+
+    /** A packet or frame was dropped because it couldn't be decoded, e.g. no magic prefix. */
+    public static final int DROPPED_MALFORMED = 2;
+
+    /** A response was dropped because nothing was waiting for it anymore. */
+    public static final int DROPPED_UNMATCHED = 3;
+
+    /** A request was sent again after it timed out or its connection failed. */
+    public static final int RETRANSMITTED = 4;
+
+    /** A wait for a response timed out. */
+    public static final int TIMED_OUT = 5;
+
+    /** A request failed and the user was told. */
+    public static final int FAILED = 6;
+
+    /** A TCP connection to the console was opened. */
+    public static final int CONNECTED = 7;
+
+    /** A fragment of a large response was dropped because the reassembly pool was full. */
+    public static final int DROPPED_NO_BUFFER = 8;
+
+    /** Lost fragments of a large response were asked for again. */
+    public static final int FRAGMENTS_REQUESTED = 9;
+
+    /** Nothing answered on the multicast group in time, so a request was broadcast too. */
+    public static final int MULTICAST_FALLBACK = 10;
+
+    /** Labels for the counters above, in the same order. */
+    private static final String[] COUNTER_LABELS = {
+            "dropped (echo)", "dropped (oversized)", "dropped (malformed)",
+            "dropped (unmatched)", "retransmitted", "timed out", "failed", "tcp connections",
+            "dropped (no buffer)", "fragments re-requested", "multicast fallbacks"};
+
+    /** Opening the UDP socket. */
+    public static final int SETUP_UDP_SOCKET = 0;
+
+    /** Connecting to the console over TCP. */
+    public static final int SETUP_TCP_CONNECT = 1;
+
+    /** Agreeing on a message format on a new TCP connection. */
+    public static final int SETUP_TCP_FORMAT = 2;
+
+    /** Labels for the setup times above, in the same order. */
+    private static final String[] SETUP_LABELS = {"udp socket", "tcp connect", "tcp format"};
+
+    /** The max number of round-trip histograms; anything past this is tracked as "other". */
+    private static final int MAX_ROUND_TRIP_KEYS = 24;
+
+    /** The key round trips are recorded under once MAX_ROUND_TRIP_KEYS is reached. */
+    private static final String OTHER_KEY = "other";
+
+    /** The starts of actions that carry an ID, version or hash after them. */
+    private static final String[] PARAMETERIZED_PREFIXES = {
+            ConsoleProtocol.ACTION_JOB_STATUS_PREFIX, ConsoleProtocol.ACTION_ROM_INDEX_PREFIX,
+            ConsoleProtocol.ACTION_LAUNCH_PREFIX};
+
+    /** The percentiles shown in reports. */
+    private static final double[] REPORT_PERCENTILES = {50, 90, 99};
+
+    /** The counters, indexed by the constants above. */
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_LABELS.length);
+
+    /** The setup times, indexed by the constants above. */
+    private final LatencyHistogram[] mSetupTimes = new LatencyHistogram[SETUP_LABELS.length];
+
+    /** Round-trip times keyed by transport and action. Guarded by itself. */
+    private final HashMap<String, LatencyHistogram> mRoundTrips = new HashMap<>();
+
+    /** What the traffic was collected on, shown at the top of reports. */
+    private final String mSource;
+
+    /** The time collection started or was last reset according to nowMs(). */
+    private volatile long mStartMs = nowMs();
+
+    /** @param source What the traffic is collected on, e.g. the phone's make and model. */
+    public NetworkStats(String source) {
+        mSource = source;
+        for (int i = 0; i < mSetupTimes.length; i++) mSetupTimes[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Add one to a counter.
+     * @param counter The counter, e.g. DROPPED_ECHO.
+     */
+    public void count(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * Record the time some setup took.
+     * @param setup What was set up, e.g. SETUP_TCP_CONNECT.
+     * @param elapsedMs The time it took.
+     */
+    public void recordSetup(int setup, long elapsedMs) {
+        mSetupTimes[setup].record(elapsedMs);
+    }
+
+    /**
+     * Record the time a request took to get its response.
+     * @param transport The transport the request went over, "udp" or "tcp".
+     * @param action The action that was sent.
+     * @param elapsedMs The time from starting the request to handling its response.
+     */
+    public void recordRoundTrip(String transport, String action, long elapsedMs) {
+        getRoundTripHistogram(transport + " " + getActionKey(action)).record(elapsedMs);
+    }
+
+    /**
+     * @param action An action that was sent.
+     * @return The action with any job ID, version or game hash cut off, so e.g. every launch is
+     *         one key instead of using up the keys with one per game.
+     */
+    private static String getActionKey(String action) {
+        for (String prefix : PARAMETERIZED_PREFIXES) {
+            int start = action.indexOf(prefix);
+            if (start >= 0) return action.substring(0, start + prefix.length());
+        }
+        return action;
+    }
+
+    /** Forget everything collected so far. */
+    public void reset() {
+        for (int i = 0; i < mCounters.length(); i++) mCounters.set(i, 0);
+        for (LatencyHistogram histogram : mSetupTimes) histogram.reset();
+        synchronized (mRoundTrips) {
+            mRoundTrips.clear();
+        }
+        mStartMs = nowMs();
+    }
+
+    /** @return A monotonic time in ms, only meaningful compared to another. */
+    private static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Write a plain text report of everything collected.
+     * @param out Where to write the report.
+     * @param includeBuckets Whether to list every non-empty histogram bucket, which is more than
+     *                       fits on screen but useful for a closer look later.
+     */
+    public void writeReport(PrintWriter out, boolean includeBuckets) {
+        out.println("Console Pad network diagnostics");
+        out.println("device: " + mSource);
+        out.println("collected over: " + (nowMs() - mStartMs) / 1000 + " s");
+
+        out.println();
+        out.println("round trips (ms)");
+        writeHistogramHeader(out);
+        ArrayList<String> keys;
+        synchronized (mRoundTrips) {
+            keys = new ArrayList<>(mRoundTrips.keySet());
+        }
+        Collections.sort(keys);
+        for (String key : keys) {
+            writeHistogram(out, key, getRoundTripHistogram(key), includeBuckets);
+        }
+
+        out.println();
+        out.println("setup (ms)");
+        writeHistogramHeader(out);
+        for (int i = 0; i < mSetupTimes.length; i++) {
+            writeHistogram(out, SETUP_LABELS[i], mSetupTimes[i], includeBuckets);
+        }
+
+        out.println();
+        out.println("counters");
+        for (int i = 0; i < COUNTER_LABELS.length; i++) {
+            out.println(String.format("%-22s %8d", COUNTER_LABELS[i], mCounters.get(i)));
+        }
+        out.flush();
+    }
+
+    /**
+     * Get the round-trip histogram for a key, creating it if needed.
+     * @param key The transport and action.
+     * @return The histogram.
+     */
+    private LatencyHistogram getRoundTripHistogram(String key) {
+        synchronized (mRoundTrips) {
+            LatencyHistogram histogram = mRoundTrips.get(key);
+            if (histogram != null) return histogram;
+            if (mRoundTrips.size() >= MAX_ROUND_TRIP_KEYS) key = OTHER_KEY;
+            histogram = mRoundTrips.get(key);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                mRoundTrips.put(key, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Write the column labels for histogram lines.
+     * @param out Where to write.
+     */
+    private static void writeHistogramHeader(PrintWriter out) {
+        StringBuilder header =
+                new StringBuilder(String.format("%-22s %8s %6s", "", "count", "mean"));
+        for (double percentile : REPORT_PERCENTILES) {
+            header.append(String.format(" %6s", "p" + (int) percentile));
+        }
+        header.append(String.format(" %6s", "max"));
+        out.println(header);
+    }
+
+    /**
+     * Write a single histogram as one line, optionally followed by its buckets.
+     * @param out Where to write.
+     * @param label What the histogram measures.
+     * @param histogram The histogram.
+     * @param includeBuckets Whether to list the non-empty buckets.
+     */
+    private static void writeHistogram(PrintWriter out, String label, LatencyHistogram histogram,
+            boolean includeBuckets) {
+        StringBuilder line = new StringBuilder(String.format("%-22s %8d %6d",
+                label, histogram.getCount(), histogram.getMeanMs()));
+        for (double percentile : REPORT_PERCENTILES) {
+            line.append(String.format(" %6d", histogram.getPercentileMs(percentile)));
+        }
+        line.append(String.format(" %6d", histogram.getMaxMs()));
+        out.println(line);
+
+        if (!includeBuckets) return;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            long count = histogram.getCountInBucket(i);
+            if (count == 0) continue;
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            out.println(String.format("    [%d, %s] %d", LatencyHistogram.bucketLowerBound(i),
+                    upper == Long.MAX_VALUE ? "inf" : Long.toString(upper), count));
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: StatusSubscription.java
+ * Author: Matt Jones
+ * Date: 2019.10.11
+ * Desc: Keeps a TCP connection to the console that the console pushes its status over (see
+ *       ACTION_SUBSCRIBE_STATUS). It lives on its own thread since it spends nearly all of its
+ *       time blocked on a read, and it uses its own connection so pushes never get mixed up with
+ *       the responses a ConsoleSession is waiting for. If heartbeats stop arriving the console is
+ *       reported lost and the connection is retried with a growing delay. The console also pushes
+ *       the end of every job over it (see JobEvent).
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.JobEvent;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+
+public class StatusSubscription {
+    /** Interface for handling status pushed by the console. Called on the subscription thread. */
+    public interface StatusHandler {
+        /**
+         * Handle a status update or heartbeat.
+         * @param subscription The subscription the status arrived on.
+         * @param activity What the console is running or an empty string if it's idle.
+         */
+        void handleStatus(StatusSubscription subscription, String activity);
+
+        /**
+         * Handle a job event, usually a job ending.
+         * @param subscription The subscription the event arrived on.
+         * @param event The event.
+         */
+        void handleJobEvent(StatusSubscription subscription, JobEvent event);
+
+        /**
+         * The console stopped sending its status. This is called once per outage.
+         * @param subscription The subscription that lost the console.
+         */
+        void handleStatusLost(StatusSubscription subscription);
+
+        /**
+         * The console doesn't support status pushes. The subscription stops.
+         * @param subscription The subscription that was refused.
+         */
+        void handleStatusUnsupported(StatusSubscription subscription);
+    }
+
+    /** The number of heartbeats that can be missed before the console is considered lost. */
+    private static final int MAX_MISSED_HEARTBEATS = 2;
+
+    /** The time to wait before reconnecting the first time. */
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+
+    /** The longest time to wait before reconnecting. */
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    /** The payload prefix as bytes. */
+    private static final byte[] STATUS_PREFIX_BYTES =
+            ConsoleProtocol.STATUS_PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The job event prefix as bytes. */
+    private static final byte[] JOB_PREFIX_BYTES =
+            JobEvent.PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The object responsible for handling pushed status. */
+    private final StatusHandler mHandler;
+
+    /** The IP of the console. */
+    private final String mRemoteIp;
+
+    /** The console's TCP port. */
+    private final int mPort;
+
+    /** Encodes the subscribe message. */
+    private final MessageCodec mCodec;
+
+    /** The buffer outgoing frames are built in, including the length prefix. */
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocate(
+            ConsoleProtocol.FRAME_HEADER_SIZE + ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The buffer incoming frames are read into. */
+    private final ByteBuffer mReceiveBuffer =
+            ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The most recent message from the console. */
+    private final ConsoleMessage mMessage = new ConsoleMessage();
+
+    /** The thread the subscription runs on. */
+    private final Thread mThread;
+
+    /** Whether the subscription was closed. */
+    private volatile boolean mClosed;
+
+    /** The current connection, kept so close() can unblock a read. */
+    private volatile Socket mSocket;
+
+    /**
+     * @param handler The object responsible for handling pushed status.
+     * @param deviceName The name this device gives the console.
+     * @param remoteIp The IP of the console.
+     */
+    public StatusSubscription(StatusHandler handler, String deviceName, String remoteIp) {
+        this(handler, deviceName, remoteIp, ConsoleProtocol.DEFAULT_PORT);
+    }
+
+    /**
+     * @param handler The object responsible for handling pushed status.
+     * @param deviceName The name this device gives the console.
+     * @param remoteIp The IP of the console.
+     * @param port The console's TCP port, for a console not on the default one.
+     */
+    public StatusSubscription(
+            StatusHandler handler, String deviceName, String remoteIp, int port) {
+        mHandler = handler;
+        mRemoteIp = remoteIp;
+        mPort = port;
+        mCodec = new MessageCodec(deviceName);
+        mThread = new Thread(this::run, "ConsolePadStatus");
+        mThread.setDaemon(true);
+    }
+
+    /** Start subscribing in the background. */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stop the subscription. A call to the handler that is already in progress may still finish,
+     * so handlers should check which subscription called them.
+     */
+    public void close() {
+        mClosed = true;
+        mThread.interrupt();
+        Socket socket = mSocket;
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do; the socket is unusable either way.
+        }
+    }
+
+    /** Connect and read status until closed, reconnecting whenever the connection fails. */
+    private void run() {
+        long retryDelayMs = MIN_RETRY_DELAY_MS;
+        boolean reportedLost = false;
+        while (!mClosed) {
+            try (Socket socket = new Socket()) {
+                mSocket = socket;
+                if (mClosed) return;
+                subscribe(socket);
+                // Only a working subscription resets the delay.
+                retryDelayMs = MIN_RETRY_DELAY_MS;
+                reportedLost = false;
+                readStatus(socket);
+            } catch (UnsupportedException e) {
+                if (!mClosed) mHandler.handleStatusUnsupported(this);
+                return;
+            } catch (IOException e) {
+                if (mClosed) return;
+                if (!reportedLost) mHandler.handleStatusLost(this);
+                reportedLost = true;
+            } finally {
+                mSocket = null;
+            }
+
+            try {
+                Thread.sleep(retryDelayMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryDelayMs = Math.min(MAX_RETRY_DELAY_MS, retryDelayMs * 2);
+        }
+    }
+
+    /**
+     * Connect and ask the console to push its status. The console's first status is handled.
+     * @param socket The socket to connect.
+     * @throws IOException If the console couldn't be reached or refused.
+     */
+    private void subscribe(Socket socket) throws IOException {
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(mRemoteIp, mPort),
+                (int) UdpNetworkTask.SOCKET_TIMEOUT_MS);
+        socket.setSoTimeout(
+                (int) (ConsoleProtocol.STATUS_HEARTBEAT_MS * (MAX_MISSED_HEARTBEATS + 1)));
+
+        mSendBuffer.clear();
+        mSendBuffer.position(ConsoleProtocol.FRAME_HEADER_SIZE);
+        mCodec.encode(mSendBuffer, MessageCodec.FORMAT_TEXT, UdpNetworkTask.nextRequestId(),
+                ConsoleProtocol.ACTION_SUBSCRIBE_STATUS);
+        mSendBuffer.putInt(0, mSendBuffer.position() - ConsoleProtocol.FRAME_HEADER_SIZE);
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.write(mSendBuffer.array(), 0, mSendBuffer.position());
+        output.flush();
+
+        readFrame(new DataInputStream(socket.getInputStream()));
+        if (!isStatus()) throw new UnsupportedException();
+        deliverStatus();
+    }
+
+    /**
+     * Handle pushed status until the connection fails or goes quiet for too long.
+     * @param socket The subscribed socket.
+     * @throws IOException When the connection fails or times out.
+     */
+    private void readStatus(Socket socket) throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        while (!mClosed) {
+            readFrame(input);
+            if (isStatus()) {
+                deliverStatus();
+            } else if (mMessage.payloadStartsWith(JOB_PREFIX_BYTES)) {
+                JobEvent event = JobEvent.decode(mMessage.getPayloadString());
+                if (event != null && !mClosed) mHandler.handleJobEvent(this, event);
+            }
+        }
+    }
+
+    /**
+     * Read the next frame into mMessage.
+     * @param input The stream to read from.
+     * @throws IOException If the read failed or the frame was malformed.
+     */
+    private void readFrame(DataInputStream input) throws IOException {
+        while (true) {
+            int length = input.readInt();
+            if (length <= 0 || length >= ConsoleProtocol.MAX_PACKET_SIZE) {
+                throw new SocketException("Bad frame length: " + length);
+            }
+            mReceiveBuffer.clear();
+            input.readFully(mReceiveBuffer.array(), 0, length);
+            mReceiveBuffer.limit(length);
+            if (MessageCodec.decode(mReceiveBuffer, mMessage)) return;
+        }
+    }
+
+    /** @return Whether mMessage is a status message. */
+    private boolean isStatus() {
+        return mMessage.payloadStartsWith(STATUS_PREFIX_BYTES);
+    }
+
+    /** Hand the status in mMessage to the handler. */
+    private void deliverStatus() {
+        if (mClosed) return;
+        String payload = mMessage.getPayloadString();
+        mHandler.handleStatus(this, payload.substring(ConsoleProtocol.STATUS_PREFIX.length()));
+    }
+
+    /** Thrown when the console answers a subscription with something other than its status. */
+    private static class UnsupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+}
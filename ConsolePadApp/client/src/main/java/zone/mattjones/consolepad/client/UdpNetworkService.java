@@ -0,0 +1,705 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: UdpNetworkService.java
+ * Author: Matt Jones
+ * Date: 2019.09.22
+ * Desc: Owns the client's single UDP socket. Requests are sent from any thread and a background
+ *       thread routes each response back to the request waiting for it, so several requests can
+ *       be in flight at once without fighting over the port.
+ *
+ *       Each request's timestamp doubles as its ID; the console copies it into the reply_to field
+ *       of its response. Consoles that don't do that yet are matched to the oldest waiting
+ *       request instead.
+ *
+ *       A broadcast can also collect every console that responds within a window rather than
+ *       stopping at the first one. Discovery asks the consoles' multicast group before
+ *       broadcasting (see DiscoveryMode). The replies are unicast, so the app doesn't join the
+ *       group or hold a Wi-Fi MulticastLock; it never receives multicast, including other
+ *       phones' discovery requests.
+ *
+ *       Requests wrapped with LargeResponse get their response in fragments, which are put back
+ *       together in buffers from a pool shared with the session (see ReassemblyPool). While they
+ *       keep arriving the request doesn't time out, and the ones lost can be asked for again.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.DiscoveryMode;
+import zone.mattjones.consolepad.protocol.FragmentFrame;
+import zone.mattjones.consolepad.protocol.FragmentReassembler;
+import zone.mattjones.consolepad.protocol.LargeResponse;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.protocol.ReassemblyPool;
+import zone.mattjones.consolepad.protocol.RttEstimator;
+
+public class UdpNetworkService {
+    /** A single request waiting for its response or responses. */
+    public static class Exchange {
+        /** The ID of the request, which is also the timestamp it was sent with. */
+        private final long mId;
+
+        /** The address the request was last sent to; a multicast one may be broadcast. */
+        private volatile InetAddress mTarget;
+
+        /** The message that was sent, kept so it can be sent again. */
+        private final String mMessage;
+
+        /** Whether the request was broadcast or multicast, so any console may respond. */
+        private final boolean mIsBroadcast;
+
+        /** Consoles that responded keyed by IP, or null if only the first response matters. */
+        private final HashMap<String, ConsoleRecord> mResponders;
+
+        /** The response once it arrives. */
+        private final ConsoleMessage mResponse = new ConsoleMessage();
+
+        /** Puts a fragmented response back together, or null if the request didn't ask for one. */
+        private final FragmentReassembler mReassembler;
+
+        /** The time the last new fragment arrived according to System.currentTimeMillis(). */
+        private long mLastFragmentMs;
+
+        /** The console sending fragments, which is where lost ones are asked for. */
+        private InetAddress mFragmentSource;
+
+        /** The time the request was sent according to System.nanoTime(). */
+        private final long mSentNanos = System.nanoTime();
+
+        /** The time between sending and receiving the response. */
+        private long mRoundTripMs;
+
+        /** The IP of the console that responded. */
+        private String mRemoteIp;
+
+        /** Whether a response arrived. */
+        private boolean mDone;
+
+        /** Whether the request was canceled. */
+        private boolean mCanceled;
+
+        private Exchange(long id, InetAddress target, String message, boolean isBroadcast,
+                boolean collectAll, ReassemblyPool pool) {
+            mId = id;
+            mTarget = target;
+            mMessage = message;
+            mIsBroadcast = isBroadcast;
+            mResponders = collectAll ? new HashMap<>() : null;
+            mReassembler = LargeResponse.isRequest(message) ? new FragmentReassembler(pool) : null;
+        }
+
+        /** @return The ID of the request. */
+        public long getId() {
+            return mId;
+        }
+
+        /** @return The response. Only valid after await() returns. */
+        public synchronized ConsoleMessage getResponse() {
+            return mResponse;
+        }
+
+        /**
+         * @return The time from the first send to the response in ms. Only valid after await()
+         *         returns.
+         */
+        public synchronized long getRoundTripMs() {
+            return mRoundTripMs;
+        }
+
+        /** @return The IP of the console that responded. Only valid after await() returns. */
+        public synchronized String getRemoteIp() {
+            return mRemoteIp;
+        }
+
+        /** @return Whether the response comes in fragments. */
+        public boolean isLarge() {
+            return mReassembler != null;
+        }
+
+        /** @return The number of fragments of the response that arrived so far. */
+        public synchronized int getFragmentCount() {
+            return mReassembler != null ? mReassembler.getReceivedCount() : 0;
+        }
+
+        /**
+         * Block until the response arrives. A fragmented response that is still arriving isn't
+         * timed out; the time only counts from the last new fragment.
+         * @param timeoutMs The max time to wait.
+         * @return The response.
+         * @throws SocketTimeoutException If no response arrived in time.
+         * @throws SocketException If the request was canceled.
+         */
+        public synchronized ConsoleMessage await(long timeoutMs) throws IOException {
+            long startMs = System.currentTimeMillis();
+            while (!mDone && !mCanceled) {
+                long deadline = Math.max(startMs, mLastFragmentMs) + timeoutMs;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new SocketTimeoutException("No response to " + mId);
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                }
+            }
+            if (mCanceled) throw new SocketException("Canceled");
+            return mResponse;
+        }
+
+        /**
+         * Wait for the full window and collect every console that responded. Only valid for
+         * exchanges that collect all responses.
+         * @param windowMs The time to wait for responses.
+         * @return The consoles that responded, fastest first.
+         * @throws SocketException If the request was canceled.
+         */
+        public synchronized ArrayList<ConsoleRecord> awaitAll(long windowMs)
+                throws IOException {
+            long deadline = System.currentTimeMillis() + windowMs;
+            long remaining = windowMs;
+            while (!mCanceled && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SocketException("Interrupted");
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (mCanceled) throw new SocketException("Canceled");
+
+            ArrayList<ConsoleRecord> consoles =
+                    new ArrayList<>(mResponders.values());
+            Collections.sort(consoles, (a, b) -> Long.compare(a.rttMs, b.rttMs));
+            return consoles;
+        }
+
+        /** @return Whether the exchange stays open for more responses after the first. */
+        private boolean collectsAll() {
+            return mResponders != null;
+        }
+
+        /**
+         * @param sender The address a response came from.
+         * @return Whether a response from that address could be for this request.
+         */
+        private boolean acceptsFrom(InetAddress sender) {
+            return mIsBroadcast || mTarget.equals(sender);
+        }
+
+        /**
+         * Complete the exchange and wake the waiting thread.
+         * @param response The response to copy.
+         * @param remoteIp The IP of the console that responded.
+         */
+        private synchronized void complete(ConsoleMessage response, String remoteIp) {
+            long roundTripMs = (System.nanoTime() - mSentNanos) / 1000000;
+            if (collectsAll()) {
+                // Consoles with several interfaces may answer more than once; keep the first.
+                if (!mResponders.containsKey(remoteIp)) {
+                    mResponders.put(remoteIp, new ConsoleRecord(remoteIp,
+                            response.getDeviceName(), roundTripMs, System.currentTimeMillis()));
+                }
+                return;
+            }
+
+            mResponse.copyFrom(response);
+            mRoundTripMs = roundTripMs;
+            mRemoteIp = remoteIp;
+            mDone = true;
+            notifyAll();
+        }
+
+        /**
+         * Keep a fragment of the response, completing the exchange with the last one.
+         * @param in A buffer holding the fragment.
+         * @param sender The address the fragment came from.
+         * @return One of the FragmentReassembler.RESULT_* values.
+         */
+        private synchronized int addFragment(ByteBuffer in, InetAddress sender) {
+            if (mDone || mCanceled) return FragmentReassembler.RESULT_DUPLICATE;
+            int result = mReassembler.add(in);
+            if (result != FragmentReassembler.RESULT_ADDED
+                    && result != FragmentReassembler.RESULT_COMPLETE) {
+                return result;
+            }
+            mLastFragmentMs = System.currentTimeMillis();
+            mFragmentSource = sender;
+            // Waiting threads only need waking to see the new deadline or the response.
+            notifyAll();
+            if (result != FragmentReassembler.RESULT_COMPLETE) return result;
+
+            if (!mReassembler.finish(mResponse)) {
+                // Not the response that was sent; start over with a fresh copy.
+                mReassembler.release();
+                return FragmentReassembler.RESULT_MALFORMED;
+            }
+            mReassembler.release();
+            mRoundTripMs = (System.nanoTime() - mSentNanos) / 1000000;
+            mRemoteIp = sender.getHostAddress();
+            mDone = true;
+            return result;
+        }
+
+        /**
+         * @param maxLength The longest list to return.
+         * @return The fragments still missing as in "3,7,12-15", or null if none arrived yet.
+         */
+        private synchronized String getMissingFragments(int maxLength) {
+            if (mReassembler == null || !mReassembler.hasStarted() || mDone) return null;
+            return mReassembler.getMissing(maxLength);
+        }
+
+        /** Give back the fragment buffers once nothing more will arrive. */
+        private synchronized void releaseFragments() {
+            if (mReassembler != null) mReassembler.release();
+        }
+
+        /** Wake the waiting thread without a response. */
+        private synchronized void cancel() {
+            mCanceled = true;
+            notifyAll();
+        }
+    }
+
+    /** The size of the socket's receive buffer in bytes. */
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    /** The most fragment data held at once by the app, enough for two of the largest responses. */
+    private static final int REASSEMBLY_POOL_SIZE = 2 * FragmentFrame.MAX_RESPONSE_SIZE;
+
+    /** The longest list of missing fragments asked for at once; it fits in one request. */
+    private static final int MAX_MISSING_LIST_LENGTH = 1024;
+
+    /** Guards the socket and pending requests. */
+    private final Object mLock = new Object();
+
+    /** Requests waiting for a response in the order they were sent. */
+    private final LinkedHashMap<Long, Exchange> mPending = new LinkedHashMap<>();
+
+    /** Encodes outgoing messages. Only used while holding mLock. */
+    private final MessageCodec mCodec;
+
+    /** The buffer outgoing messages are built in. Only used while holding mLock. */
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocate(ConsoleProtocol.MAX_PACKET_SIZE);
+
+    /** The shared socket or null if it hasn't been opened yet. */
+    private DatagramSocket mSocket;
+
+    /** The addresses of this device, used to ignore our own broadcasts. */
+    private final LocalAddressIndex mLocalAddresses;
+
+    /** Where drops and setup times are recorded. */
+    private final NetworkStats mStats;
+
+    /** RTT estimates for each console keyed by IP. */
+    private final HashMap<String, RttEstimator> mEstimators = new HashMap<>();
+
+    /** Holds fragments of large responses until they are whole. */
+    private final ReassemblyPool mReassemblyPool = new ReassemblyPool(REASSEMBLY_POOL_SIZE);
+
+    /** Whether discovery asks the multicast group or broadcasts on the current network. */
+    private final DiscoveryMode mDiscoveryMode;
+
+    /** The port the socket is bound to. */
+    private int mLocalPort = ConsoleProtocol.DEFAULT_PORT;
+
+    /** The port consoles listen on. */
+    private int mConsolePort = ConsoleProtocol.DEFAULT_PORT;
+
+    /** Where a request the multicast group didn't answer is broadcast. */
+    private String mBroadcastIp = UdpNetworkTask.BROADCAST_IP;
+
+    /** Whether the service was closed. */
+    private boolean mClosed;
+
+    /**
+     * @param localAddresses The addresses of this device, kept up to date by the caller.
+     * @param stats Where drops and setup times are recorded.
+     * @param deviceName The name this device gives the console in every message.
+     */
+    public UdpNetworkService(
+            LocalAddressIndex localAddresses, NetworkStats stats, String deviceName) {
+        this(localAddresses, stats, deviceName, new DiscoveryMode());
+    }
+
+    /**
+     * @param localAddresses The addresses of this device, kept up to date by the caller.
+     * @param stats Where drops and setup times are recorded.
+     * @param deviceName The name this device gives the console in every message.
+     * @param discoveryMode Decides whether discovery asks the multicast group or broadcasts.
+     */
+    UdpNetworkService(LocalAddressIndex localAddresses, NetworkStats stats, String deviceName,
+            DiscoveryMode discoveryMode) {
+        mLocalAddresses = localAddresses;
+        mStats = stats;
+        mCodec = new MessageCodec(deviceName);
+        mDiscoveryMode = discoveryMode;
+    }
+
+    /**
+     * Use ports other than the default, e.g. to run next to a console on the same machine. Only
+     * takes effect the next time the socket is opened. Consoles that answer on the default port
+     * rather than the one a request came from can only be reached with a local port of
+     * ConsoleProtocol.DEFAULT_PORT.
+     * @param localPort The port to bind the socket to, or 0 for any free port.
+     * @param consolePort The port consoles listen on.
+     * @return This service for chaining.
+     */
+    public UdpNetworkService setPorts(int localPort, int consolePort) {
+        synchronized (mLock) {
+            mLocalPort = localPort;
+            mConsolePort = consolePort;
+        }
+        return this;
+    }
+
+    /**
+     * Send the broadcast that follows an unanswered multicast somewhere else, e.g. to a console
+     * on loopback, which can't broadcast.
+     * @param broadcastIp Where to send it.
+     * @return This service for chaining.
+     */
+    UdpNetworkService setBroadcastIp(String broadcastIp) {
+        synchronized (mLock) {
+            mBroadcastIp = broadcastIp;
+        }
+        return this;
+    }
+
+    /** @return Where drops and setup times are recorded. */
+    public NetworkStats getStats() {
+        return mStats;
+    }
+
+    /** @return Whether discovery asks the multicast group or broadcasts. */
+    public DiscoveryMode getDiscoveryMode() {
+        return mDiscoveryMode;
+    }
+
+    /** @return The pool fragments of large responses are kept in, also used by sessions. */
+    public ReassemblyPool getReassemblyPool() {
+        return mReassemblyPool;
+    }
+
+    /**
+     * Send a message and register for its response.
+     * @param remoteIp The IP of the console, the broadcast IP or the multicast IP.
+     * @param message The action to send.
+     * @return The exchange to wait on for the response.
+     * @throws IOException If the message could not be sent.
+     */
+    public Exchange send(String remoteIp, String message) throws IOException {
+        return send(remoteIp, message, false);
+    }
+
+    /**
+     * Send a message and register for its responses.
+     * @param remoteIp The IP of the console, the broadcast IP or the multicast IP.
+     * @param message The action to send.
+     * @param collectAll Whether to keep every response instead of only the first. See
+     *                   Exchange.awaitAll().
+     * @return The exchange to wait on for the response.
+     * @throws IOException If the message could not be sent.
+     */
+    public Exchange send(String remoteIp, String message, boolean collectAll)
+            throws IOException {
+        InetAddress target = InetAddress.getByName(remoteIp);
+        synchronized (mLock) {
+            ensureOpen();
+
+            long id = UdpNetworkTask.nextRequestId();
+            Exchange exchange = new Exchange(id, target, message,
+                    UdpNetworkTask.BROADCAST_IP.equals(remoteIp)
+                            || UdpNetworkTask.MULTICAST_IP.equals(remoteIp),
+                    collectAll, mReassemblyPool);
+            mPending.put(id, exchange);
+
+            try {
+                transmit(exchange.mId, exchange.mTarget, exchange.mMessage);
+            } catch (IOException e) {
+                mPending.remove(id);
+                throw e;
+            }
+            return exchange;
+        }
+    }
+
+    /**
+     * Send a request again after it timed out. The copy has the same ID, which lets the console
+     * recognize it and respond without repeating the action.
+     * @param exchange The exchange to send again.
+     * @throws IOException If the message could not be sent.
+     */
+    public void resend(Exchange exchange) throws IOException {
+        mStats.count(NetworkStats.RETRANSMITTED);
+        synchronized (mLock) {
+            ensureOpen();
+            transmit(exchange.mId, exchange.mTarget, exchange.mMessage);
+        }
+    }
+
+    /**
+     * Broadcast a request that was sent to the multicast group and went unanswered there. The
+     * copy has the same ID, so an answer to either one completes the exchange, and any later
+     * resend is broadcast too.
+     * @param exchange The exchange to broadcast.
+     * @throws IOException If the message could not be sent.
+     */
+    public void broadcast(Exchange exchange) throws IOException {
+        mStats.count(NetworkStats.MULTICAST_FALLBACK);
+        synchronized (mLock) {
+            ensureOpen();
+            InetAddress broadcast = InetAddress.getByName(mBroadcastIp);
+            exchange.mTarget = broadcast;
+            transmit(exchange.mId, broadcast, exchange.mMessage);
+        }
+    }
+
+    /**
+     * Ask the console for the fragments of a large response that haven't arrived.
+     * @param exchange The exchange waiting for the response.
+     * @return Whether any fragments had arrived, so there was something to ask for.
+     * @throws IOException If the request could not be sent.
+     */
+    public boolean requestMissingFragments(Exchange exchange) throws IOException {
+        String missing = exchange.getMissingFragments(MAX_MISSING_LIST_LENGTH);
+        if (missing == null || missing.isEmpty()) return false;
+        mStats.count(NetworkStats.FRAGMENTS_REQUESTED);
+        synchronized (mLock) {
+            ensureOpen();
+            // Its own ID, since the fragments it brings reply to the original request.
+            transmit(UdpNetworkTask.nextRequestId(), exchange.mFragmentSource,
+                    LargeResponse.wrapFragmentsRequest(exchange.mId, missing));
+        }
+        return true;
+    }
+
+    /**
+     * Get the RTT estimate for a console, creating it if needed.
+     * @param remoteIp The IP of the console.
+     * @return The estimator for that console.
+     */
+    public RttEstimator getRttEstimator(String remoteIp) {
+        synchronized (mEstimators) {
+            RttEstimator estimator = mEstimators.get(remoteIp);
+            if (estimator == null) {
+                estimator = new RttEstimator();
+                mEstimators.put(remoteIp, estimator);
+            }
+            return estimator;
+        }
+    }
+
+    /**
+     * Encode and send a message. Requires mLock.
+     * @param id The ID of the request.
+     * @param target The address to send to.
+     * @param message The action to send.
+     * @throws IOException If the message could not be sent.
+     */
+    private void transmit(long id, InetAddress target, String message) throws IOException {
+        mSendBuffer.clear();
+        mCodec.encode(mSendBuffer, MessageCodec.FORMAT_TEXT, id, message);
+        mSocket.send(new DatagramPacket(mSendBuffer.array(), mSendBuffer.position(),
+                new InetSocketAddress(target, mConsolePort)));
+    }
+
+    /**
+     * Stop waiting for a response.
+     * @param exchange The exchange to cancel.
+     */
+    public void cancel(Exchange exchange) {
+        synchronized (mLock) {
+            mPending.remove(exchange.getId());
+        }
+        exchange.cancel();
+        exchange.releaseFragments();
+    }
+
+    /**
+     * Forget about an exchange once its response was handled or it timed out.
+     * @param exchange The exchange to forget.
+     */
+    public void finish(Exchange exchange) {
+        synchronized (mLock) {
+            mPending.remove(exchange.getId());
+        }
+        exchange.releaseFragments();
+    }
+
+    /** Close the socket and wake anything waiting on it. */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            if (mSocket != null) mSocket.close();
+            mSocket = null;
+            for (Exchange exchange : mPending.values()) exchange.cancel();
+            mPending.clear();
+        }
+    }
+
+    /**
+     * Open the socket and start the receive thread if that hasn't happened yet. Requires mLock.
+     * @throws SocketException If the socket could not be opened.
+     */
+    private void ensureOpen() throws SocketException {
+        if (mClosed) throw new SocketException("Service closed");
+        if (mSocket != null) return;
+
+        long startNanos = System.nanoTime();
+        DatagramSocket socket = new DatagramSocket(mLocalPort);
+        socket.setBroadcast(true);
+        // Leave room for a burst of responses when many consoles answer a broadcast at once.
+        socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        mLocalAddresses.ensureLoaded();
+        mSocket = socket;
+        mStats.recordSetup(
+                NetworkStats.SETUP_UDP_SOCKET, (System.nanoTime() - startNanos) / 1000000);
+
+        Thread receiveThread = new Thread(() -> receiveLoop(socket), "ConsolePadUdpReceive");
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+    }
+
+    /**
+     * Receive packets and hand them to waiting requests until the socket is closed.
+     * @param socket The socket to read.
+     */
+    private void receiveLoop(DatagramSocket socket) {
+        // The same buffer and message are reused for every packet.
+        byte[] sharedPacketBuffer = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+        ByteBuffer sharedByteBuffer = ByteBuffer.wrap(sharedPacketBuffer);
+        DatagramPacket receivedPacket =
+                new DatagramPacket(sharedPacketBuffer, ConsoleProtocol.MAX_PACKET_SIZE);
+        ConsoleMessage message = new ConsoleMessage();
+
+        while (true) {
+            try {
+                receivedPacket.setLength(ConsoleProtocol.MAX_PACKET_SIZE);
+                socket.receive(receivedPacket);
+            } catch (IOException e) {
+                // The socket was closed or the network went away; the next send reopens it.
+                synchronized (mLock) {
+                    if (mSocket == socket) {
+                        socket.close();
+                        mSocket = null;
+                    }
+                }
+                return;
+            }
+
+            // Our own broadcasts come back to us. Drop them before looking at the contents.
+            InetAddress sender = receivedPacket.getAddress();
+            if (mLocalAddresses.contains(sender)) {
+                mStats.count(NetworkStats.DROPPED_ECHO);
+                continue;
+            }
+
+            // Make sure the packet isn't too large, otherwise reject and read the next.
+            if (receivedPacket.getLength() >= ConsoleProtocol.MAX_PACKET_SIZE) {
+                mStats.count(NetworkStats.DROPPED_OVERSIZED);
+                continue;
+            }
+
+            sharedByteBuffer.clear();
+            sharedByteBuffer.limit(receivedPacket.getLength());
+            if (FragmentFrame.isFragment(sharedByteBuffer)) {
+                handleFragment(sharedByteBuffer, sender);
+                continue;
+            }
+            if (!MessageCodec.decode(sharedByteBuffer, message)) {
+                mStats.count(NetworkStats.DROPPED_MALFORMED);
+                continue;
+            }
+
+            Exchange exchange = findExchange(message, sender);
+            if (exchange == null) {
+                mStats.count(NetworkStats.DROPPED_UNMATCHED);
+                continue;
+            }
+            exchange.complete(message, sender.getHostAddress());
+        }
+    }
+
+    /**
+     * Hand a fragment to the request it answers.
+     * @param in A buffer holding the fragment.
+     * @param sender The address the fragment came from.
+     */
+    private void handleFragment(ByteBuffer in, InetAddress sender) {
+        long replyTo = FragmentFrame.getReplyTo(in);
+        Exchange exchange;
+        synchronized (mLock) {
+            exchange = mPending.get(replyTo);
+        }
+        if (exchange == null || !exchange.isLarge() || !exchange.acceptsFrom(sender)) {
+            mStats.count(NetworkStats.DROPPED_UNMATCHED);
+            return;
+        }
+
+        switch (exchange.addFragment(in, sender)) {
+            case FragmentReassembler.RESULT_COMPLETE:
+                synchronized (mLock) {
+                    mPending.remove(replyTo);
+                }
+                break;
+            case FragmentReassembler.RESULT_NO_BUFFER:
+                mStats.count(NetworkStats.DROPPED_NO_BUFFER);
+                break;
+            case FragmentReassembler.RESULT_MALFORMED:
+                mStats.count(NetworkStats.DROPPED_MALFORMED);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Find the request a response belongs to. Requests that only want one response are removed.
+     * @param message The response.
+     * @param sender The address the response came from.
+     * @return The matching exchange or null.
+     */
+    private Exchange findExchange(ConsoleMessage message, InetAddress sender) {
+        synchronized (mLock) {
+            long replyTo = message.getReplyTo();
+            if (replyTo != 0) {
+                // An ID is easy to echo, so it only counts from the host the request went to.
+                Exchange exchange = mPending.get(replyTo);
+                if (exchange == null || !exchange.acceptsFrom(sender)) return null;
+                if (!exchange.collectsAll()) mPending.remove(replyTo);
+                return exchange;
+            }
+
+            // A request of ours that came back to us rather than a response.
+            if (mPending.containsKey(message.getTimestamp())) return null;
+
+            // Older consoles don't send an ID; give it to the oldest request it could answer.
+            Iterator<Exchange> it = mPending.values().iterator();
+            while (it.hasNext()) {
+                Exchange exchange = it.next();
+                if (!exchange.acceptsFrom(sender)) continue;
+                if (!exchange.collectsAll()) it.remove();
+                return exchange;
+            }
+            return null;
+        }
+    }
+}
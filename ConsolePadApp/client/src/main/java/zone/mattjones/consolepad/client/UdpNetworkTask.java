@@ -0,0 +1,304 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: UdpNetworkTask.java
+ * Author: Matt Jones
+ * Date: 2019.09.07
+ * Desc: A network request that sends a message over UDP and waits for a response. This is used
+ *       to find the console; once found, a ConsoleSession carries the rest of the traffic. The
+ *       socket itself is shared and owned by a UdpNetworkService.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.ConsoleResponse;
+import zone.mattjones.consolepad.protocol.DiscoveryMode;
+import zone.mattjones.consolepad.protocol.RttEstimator;
+
+public class UdpNetworkTask extends NetworkRequest {
+    /**
+     * Interface for handling messages from the console. Called on the callback thread of the
+     * NetworkExecutor that ran the request (see NetworkExecutor.setCallbackExecutor()).
+     */
+    public interface ResponseHandler {
+        /**
+         * Handle a response.
+         * @param response The response.
+         */
+        void handleResponse(ConsoleResponse response);
+
+        /**
+         * Handle a request that failed.
+         * @param errorCode What went wrong, one of the ERROR_* values.
+         */
+        void handleError(int errorCode);
+    }
+
+    /** Somewhere to remember the consoles that respond, e.g. across launches of the app. */
+    public interface Registry {
+        /**
+         * Remember a console that just responded. This can be called from any thread.
+         * @param ip The IP of the console.
+         * @param name The name the console reported.
+         * @param rttMs The round-trip time of the request in ms.
+         */
+        void recordConsole(String ip, String name, long rttMs);
+    }
+
+    /** The console couldn't be reached or the connection failed. */
+    public static final int ERROR_GENERIC = 1;
+
+    /** The console's address couldn't be resolved. */
+    public static final int ERROR_NO_HOST = 2;
+
+    /** The console didn't respond in time, even after retries. */
+    public static final int ERROR_TIMEOUT = 3;
+
+    /** The console answered but didn't do what was asked, e.g. it refused a batch. */
+    public static final int ERROR_REFUSED = 4;
+
+    /** The request was never sent; a newer one replaced it or too many were waiting. */
+    public static final int ERROR_DROPPED = 5;
+
+    /** The allowed time to wait for a message from the console. */
+    public static final long SOCKET_TIMEOUT_MS = 1500;
+
+    /**
+     * The IP used to broadcast messages over UDP. Requests sent to it ask the consoles'
+     * multicast group first when the network allows; see DiscoveryMode.
+     */
+    public static final String BROADCAST_IP = "255.255.255.255";
+
+    /** The multicast group consoles listen on. */
+    public static final String MULTICAST_IP = ConsoleProtocol.MULTICAST_GROUP;
+
+    /**
+     * The last request ID handed out. IDs are timestamps that always increase so they never
+     * collide, even between UDP and TCP requests; the console relies on this to spot retries.
+     */
+    private static final AtomicLong sLastRequestId = new AtomicLong();
+
+    /** The IP to send messages to. */
+    private String mRemoteIp;
+
+    /** The message to send to the host. */
+    private String mMessage;
+
+    /** The object responsible for handing responses from the console. */
+    private ResponseHandler mHandler;
+
+    /** The service that owns the UDP socket. */
+    private UdpNetworkService mService;
+
+    /** Where consoles that respond are remembered, if anywhere. */
+    private Registry mRegistry;
+
+    /** The time to wait for a response from mRemoteIp. */
+    private long mTimeoutMs = SOCKET_TIMEOUT_MS;
+
+    /** The IP to try if mRemoteIp doesn't respond in time, or null to give up. */
+    private String mFallbackIp;
+
+    /** The exchange waiting for a response once the message was sent. */
+    private volatile UdpNetworkService.Exchange mExchange;
+
+    public UdpNetworkTask(ResponseHandler handler, UdpNetworkService service, String targetIp,
+            String message) {
+        mRemoteIp = targetIp;
+        mHandler = handler;
+        mService = service;
+        mMessage = message;
+    }
+
+    /** @return A new, unique request ID, which is also the current time in ms. */
+    public static long nextRequestId() {
+        while (true) {
+            long last = sLastRequestId.get();
+            long id = Math.max(System.currentTimeMillis(), last + 1);
+            if (sLastRequestId.compareAndSet(last, id)) return id;
+        }
+    }
+
+    /**
+     * Wait until the clock passes every request ID handed out. IDs run ahead of the clock while
+     * more than one request a ms is sent, and a process started on this device after this one
+     * exits would otherwise use them again and have its requests dropped as repeats.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public static void awaitClockPastRequestIds() throws InterruptedException {
+        long aheadMs = sLastRequestId.get() - System.currentTimeMillis();
+        if (aheadMs >= 0) Thread.sleep(aheadMs + 1);
+    }
+
+    /**
+     * Remember the console that responds to this request.
+     * @param registry The registry to record the console in.
+     * @return This task for chaining.
+     */
+    public UdpNetworkTask setRegistry(Registry registry) {
+        mRegistry = registry;
+        return this;
+    }
+
+    /**
+     * Try another IP (usually the broadcast IP) if the target doesn't respond quickly.
+     * @param timeoutMs The time to wait for the target before giving up on it.
+     * @param fallbackIp The IP to send to next.
+     * @return This task for chaining.
+     */
+    public UdpNetworkTask setFallback(long timeoutMs, String fallbackIp) {
+        mTimeoutMs = timeoutMs;
+        mFallbackIp = fallbackIp;
+        return this;
+    }
+
+    @Override
+    public String getKey() {
+        return "udp:" + mRemoteIp + ":" + mMessage;
+    }
+
+    @Override
+    public boolean canCoalesce() {
+        return ConsoleProtocol.ACTION_INFO.equals(mMessage);
+    }
+
+    @Override
+    protected void onCanceled() {
+        // Wake the thread waiting for the response.
+        UdpNetworkService.Exchange exchange = mExchange;
+        if (exchange != null) mService.cancel(exchange);
+    }
+
+    @Override
+    protected void onDropped() {
+        reportError(ERROR_DROPPED);
+    }
+
+    @Override
+    protected void run() {
+        long startNanos = System.nanoTime();
+        try {
+            UdpNetworkService.Exchange exchange;
+            if (mFallbackIp == null) {
+                exchange = sendAndWait(mRemoteIp, RttEstimator.MAX_TRANSMISSIONS);
+            } else {
+                try {
+                    exchange = sendAndWait(mRemoteIp, 1);
+                } catch (SocketTimeoutException se) {
+                    if (isCanceled()) throw se;
+                    exchange = sendAndWait(mFallbackIp, RttEstimator.MAX_TRANSMISSIONS);
+                }
+            }
+
+            ConsoleResponse response =
+                    new ConsoleResponse(exchange.getResponse(), exchange.getRemoteIp());
+            if (mRegistry != null) {
+                mRegistry.recordConsole(response.getRemoteIp(), response.getDeviceName(),
+                        exchange.getRoundTripMs());
+            }
+            mService.getStats().recordRoundTrip(
+                    "udp", mMessage, (System.nanoTime() - startNanos) / 1000000);
+            if (!isCanceled()) deliver(() -> mHandler.handleResponse(response));
+        } catch (SocketException se) {
+            reportError(ERROR_GENERIC);
+        } catch (UnknownHostException ue) {
+            reportError(ERROR_NO_HOST);
+        } catch (SocketTimeoutException se) {
+            reportError(ERROR_TIMEOUT);
+        } catch (IOException ie) {
+            reportError(ERROR_GENERIC);
+        }
+    }
+
+    /**
+     * Send the message and wait for its response, sending it again with a growing timeout if no
+     * response arrives. If some fragments of a large response arrived since the last send, only
+     * the missing ones are asked for, and that doesn't count as sending it again. A broadcast
+     * goes to the multicast group first and is only broadcast if nothing answers there quickly.
+     * @param ip The IP to send to.
+     * @param maxTransmissions The max number of times to send the message.
+     * @return The completed exchange.
+     * @throws IOException If sending failed, the request timed out or it was canceled.
+     */
+    private UdpNetworkService.Exchange sendAndWait(String ip, int maxTransmissions)
+            throws IOException {
+        // A single try uses the caller's timeout rather than the estimate.
+        RttEstimator estimator = mService.getRttEstimator(ip);
+        long timeoutMs = maxTransmissions == 1 ? mTimeoutMs : estimator.getTimeoutMs();
+
+        DiscoveryMode discovery = mService.getDiscoveryMode();
+        boolean multicast = BROADCAST_IP.equals(ip) && discovery.shouldTryMulticast();
+        boolean fellBack = false;
+        UdpNetworkService.Exchange exchange =
+                mService.send(multicast ? MULTICAST_IP : ip, mMessage);
+        mExchange = exchange;
+        // A cancel that raced with sending wouldn't have seen the exchange.
+        if (isCanceled()) mService.cancel(exchange);
+
+        try {
+            int fragmentsAtSend = 0;
+            for (int transmissions = 1; ; transmissions++) {
+                try {
+                    exchange.await(multicast && !fellBack
+                            ? Math.min(timeoutMs, DiscoveryMode.MULTICAST_TIMEOUT_MS) : timeoutMs);
+                } catch (SocketTimeoutException se) {
+                    if (multicast && !fellBack && !isCanceled()) {
+                        // Not a lost request; the group may just not reach any console.
+                        fellBack = true;
+                        mService.broadcast(exchange);
+                        transmissions--;
+                        continue;
+                    }
+                    mService.getStats().count(NetworkStats.TIMED_OUT);
+                    if (isCanceled()) throw se;
+                    int fragments = exchange.getFragmentCount();
+                    if (fragments > fragmentsAtSend
+                            && mService.requestMissingFragments(exchange)) {
+                        fragmentsAtSend = fragments;
+                        transmissions--;
+                        continue;
+                    }
+                    estimator.onTimeout();
+                    if (transmissions >= maxTransmissions) throw se;
+                    timeoutMs = RttEstimator.backoff(timeoutMs, 1);
+                    fragmentsAtSend = fragments;
+                    mService.resend(exchange);
+                    continue;
+                }
+
+                if (multicast && fellBack) {
+                    discovery.onBroadcastAnswered();
+                } else if (multicast) {
+                    discovery.onMulticastAnswered();
+                }
+
+                // Only a response to a single send is a clean RTT sample. A large one also
+                // includes the time to send it, so it isn't either.
+                if (transmissions == 1 && !fellBack && !exchange.isLarge()) {
+                    mService.getRttEstimator(exchange.getRemoteIp())
+                            .addSample(exchange.getRoundTripMs());
+                }
+                return exchange;
+            }
+        } finally {
+            mService.finish(exchange);
+        }
+    }
+
+    /**
+     * Tell the handler the request failed unless it was canceled, in which case nobody cares.
+     * @param errorCode What went wrong, one of the ERROR_* values.
+     */
+    private void reportError(int errorCode) {
+        if (isCanceled()) return;
+        mService.getStats().count(NetworkStats.FAILED);
+        deliver(() -> mHandler.handleError(errorCode));
+    }
+}
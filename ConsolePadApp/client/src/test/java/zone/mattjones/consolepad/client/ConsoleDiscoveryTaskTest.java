@@ -0,0 +1,150 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleDiscoveryTaskTest.java
+ * Author: Matt Jones
+ * Date: 2019.10.23
+ * Desc: Runs discovery against a Java responder on this machine, once with the responder in the
+ *       multicast group and once without, and checks which way it was found and what DiscoveryMode
+ *       was told: the group answering, or the broadcast sent after MULTICAST_TIMEOUT_MS. Loopback
+ *       can't broadcast, so the fallback is sent straight to the responder's loopback address.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import zone.mattjones.consolepad.protocol.DiscoveryMode;
+import zone.mattjones.consolepad.responder.ConsoleResponder;
+
+public class ConsoleDiscoveryTaskTest {
+    /** The name the responder reports. */
+    private static final String CONSOLE_NAME = "TestBox";
+
+    /** The longest to wait for discovery to finish. */
+    private static final long TIMEOUT_MS = 5000;
+
+    /** A mode that counts what discovery told it. */
+    private static class RecordingDiscoveryMode extends DiscoveryMode {
+        /** The number of discoveries answered on the group. */
+        int multicastAnswered;
+
+        /** The number of discoveries only answered once broadcast. */
+        int broadcastAnswered;
+
+        @Override
+        public synchronized void onMulticastAnswered() {
+            multicastAnswered++;
+            super.onMulticastAnswered();
+        }
+
+        @Override
+        public synchronized void onBroadcastAnswered() {
+            broadcastAnswered++;
+            super.onBroadcastAnswered();
+        }
+    }
+
+    /**
+     * The responder's group answers can come from this machine's LAN address, which the service
+     * would otherwise throw away as its own request coming back.
+     */
+    private static class NoLocalAddresses extends LocalAddressIndex {
+        @Override
+        public boolean contains(InetAddress address) {
+            return false;
+        }
+    }
+
+    /** The console being discovered; bound to every address so it can join the group. */
+    private ConsoleResponder mResponder;
+
+    /** What the discovery under test tells. */
+    private final RecordingDiscoveryMode mMode = new RecordingDiscoveryMode();
+
+    /** The service discovery sends with. */
+    private UdpNetworkService mService;
+
+    /** Runs the discovery. */
+    private final NetworkExecutor mExecutor = new NetworkExecutor();
+
+    @Before
+    public void setUp() throws IOException {
+        mResponder = new ConsoleResponder(CONSOLE_NAME, null, 0, 1);
+        mService = new UdpNetworkService(new NoLocalAddresses(), new NetworkStats("test"),
+                "DiscoveryTest", mMode).setPorts(0, mResponder.getPort());
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+        mService.close();
+        mResponder.close();
+    }
+
+    @Test
+    public void groupAnswers() throws Exception {
+        int joined = 0;
+        for (NetworkInterface curInterface
+                : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!curInterface.isUp()) continue;
+            try {
+                mResponder.joinDiscoveryGroup(curInterface);
+                joined++;
+            } catch (IOException e) {
+                // Not every interface can join; one is enough for a local group.
+            }
+        }
+        assumeTrue("No interface can join the group", joined > 0);
+        mResponder.start();
+
+        ConsoleRecord console = discoverOne();
+        assertTrue("Took " + console.rttMs + " ms",
+                console.rttMs < DiscoveryMode.MULTICAST_TIMEOUT_MS);
+        assertEquals(1, mMode.multicastAnswered);
+        assertEquals(0, mMode.broadcastAnswered);
+        assertTrue(mMode.shouldTryMulticast());
+    }
+
+    @Test
+    public void unreachableGroupFallsBackToBroadcast() throws Exception {
+        // The responder never joins the group, so only the broadcast can reach it.
+        mService.setBroadcastIp(InetAddress.getLoopbackAddress().getHostAddress());
+        mResponder.start();
+
+        ConsoleRecord console = discoverOne();
+        assertTrue("Took " + console.rttMs + " ms",
+                console.rttMs >= DiscoveryMode.MULTICAST_TIMEOUT_MS);
+        assertEquals(0, mMode.multicastAnswered);
+        assertEquals(1, mMode.broadcastAnswered);
+        assertFalse(mMode.shouldTryMulticast());
+    }
+
+    /** @return The one console discovery found. */
+    private ConsoleRecord discoverOne() throws InterruptedException {
+        ArrayBlockingQueue<ArrayList<ConsoleRecord>> found = new ArrayBlockingQueue<>(1);
+        mExecutor.submit(new ConsoleDiscoveryTask(
+                found::add, mService, ConsoleDiscoveryTask.DEFAULT_WINDOW_MS));
+        ArrayList<ConsoleRecord> consoles = found.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Discovery didn't finish", consoles);
+        assertEquals(1, consoles.size());
+        assertEquals(CONSOLE_NAME, consoles.get(0).name);
+        return consoles.get(0);
+    }
+}
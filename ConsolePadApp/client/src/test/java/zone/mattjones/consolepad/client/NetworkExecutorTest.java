@@ -0,0 +1,117 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: NetworkExecutorTest.java
+ * Author: Matt Jones
+ * Date: 2019.10.23
+ * Desc: Checks that a request the executor drops before it runs, because a newer one replaced
+ *       it or the queue was full, is told so rather than silently canceled.
+ */
+
+package zone.mattjones.consolepad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class NetworkExecutorTest {
+    /** The longest to wait for a request to run. */
+    private static final long TIMEOUT_MS = 2000;
+
+    /** A request that records what happened to it. */
+    private static class RecordingRequest extends NetworkRequest {
+        /** What the request does; requests with the same key replace each other. */
+        private final String mKey;
+
+        /** Holds run() until released, to keep the executor busy. */
+        private final CountDownLatch mRelease;
+
+        /** Counted down once the request ran. */
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        /** Whether the executor dropped the request. */
+        volatile boolean dropped;
+
+        /**
+         * @param key What the request does.
+         * @param release Holds run() until released, or null to return at once.
+         */
+        RecordingRequest(String key, CountDownLatch release) {
+            mKey = key;
+            mRelease = release;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        protected void onDropped() {
+            dropped = true;
+        }
+
+        @Override
+        protected void run() {
+            try {
+                if (mRelease != null) mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.countDown();
+        }
+    }
+
+    /** Runs one request at a time with room for two more. */
+    private final NetworkExecutor mExecutor = new NetworkExecutor(1, 2, true);
+
+    /** Keeps the executor's only thread busy until counted down. */
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void replacedRequestIsDropped() throws Exception {
+        mExecutor.submit(new RecordingRequest("busy", mRelease));
+        RecordingRequest older = new RecordingRequest("action", null);
+        RecordingRequest newer = new RecordingRequest("action", null);
+        mExecutor.submit(older);
+        mExecutor.submit(newer);
+        assertTrue(older.dropped);
+        assertFalse(older.isCanceled());
+
+        mRelease.countDown();
+        assertTrue(newer.ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(newer.dropped);
+        assertEquals(1, older.ran.getCount());
+    }
+
+    @Test
+    public void oldestIsDroppedWhenQueueIsFull() throws Exception {
+        mExecutor.submit(new RecordingRequest("busy", mRelease));
+        RecordingRequest first = new RecordingRequest("first", null);
+        RecordingRequest second = new RecordingRequest("second", null);
+        RecordingRequest third = new RecordingRequest("third", null);
+        mExecutor.submit(first);
+        mExecutor.submit(second);
+        assertFalse(first.dropped);
+        mExecutor.submit(third);
+        assertTrue(first.dropped);
+
+        mRelease.countDown();
+        assertTrue(second.ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(third.ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(second.dropped || third.dropped);
+        assertEquals(1, first.ran.getCount());
+    }
+}
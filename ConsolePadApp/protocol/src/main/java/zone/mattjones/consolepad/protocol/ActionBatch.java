@@ -0,0 +1,124 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ActionBatch.java
+ * Author: Matt Jones
+ * Date: 2019.10.13
+ * Desc: Builds and reads batch actions, which carry several actions for the console to run in
+ *       order, and their responses, which carry a result for every step:
+ *
+ *       BATCH:HOME,RESTART_EMULATION_STATION  ->  BATCH:OK,OK
+ *
+ *       The console stops at the first step that fails and skips the rest:
+ *
+ *       BATCH:HOME,NOT_AN_ACTION,POWER_OFF    ->  BATCH:OK,FAILED,SKIPPED
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class ActionBatch {
+    /** The result of a step that ran. */
+    public static final String STEP_OK = ConsoleProtocol.RESPONSE_OK;
+
+    /** The result of a step that is unknown, not allowed in a batch or threw. */
+    public static final String STEP_FAILED = "FAILED";
+
+    /** The result of a step after one that failed. */
+    public static final String STEP_SKIPPED = "SKIPPED";
+
+    /** The max number of steps in a batch. */
+    public static final int MAX_STEPS = 16;
+
+    /** The delimiter between steps and between results. */
+    private static final String STEP_SEPARATOR = ",";
+
+    private ActionBatch() {}
+
+    /**
+     * Build a batch action.
+     * @param actions The actions to run in order.
+     * @return The batch action.
+     * @throws IllegalArgumentException If there are no actions, too many, or one can't be batched.
+     */
+    public static String encode(List<String> actions) {
+        if (actions.isEmpty() || actions.size() > MAX_STEPS) {
+            throw new IllegalArgumentException("Bad batch size: " + actions.size());
+        }
+        for (String action : actions) {
+            if (!isBatchable(action)) throw new IllegalArgumentException("Bad step: " + action);
+        }
+        return join(actions);
+    }
+
+    /**
+     * Read the steps of a batch action.
+     * @param action The action.
+     * @return The steps in order or null if the action isn't a batch.
+     */
+    public static List<String> decode(String action) {
+        return split(action);
+    }
+
+    /**
+     * Build the response to a batch.
+     * @param results The result of every step, e.g. STEP_OK.
+     * @return The response.
+     */
+    public static String encodeResults(List<String> results) {
+        return join(results);
+    }
+
+    /**
+     * Read the response to a batch.
+     * @param response The response.
+     * @return The result of every step or null if the response isn't for a batch.
+     */
+    public static List<String> decodeResults(String response) {
+        return split(response);
+    }
+
+    /**
+     * @param action An action.
+     * @return Whether the action can be a step in a batch. Steps can't be batches themselves,
+     *         change how the session works or need a response of their own.
+     */
+    public static boolean isBatchable(String action) {
+        return action != null && !action.isEmpty()
+                && !action.contains(STEP_SEPARATOR)
+                && !action.startsWith(ConsoleProtocol.ACTION_BATCH_PREFIX)
+                && !action.startsWith(ConsoleProtocol.ACTION_LARGE_PREFIX)
+                && !action.startsWith(ConsoleProtocol.ACTION_FRAGMENTS_PREFIX)
+                && !ConsoleProtocol.ACTION_FORMAT_BINARY.equals(action)
+                && !ConsoleProtocol.ACTION_SUBSCRIBE_STATUS.equals(action);
+    }
+
+    /**
+     * @param parts The steps or results.
+     * @return The parts after the batch prefix, separated.
+     */
+    private static String join(List<String> parts) {
+        StringBuilder builder = new StringBuilder(ConsoleProtocol.ACTION_BATCH_PREFIX);
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) builder.append(STEP_SEPARATOR);
+            builder.append(parts.get(i));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param message A batch action or response.
+     * @return The parts after the batch prefix or null if the message doesn't have the prefix.
+     */
+    private static List<String> split(String message) {
+        if (message == null || !message.startsWith(ConsoleProtocol.ACTION_BATCH_PREFIX)) {
+            return null;
+        }
+        String body = message.substring(ConsoleProtocol.ACTION_BATCH_PREFIX.length());
+        if (body.isEmpty()) return new ArrayList<>();
+        return new ArrayList<>(Arrays.asList(body.split(STEP_SEPARATOR, -1)));
+    }
+}
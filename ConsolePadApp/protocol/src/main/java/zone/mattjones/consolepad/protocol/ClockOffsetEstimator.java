@@ -0,0 +1,129 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ClockOffsetEstimator.java
+ * Author: Matt Jones
+ * Date: 2019.10.16
+ * Desc: Estimates how far another device's clock is ahead of ours using only the send times
+ *       already in its messages, so it costs no extra traffic. Each message bounds the offset
+ *       from below: it can't have been sent later than it arrived, so remote_time - local_time
+ *       <= offset, and the bound is tightest for the message that spent the least time on the
+ *       way. Like NTP's clock filter, the estimator keeps the best sample of each period and,
+ *       once it has a few periods, fits a line through them to get the drift between the two
+ *       clocks and carry older bounds forward. Adding a sample and asking for the offset are
+ *       both constant time.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public class ClockOffsetEstimator {
+    /** The length of each period the best sample is kept for. */
+    private static final long PERIOD_MS = 60000;
+
+    /** The number of periods remembered. */
+    private static final int PERIOD_COUNT = 8;
+
+    /** The number of periods needed before drift is estimated. */
+    private static final int MIN_PERIODS_FOR_DRIFT = 3;
+
+    /**
+     * The largest drift believed, as a fraction. Quartz clocks are good to about 100 ppm; a fit
+     * past this is noise, e.g. a clock being stepped.
+     */
+    private static final double MAX_DRIFT = 500e-6;
+
+    /** The local time each period started. */
+    private final long[] mPeriodStartMs = new long[PERIOD_COUNT];
+
+    /** The local time of the best sample in each period. */
+    private final long[] mBestLocalMs = new long[PERIOD_COUNT];
+
+    /** The best (largest) lower bound on the offset seen in each period. */
+    private final long[] mBestOffsetMs = new long[PERIOD_COUNT];
+
+    /** The index of the current period. */
+    private int mCurrent = -1;
+
+    /** The number of periods with a sample, up to PERIOD_COUNT. */
+    private int mCount;
+
+    /** The drift as the change in offset per ms of local time. */
+    private double mDrift;
+
+    /**
+     * Add the send time of a message that just arrived.
+     * @param remoteMs The time the message was sent according to the sender's clock.
+     * @param localMs The time it arrived according to ours.
+     */
+    public void addSample(long remoteMs, long localMs) {
+        long bound = remoteMs - localMs;
+        // Our own clock going backwards also starts a new period.
+        long sincePeriodStartMs = mCount == 0 ? 0 : localMs - mPeriodStartMs[mCurrent];
+        if (mCount == 0 || sincePeriodStartMs >= PERIOD_MS || sincePeriodStartMs < 0) {
+            // Refit with the finished period before starting a new one.
+            if (mCount > 0) updateDrift();
+            mCurrent = (mCurrent + 1) % PERIOD_COUNT;
+            mCount = Math.min(PERIOD_COUNT, mCount + 1);
+            mPeriodStartMs[mCurrent] = localMs;
+            mBestLocalMs[mCurrent] = localMs;
+            mBestOffsetMs[mCurrent] = bound;
+        } else if (bound >= mBestOffsetMs[mCurrent]) {
+            mBestLocalMs[mCurrent] = localMs;
+            mBestOffsetMs[mCurrent] = bound;
+        }
+    }
+
+    /** @return Whether there has been at least one sample. */
+    public boolean hasEstimate() {
+        return mCount > 0;
+    }
+
+    /**
+     * @param localMs A time according to our clock.
+     * @return How far the other clock is ahead of ours at that time, which is negative if it is
+     *         behind. Only valid if hasEstimate().
+     */
+    public long getOffsetMs(long localMs) {
+        // The tightest of the remembered bounds, each carried forward by the drift.
+        double best = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < mCount; i++) {
+            best = Math.max(best, mBestOffsetMs[i] + mDrift * (localMs - mBestLocalMs[i]));
+        }
+        return Math.round(best);
+    }
+
+    /** @return The estimated drift in parts per million; positive if the other clock is fast. */
+    public double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /** Forget every sample, e.g. after the other clock was stepped. */
+    public void reset() {
+        mCurrent = -1;
+        mCount = 0;
+        mDrift = 0;
+    }
+
+    /** Fit a line through the best sample of each period; its slope is the drift. */
+    private void updateDrift() {
+        if (mCount < MIN_PERIODS_FOR_DRIFT) return;
+        // Measure from the current period to keep the sums small.
+        long origin = mBestLocalMs[mCurrent];
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        for (int i = 0; i < mCount; i++) {
+            double x = mBestLocalMs[i] - origin;
+            double y = mBestOffsetMs[i];
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double denominator = mCount * sumXX - sumX * sumX;
+        if (denominator <= 0) return;
+        double slope = (mCount * sumXY - sumX * sumY) / denominator;
+        mDrift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, slope));
+    }
+}
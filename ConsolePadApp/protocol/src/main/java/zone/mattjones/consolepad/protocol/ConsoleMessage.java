@@ -0,0 +1,117 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleMessage.java
+ * Author: Matt Jones
+ * Date: 2019.09.15
+ * Desc: A decoded protocol message. Instances are meant to be reused across many decodes so the
+ *       receive path doesn't create garbage; strings are only created when asked for. The payload
+ *       only grows past MAX_PACKET_SIZE to hold a response put back together from fragments.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.charset.Charset;
+
+public class ConsoleMessage {
+    /** The max length of the device name in bytes. */
+    public static final int MAX_DEVICE_NAME_LENGTH = 255;
+
+    /** The time the message was sent according to the sender's clock. */
+    long mTimestamp;
+
+    /** The timestamp of the request this message responds to or 0 if unknown. */
+    long mReplyTo;
+
+    /** The name of the sending device as UTF-8 bytes. */
+    final byte[] mDeviceName = new byte[MAX_DEVICE_NAME_LENGTH];
+
+    /** The number of valid bytes in the device name. */
+    int mDeviceNameLength;
+
+    /** The decoded (not base 64) payload of the message. */
+    byte[] mPayload = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+
+    /** The number of valid bytes in the payload. */
+    int mPayloadLength;
+
+    /** The format the message arrived in, one of the MessageCodec.FORMAT_* values. */
+    int mFormat;
+
+    /** @return The time the message was sent according to the sender's clock. */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return The timestamp of the request this message responds to or 0 if the sender didn't
+     *         include it.
+     */
+    public long getReplyTo() {
+        return mReplyTo;
+    }
+
+    /** @return The format the message arrived in. */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /** @return The name of the device that sent the message. */
+    public String getDeviceName() {
+        return new String(mDeviceName, 0, mDeviceNameLength, Charset.forName("UTF8"));
+    }
+
+    /** @return The payload of the message as a string. */
+    public String getPayloadString() {
+        return new String(mPayload, 0, mPayloadLength, Charset.forName("UTF8"));
+    }
+
+    /**
+     * Compare the payload to some bytes without creating a string.
+     * @param expected The bytes to compare against.
+     * @return Whether the payload is exactly the expected bytes.
+     */
+    public boolean payloadEquals(byte[] expected) {
+        if (expected.length != mPayloadLength) return false;
+        for (int i = 0; i < mPayloadLength; i++) {
+            if (mPayload[i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the start of the payload without creating a string.
+     * @param prefix The bytes to compare against.
+     * @return Whether the payload starts with the prefix.
+     */
+    public boolean payloadStartsWith(byte[] prefix) {
+        if (prefix.length > mPayloadLength) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (mPayload[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the contents of another message into this one.
+     * @param other The message to copy.
+     */
+    public void copyFrom(ConsoleMessage other) {
+        mTimestamp = other.mTimestamp;
+        mReplyTo = other.mReplyTo;
+        mFormat = other.mFormat;
+        System.arraycopy(other.mDeviceName, 0, mDeviceName, 0, other.mDeviceNameLength);
+        mDeviceNameLength = other.mDeviceNameLength;
+        ensurePayloadCapacity(other.mPayloadLength);
+        System.arraycopy(other.mPayload, 0, mPayload, 0, other.mPayloadLength);
+        mPayloadLength = other.mPayloadLength;
+    }
+
+    /**
+     * Make room for a payload, dropping the current one if it has to grow.
+     * @param length The size of the payload.
+     */
+    void ensurePayloadCapacity(int length) {
+        if (length > mPayload.length) mPayload = new byte[length];
+    }
+}
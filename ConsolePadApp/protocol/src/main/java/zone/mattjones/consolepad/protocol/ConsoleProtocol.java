@@ -0,0 +1,117 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleProtocol.java
+ * Author: Matt Jones
+ * Date: 2019.10.07
+ * Desc: Constants shared by everything that speaks the console protocol: the app, the console
+ *       responders and the tools built around them. None of this depends on Android.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public final class ConsoleProtocol {
+    /** The default port to send and receive messages on. This is used for both UDP and TCP. */
+    public static final int DEFAULT_PORT = 19002;
+
+    /**
+     * The multicast group consoles join on DEFAULT_PORT, so discovery only reaches hosts that
+     * asked for it instead of every host on the network. It's in the organization-local scope,
+     * which routers don't forward off the site. See DiscoveryMode.
+     */
+    public static final String MULTICAST_GROUP = "239.255.19.2";
+
+    /** The UDP port the console receives the gamepad stream on; see GamepadFrame. */
+    public static final int GAMEPAD_PORT = 19003;
+
+    // Different actions the console knows how to handle.
+    public static final String ACTION_INFO = "INFO";
+    public static final String ACTION_POWER_OFF = "POWER_OFF";
+    public static final String ACTION_EMULATION_STATION = "RESTART_EMULATION_STATION";
+    public static final String ACTION_STEAM = "RESTART_STEAM_BP";
+    public static final String ACTION_HOME = "HOME";
+
+    /**
+     * Ask the console to use the compact binary format for the rest of a session. Older consoles
+     * respond with RESPONSE_OK, in which case the text format is kept.
+     */
+    public static final String ACTION_FORMAT_BINARY = "FORMAT_BINARY";
+
+    /**
+     * Ask the console to push its status over a TCP session from now on. The console answers
+     * with its current status and then sends a status message whenever it changes, and at least
+     * every STATUS_HEARTBEAT_MS so a silent console can be told apart from an idle one. Older
+     * consoles respond with RESPONSE_OK and push nothing.
+     */
+    public static final String ACTION_SUBSCRIBE_STATUS = "SUBSCRIBE_STATUS";
+
+    /**
+     * The start of an action that runs several actions in order in one request; see ActionBatch.
+     * The response starts with the same prefix and has a result for every step. Older consoles
+     * respond with RESPONSE_OK without running anything.
+     */
+    public static final String ACTION_BATCH_PREFIX = "BATCH:";
+
+    /**
+     * Ask for the latest event of a job, e.g. "JOB_STATUS:17", in case pushed events were missed.
+     * The response is a job event; see JobEvent.
+     */
+    public static final String ACTION_JOB_STATUS_PREFIX = "JOB_STATUS:";
+
+    /** Ask for the console's emulators as JSON, the contents of configs/emulator_info.json. */
+    public static final String ACTION_EMULATORS = "EMULATORS";
+
+    /**
+     * The start of an action whose response may be too large for one message, so it comes back
+     * in fragments; see LargeResponse. Older consoles answer it like an unknown action.
+     */
+    public static final String ACTION_LARGE_PREFIX = "LARGE:";
+
+    /** The start of an action that asks for lost fragments again; see LargeResponse. */
+    public static final String ACTION_FRAGMENTS_PREFIX = "FRAGMENTS:";
+
+    /**
+     * Ask for the changes to the console's game library since a version, e.g.
+     * "ROM_INDEX:3f9c0a2e:1042". The response is a page of them; see RomIndexPage.
+     */
+    public static final String ACTION_ROM_INDEX_PREFIX = "ROM_INDEX:";
+
+    /**
+     * Start a game from the library by its content hash, e.g. "LAUNCH:9a0c3d1e55b2f806". The game
+     * runs as a job; see JobEvent.
+     */
+    public static final String ACTION_LAUNCH_PREFIX = "LAUNCH:";
+
+    public static final String RESPONSE_OK = "OK";
+    public static final String RESPONSE_FORMAT_BINARY = "FORMAT_BINARY";
+
+    /**
+     * The start of a status message. The rest names what the console is running, e.g.
+     * "EmulationStation", "Steam" or an emulator's system type, and is empty when it's idle.
+     */
+    public static final String STATUS_PREFIX = "STATUS:";
+
+    /** The longest a subscribed console goes without sending its status. */
+    public static final long STATUS_HEARTBEAT_MS = 5000;
+
+    /**
+     * The oldest a request can be, by the sender's clock, and still be run. This is longer than
+     * the app keeps retrying (four sends with at most 4 s between them), so only a request the
+     * app already gave up on is refused.
+     */
+    public static final long MAX_REQUEST_AGE_MS = 16000;
+
+    /** The max size of a single message, with or without a TCP frame header. */
+    public static final int MAX_PACKET_SIZE = 4096;
+
+    /** The size of the big-endian length prefix on each message sent over TCP. */
+    public static final int FRAME_HEADER_SIZE = 4;
+
+    /** A magic string to identify messages using this simple protocol. */
+    public static final String MAGIC_PREFIX = "!!ConsoleMessage:";
+
+    /** A delimited for individual message parts. */
+    public static final String SEPARATOR = "|";
+
+    private ConsoleProtocol() {}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleResponse.java
+ * Author: Matt Jones
+ * Date: 2019.10.22
+ * Desc: A response from a console as handed to the code that sent the request. Unlike a
+ *       ConsoleMessage it is a snapshot that can be passed to another thread. The header fields
+ *       are plain values, the payload is kept as bytes and only turned into a string when it is
+ *       read, and structured payloads (job events, ROM index pages, batch results) are parsed
+ *       when first asked for, after a check of their prefix that doesn't create a string. An OK
+ *       response shares one payload with every other OK response and, with a Factory, the name
+ *       of the console it came from, so it costs one small object.
+ *
+ *       Not thread safe; meant to be read on the thread it is handed to.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+public class ConsoleResponse {
+    /** Makes responses from the messages of one connection, reusing what stays the same. */
+    public static class Factory {
+        /** The name of the last sender as UTF-8 bytes. */
+        private final byte[] mLastDeviceName = new byte[ConsoleMessage.MAX_DEVICE_NAME_LENGTH];
+
+        /** The number of valid bytes in mLastDeviceName. */
+        private int mLastDeviceNameLength = -1;
+
+        /** The name of the last sender as a string. */
+        private String mLastDeviceNameString;
+
+        /**
+         * Make a response. Not thread safe.
+         * @param message The decoded message, which can be reused once this returns.
+         * @param remoteIp The IP of the console that sent it.
+         * @return The response.
+         */
+        public ConsoleResponse create(ConsoleMessage message, String remoteIp) {
+            return new ConsoleResponse(message, getDeviceName(message), remoteIp);
+        }
+
+        /**
+         * @param message A decoded message.
+         * @return The sender's name, the same string as last time if the console didn't change.
+         */
+        private String getDeviceName(ConsoleMessage message) {
+            int length = message.mDeviceNameLength;
+            if (length != mLastDeviceNameLength || !rangeEquals(
+                    message.mDeviceName, mLastDeviceName, length)) {
+                System.arraycopy(message.mDeviceName, 0, mLastDeviceName, 0, length);
+                mLastDeviceNameLength = length;
+                mLastDeviceNameString = message.getDeviceName();
+            }
+            return mLastDeviceNameString;
+        }
+    }
+
+    /** The payload of an OK response, shared by all of them. */
+    private static final byte[] OK_PAYLOAD =
+            ConsoleProtocol.RESPONSE_OK.getBytes(Charset.forName("UTF8"));
+
+    /** The start of a job event. */
+    private static final byte[] JOB_PREFIX = JobEvent.PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The start of a page of the ROM index. */
+    private static final byte[] ROM_INDEX_PREFIX =
+            RomIndexPage.PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The start of the results of a batch. */
+    private static final byte[] BATCH_PREFIX =
+            ConsoleProtocol.ACTION_BATCH_PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The time the response was sent according to the console's clock. */
+    private final long mTimestamp;
+
+    /** The ID of the request this responds to or 0 if the console didn't include it. */
+    private final long mReplyTo;
+
+    /** The name the console reported. */
+    private final String mDeviceName;
+
+    /** The IP of the console that sent the response. */
+    private final String mRemoteIp;
+
+    /** The payload bytes. Never modified; may be shared with other responses. */
+    private final byte[] mPayload;
+
+    /** The payload as a string once it was read. */
+    private String mPayloadString;
+
+    /** The job event in the payload, if it was parsed and is one. */
+    private JobEvent mJobEvent;
+
+    /** The ROM index page in the payload, if it was parsed and is one. */
+    private RomIndexPage mRomIndexPage;
+
+    /** The batch results in the payload, if they were parsed and are some. */
+    private List<String> mBatchResults;
+
+    /**
+     * Make a response without a Factory, which creates a new string for the console's name.
+     * @param message The decoded message, which can be reused once this returns.
+     * @param remoteIp The IP of the console that sent it.
+     */
+    public ConsoleResponse(ConsoleMessage message, String remoteIp) {
+        this(message, message.getDeviceName(), remoteIp);
+    }
+
+    /**
+     * @param message The decoded message, which can be reused once this returns.
+     * @param deviceName The name the console reported.
+     * @param remoteIp The IP of the console that sent it.
+     */
+    private ConsoleResponse(ConsoleMessage message, String deviceName, String remoteIp) {
+        mTimestamp = message.mTimestamp;
+        mReplyTo = message.mReplyTo;
+        mDeviceName = deviceName;
+        mRemoteIp = remoteIp;
+        if (message.payloadEquals(OK_PAYLOAD)) {
+            mPayload = OK_PAYLOAD;
+            mPayloadString = ConsoleProtocol.RESPONSE_OK;
+        } else {
+            mPayload = Arrays.copyOf(message.mPayload, message.mPayloadLength);
+        }
+    }
+
+    /** @return The time the response was sent according to the console's clock. */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /** @return The ID of the request this responds to or 0 if the console didn't include it. */
+    public long getReplyTo() {
+        return mReplyTo;
+    }
+
+    /** @return The name the console reported. */
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    /** @return The IP of the console that sent the response. */
+    public String getRemoteIp() {
+        return mRemoteIp;
+    }
+
+    /** @return Whether the payload is RESPONSE_OK. */
+    public boolean isOk() {
+        return mPayload == OK_PAYLOAD;
+    }
+
+    /** @return The payload, decoded into a string the first time it is asked for. */
+    public String getPayload() {
+        if (mPayloadString == null) {
+            mPayloadString = new String(mPayload, Charset.forName("UTF8"));
+        }
+        return mPayloadString;
+    }
+
+    /** @return The job event in the payload or null if it isn't one. */
+    public JobEvent getJobEvent() {
+        if (mJobEvent == null && startsWith(JOB_PREFIX)) {
+            mJobEvent = JobEvent.decode(getPayload());
+        }
+        return mJobEvent;
+    }
+
+    /**
+     * @return Whether the payload is a page of the ROM index, without parsing it, so the often
+     *         large page can be parsed on another thread.
+     */
+    public boolean isRomIndexPage() {
+        return startsWith(ROM_INDEX_PREFIX);
+    }
+
+    /** @return The page of the ROM index in the payload or null if it isn't one. */
+    public RomIndexPage getRomIndexPage() {
+        if (mRomIndexPage == null && startsWith(ROM_INDEX_PREFIX)) {
+            mRomIndexPage = RomIndexPage.decode(getPayload());
+        }
+        return mRomIndexPage;
+    }
+
+    /** @return The result of every step of a batch or null if the payload isn't for one. */
+    public List<String> getBatchResults() {
+        if (mBatchResults == null && startsWith(BATCH_PREFIX)) {
+            mBatchResults = ActionBatch.decodeResults(getPayload());
+        }
+        return mBatchResults;
+    }
+
+    /**
+     * @param prefix Some bytes.
+     * @return Whether the payload starts with them.
+     */
+    private boolean startsWith(byte[] prefix) {
+        return prefix.length <= mPayload.length && rangeEquals(mPayload, prefix, prefix.length);
+    }
+
+    /**
+     * @param a Some bytes.
+     * @param b Some other bytes.
+     * @param length The number of bytes to compare from the start of each.
+     * @return Whether the first length bytes are the same.
+     */
+    private static boolean rangeEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: DiscoveryMode.java
+ * Author: Matt Jones
+ * Date: 2019.10.19
+ * Desc: Decides whether discovery asks the multicast group (ConsoleProtocol.MULTICAST_GROUP) or
+ *       broadcasts. The group is tried first; a request nobody answers there within
+ *       MULTICAST_TIMEOUT_MS is broadcast with the same ID, so a console answering either copy
+ *       answers the request. If the broadcast is what got an answer, the network drops multicast
+ *       or the console is too old to join the group, so discovery goes straight to broadcasting
+ *       until the network changes or RETRY_MULTICAST_MS passes. Safe to use from any thread.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public class DiscoveryMode {
+    /**
+     * The time to wait for an answer from the group before broadcasting. Consoles answer on the
+     * LAN in a few ms, so this is mostly slack for a console that is busy.
+     */
+    public static final long MULTICAST_TIMEOUT_MS = 300;
+
+    /** The time broadcasting is stuck to before the group is tried again. */
+    public static final long RETRY_MULTICAST_MS = 10 * 60 * 1000;
+
+    /** Whether the last discovery that tried the group was answered there. */
+    private volatile boolean mMulticastAnswered = true;
+
+    /** The time the group last went unanswered, by System.currentTimeMillis(). */
+    private volatile long mUnansweredAtMs;
+
+    /** @return Whether the next discovery should ask the group before broadcasting. */
+    public boolean shouldTryMulticast() {
+        return mMulticastAnswered
+                || System.currentTimeMillis() - mUnansweredAtMs >= RETRY_MULTICAST_MS;
+    }
+
+    /** Record that a discovery was answered on the group. */
+    public void onMulticastAnswered() {
+        mMulticastAnswered = true;
+    }
+
+    /**
+     * Record that a discovery was only answered once it was broadcast after asking the group.
+     * A discovery nobody answered at all says nothing about multicast and isn't recorded.
+     */
+    public void onBroadcastAnswered() {
+        mUnansweredAtMs = System.currentTimeMillis();
+        mMulticastAnswered = false;
+    }
+
+    /** Try the group again, e.g. after joining another network. */
+    public void reset() {
+        mMulticastAnswered = true;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: FragmentFrame.java
+ * Author: Matt Jones
+ * Date: 2019.10.17
+ * Desc: The wire format of a response too large for one message. The console splits the body
+ *       into fragments small enough that no datagram is split on the way, and sends each one as
+ *       its own datagram or TCP frame:
+ *
+ *       [0xC0 0x46][version:1][flags:1][reply_to:8][body_length:4][payload_length:4]
+ *       [index:2][count:2][data]
+ *
+ *       The body is the UTF-8 payload, deflated (raw, no zlib header) if FLAG_DEFLATE is set;
+ *       payload_length is its size once inflated. Every fragment but the last carries
+ *       MAX_DATA_SIZE bytes, so a fragment's place in the body follows from its index. Only
+ *       requests that ask for it get fragments back; see LargeResponse.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.ByteBuffer;
+
+public final class FragmentFrame {
+    /** The size of a fragment before its data. */
+    public static final int HEADER_SIZE = 2 + 1 + 1 + 8 + 4 + 4 + 2 + 2;
+
+    /**
+     * The most data in a fragment. With the header and UDP/IP headers this stays under the
+     * 1280 byte minimum MTU of IPv6, so fragments are never split by the network.
+     */
+    public static final int MAX_DATA_SIZE = 1200;
+
+    /** The size of the largest fragment. */
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_DATA_SIZE;
+
+    /** The largest response, before or after compression, either end accepts. */
+    public static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    /** The most fragments in a response. */
+    public static final int MAX_FRAGMENTS = (MAX_RESPONSE_SIZE + MAX_DATA_SIZE - 1) / MAX_DATA_SIZE;
+
+    /** Set when the body is deflated. */
+    public static final int FLAG_DEFLATE = 1;
+
+    /** The first byte of a fragment; like a binary message, it can't start a text one. */
+    static final byte MAGIC_0 = (byte) 0xC0;
+
+    /** The second byte of a fragment. */
+    static final byte MAGIC_1 = 0x46;
+
+    /** The version of the format written. */
+    static final byte VERSION = 1;
+
+    // The offsets of the header fields from the start of a fragment.
+    static final int OFFSET_FLAGS = 3;
+    static final int OFFSET_REPLY_TO = 4;
+    static final int OFFSET_BODY_LENGTH = 12;
+    static final int OFFSET_PAYLOAD_LENGTH = 16;
+    static final int OFFSET_INDEX = 20;
+    static final int OFFSET_COUNT = 22;
+
+    private FragmentFrame() {}
+
+    /**
+     * @param in A buffer holding a message from its position to its limit.
+     * @return Whether the message is a fragment. Its header may still be bad.
+     */
+    public static boolean isFragment(ByteBuffer in) {
+        int start = in.position();
+        return in.remaining() >= 2 && in.get(start) == MAGIC_0 && in.get(start + 1) == MAGIC_1;
+    }
+
+    /**
+     * @param in A buffer positioned at the start of a fragment.
+     * @return The ID of the request the fragment's response answers.
+     */
+    public static long getReplyTo(ByteBuffer in) {
+        return in.getLong(in.position() + OFFSET_REPLY_TO);
+    }
+
+    /**
+     * @param bodyLength The size of a body.
+     * @return The number of fragments it is sent in.
+     */
+    public static int getFragmentCount(int bodyLength) {
+        return Math.max(1, (bodyLength + MAX_DATA_SIZE - 1) / MAX_DATA_SIZE);
+    }
+
+    /**
+     * Write a single fragment.
+     * @param out The buffer to write to. Its position is moved past the fragment.
+     * @param flags FLAG_DEFLATE or 0.
+     * @param replyTo The ID of the request being answered.
+     * @param body The whole body.
+     * @param bodyLength The size of the body.
+     * @param payloadLength The size of the body once inflated.
+     * @param index The fragment to write.
+     */
+    static void write(ByteBuffer out, int flags, long replyTo, byte[] body, int bodyLength,
+            int payloadLength, int index) {
+        int offset = index * MAX_DATA_SIZE;
+        int length = Math.min(MAX_DATA_SIZE, bodyLength - offset);
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        out.put((byte) flags);
+        out.putLong(replyTo);
+        out.putInt(bodyLength);
+        out.putInt(payloadLength);
+        out.putShort((short) index);
+        out.putShort((short) getFragmentCount(bodyLength));
+        out.put(body, offset, length);
+    }
+
+    /**
+     * Check a fragment's header against the limits and itself.
+     * @param in A buffer holding a fragment from its position to its limit.
+     * @return Whether the fragment can be used.
+     */
+    static boolean isValid(ByteBuffer in) {
+        int start = in.position();
+        // Newer versions may add flags but keep the layout.
+        if (!isFragment(in) || in.remaining() < HEADER_SIZE || in.get(start + 2) < VERSION) {
+            return false;
+        }
+        int bodyLength = in.getInt(start + OFFSET_BODY_LENGTH);
+        int payloadLength = in.getInt(start + OFFSET_PAYLOAD_LENGTH);
+        int index = in.getShort(start + OFFSET_INDEX) & 0xFFFF;
+        int count = in.getShort(start + OFFSET_COUNT) & 0xFFFF;
+        if (bodyLength < 0 || bodyLength > MAX_RESPONSE_SIZE || payloadLength < 0
+                || payloadLength > MAX_RESPONSE_SIZE || count != getFragmentCount(bodyLength)
+                || index >= count) {
+            return false;
+        }
+        int dataLength = Math.min(MAX_DATA_SIZE, bodyLength - index * MAX_DATA_SIZE);
+        return in.remaining() - HEADER_SIZE == dataLength;
+    }
+}
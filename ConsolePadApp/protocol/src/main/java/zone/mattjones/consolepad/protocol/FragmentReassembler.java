@@ -0,0 +1,226 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: FragmentReassembler.java
+ * Author: Matt Jones
+ * Date: 2019.10.17
+ * Desc: Puts one fragmented response (see FragmentFrame) back together on the client. Fragments
+ *       may arrive in any order and more than once; each is kept in a buffer from a shared
+ *       ReassemblyPool until the response is whole, and the ones still missing can be listed to
+ *       ask the console for just those. If fragments of a different response to the same request
+ *       show up, e.g. the console restarted and ran it again, the reassembler starts over with
+ *       them. Call release() when done with it, whether or not it finished.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class FragmentReassembler {
+    /** A new fragment was kept. */
+    public static final int RESULT_ADDED = 0;
+
+    /** A new fragment was kept and it was the last one missing. */
+    public static final int RESULT_COMPLETE = 1;
+
+    /** The fragment was already there. */
+    public static final int RESULT_DUPLICATE = 2;
+
+    /** The fragment was dropped because the pool had no buffer for it. */
+    public static final int RESULT_NO_BUFFER = 3;
+
+    /** The fragment's header was bad. */
+    public static final int RESULT_MALFORMED = 4;
+
+    /** Where fragment buffers come from. */
+    private final ReassemblyPool mPool;
+
+    /** The data of each fragment by index, or null where it hasn't arrived. */
+    private byte[][] mFragments;
+
+    /** The number of fragments that arrived. */
+    private int mReceivedCount;
+
+    /** The number of fragments in the response, or 0 before the first one arrives. */
+    private int mFragmentCount;
+
+    /** The flags of the response's fragments. */
+    private int mFlags;
+
+    /** The size of the body. */
+    private int mBodyLength;
+
+    /** The size of the payload once inflated. */
+    private int mPayloadLength;
+
+    /** The ID of the request the response answers. */
+    private long mReplyTo;
+
+    /**
+     * @param pool Where to keep fragments until the response is whole.
+     */
+    public FragmentReassembler(ReassemblyPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Keep a fragment.
+     * @param in A buffer holding the fragment from its position to its limit. Only read.
+     * @return One of the RESULT_* values.
+     */
+    public int add(ByteBuffer in) {
+        if (!FragmentFrame.isValid(in)) return RESULT_MALFORMED;
+        int start = in.position();
+        int flags = in.get(start + FragmentFrame.OFFSET_FLAGS) & 0xFF;
+        int bodyLength = in.getInt(start + FragmentFrame.OFFSET_BODY_LENGTH);
+        int payloadLength = in.getInt(start + FragmentFrame.OFFSET_PAYLOAD_LENGTH);
+        if (mFragmentCount == 0 || flags != mFlags || bodyLength != mBodyLength
+                || payloadLength != mPayloadLength) {
+            release();
+            mFragmentCount = FragmentFrame.getFragmentCount(bodyLength);
+            mFragments = new byte[mFragmentCount][];
+            mFlags = flags;
+            mBodyLength = bodyLength;
+            mPayloadLength = payloadLength;
+            mReplyTo = FragmentFrame.getReplyTo(in);
+        }
+
+        int index = in.getShort(start + FragmentFrame.OFFSET_INDEX) & 0xFFFF;
+        if (mFragments[index] != null) return RESULT_DUPLICATE;
+        byte[] buffer = mPool.take();
+        if (buffer == null) return RESULT_NO_BUFFER;
+        int length = in.remaining() - FragmentFrame.HEADER_SIZE;
+        for (int i = 0; i < length; i++) buffer[i] = in.get(start + FragmentFrame.HEADER_SIZE + i);
+        mFragments[index] = buffer;
+        mReceivedCount++;
+        return isComplete() ? RESULT_COMPLETE : RESULT_ADDED;
+    }
+
+    /** @return Whether any fragment arrived. */
+    public boolean hasStarted() {
+        return mFragmentCount > 0;
+    }
+
+    /** @return Whether every fragment arrived. */
+    public boolean isComplete() {
+        return mFragmentCount > 0 && mReceivedCount == mFragmentCount;
+    }
+
+    /** @return The number of fragments that arrived. */
+    public int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * List the fragments that haven't arrived, as in "3,7,12-15". Only valid once started.
+     * @param maxLength The longest list to return. The rest can be asked for next time.
+     * @return The list, or empty if nothing is missing.
+     */
+    public String getMissing(int maxLength) {
+        StringBuilder missing = new StringBuilder();
+        int index = 0;
+        while (index < mFragmentCount) {
+            if (mFragments[index] != null) {
+                index++;
+                continue;
+            }
+            int last = index;
+            while (last + 1 < mFragmentCount && mFragments[last + 1] == null) last++;
+            String range = last == index ? Integer.toString(index) : index + "-" + last;
+            if (missing.length() + range.length() + 1 > maxLength) break;
+            if (missing.length() > 0) missing.append(',');
+            missing.append(range);
+            index = last + 1;
+        }
+        return missing.toString();
+    }
+
+    /**
+     * Write the whole response into a message as its payload, with the request it answers as its
+     * reply ID. Fragments don't carry the console's name or clock, so those are left empty.
+     * @param out The message to fill in.
+     * @return Whether the response was whole and could be inflated.
+     */
+    public boolean finish(ConsoleMessage out) {
+        if (!isComplete()) return false;
+        out.ensurePayloadCapacity(mPayloadLength);
+        if ((mFlags & FragmentFrame.FLAG_DEFLATE) == 0) {
+            if (mBodyLength != mPayloadLength) return false;
+            for (int i = 0; i < mFragmentCount; i++) {
+                System.arraycopy(mFragments[i], 0, out.mPayload, i * FragmentFrame.MAX_DATA_SIZE,
+                        getDataLength(i));
+            }
+        } else if (!inflate(out.mPayload)) {
+            return false;
+        }
+        out.mPayloadLength = mPayloadLength;
+        out.mReplyTo = mReplyTo;
+        out.mTimestamp = 0;
+        out.mDeviceNameLength = 0;
+        out.mFormat = MessageCodec.FORMAT_BINARY;
+        return true;
+    }
+
+    /** Give every fragment buffer back to the pool and forget the response. */
+    public void release() {
+        if (mFragments != null) {
+            for (int i = 0; i < mFragments.length; i++) {
+                if (mFragments[i] != null) mPool.give(mFragments[i]);
+                mFragments[i] = null;
+            }
+        }
+        mFragments = null;
+        mReceivedCount = 0;
+        mFragmentCount = 0;
+    }
+
+    /**
+     * @param index A fragment's index.
+     * @return The number of bytes of data in it.
+     */
+    private int getDataLength(int index) {
+        return Math.min(FragmentFrame.MAX_DATA_SIZE,
+                mBodyLength - index * FragmentFrame.MAX_DATA_SIZE);
+    }
+
+    /**
+     * Inflate the body straight out of the fragment buffers.
+     * @param dest Where to write the payload; it has room for mPayloadLength bytes.
+     * @return Whether the body inflated to exactly mPayloadLength bytes.
+     */
+    private boolean inflate(byte[] dest) {
+        Inflater inflater = new Inflater(true);
+        try {
+            int written = 0;
+            int next = 0;
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    // Raw inflate wants one byte past the end of the data to finish.
+                    if (next < mFragmentCount) {
+                        inflater.setInput(mFragments[next], 0, getDataLength(next));
+                        next++;
+                    } else if (next++ == mFragmentCount) {
+                        inflater.setInput(new byte[1]);
+                    } else {
+                        return false;
+                    }
+                }
+                int count = inflater.inflate(dest, written, mPayloadLength - written);
+                written += count;
+                // A full payload with more to come means the size was wrong.
+                if (count == 0 && written == mPayloadLength && !inflater.finished()
+                        && !inflater.needsInput()) {
+                    return false;
+                }
+                if (inflater.needsDictionary()) return false;
+            }
+            return written == mPayloadLength;
+        } catch (DataFormatException e) {
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadDecoder.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: The receiving end of the gamepad stream (see GamepadFrame). Frames are applied as soon as
+ *       they arrive if they are newer than the last one applied; older ones are dropped rather
+ *       than waited for or replayed, since only the latest state matters. Every applied frame
+ *       should be acked so the sender can base its deltas on it. Not thread safe.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.ByteBuffer;
+
+public class GamepadDecoder {
+    /** The frame was applied. */
+    public static final int RESULT_APPLIED = 0;
+
+    /** The frame was dropped because a newer one was already applied. */
+    public static final int RESULT_STALE = 1;
+
+    /** The frame was dropped because its base isn't remembered; the ack asks for a full frame. */
+    public static final int RESULT_MISSING_BASE = 2;
+
+    /** The datagram wasn't a gamepad frame. */
+    public static final int RESULT_MALFORMED = 3;
+
+    /** Recently applied states, indexed by sequence number modulo the history size. */
+    private final GamepadState[] mHistory = new GamepadState[GamepadFrame.HISTORY_SIZE];
+
+    /** The sequence numbers of the states in mHistory. */
+    private final int[] mHistorySequences = new int[GamepadFrame.HISTORY_SIZE];
+
+    /** The state being decoded, so a bad frame doesn't overwrite history. */
+    private final GamepadState mScratch = new GamepadState();
+
+    /** Whether anything has been applied since the decoder was made or reset. */
+    private boolean mStarted;
+
+    /** The sequence number of the last frame applied. */
+    private int mSequence;
+
+    /** The sequence number of the last frame decoded, applied or not. */
+    private int mLastSequence;
+
+    /** The time_us of the last frame decoded. */
+    private long mLastTimeMicros;
+
+    /** Whether the last frame decoded couldn't be applied for lack of a base. */
+    private boolean mNeedFull;
+
+    public GamepadDecoder() {
+        for (int i = 0; i < mHistory.length; i++) mHistory[i] = new GamepadState();
+    }
+
+    /**
+     * Decode a frame and apply it if it is the newest.
+     * @param in The datagram.
+     * @param out Set to the state the frame describes if it was applied; otherwise left alone.
+     * @return One of the RESULT_* values.
+     */
+    public int decode(ByteBuffer in, GamepadState out) {
+        if (!GamepadFrame.readHeader(
+                in, GamepadFrame.FRAME_MAGIC_1, GamepadFrame.FRAME_HEADER_SIZE)) {
+            return RESULT_MALFORMED;
+        }
+        int flags = in.get();
+        int sequence = in.getInt();
+        int baseSequence = in.getInt();
+        long timeMicros = in.getLong();
+        boolean full = (flags & GamepadFrame.FLAG_FULL) != 0;
+
+        // A full frame from far behind is a new stream rather than a late frame: streams start
+        // at a random sequence number.
+        if (mStarted && full && mSequence - sequence >= GamepadFrame.HISTORY_SIZE) reset();
+        if (mStarted && !GamepadFrame.isNewer(sequence, mSequence)) return RESULT_STALE;
+
+        if (full) {
+            mScratch.clear();
+        } else {
+            int baseSlot = baseSequence & (GamepadFrame.HISTORY_SIZE - 1);
+            if (!mStarted || mHistorySequences[baseSlot] != baseSequence
+                    || mSequence - baseSequence >= GamepadFrame.HISTORY_SIZE) {
+                mLastSequence = sequence;
+                mLastTimeMicros = timeMicros;
+                mNeedFull = true;
+                return RESULT_MISSING_BASE;
+            }
+            mScratch.copyFrom(mHistory[baseSlot]);
+        }
+        if (!GamepadFrame.readFields(in, mScratch)) return RESULT_MALFORMED;
+
+        int slot = sequence & (GamepadFrame.HISTORY_SIZE - 1);
+        mHistory[slot].copyFrom(mScratch);
+        mHistorySequences[slot] = sequence;
+        mStarted = true;
+        mSequence = sequence;
+        mLastSequence = sequence;
+        mLastTimeMicros = timeMicros;
+        mNeedFull = false;
+        out.copyFrom(mScratch);
+        return RESULT_APPLIED;
+    }
+
+    /**
+     * Write the ack for the last frame decoded. Only frames that were applied or were missing
+     * their base should be acked.
+     * @param out Where to write, with at least GamepadFrame.ACK_SIZE bytes remaining.
+     */
+    public void writeAck(ByteBuffer out) {
+        out.put(GamepadFrame.MAGIC_0);
+        out.put(GamepadFrame.ACK_MAGIC_1);
+        out.put(GamepadFrame.VERSION);
+        out.put((byte) (mNeedFull ? GamepadFrame.ACK_FLAG_NEED_FULL : 0));
+        out.putInt(mLastSequence);
+        out.putLong(mLastTimeMicros);
+    }
+
+    /** @return The time_us of the last frame decoded, on the sender's clock. */
+    public long getLastTimeMicros() {
+        return mLastTimeMicros;
+    }
+
+    /** Forget the stream so far, e.g. when its sender goes quiet. */
+    public void reset() {
+        mStarted = false;
+        mNeedFull = false;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadEncoder.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: The sending end of the gamepad stream (see GamepadFrame). Each frame describes the whole
+ *       state, either directly or as the changes from the newest frame the console acked, so the
+ *       console can apply any frame that arrives without waiting for the ones before it. Until
+ *       something is acked every frame is full. Not thread safe.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class GamepadEncoder {
+    /** Recently sent states, indexed by sequence number modulo the history size. */
+    private final GamepadState[] mHistory = new GamepadState[GamepadFrame.HISTORY_SIZE];
+
+    /** The sequence numbers of the states in mHistory. */
+    private final int[] mHistorySequences = new int[GamepadFrame.HISTORY_SIZE];
+
+    /**
+     * The sequence number of the last frame sent. Streams start at a random point so a console
+     * can tell a restarted stream from late frames of the old one.
+     */
+    private int mSequence = new Random().nextInt();
+
+    /** The newest sequence number the console acked. Only valid if mHasAck. */
+    private int mAckedSequence;
+
+    /** Whether there is an acked frame to send deltas from. */
+    private boolean mHasAck;
+
+    public GamepadEncoder() {
+        for (int i = 0; i < mHistory.length; i++) {
+            mHistory[i] = new GamepadState();
+            // Acks for the first frame aren't valid until it is sent, so none can match yet.
+            mHistorySequences[i] = mSequence + 1;
+        }
+    }
+
+    /**
+     * Write the next frame.
+     * @param out Where to write, with at least GamepadFrame.MAX_FRAME_SIZE bytes remaining.
+     * @param state The state to send.
+     * @param timeMicros The time on the sender's clock, echoed back in the ack.
+     * @return The sequence number of the frame.
+     */
+    public int encode(ByteBuffer out, GamepadState state, long timeMicros) {
+        int sequence = ++mSequence;
+        int slot = sequence & (GamepadFrame.HISTORY_SIZE - 1);
+        mHistory[slot].copyFrom(state);
+        mHistorySequences[slot] = sequence;
+
+        // The base's slot is only reused once the base is too old to use anyway.
+        boolean full = !mHasAck
+                || sequence - mAckedSequence >= GamepadFrame.HISTORY_SIZE;
+        GamepadState base =
+                full ? null : mHistory[mAckedSequence & (GamepadFrame.HISTORY_SIZE - 1)];
+
+        out.put(GamepadFrame.MAGIC_0);
+        out.put(GamepadFrame.FRAME_MAGIC_1);
+        out.put(GamepadFrame.VERSION);
+        out.put((byte) (full ? GamepadFrame.FLAG_FULL : 0));
+        out.putInt(sequence);
+        out.putInt(full ? 0 : mAckedSequence);
+        out.putLong(timeMicros);
+        GamepadFrame.writeFields(
+                out, full ? GamepadFrame.FIELD_ALL : GamepadFrame.diff(state, base), state);
+        return sequence;
+    }
+
+    /**
+     * Handle an ack from the console.
+     * @param in The datagram.
+     * @return The time_us of the acked frame, for measuring the round trip, or -1 if the datagram
+     *         wasn't an ack for a frame this encoder sent.
+     */
+    public long handleAck(ByteBuffer in) {
+        if (!GamepadFrame.readHeader(in, GamepadFrame.ACK_MAGIC_1, GamepadFrame.ACK_SIZE)) {
+            return -1;
+        }
+        int flags = in.get();
+        int sequence = in.getInt();
+        long timeMicros = in.getLong();
+
+        if ((flags & GamepadFrame.ACK_FLAG_NEED_FULL) != 0) {
+            mHasAck = false;
+            return timeMicros;
+        }
+        // Ignore acks for frames not sent or no longer remembered, e.g. from a previous stream.
+        if (GamepadFrame.isNewer(sequence, mSequence)
+                || mHistorySequences[sequence & (GamepadFrame.HISTORY_SIZE - 1)] != sequence) {
+            return -1;
+        }
+        if (!mHasAck || GamepadFrame.isNewer(sequence, mAckedSequence)) {
+            mAckedSequence = sequence;
+            mHasAck = true;
+        }
+        return timeMicros;
+    }
+
+    /**
+     * @param sequence The sequence number of a frame that was sent.
+     * @return Whether the console acked that frame or a newer one.
+     */
+    public boolean isAcked(int sequence) {
+        return mHasAck && !GamepadFrame.isNewer(sequence, mAckedSequence);
+    }
+
+    /** @return The sequence number of the last frame sent. */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /** Forget what was acked so the next frame is full, e.g. after switching consoles. */
+    public void reset() {
+        mHasAck = false;
+    }
+}
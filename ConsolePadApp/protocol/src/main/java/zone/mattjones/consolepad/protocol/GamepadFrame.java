@@ -0,0 +1,165 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadFrame.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: The wire format of the gamepad stream, which is separate from console messages and goes
+ *       over its own UDP port (ConsoleProtocol.GAMEPAD_PORT). The phone sends frames and the
+ *       console acks the ones it applies:
+ *
+ *       Frame: [0xC0 0x47][version:1][flags:1][sequence:4][base_sequence:4][time_us:8][fields:1]
+ *              [buttons:2][left_x:2][left_y:2][right_x:2][right_y:2][left_trigger:1]
+ *              [right_trigger:1]
+ *
+ *       Ack:   [0xC0 0x41][version:1][flags:1][sequence:4][time_us:8]
+ *
+ *       Only the values named in the fields bitmask are present. A full frame has them all; any
+ *       other frame only has the ones that differ from its base, which is a frame the console
+ *       already acked, so a lost frame never holds up the ones after it. time_us is the sender's
+ *       clock and is echoed in the ack so the phone can measure the round trip.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.ByteBuffer;
+
+public final class GamepadFrame {
+    /** The size of the largest frame. */
+    public static final int MAX_FRAME_SIZE = 2 + 1 + 1 + 4 + 4 + 8 + 1 + 2 + 4 * 2 + 2;
+
+    /** The size of an ack. */
+    public static final int ACK_SIZE = 2 + 1 + 1 + 4 + 8;
+
+    /** The first byte of frames and acks. */
+    static final byte MAGIC_0 = (byte) 0xC0;
+
+    /** The second byte of a frame. */
+    static final byte FRAME_MAGIC_1 = 0x47;
+
+    /** The second byte of an ack. */
+    static final byte ACK_MAGIC_1 = 0x41;
+
+    /** The version of the format written. */
+    static final byte VERSION = 1;
+
+    /** Set on frames that have every value and don't depend on a base. */
+    static final int FLAG_FULL = 1;
+
+    /** Set on acks when the console can't decode deltas, e.g. it restarted, so the phone resets. */
+    static final int ACK_FLAG_NEED_FULL = 1;
+
+    /** The size of a frame before its values. */
+    static final int FRAME_HEADER_SIZE = 2 + 1 + 1 + 4 + 4 + 8 + 1;
+
+    /**
+     * The number of recent frames both ends remember. A delta's base must be newer than this
+     * many frames ago; the sender falls back to full frames otherwise.
+     */
+    static final int HISTORY_SIZE = 64;
+
+    // The bits of the fields bitmask.
+    static final int FIELD_BUTTONS = 1;
+    static final int FIELD_LEFT_X = 1 << 1;
+    static final int FIELD_LEFT_Y = 1 << 2;
+    static final int FIELD_RIGHT_X = 1 << 3;
+    static final int FIELD_RIGHT_Y = 1 << 4;
+    static final int FIELD_LEFT_TRIGGER = 1 << 5;
+    static final int FIELD_RIGHT_TRIGGER = 1 << 6;
+    static final int FIELD_ALL = (1 << 7) - 1;
+
+    private GamepadFrame() {}
+
+    /**
+     * Compare sequence numbers, allowing for them to wrap around.
+     * @param sequence A sequence number.
+     * @param than Another sequence number.
+     * @return Whether the first comes after the second.
+     */
+    static boolean isNewer(int sequence, int than) {
+        return sequence - than > 0;
+    }
+
+    /**
+     * @param state A state.
+     * @param base The state it is compared to.
+     * @return The fields bitmask of the values that differ.
+     */
+    static int diff(GamepadState state, GamepadState base) {
+        int fields = 0;
+        if (state.buttons != base.buttons) fields |= FIELD_BUTTONS;
+        if (state.leftX != base.leftX) fields |= FIELD_LEFT_X;
+        if (state.leftY != base.leftY) fields |= FIELD_LEFT_Y;
+        if (state.rightX != base.rightX) fields |= FIELD_RIGHT_X;
+        if (state.rightY != base.rightY) fields |= FIELD_RIGHT_Y;
+        if (state.leftTrigger != base.leftTrigger) fields |= FIELD_LEFT_TRIGGER;
+        if (state.rightTrigger != base.rightTrigger) fields |= FIELD_RIGHT_TRIGGER;
+        return fields;
+    }
+
+    /**
+     * Write some of the values of a state.
+     * @param out Where to write, with at least MAX_FRAME_SIZE bytes remaining.
+     * @param fields The fields bitmask of the values to write.
+     * @param state The state.
+     */
+    static void writeFields(ByteBuffer out, int fields, GamepadState state) {
+        out.put((byte) fields);
+        if ((fields & FIELD_BUTTONS) != 0) out.putShort((short) state.buttons);
+        if ((fields & FIELD_LEFT_X) != 0) out.putShort((short) state.leftX);
+        if ((fields & FIELD_LEFT_Y) != 0) out.putShort((short) state.leftY);
+        if ((fields & FIELD_RIGHT_X) != 0) out.putShort((short) state.rightX);
+        if ((fields & FIELD_RIGHT_Y) != 0) out.putShort((short) state.rightY);
+        if ((fields & FIELD_LEFT_TRIGGER) != 0) out.put((byte) state.leftTrigger);
+        if ((fields & FIELD_RIGHT_TRIGGER) != 0) out.put((byte) state.rightTrigger);
+    }
+
+    /**
+     * Read the values written by writeFields() over the top of a state.
+     * @param in The buffer, positioned at the fields bitmask.
+     * @param state The state to update; values that weren't written are left alone.
+     * @return Whether the values were all there.
+     */
+    static boolean readFields(ByteBuffer in, GamepadState state) {
+        if (!in.hasRemaining()) return false;
+        int fields = in.get() & 0xFF;
+        if (in.remaining() < fieldsSize(fields)) return false;
+        if ((fields & FIELD_BUTTONS) != 0) state.buttons = in.getShort() & 0xFFFF;
+        if ((fields & FIELD_LEFT_X) != 0) state.leftX = in.getShort();
+        if ((fields & FIELD_LEFT_Y) != 0) state.leftY = in.getShort();
+        if ((fields & FIELD_RIGHT_X) != 0) state.rightX = in.getShort();
+        if ((fields & FIELD_RIGHT_Y) != 0) state.rightY = in.getShort();
+        if ((fields & FIELD_LEFT_TRIGGER) != 0) state.leftTrigger = in.get() & 0xFF;
+        if ((fields & FIELD_RIGHT_TRIGGER) != 0) state.rightTrigger = in.get() & 0xFF;
+        return true;
+    }
+
+    /**
+     * @param fields A fields bitmask.
+     * @return The number of bytes the values it names take up.
+     */
+    private static int fieldsSize(int fields) {
+        // Every value but the triggers is two bytes.
+        int size = 2 * Integer.bitCount(fields & ~(FIELD_LEFT_TRIGGER | FIELD_RIGHT_TRIGGER));
+        return size + Integer.bitCount(fields & (FIELD_LEFT_TRIGGER | FIELD_RIGHT_TRIGGER));
+    }
+
+    /**
+     * Check that a buffer starts with the magic bytes and version of a frame or ack.
+     * @param in The buffer, positioned at the start. On success it is left after the version.
+     * @param magic1 FRAME_MAGIC_1 or ACK_MAGIC_1.
+     * @param size The smallest size the message can be.
+     * @return Whether the message is the expected kind.
+     */
+    static boolean readHeader(ByteBuffer in, byte magic1, int size) {
+        if (in.remaining() < size) return false;
+        int start = in.position();
+        // Newer versions may add to the end but keep what's here the same.
+        if (in.get(start) != MAGIC_0 || in.get(start + 1) != magic1
+                || in.get(start + 2) < VERSION) {
+            return false;
+        }
+        in.position(start + 3);
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadState.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: Everything a controller reports at one moment: which buttons are down and where the
+ *       sticks and triggers are. The layout matches an Xbox 360 controller since that is what
+ *       the emulators on the console are set up for. Instances are reused so streaming state
+ *       doesn't create garbage.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public class GamepadState {
+    // The buttons, as bits in the buttons field.
+    public static final int BUTTON_A = 1;
+    public static final int BUTTON_B = 1 << 1;
+    public static final int BUTTON_X = 1 << 2;
+    public static final int BUTTON_Y = 1 << 3;
+    public static final int BUTTON_LEFT_SHOULDER = 1 << 4;
+    public static final int BUTTON_RIGHT_SHOULDER = 1 << 5;
+    public static final int BUTTON_BACK = 1 << 6;
+    public static final int BUTTON_START = 1 << 7;
+    public static final int BUTTON_LEFT_THUMB = 1 << 8;
+    public static final int BUTTON_RIGHT_THUMB = 1 << 9;
+    public static final int BUTTON_DPAD_UP = 1 << 10;
+    public static final int BUTTON_DPAD_DOWN = 1 << 11;
+    public static final int BUTTON_DPAD_LEFT = 1 << 12;
+    public static final int BUTTON_DPAD_RIGHT = 1 << 13;
+    public static final int BUTTON_GUIDE = 1 << 14;
+
+    /** The range of a stick axis; 0 is centered and positive is right or up. */
+    public static final int AXIS_MIN = Short.MIN_VALUE;
+    public static final int AXIS_MAX = Short.MAX_VALUE;
+
+    /** The value of a fully pulled trigger; 0 is released. */
+    public static final int TRIGGER_MAX = 255;
+
+    /** The buttons that are down, as BUTTON_* bits. */
+    public int buttons;
+    /** The left stick, in [AXIS_MIN, AXIS_MAX]. */
+    public int leftX;
+    public int leftY;
+    /** The right stick, in [AXIS_MIN, AXIS_MAX]. */
+    public int rightX;
+    public int rightY;
+    /** The triggers, in [0, TRIGGER_MAX]. */
+    public int leftTrigger;
+    public int rightTrigger;
+
+    /**
+     * Make this state the same as another.
+     * @param other The state to copy.
+     */
+    public void copyFrom(GamepadState other) {
+        buttons = other.buttons;
+        leftX = other.leftX;
+        leftY = other.leftY;
+        rightX = other.rightX;
+        rightY = other.rightY;
+        leftTrigger = other.leftTrigger;
+        rightTrigger = other.rightTrigger;
+    }
+
+    /** Release everything, which is what the console should see when the phone goes away. */
+    public void clear() {
+        buttons = 0;
+        leftX = 0;
+        leftY = 0;
+        rightX = 0;
+        rightY = 0;
+        leftTrigger = 0;
+        rightTrigger = 0;
+    }
+
+    /**
+     * @param other Another state.
+     * @return Whether every button, stick and trigger is the same in both.
+     */
+    public boolean sameAs(GamepadState other) {
+        return buttons == other.buttons && leftX == other.leftX && leftY == other.leftY
+                && rightX == other.rightX && rightY == other.rightY
+                && leftTrigger == other.leftTrigger && rightTrigger == other.rightTrigger;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("buttons=%04x left=(%d,%d) right=(%d,%d) triggers=(%d,%d)",
+                buttons, leftX, leftY, rightX, rightY, leftTrigger, rightTrigger);
+    }
+}
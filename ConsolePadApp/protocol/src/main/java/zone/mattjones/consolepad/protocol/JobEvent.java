@@ -0,0 +1,92 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: JobEvent.java
+ * Author: Matt Jones
+ * Date: 2019.10.14
+ * Desc: The state of a job, which is an action the console keeps running after it responds, like
+ *       a script. The response to such an action is the job's RUNNING event, and the DONE or
+ *       FAILED event is pushed to status subscribers when it ends:
+ *
+ *       JOB:job_id:state:elapsed_ms:exit_code:action
+ *
+ *       Example:
+ *
+ *       JOB:17:RUNNING:0:0:HOME  ->  JOB:17:DONE:2310:0:HOME
+ *
+ *       Apps that ignore response payloads keep working since the event is only a payload.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public final class JobEvent {
+    /** The start of every job event. */
+    public static final String PREFIX = "JOB:";
+
+    // The states of a job.
+    public static final String STATE_RUNNING = "RUNNING";
+    public static final String STATE_DONE = "DONE";
+    public static final String STATE_FAILED = "FAILED";
+
+    /** The state reported for a job the console doesn't remember, e.g. after a restart. */
+    public static final String STATE_UNKNOWN = "UNKNOWN";
+
+    /** The delimiter between the fields of an event. */
+    private static final String FIELD_SEPARATOR = ":";
+
+    /** The number of fields after the prefix. */
+    private static final int FIELD_COUNT = 5;
+
+    /** The ID the console gave the job, unique until the console restarts. */
+    public final long jobId;
+    /** The state of the job, one of the STATE_* values. */
+    public final String state;
+    /** The time the job has been running, or ran for once it ended. */
+    public final long elapsedMs;
+    /** The exit code of the job once it ended; 0 unless it failed. */
+    public final int exitCode;
+    /** The action the job is running. */
+    public final String action;
+
+    public JobEvent(long jobId, String state, long elapsedMs, int exitCode, String action) {
+        this.jobId = jobId;
+        this.state = state;
+        this.elapsedMs = elapsedMs;
+        this.exitCode = exitCode;
+        this.action = action;
+    }
+
+    /** @return Whether the job ended, one way or the other. */
+    public boolean isFinished() {
+        return !STATE_RUNNING.equals(state);
+    }
+
+    /**
+     * Read a job event.
+     * @param message A response or pushed payload.
+     * @return The event or null if the message isn't a well-formed job event.
+     */
+    public static JobEvent decode(String message) {
+        if (message == null || !message.startsWith(PREFIX)) return null;
+        // The action is last so it can contain the separator.
+        String[] fields = message.substring(PREFIX.length()).split(FIELD_SEPARATOR, FIELD_COUNT);
+        if (fields.length != FIELD_COUNT) return null;
+        try {
+            return new JobEvent(Long.parseLong(fields[0]), fields[1], Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), fields[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** @return The event as it is sent. */
+    public String encode() {
+        return PREFIX + jobId + FIELD_SEPARATOR + state + FIELD_SEPARATOR + elapsedMs
+                + FIELD_SEPARATOR + exitCode + FIELD_SEPARATOR + action;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LargeResponse.java
+ * Author: Matt Jones
+ * Date: 2019.10.17
+ * Desc: Builds and reads the actions that ask for a response in fragments (see FragmentFrame),
+ *       and splits a response into them on the console. The app wraps an action and says which
+ *       compression it can read:
+ *
+ *       LARGE:deflate:EMULATORS
+ *
+ *       The console runs the inner action and sends the response back in fragments, deflated if
+ *       the app allowed it and that made it smaller. If fragments were lost, the app asks for
+ *       just those by the ID of the original request:
+ *
+ *       FRAGMENTS:1571234567890:3,7,12-15
+ *
+ *       The console keeps a few recent large responses to answer these. A console that doesn't
+ *       know about large responses answers the wrapped action with a normal message, or not at
+ *       all, so the app still gets something it understands.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.zip.Deflater;
+
+public class LargeResponse {
+    /** The name of raw deflate in the list of compressions the app can read. */
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    /** The delimiter between the fields of the actions. */
+    private static final String FIELD_SEPARATOR = ":";
+
+    /** The delimiter between the compressions and between the fragment ranges. */
+    private static final String LIST_SEPARATOR = ",";
+
+    /** The delimiter between the ends of a range of fragments. */
+    private static final String RANGE_SEPARATOR = "-";
+
+    /** Responses smaller than this aren't worth deflating. */
+    private static final int MIN_DEFLATE_SIZE = 256;
+
+    /** FragmentFrame.FLAG_DEFLATE or 0. */
+    private final int mFlags;
+
+    /** The body that is split into fragments. */
+    private final byte[] mBody;
+
+    /** The number of valid bytes in mBody. */
+    private final int mBodyLength;
+
+    /** The size of the UTF-8 payload before it was deflated. */
+    private final int mPayloadLength;
+
+    /**
+     * Prepare a response to be sent in fragments.
+     * @param response The response.
+     * @param deflate Whether the app can read deflated responses.
+     * @throws IllegalArgumentException If the response is larger than the app will accept.
+     */
+    public LargeResponse(String response, boolean deflate) {
+        byte[] payload = response.getBytes(Charset.forName("UTF8"));
+        if (payload.length > FragmentFrame.MAX_RESPONSE_SIZE) {
+            throw new IllegalArgumentException("Response too large: " + payload.length);
+        }
+        mPayloadLength = payload.length;
+        if (deflate && payload.length >= MIN_DEFLATE_SIZE) {
+            ByteArrayOutputStream deflated = deflate(payload);
+            if (deflated.size() < payload.length) {
+                mFlags = FragmentFrame.FLAG_DEFLATE;
+                mBody = deflated.toByteArray();
+                mBodyLength = mBody.length;
+                return;
+            }
+        }
+        mFlags = 0;
+        mBody = payload;
+        mBodyLength = payload.length;
+    }
+
+    /**
+     * Wrap an action so its response comes back in fragments.
+     * @param action The action to run.
+     * @param deflate Whether the response may be deflated.
+     * @return The action to send.
+     */
+    public static String wrapRequest(String action, boolean deflate) {
+        return ConsoleProtocol.ACTION_LARGE_PREFIX + (deflate ? ENCODING_DEFLATE : "")
+                + FIELD_SEPARATOR + action;
+    }
+
+    /**
+     * @param action An action.
+     * @return Whether the action asks for its response in fragments.
+     */
+    public static boolean isRequest(String action) {
+        return action != null && action.startsWith(ConsoleProtocol.ACTION_LARGE_PREFIX)
+                && action.indexOf(FIELD_SEPARATOR, ConsoleProtocol.ACTION_LARGE_PREFIX.length())
+                        >= 0;
+    }
+
+    /**
+     * @param request An action for which isRequest() is true.
+     * @return The action wrapped inside it.
+     */
+    public static String getInnerAction(String request) {
+        int start = request.indexOf(FIELD_SEPARATOR, ConsoleProtocol.ACTION_LARGE_PREFIX.length());
+        return request.substring(start + 1);
+    }
+
+    /**
+     * @param request An action for which isRequest() is true.
+     * @return Whether the app can read deflated responses.
+     */
+    public static boolean acceptsDeflate(String request) {
+        int prefixLength = ConsoleProtocol.ACTION_LARGE_PREFIX.length();
+        String encodings = request.substring(prefixLength,
+                request.indexOf(FIELD_SEPARATOR, prefixLength));
+        for (String encoding : encodings.split(LIST_SEPARATOR)) {
+            if (ENCODING_DEFLATE.equals(encoding)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Build the action that asks for fragments to be sent again.
+     * @param requestId The ID of the request the response answered.
+     * @param fragments The fragments wanted, e.g. "3,7,12-15".
+     * @return The action to send.
+     */
+    public static String wrapFragmentsRequest(long requestId, String fragments) {
+        return ConsoleProtocol.ACTION_FRAGMENTS_PREFIX + requestId + FIELD_SEPARATOR + fragments;
+    }
+
+    /**
+     * @param action An action.
+     * @return The ID of the request whose fragments the action asks for, or -1 if it isn't a
+     *         well-formed fragments request.
+     */
+    public static long getFragmentsRequestId(String action) {
+        if (action == null || !action.startsWith(ConsoleProtocol.ACTION_FRAGMENTS_PREFIX)) {
+            return -1;
+        }
+        int start = ConsoleProtocol.ACTION_FRAGMENTS_PREFIX.length();
+        int end = action.indexOf(FIELD_SEPARATOR, start);
+        if (end < 0) return -1;
+        try {
+            return Long.parseLong(action.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param action An action for which getFragmentsRequestId() isn't -1.
+     * @param count The number of fragments in the response.
+     * @return The fragments asked for. Ranges past the end or that don't parse are ignored.
+     */
+    public static BitSet getRequestedFragments(String action, int count) {
+        BitSet fragments = new BitSet(count);
+        String list = action.substring(action.indexOf(FIELD_SEPARATOR,
+                ConsoleProtocol.ACTION_FRAGMENTS_PREFIX.length()) + 1);
+        for (String range : list.split(LIST_SEPARATOR)) {
+            int separator = range.indexOf(RANGE_SEPARATOR);
+            try {
+                int first = Integer.parseInt(separator < 0 ? range : range.substring(0, separator));
+                int last = separator < 0 ? first : Integer.parseInt(range.substring(separator + 1));
+                if (first < 0 || first > last || first >= count) continue;
+                fragments.set(first, Math.min(last, count - 1) + 1);
+            } catch (NumberFormatException e) {
+                // Skip it; the app will ask again for whatever it still misses.
+            }
+        }
+        return fragments;
+    }
+
+    /** @return The number of fragments the response is sent in. */
+    public int getFragmentCount() {
+        return FragmentFrame.getFragmentCount(mBodyLength);
+    }
+
+    /** @return Whether the body is deflated. */
+    public boolean isDeflated() {
+        return mFlags == FragmentFrame.FLAG_DEFLATE;
+    }
+
+    /**
+     * Write one fragment of the response.
+     * @param out The buffer to write to. It needs FragmentFrame.MAX_FRAME_SIZE bytes free.
+     * @param replyTo The ID of the request being answered.
+     * @param index The fragment to write, less than getFragmentCount().
+     */
+    public void writeFragment(ByteBuffer out, long replyTo, int index) {
+        FragmentFrame.write(out, mFlags, replyTo, mBody, mBodyLength, mPayloadLength, index);
+    }
+
+    /**
+     * @param payload The bytes to compress.
+     * @return The bytes as raw deflate, which both this and .NET's DeflateStream read.
+     */
+    private static ByteArrayOutputStream deflate(byte[] payload) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(payload);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4 + 64);
+        byte[] chunk = new byte[FragmentFrame.MAX_DATA_SIZE];
+        while (!deflater.finished()) out.write(chunk, 0, deflater.deflate(chunk));
+        deflater.end();
+        return out;
+    }
+}
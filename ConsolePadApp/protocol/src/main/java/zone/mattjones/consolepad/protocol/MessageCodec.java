@@ -0,0 +1,384 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: MessageCodec.java
+ * Author: Matt Jones
+ * Date: 2019.09.15
+ * Desc: Encodes and decodes protocol messages directly to and from byte buffers. Two formats are
+ *       supported:
+ *
+ *       Text (always understood by the console):
+ *       !!ConsoleMessage:|current_time_ms|machine_name|[reply_to|]base_64_message|
+ *
+ *       Binary (only used after the console agrees to it, see ACTION_FORMAT_BINARY):
+ *       [0xC0 0x4D][version:1][current_time_ms:8][name_length:1][name][payload_length:2][payload]
+ *       [reply_to:8]
+ *
+ *       The optional reply_to field is set on responses to the current_time_ms of the request
+ *       being answered so the response can be matched to it. Older consoles leave it off. In the
+ *       text format it goes before the payload because older apps take the last field as the
+ *       payload and skip the ones in between.
+ *
+ *       Decoding picks the format from the first byte and does not allocate. A codec keeps some
+ *       scratch space, so each thread should use its own instance.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+public class MessageCodec {
+    /** The original '|' separated text format. */
+    public static final int FORMAT_TEXT = 0;
+
+    /** The compact binary format. */
+    public static final int FORMAT_BINARY = 1;
+
+    /** The first two bytes of every binary message. '!' can never start a binary message. */
+    private static final byte BINARY_MAGIC_0 = (byte) 0xC0;
+    private static final byte BINARY_MAGIC_1 = (byte) 0x4D;
+
+    /** The version of the binary format this codec writes. */
+    private static final byte BINARY_VERSION = 1;
+
+    /** The largest payload the binary format's 2 byte length field can describe. */
+    private static final int MAX_BINARY_PAYLOAD_LENGTH = 0xFFFF;
+
+    /** The size of a binary message with an empty name and payload. */
+    private static final int BINARY_HEADER_SIZE = 2 + 1 + 8 + 1 + 2;
+
+    /** The character used for padding base 64 data. */
+    private static final byte BASE64_PAD = '=';
+
+    /** The base 64 alphabet. */
+    private static final byte[] BASE64_ENCODE =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+                    .getBytes(Charset.forName("UTF8"));
+
+    /** A map from an ASCII character to its base 64 value or -1 if it is not in the alphabet. */
+    private static final byte[] BASE64_DECODE = new byte[128];
+    static {
+        for (int i = 0; i < BASE64_DECODE.length; i++) BASE64_DECODE[i] = -1;
+        for (int i = 0; i < BASE64_ENCODE.length; i++) BASE64_DECODE[BASE64_ENCODE[i]] = (byte) i;
+    }
+
+    /** The magic prefix as bytes. */
+    private static final byte[] MAGIC_PREFIX_BYTES =
+            ConsoleProtocol.MAGIC_PREFIX.getBytes(Charset.forName("UTF8"));
+
+    /** The separator as a single byte. */
+    private static final byte SEPARATOR_BYTE = (byte) ConsoleProtocol.SEPARATOR.charAt(0);
+
+    /** The name of this device as UTF-8 bytes, computed once. */
+    private final byte[] mDeviceName;
+
+    /** Scratch space for the UTF-8 form of an outgoing payload. */
+    private final byte[] mPayloadScratch = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+
+    /** Scratch space for writing out the digits of a number. */
+    private final byte[] mDigitScratch = new byte[20];
+
+    /**
+     * @param deviceName The name of this device to put in outgoing messages.
+     */
+    public MessageCodec(String deviceName) {
+        byte[] name = deviceName.getBytes(Charset.forName("UTF8"));
+        if (name.length > ConsoleMessage.MAX_DEVICE_NAME_LENGTH) {
+            name = Arrays.copyOf(name, ConsoleMessage.MAX_DEVICE_NAME_LENGTH);
+        }
+        mDeviceName = name;
+    }
+
+    /**
+     * Write a request into a buffer starting at its current position.
+     * @param out The buffer to write to. Its position is moved past the message.
+     * @param format Either FORMAT_TEXT or FORMAT_BINARY.
+     * @param timestamp The time to put in the message header. This doubles as the request's ID.
+     * @param message The payload of the message.
+     * @throws BufferOverflowException If the message does not fit.
+     */
+    public void encode(ByteBuffer out, int format, long timestamp, String message) {
+        encode(out, format, timestamp, 0, message);
+    }
+
+    /**
+     * Write a message into a buffer starting at its current position.
+     * @param out The buffer to write to. Its position is moved past the message.
+     * @param format Either FORMAT_TEXT or FORMAT_BINARY.
+     * @param timestamp The time to put in the message header.
+     * @param replyTo The timestamp of the request this responds to or 0 if it isn't a response.
+     * @param message The payload of the message.
+     * @throws BufferOverflowException If the message does not fit, in which case nothing was
+     *         written if the payload itself is too big.
+     */
+    public void encode(ByteBuffer out, int format, long timestamp, long replyTo, String message) {
+        int payloadLength = toUtf8(message);
+        if (format == FORMAT_BINARY) {
+            if (payloadLength > MAX_BINARY_PAYLOAD_LENGTH) throw new BufferOverflowException();
+            out.put(BINARY_MAGIC_0);
+            out.put(BINARY_MAGIC_1);
+            out.put(BINARY_VERSION);
+            out.putLong(timestamp);
+            out.put((byte) mDeviceName.length);
+            out.put(mDeviceName);
+            out.putShort((short) payloadLength);
+            out.put(mPayloadScratch, 0, payloadLength);
+            if (replyTo != 0) out.putLong(replyTo);
+            return;
+        }
+
+        out.put(MAGIC_PREFIX_BYTES);
+        out.put(SEPARATOR_BYTE);
+        putDigits(out, timestamp);
+        out.put(SEPARATOR_BYTE);
+        out.put(mDeviceName);
+        out.put(SEPARATOR_BYTE);
+        if (replyTo != 0) {
+            putDigits(out, replyTo);
+            out.put(SEPARATOR_BYTE);
+        }
+        putBase64(out, mPayloadScratch, payloadLength);
+        out.put(SEPARATOR_BYTE);
+    }
+
+    /**
+     * Decode a message from the remaining bytes of a buffer.
+     * @param in The buffer to read. On success its position is moved to its limit.
+     * @param out The message to fill in.
+     * @return Whether the bytes were a valid message; if not, the contents of out are undefined.
+     */
+    public static boolean decode(ByteBuffer in, ConsoleMessage out) {
+        if (!in.hasRemaining()) return false;
+        boolean valid = in.get(in.position()) == BINARY_MAGIC_0
+                ? decodeBinary(in, out) : decodeText(in, out);
+        if (valid) in.position(in.limit());
+        return valid;
+    }
+
+    /**
+     * Decode a binary message.
+     * @param in The buffer to read.
+     * @param out The message to fill in.
+     * @return Whether the message was valid.
+     */
+    private static boolean decodeBinary(ByteBuffer in, ConsoleMessage out) {
+        int pos = in.position();
+        int end = in.limit();
+        if (end - pos < BINARY_HEADER_SIZE || in.get(pos + 1) != BINARY_MAGIC_1) return false;
+
+        // Versions are backwards compatible, so newer messages are still read.
+        pos += 3;
+        out.mTimestamp = in.getLong(pos);
+        pos += 8;
+
+        int nameLength = in.get(pos) & 0xFF;
+        pos += 1;
+        if (end - pos < nameLength + 2) return false;
+        copy(in, pos, out.mDeviceName, nameLength);
+        out.mDeviceNameLength = nameLength;
+        pos += nameLength;
+
+        int payloadLength = in.getShort(pos) & 0xFFFF;
+        pos += 2;
+        if (end - pos < payloadLength || payloadLength > out.mPayload.length) return false;
+        copy(in, pos, out.mPayload, payloadLength);
+        out.mPayloadLength = payloadLength;
+        pos += payloadLength;
+
+        out.mReplyTo = end - pos >= 8 ? in.getLong(pos) : 0;
+        out.mFormat = FORMAT_BINARY;
+        return true;
+    }
+
+    /**
+     * Decode a text message.
+     * @param in The buffer to read.
+     * @param out The message to fill in.
+     * @return Whether the message was valid.
+     */
+    private static boolean decodeText(ByteBuffer in, ConsoleMessage out) {
+        int pos = in.position();
+        int end = in.limit();
+
+        // Magic prefix.
+        if (end - pos < MAGIC_PREFIX_BYTES.length + 1) return false;
+        for (int i = 0; i < MAGIC_PREFIX_BYTES.length; i++) {
+            if (in.get(pos++) != MAGIC_PREFIX_BYTES[i]) return false;
+        }
+        if (in.get(pos++) != SEPARATOR_BYTE) return false;
+
+        // Time.
+        int timeEnd = findSeparator(in, pos, end);
+        long time = parseDigits(in, pos, timeEnd);
+        if (time < 0 || timeEnd >= end) return false;
+        out.mTimestamp = time;
+        pos = timeEnd + 1;
+
+        // Device name.
+        int nameLength = 0;
+        for (; pos < end && in.get(pos) != SEPARATOR_BYTE; pos++) {
+            if (nameLength >= out.mDeviceName.length) return false;
+            out.mDeviceName[nameLength++] = in.get(pos);
+        }
+        if (pos++ >= end) return false;
+        out.mDeviceNameLength = nameLength;
+
+        // Optional reply-to ID, only there if another field follows it.
+        int fieldEnd = findSeparator(in, pos, end);
+        out.mReplyTo = 0;
+        if (fieldEnd + 1 < end) {
+            long replyTo = parseDigits(in, pos, fieldEnd);
+            if (replyTo <= 0) return false;
+            out.mReplyTo = replyTo;
+            pos = fieldEnd + 1;
+            fieldEnd = findSeparator(in, pos, end);
+        }
+
+        // Payload. The trailing separator is optional.
+        int payloadLength = decodeBase64(in, pos, fieldEnd, out.mPayload);
+        if (payloadLength < 0) return false;
+        out.mPayloadLength = payloadLength;
+
+        out.mFormat = FORMAT_TEXT;
+        return true;
+    }
+
+    /**
+     * Find the next separator in a buffer.
+     * @param in The buffer to search.
+     * @param from The absolute index to start at.
+     * @param end The absolute index to stop at.
+     * @return The index of the separator or end if there isn't one.
+     */
+    private static int findSeparator(ByteBuffer in, int from, int end) {
+        while (from < end && in.get(from) != SEPARATOR_BYTE) from++;
+        return from;
+    }
+
+    /**
+     * Parse a non-negative decimal number.
+     * @param in The buffer holding the digits.
+     * @param from The absolute index of the first digit.
+     * @param to The absolute index after the last digit.
+     * @return The number or -1 if the range was empty, too long or not all digits.
+     */
+    private static long parseDigits(ByteBuffer in, int from, int to) {
+        if (from >= to || to - from > 18) return -1;
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = in.get(i) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Copy bytes out of a buffer without changing its position.
+     * @param in The buffer to copy from.
+     * @param from The absolute index to start at.
+     * @param dest The array to copy into.
+     * @param length The number of bytes to copy.
+     */
+    private static void copy(ByteBuffer in, int from, byte[] dest, int length) {
+        if (in.hasArray()) {
+            System.arraycopy(in.array(), in.arrayOffset() + from, dest, 0, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) dest[i] = in.get(from + i);
+    }
+
+    /**
+     * Convert a string to UTF-8 in the payload scratch space. ASCII, which all of the actions
+     * are, is converted without allocating.
+     * @param message The string to convert.
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If the UTF-8 form doesn't fit in the scratch space.
+     */
+    private int toUtf8(String message) {
+        int length = message.length();
+        // Every char is at least one byte, so this rules out most oversized payloads early.
+        if (length > mPayloadScratch.length) throw new BufferOverflowException();
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = message.getBytes(Charset.forName("UTF8"));
+                if (bytes.length > mPayloadScratch.length) throw new BufferOverflowException();
+                System.arraycopy(bytes, 0, mPayloadScratch, 0, bytes.length);
+                return bytes.length;
+            }
+            mPayloadScratch[i] = (byte) c;
+        }
+        return length;
+    }
+
+    /**
+     * Write the decimal digits of a non-negative number.
+     * @param out The buffer to write to.
+     * @param value The number to write.
+     */
+    private void putDigits(ByteBuffer out, long value) {
+        int count = 0;
+        do {
+            mDigitScratch[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        while (count > 0) out.put(mDigitScratch[--count]);
+    }
+
+    /**
+     * Write bytes as padded base 64.
+     * @param out The buffer to write to.
+     * @param data The bytes to encode.
+     * @param length The number of bytes from the start of data to encode.
+     */
+    private static void putBase64(ByteBuffer out, byte[] data, int length) {
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            out.put(BASE64_ENCODE[(bits >>> 18) & 0x3F]);
+            out.put(BASE64_ENCODE[(bits >>> 12) & 0x3F]);
+            out.put(BASE64_ENCODE[(bits >>> 6) & 0x3F]);
+            out.put(BASE64_ENCODE[bits & 0x3F]);
+        }
+        int remaining = length - i;
+        if (remaining == 0) return;
+
+        int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+        out.put(BASE64_ENCODE[(bits >>> 18) & 0x3F]);
+        out.put(BASE64_ENCODE[(bits >>> 12) & 0x3F]);
+        out.put(remaining == 2 ? BASE64_ENCODE[(bits >>> 6) & 0x3F] : BASE64_PAD);
+        out.put(BASE64_PAD);
+    }
+
+    /**
+     * Decode base 64 text from a buffer.
+     * @param in The buffer holding the text.
+     * @param from The absolute index of the first character.
+     * @param to The absolute index after the last character.
+     * @param dest Where to write the decoded bytes.
+     * @return The number of decoded bytes or -1 if the text was not valid base 64.
+     */
+    private static int decodeBase64(ByteBuffer in, int from, int to, byte[] dest) {
+        int bits = 0;
+        int bitCount = 0;
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            int c = in.get(i);
+            if (c == BASE64_PAD) break;
+            if (c < 0 || BASE64_DECODE[c] < 0) return -1;
+
+            bits = (bits << 6) | BASE64_DECODE[c];
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                if (length >= dest.length) return -1;
+                dest[length++] = (byte) (bits >>> bitCount);
+            }
+        }
+        return length;
+    }
+}
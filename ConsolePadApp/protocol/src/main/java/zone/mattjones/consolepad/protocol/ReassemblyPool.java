@@ -0,0 +1,60 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ReassemblyPool.java
+ * Author: Matt Jones
+ * Date: 2019.10.17
+ * Desc: The buffers fragments are kept in until their response is whole, shared by every
+ *       FragmentReassembler of a client. There is a cap on how many are lent out at once, so a
+ *       flood of fragments can't use more than a fixed amount of memory; a fragment that doesn't
+ *       get a buffer is dropped and asked for again later. A few returned buffers are kept for
+ *       the next response and the rest are left to the garbage collector.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.util.ArrayDeque;
+
+public class ReassemblyPool {
+    /** The number of buffers kept for reuse once returned. */
+    private static final int MAX_IDLE_BUFFERS = 64;
+
+    /** The most buffers lent out at once. */
+    private final int mCapacity;
+
+    /** Returned buffers waiting to be reused. */
+    private final ArrayDeque<byte[]> mIdle = new ArrayDeque<>();
+
+    /** The number of buffers lent out. */
+    private int mLent;
+
+    /**
+     * @param capacityBytes The most fragment data held at once. Enough for at least one response
+     *                      of FragmentFrame.MAX_RESPONSE_SIZE is best.
+     */
+    public ReassemblyPool(int capacityBytes) {
+        mCapacity = Math.max(1, capacityBytes / FragmentFrame.MAX_DATA_SIZE);
+    }
+
+    /** @return A buffer of FragmentFrame.MAX_DATA_SIZE bytes or null if the cap was reached. */
+    public synchronized byte[] take() {
+        if (mLent >= mCapacity) return null;
+        mLent++;
+        byte[] buffer = mIdle.poll();
+        return buffer != null ? buffer : new byte[FragmentFrame.MAX_DATA_SIZE];
+    }
+
+    /**
+     * Return a buffer from take().
+     * @param buffer The buffer, which the caller must not use again.
+     */
+    public synchronized void give(byte[] buffer) {
+        mLent--;
+        if (mIdle.size() < MAX_IDLE_BUFFERS) mIdle.push(buffer);
+    }
+
+    /** @return The number of buffers lent out. */
+    public synchronized int getLentCount() {
+        return mLent;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ReplayGuard.java
+ * Author: Matt Jones
+ * Date: 2019.10.16
+ * Desc: Decides whether a request from one device is new enough to run. A request is stale if it
+ *       was sent more than ConsoleProtocol.MAX_REQUEST_AGE_MS ago, judged against the device's
+ *       clock as estimated from its earlier requests (see ClockOffsetEstimator), and a replay if
+ *       its ID was already accepted. IDs are the send times, so the IDs already accepted are kept
+ *       as one bit per ms in a sliding window behind the newest, the same way IPsec catches
+ *       replayed packets. Every check is constant time and the guard never allocates.
+ *
+ *       A device whose clock steps backwards would look stale forever, so once its requests have
+ *       been stale for a couple of seconds straight the guard starts over with it. A burst of
+ *       late packets arrives all at once and doesn't count as a step. This protects against
+ *       late and repeated packets, not against someone forging them.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public class ReplayGuard {
+    /** The request is new and may be run. */
+    public static final int ACCEPTED = 0;
+
+    /** The request was sent too long ago. */
+    public static final int REJECTED_STALE = 1;
+
+    /** The request was already accepted once. */
+    public static final int REJECTED_REPLAY = 2;
+
+    /** The span of IDs remembered behind the newest, in ms. A power of two. */
+    private static final int WINDOW_BITS = 32768;
+
+    /** The number of distinct stale requests in a row taken to mean the device's clock moved. */
+    private static final int CLOCK_STEP_REJECTIONS = 3;
+
+    /** The time requests must keep being stale for before the device's clock is said to move. */
+    private static final long CLOCK_STEP_CONFIRM_MS = 2000;
+
+    /** The device's clock relative to ours. */
+    private final ClockOffsetEstimator mClock = new ClockOffsetEstimator();
+
+    /** The IDs accepted, one bit per ms, indexed by ID modulo WINDOW_BITS. */
+    private final long[] mWindow = new long[WINDOW_BITS / Long.SIZE];
+
+    /** The newest ID accepted. Only valid if mStarted. */
+    private long mNewestId;
+
+    /** Whether anything has been accepted since the guard was made or reset. */
+    private boolean mStarted;
+
+    /** The number of distinct stale requests in a row. */
+    private int mStaleCount;
+
+    /** The ID of the last stale request, so a retried one is only counted once. */
+    private long mLastStaleId;
+
+    /** The time the first of the stale requests in a row arrived by our clock. */
+    private long mFirstStaleMs;
+
+    static {
+        // The window must cover every request young enough to pass the age check.
+        if (WINDOW_BITS <= ConsoleProtocol.MAX_REQUEST_AGE_MS) throw new AssertionError();
+    }
+
+    /**
+     * Check a request and remember it if it is accepted.
+     * @param requestId The request's ID, which is the time it was sent by the device's clock.
+     * @param nowMs The time it arrived by ours.
+     * @return ACCEPTED or one of the REJECTED_* values.
+     */
+    public synchronized int check(long requestId, long nowMs) {
+        int result = checkAge(requestId, nowMs);
+        if (result == ACCEPTED) result = checkWindow(requestId);
+        if (result == REJECTED_STALE) {
+            if (mStaleCount == 0) mFirstStaleMs = nowMs;
+            if (requestId != mLastStaleId) mStaleCount++;
+            mLastStaleId = requestId;
+            if (mStaleCount < CLOCK_STEP_REJECTIONS
+                    || nowMs - mFirstStaleMs < CLOCK_STEP_CONFIRM_MS) {
+                return result;
+            }
+            // Consistently stale: the clock moved rather than the packets being late.
+            reset();
+            result = checkWindow(requestId);
+        }
+        if (result != ACCEPTED) return result;
+
+        mStaleCount = 0;
+        mClock.addSample(requestId, nowMs);
+        return ACCEPTED;
+    }
+
+    /**
+     * @param nowMs A time by our clock.
+     * @return How far the device's clock is ahead of ours or 0 before its first request.
+     */
+    public synchronized long getClockOffsetMs(long nowMs) {
+        return mClock.hasEstimate() ? mClock.getOffsetMs(nowMs) : 0;
+    }
+
+    /** @return The estimated drift of the device's clock against ours in parts per million. */
+    public synchronized double getClockDriftPpm() {
+        return mClock.getDriftPpm();
+    }
+
+    /**
+     * @param requestId A request's ID.
+     * @param nowMs The time it arrived by our clock.
+     * @return ACCEPTED if it is young enough or there's nothing to judge by yet.
+     */
+    private int checkAge(long requestId, long nowMs) {
+        if (!mClock.hasEstimate()) return ACCEPTED;
+        long ageMs = nowMs + mClock.getOffsetMs(nowMs) - requestId;
+        return ageMs > ConsoleProtocol.MAX_REQUEST_AGE_MS ? REJECTED_STALE : ACCEPTED;
+    }
+
+    /**
+     * Check an ID against the window and add it if it is new.
+     * @param requestId A request's ID.
+     * @return ACCEPTED, REJECTED_REPLAY, or REJECTED_STALE if it is behind the window.
+     */
+    private int checkWindow(long requestId) {
+        if (!mStarted) {
+            mStarted = true;
+            mNewestId = requestId - 1;
+        }
+        if (requestId > mNewestId) {
+            clearWindow(mNewestId + 1, requestId);
+            mNewestId = requestId;
+        } else if (mNewestId - requestId >= WINDOW_BITS) {
+            return REJECTED_STALE;
+        } else if (isInWindow(requestId)) {
+            return REJECTED_REPLAY;
+        }
+        int bit = (int) (requestId & (WINDOW_BITS - 1));
+        mWindow[bit >>> 6] |= 1L << (bit & 63);
+        return ACCEPTED;
+    }
+
+    /**
+     * @param requestId An ID within the window.
+     * @return Whether it was accepted.
+     */
+    private boolean isInWindow(long requestId) {
+        int bit = (int) (requestId & (WINDOW_BITS - 1));
+        return (mWindow[bit >>> 6] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * Clear the bits for a range of IDs as the window slides over them. This touches at most
+     * one word per 64 ms slid, and the whole window once for a big jump.
+     * @param fromId The first ID to clear.
+     * @param toId The last ID to clear.
+     */
+    private void clearWindow(long fromId, long toId) {
+        if (toId - fromId >= WINDOW_BITS) {
+            for (int i = 0; i < mWindow.length; i++) mWindow[i] = 0;
+            return;
+        }
+        long id = fromId;
+        while (id <= toId) {
+            int bit = (int) (id & (WINDOW_BITS - 1));
+            int count = (int) Math.min(64 - (bit & 63), toId - id + 1);
+            long mask = count == 64 ? -1L : ((1L << count) - 1) << (bit & 63);
+            mWindow[bit >>> 6] &= ~mask;
+            id += count;
+        }
+    }
+
+    /** Forget the device, as if it had never sent anything. */
+    private void reset() {
+        mClock.reset();
+        mStarted = false;
+        mStaleCount = 0;
+    }
+}
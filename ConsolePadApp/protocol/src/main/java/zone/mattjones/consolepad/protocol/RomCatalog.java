@@ -0,0 +1,293 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RomCatalog.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: A client's copy of the console's game library, kept current by applying pages of changes
+ *       (see RomIndexPage) and saved between runs so reconnecting only fetches what changed.
+ *       Games can be searched by the start of any word in their name: "mar 64" finds "Super
+ *       Mario 64". The words are kept in one sorted array, so a search is a binary search plus
+ *       the matches, even with tens of thousands of games; the array is rebuilt after a change,
+ *       by prepareSearch() or else the first search. Safe to use from any thread.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+
+public class RomCatalog {
+    /** A word of a game's name, sorted by the word. */
+    private static class Word implements Comparable<Word> {
+        /** The word in lowercase. */
+        final String text;
+        /** The game. */
+        final RomEntry entry;
+        /** The game's name in lowercase. */
+        final String name;
+
+        Word(String text, RomEntry entry, String name) {
+            this.text = text;
+            this.entry = entry;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(Word other) {
+            return text.compareTo(other.text);
+        }
+    }
+
+    /** The version of the saved format. */
+    private static final int FORMAT_VERSION = 1;
+
+    /** Sorts games by name, then system so the order is stable. */
+    private static final Comparator<RomEntry> BY_NAME = (a, b) -> {
+        int order = a.name.compareToIgnoreCase(b.name);
+        return order != 0 ? order : a.system.compareTo(b.system);
+    };
+
+    /** The ID of the index the games are from, or empty before the first sync. */
+    private String mIndexId = "";
+
+    /** The version of the index the games are at. */
+    private long mVersion;
+
+    /** The games keyed by hash. */
+    private final HashMap<String, RomEntry> mEntries = new HashMap<>();
+
+    /** Every word of every name, lowercase and sorted, or null if it needs to be rebuilt. */
+    private String[] mWords;
+
+    /** The game each entry of mWords is from. */
+    private RomEntry[] mWordEntries;
+
+    /** The lowercase name of the game each entry of mWords is from. */
+    private String[] mWordNames;
+
+    /** Every game sorted by name, or null if it needs to be rebuilt. */
+    private RomEntry[] mByName;
+
+    /** @return The action that asks the console for what changed since this copy was synced. */
+    public synchronized String buildSyncRequest() {
+        return RomIndexPage.buildRequest(mIndexId, mVersion);
+    }
+
+    /**
+     * Apply a page of changes.
+     * @param page The page.
+     * @return Whether the page followed on from this copy and was applied. Pages that don't, e.g.
+     *         a late copy of one already applied, are ignored.
+     */
+    public synchronized boolean apply(RomIndexPage page) {
+        if (page.reset) {
+            mEntries.clear();
+            mIndexId = page.indexId;
+        } else if (!page.indexId.equals(mIndexId) || page.sinceVersion != mVersion) {
+            return false;
+        }
+        for (String hash : page.removed) mEntries.remove(hash);
+        for (RomEntry entry : page.added) mEntries.put(entry.hash, entry);
+        mVersion = page.throughVersion;
+        mWords = null;
+        mByName = null;
+        return true;
+    }
+
+    /** @return The number of games. */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** @return The version of the index this copy is at. */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @param hash The hash of a game.
+     * @return The game or null if it isn't in the library.
+     */
+    public synchronized RomEntry get(String hash) {
+        return mEntries.get(hash);
+    }
+
+    /**
+     * Find the games with a word starting with each word of a query.
+     * @param query The words to look for, in any case. Empty matches every game.
+     * @param limit The most games to return.
+     * @return The games found sorted by name.
+     */
+    public synchronized List<RomEntry> search(String query, int limit) {
+        String[] terms = splitWords(query);
+        if (terms.length == 0) {
+            prepareSearch();
+            return Arrays.asList(mByName).subList(0, Math.min(limit, mByName.length));
+        }
+        prepareSearch();
+
+        // Walk the words of the term that matches the fewest, and check the rest against the
+        // name of each game found.
+        int start = 0;
+        int end = mWords.length + 1;
+        for (String term : terms) {
+            int termStart = lowerBound(term);
+            int termEnd = lowerBound(term + Character.MAX_VALUE);
+            if (termEnd - termStart < end - start) {
+                start = termStart;
+                end = termEnd;
+            }
+        }
+        IdentityHashMap<RomEntry, Boolean> found = new IdentityHashMap<>();
+        ArrayList<RomEntry> results = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            RomEntry entry = mWordEntries[i];
+            if (found.put(entry, Boolean.TRUE) == null && matchesAll(mWordNames[i], terms)) {
+                results.add(entry);
+            }
+        }
+        Collections.sort(results, BY_NAME);
+        return results.size() > limit ? results.subList(0, limit) : results;
+    }
+
+    /**
+     * Build what searches use if a change dropped it, so the first search after a sync doesn't
+     * have to. Taking a fraction of a second for tens of thousands of games, it's best called
+     * off the main thread.
+     */
+    public synchronized void prepareSearch() {
+        if (mByName == null) {
+            mByName = mEntries.values().toArray(new RomEntry[0]);
+            Arrays.sort(mByName, BY_NAME);
+        }
+        if (mWords == null) buildWords();
+    }
+
+    /**
+     * Save the games.
+     * @param out Where to write them.
+     * @throws IOException If the write failed.
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(mIndexId);
+        out.writeLong(mVersion);
+        out.writeInt(mEntries.size());
+        for (RomEntry entry : mEntries.values()) {
+            out.writeUTF(entry.hash);
+            out.writeUTF(entry.system);
+            out.writeUTF(entry.name);
+        }
+    }
+
+    /**
+     * Replace the games with ones saved by writeTo().
+     * @param in Where to read them from.
+     * @throws IOException If the read failed or the data is from another format, in which case
+     *                     the catalog is left empty.
+     */
+    public synchronized void readFrom(DataInputStream in) throws IOException {
+        mIndexId = "";
+        mVersion = 0;
+        mEntries.clear();
+        mWords = null;
+        mByName = null;
+        if (in.readInt() != FORMAT_VERSION) throw new IOException("Unknown catalog format");
+
+        String indexId = in.readUTF();
+        long version = in.readLong();
+        int count = in.readInt();
+        HashMap<String, RomEntry> entries = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            RomEntry entry = new RomEntry(in.readUTF(), in.readUTF(), in.readUTF());
+            entries.put(entry.hash, entry);
+        }
+        // Only take it once it was all read, so a truncated file means a full sync.
+        mIndexId = indexId;
+        mVersion = version;
+        mEntries.putAll(entries);
+    }
+
+    /** Build the sorted words of every game's name. */
+    private void buildWords() {
+        ArrayList<Word> words = new ArrayList<>(mEntries.size() * 4);
+        for (RomEntry entry : mEntries.values()) {
+            String name = entry.name.toLowerCase(Locale.ROOT);
+            for (String word : splitWords(name)) words.add(new Word(word, entry, name));
+        }
+        Collections.sort(words);
+        mWords = new String[words.size()];
+        mWordEntries = new RomEntry[words.size()];
+        mWordNames = new String[words.size()];
+        for (int i = 0; i < mWords.length; i++) {
+            Word word = words.get(i);
+            mWords[i] = word.text;
+            mWordEntries[i] = word.entry;
+            mWordNames[i] = word.name;
+        }
+    }
+
+    /**
+     * @param prefix A lowercase word or the start of one.
+     * @return The index of the first word in mWords not less than the prefix.
+     */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = mWords.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mWords[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param name The lowercase name of a game.
+     * @param terms Lowercase words.
+     * @return Whether every term starts a word of the name.
+     */
+    private static boolean matchesAll(String name, String[] terms) {
+        for (String term : terms) {
+            int at = name.indexOf(term);
+            while (at > 0 && Character.isLetterOrDigit(name.charAt(at - 1))) {
+                at = name.indexOf(term, at + 1);
+            }
+            if (at < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param text A name or query.
+     * @return Its words in lowercase; anything other than a letter or digit separates words.
+     */
+    private static String[] splitWords(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RomEntry.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: A game in the console's library as the app sees it. A game is known by a hash of its
+ *       file's contents, so renaming or moving the file keeps its identity and two copies of the
+ *       same game are one entry. Where the file lives stays on the console.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public final class RomEntry {
+    /** The number of hex digits in a hash: the first 64 bits of the file's SHA-1. */
+    public static final int HASH_LENGTH = 16;
+
+    /** The hash of the game's contents, HASH_LENGTH lowercase hex digits. */
+    public final String hash;
+    /** The name of the EmulationStation system the game is in, e.g. "n64". */
+    public final String system;
+    /** The name shown for the game, its file name without the extension. */
+    public final String name;
+
+    public RomEntry(String hash, String system, String name) {
+        this.hash = hash;
+        this.system = system;
+        this.name = name;
+    }
+
+    /** @return The action that starts the game. */
+    public String getLaunchAction() {
+        return ConsoleProtocol.ACTION_LAUNCH_PREFIX + hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RomEntry)) return false;
+        RomEntry entry = (RomEntry) other;
+        return hash.equals(entry.hash) && system.equals(entry.system) && name.equals(entry.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + system + ")";
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RomIndexPage.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: Builds and reads the requests for the console's game library and the pages of changes
+ *       sent back. Every change to the library gets the next version number, so the app asks for
+ *       what changed since the last version it has, along with the ID of the index it has it
+ *       from:
+ *
+ *       ROM_INDEX:3f9c0a2e:1042
+ *
+ *       The page starts with a header line, then one line per game added or changed (fields
+ *       separated by tabs) and one per game removed:
+ *
+ *       ROMS:3f9c0a2e:0:1042:1044:1044
+ *       +9a0c3d1e55b2f806  n64  Super Mario 64 (USA)
+ *       -51f0e2a9c0d3b7aa
+ *
+ *       The header is index_id:reset:since:through:latest. A page holds at most MAX_ENTRIES
+ *       changes, so while through is behind latest the app asks again since through. If the app
+ *       has nothing or a version of a different index, reset is 1 and the pages list the whole
+ *       library from the start. The request is normally wrapped with LargeResponse since a page
+ *       can be far larger than a message.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class RomIndexPage {
+    /** The start of every page. */
+    public static final String PREFIX = "ROMS:";
+
+    /** The most changes in a page; at under 300 bytes each this stays below a megabyte. */
+    public static final int MAX_ENTRIES = 2000;
+
+    /** The delimiter between the fields of a request and of the header. */
+    private static final String FIELD_SEPARATOR = ":";
+
+    /** The delimiter between lines. */
+    private static final char LINE_SEPARATOR = '\n';
+
+    /** The delimiter between the fields of a game. */
+    private static final char ENTRY_SEPARATOR = '\t';
+
+    /** The first character of a game that was added or changed. */
+    private static final char ADDED = '+';
+
+    /** The first character of a game that was removed. */
+    private static final char REMOVED = '-';
+
+    /** The number of fields in the header after the prefix. */
+    private static final int HEADER_FIELD_COUNT = 5;
+
+    /** The ID of the index the page is from, which changes if the console starts over. */
+    public final String indexId;
+    /** Whether the page starts the library over, so what the app had should be dropped. */
+    public final boolean reset;
+    /** The version the changes are since. */
+    public final long sinceVersion;
+    /** The version the app has once it applies the page. */
+    public final long throughVersion;
+    /** The console's latest version. */
+    public final long latestVersion;
+    /** The games added or changed. */
+    public final List<RomEntry> added;
+    /** The hashes of the games removed. */
+    public final List<String> removed;
+
+    public RomIndexPage(String indexId, boolean reset, long sinceVersion, long throughVersion,
+            long latestVersion, List<RomEntry> added, List<String> removed) {
+        this.indexId = indexId;
+        this.reset = reset;
+        this.sinceVersion = sinceVersion;
+        this.throughVersion = throughVersion;
+        this.latestVersion = latestVersion;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * Build the action that asks for the changes since a version.
+     * @param indexId The ID of the index the version is from, or empty if there is none.
+     * @param sinceVersion The version the app has, or 0 if it has nothing.
+     * @return The action to send.
+     */
+    public static String buildRequest(String indexId, long sinceVersion) {
+        return ConsoleProtocol.ACTION_ROM_INDEX_PREFIX + indexId + FIELD_SEPARATOR + sinceVersion;
+    }
+
+    /**
+     * @param action An action that starts with ACTION_ROM_INDEX_PREFIX.
+     * @return The index ID the app has, or null if the request is malformed.
+     */
+    public static String getRequestIndexId(String action) {
+        int split = action.lastIndexOf(FIELD_SEPARATOR);
+        if (split < ConsoleProtocol.ACTION_ROM_INDEX_PREFIX.length()) return null;
+        return action.substring(ConsoleProtocol.ACTION_ROM_INDEX_PREFIX.length(), split);
+    }
+
+    /**
+     * @param action An action that starts with ACTION_ROM_INDEX_PREFIX.
+     * @return The version the app has, or -1 if the request is malformed.
+     */
+    public static long getRequestVersion(String action) {
+        int split = action.lastIndexOf(FIELD_SEPARATOR);
+        if (split < ConsoleProtocol.ACTION_ROM_INDEX_PREFIX.length()) return -1;
+        try {
+            long version = Long.parseLong(action.substring(split + 1));
+            return version >= 0 ? version : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** @return Whether the console has changes after this page. */
+    public boolean hasMore() {
+        return throughVersion < latestVersion;
+    }
+
+    /**
+     * Read a page.
+     * @param message A response payload.
+     * @return The page or null if the message isn't a well-formed page.
+     */
+    public static RomIndexPage decode(String message) {
+        if (message == null || !message.startsWith(PREFIX)) return null;
+        int lineEnd = message.indexOf(LINE_SEPARATOR);
+        if (lineEnd < 0) lineEnd = message.length();
+        String[] fields = message.substring(PREFIX.length(), lineEnd).split(FIELD_SEPARATOR, -1);
+        if (fields.length != HEADER_FIELD_COUNT) return null;
+
+        long since;
+        long through;
+        long latest;
+        try {
+            since = Long.parseLong(fields[2]);
+            through = Long.parseLong(fields[3]);
+            latest = Long.parseLong(fields[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (since < 0 || through < since || latest < through) return null;
+
+        ArrayList<RomEntry> added = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+        while (lineEnd < message.length()) {
+            int start = lineEnd + 1;
+            lineEnd = message.indexOf(LINE_SEPARATOR, start);
+            if (lineEnd < 0) lineEnd = message.length();
+            if (start == lineEnd) continue;
+            if (message.charAt(start) == REMOVED) {
+                removed.add(message.substring(start + 1, lineEnd));
+                continue;
+            }
+            int systemStart = message.indexOf(ENTRY_SEPARATOR, start) + 1;
+            int nameStart = message.indexOf(ENTRY_SEPARATOR, systemStart) + 1;
+            if (message.charAt(start) != ADDED || systemStart == 0 || nameStart == 0
+                    || nameStart > lineEnd) {
+                return null;
+            }
+            added.add(new RomEntry(message.substring(start + 1, systemStart - 1),
+                    message.substring(systemStart, nameStart - 1),
+                    message.substring(nameStart, lineEnd)));
+        }
+        return new RomIndexPage(fields[0], "1".equals(fields[1]), since, through, latest, added,
+                removed);
+    }
+
+    /** @return The page as it is sent. */
+    public String encode() {
+        StringBuilder out = new StringBuilder(PREFIX)
+                .append(indexId).append(FIELD_SEPARATOR)
+                .append(reset ? 1 : 0).append(FIELD_SEPARATOR)
+                .append(sinceVersion).append(FIELD_SEPARATOR)
+                .append(throughVersion).append(FIELD_SEPARATOR)
+                .append(latestVersion);
+        for (RomEntry entry : added) {
+            out.append(LINE_SEPARATOR).append(ADDED).append(entry.hash)
+                    .append(ENTRY_SEPARATOR).append(entry.system)
+                    .append(ENTRY_SEPARATOR).append(entry.name);
+        }
+        for (String hash : removed) out.append(LINE_SEPARATOR).append(REMOVED).append(hash);
+        return out.toString();
+    }
+}
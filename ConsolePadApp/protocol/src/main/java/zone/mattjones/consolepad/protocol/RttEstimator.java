@@ -0,0 +1,90 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RttEstimator.java
+ * Author: Matt Jones
+ * Date: 2019.10.06
+ * Desc: Tracks the round-trip time to a single console the same way TCP does (RFC 6298): a
+ *       smoothed RTT and its variance give the time to wait before sending a request again, and
+ *       that time doubles after each timeout until a fresh sample comes in. Plain Java so tools
+ *       off the phone retry on the same schedule as the app.
+ */
+
+package zone.mattjones.consolepad.protocol;
+
+public class RttEstimator {
+    /** The time to wait for a response before there are any samples. */
+    public static final long INITIAL_TIMEOUT_MS = 1500;
+
+    /** The shortest time to wait for a response before retrying. */
+    public static final long MIN_TIMEOUT_MS = 200;
+
+    /** The longest time to wait for a response before retrying. */
+    public static final long MAX_TIMEOUT_MS = 4000;
+
+    /** The number of times a request is sent before giving up. */
+    public static final int MAX_TRANSMISSIONS = 4;
+
+    /** The weight of a new sample in the smoothed RTT (1/8 per the RFC). */
+    private static final float RTT_GAIN = 0.125f;
+
+    /** The weight of a new sample in the RTT variance (1/4 per the RFC). */
+    private static final float VARIANCE_GAIN = 0.25f;
+
+    /** The multiple of the variance added to the smoothed RTT for the timeout. */
+    private static final int VARIANCE_MULTIPLIER = 4;
+
+    /** The smoothed round-trip time in ms or a negative value before the first sample. */
+    private float mSmoothedRttMs = -1;
+
+    /** The variance of the round-trip time in ms. */
+    private float mRttVarianceMs;
+
+    /** The number of timeouts in a row since the last sample; each one doubles the timeout. */
+    private int mBackoff;
+
+    /**
+     * Add a round-trip time measurement. Only responses to requests that were sent once should
+     * be sampled since it's unclear which copy a retried request's response belongs to.
+     * @param rttMs The measured round-trip time.
+     */
+    public synchronized void addSample(long rttMs) {
+        if (mSmoothedRttMs < 0) {
+            mSmoothedRttMs = rttMs;
+            mRttVarianceMs = rttMs / 2f;
+        } else {
+            mRttVarianceMs += VARIANCE_GAIN * (Math.abs(mSmoothedRttMs - rttMs) - mRttVarianceMs);
+            mSmoothedRttMs += RTT_GAIN * (rttMs - mSmoothedRttMs);
+        }
+        mBackoff = 0;
+    }
+
+    /** Record that a request timed out, making the next one wait longer. */
+    public synchronized void onTimeout() {
+        if (getTimeoutMs() < MAX_TIMEOUT_MS) mBackoff++;
+    }
+
+    /** @return The smoothed round-trip time in ms or -1 if there haven't been any samples. */
+    public synchronized long getSmoothedRttMs() {
+        return mSmoothedRttMs < 0 ? -1 : Math.round(mSmoothedRttMs);
+    }
+
+    /** @return The time to wait for a response before sending the request again. */
+    public synchronized long getTimeoutMs() {
+        long baseMs = mSmoothedRttMs < 0
+                ? INITIAL_TIMEOUT_MS
+                : (long) (mSmoothedRttMs + VARIANCE_MULTIPLIER * mRttVarianceMs);
+        return backoff(Math.max(MIN_TIMEOUT_MS, baseMs), mBackoff);
+    }
+
+    /**
+     * Double a timeout some number of times without going past the max.
+     * @param timeoutMs The timeout to start from.
+     * @param times The number of times to double it.
+     * @return The new timeout.
+     */
+    public static long backoff(long timeoutMs, int times) {
+        for (int i = 0; i < times && timeoutMs < MAX_TIMEOUT_MS; i++) timeoutMs *= 2;
+        return Math.min(MAX_TIMEOUT_MS, timeoutMs);
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ActionHandler.java
+ * Author: Matt Jones
+ * Date: 2019.10.07
+ * Desc: Something the responder can do when the app asks for an action.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+public interface ActionHandler {
+    /**
+     * Perform an action requested by the app. This is called on a worker thread and may be
+     * called for several requests at once.
+     * @param action The action to perform.
+     * @return The response to send back or null to send nothing.
+     * @throws Exception If the action failed, in which case nothing is sent back.
+     */
+    String handleAction(String action) throws Exception;
+}
@@ -0,0 +1,788 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ConsoleResponder.java
+ * Author: Matt Jones
+ * Date: 2019.10.07
+ * Desc: A Java implementation of the console side of the protocol, built on the same codec as the
+ *       app. It answers UDP discovery and TCP sessions on one port like ConsoleUDPResponder, but
+ *       requests are handled on a pool of worker threads and the actions are supplied by the
+ *       caller. Bound to loopback, it lets the app's networking be load-tested and checked on any
+ *       machine. Sessions that subscribe to status get it pushed whenever setStatus() changes it
+ *       and as a heartbeat in between. Batches run their steps in order on the worker that
+ *       received them. Actions set with setJobHandler() are tracked as jobs: the app is answered
+ *       as soon as they start and subscribers are told when they end. Responses to actions
+ *       wrapped in LARGE: are sent in fragments, and the last few are kept so lost fragments can
+ *       be sent again on their own. Discovery can also be answered on the consoles' multicast
+ *       group once joinDiscoveryGroup() has been called for the interfaces to listen on.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zone.mattjones.consolepad.protocol.ActionBatch;
+import zone.mattjones.consolepad.protocol.ConsoleMessage;
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.JobEvent;
+import zone.mattjones.consolepad.protocol.LargeResponse;
+import zone.mattjones.consolepad.protocol.MessageCodec;
+import zone.mattjones.consolepad.protocol.ReplayGuard;
+
+public class ConsoleResponder implements Closeable {
+    /** A session that asked for status to be pushed to it. */
+    private static class Subscriber {
+        /** The session's output, shared with the workers answering its requests. */
+        final DataOutputStream output;
+        /** The format the session subscribed in. */
+        final int format;
+
+        Subscriber(DataOutputStream output, int format) {
+            this.output = output;
+            this.format = format;
+        }
+    }
+
+    /** The number of worker threads used if the caller doesn't pick. */
+    public static final int DEFAULT_WORKER_COUNT = 4;
+
+    /** The number of recent requests remembered to catch retries. */
+    private static final int RECENT_REQUEST_COUNT = 64;
+
+    /** The number of recent large responses kept to send lost fragments again. */
+    private static final int RECENT_LARGE_RESPONSE_COUNT = 8;
+
+    /** The number of devices whose clocks and recent requests are remembered. */
+    private static final int RECENT_DEVICE_COUNT = 32;
+
+    /** The number of recent jobs whose latest event is remembered for JOB_STATUS. */
+    private static final int RECENT_JOB_COUNT = 64;
+
+    /** The name this responder reports to the app. */
+    private final String mName;
+
+    /** The actions this responder knows about keyed by action name. */
+    private final ConcurrentHashMap<String, ActionHandler> mHandlers = new ConcurrentHashMap<>();
+
+    /** The handlers for actions that carry an argument, keyed by the start of the action. */
+    private final ConcurrentHashMap<String, ActionHandler> mPrefixHandlers =
+            new ConcurrentHashMap<>();
+
+    /** The handler for actions that don't have one. */
+    private volatile ActionHandler mDefaultHandler = (action) -> ConsoleProtocol.RESPONSE_OK;
+
+    /** Runs the actions for every request, whichever socket it came in on. */
+    private final ExecutorService mWorkers;
+
+    /** The socket discovery requests arrive on. */
+    private final MulticastSocket mUdpSocket;
+
+    /** The socket sessions are accepted on. */
+    private final ServerSocket mServerSocket;
+
+    /** The responses to recent requests keyed by device, time and action. */
+    private final LinkedHashMap<String, CompletableFuture<String>> mRecentResponses =
+            new LinkedHashMap<String, CompletableFuture<String>>() {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CompletableFuture<String>> eldest) {
+                    return size() > RECENT_REQUEST_COUNT;
+                }
+            };
+
+    /** What each recent device has sent, keyed by device name and address. Guarded by itself. */
+    private final LinkedHashMap<String, ReplayGuard> mReplayGuards =
+            new LinkedHashMap<String, ReplayGuard>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ReplayGuard> eldest) {
+                    return size() > RECENT_DEVICE_COUNT;
+                }
+            };
+
+    /** Recent large responses keyed by device and request ID. Guarded by itself. */
+    private final LinkedHashMap<String, LargeResponse> mLargeResponses =
+            new LinkedHashMap<String, LargeResponse>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LargeResponse> eldest) {
+                    return size() > RECENT_LARGE_RESPONSE_COUNT;
+                }
+            };
+
+    /** The latest event of recent jobs keyed by job ID. Guarded by itself. */
+    private final LinkedHashMap<Long, JobEvent> mJobs = new LinkedHashMap<Long, JobEvent>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, JobEvent> eldest) {
+            return size() > RECENT_JOB_COUNT;
+        }
+    };
+
+    /** The last job ID handed out. */
+    private final AtomicLong mLastJobId = new AtomicLong();
+
+    /** Each worker's codec, since codecs keep scratch space. */
+    private final ThreadLocal<MessageCodec> mCodecs;
+
+    /** Each worker's decoded request. */
+    private final ThreadLocal<ConsoleMessage> mRequests =
+            ThreadLocal.withInitial(ConsoleMessage::new);
+
+    /**
+     * Each worker's buffer for encoding responses, with room for a frame header. Fragments are
+     * smaller than a message, so they are written here too.
+     */
+    private final ThreadLocal<ByteBuffer> mResponseBuffers = ThreadLocal.withInitial(() ->
+            ByteBuffer.allocate(ConsoleProtocol.FRAME_HEADER_SIZE
+                    + ConsoleProtocol.MAX_PACKET_SIZE));
+
+    /** Sends status heartbeats to subscribers. */
+    private final ScheduledExecutorService mHeartbeat =
+            Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "ConsoleResponderHeartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** The sessions that subscribed to status. */
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+
+    /** What the responder reports it is running; empty when idle. */
+    private volatile String mStatus = "";
+
+    /** Whether close() was called. */
+    private volatile boolean mClosed;
+
+    /**
+     * Bind the sockets. Nothing is answered until start() is called.
+     * @param name The name this responder reports to the app.
+     * @param bindAddress The address to listen on, e.g. loopback for local testing.
+     * @param port The port to listen on for both UDP and TCP, or 0 to pick a free one.
+     * @param workerCount The number of requests that can be handled at the same time.
+     * @throws IOException If the sockets could not be bound.
+     */
+    public ConsoleResponder(String name, InetAddress bindAddress, int port, int workerCount)
+            throws IOException {
+        mName = name;
+        mCodecs = ThreadLocal.withInitial(() -> new MessageCodec(mName));
+
+        // Bind TCP first so a picked port can be reused for UDP.
+        mServerSocket = new ServerSocket(port, 50, bindAddress);
+        try {
+            mUdpSocket = new MulticastSocket(
+                    new InetSocketAddress(bindAddress, mServerSocket.getLocalPort()));
+        } catch (IOException e) {
+            mServerSocket.close();
+            throw e;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        mWorkers = Executors.newFixedThreadPool(workerCount, (runnable) -> {
+            Thread thread = new Thread(
+                    runnable, "ConsoleResponderWorker" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Set the handler for an action, replacing any previous one.
+     * @param action The action name sent by the app.
+     * @param handler The handler to run for it.
+     * @return This responder for chaining.
+     */
+    public ConsoleResponder setHandler(String action, ActionHandler handler) {
+        mHandlers.put(action, handler);
+        return this;
+    }
+
+    /**
+     * Set the handler for an action that keeps running after the app is answered, replacing any
+     * previous one. The app gets the job's RUNNING event right away and subscribers are sent its
+     * DONE or FAILED event when it ends.
+     * @param action The action name sent by the app.
+     * @param handler The handler that starts it.
+     * @return This responder for chaining.
+     */
+    public ConsoleResponder setJobHandler(String action, JobActionHandler handler) {
+        mHandlers.put(action, (startedAction) -> startJob(startedAction, handler));
+        return this;
+    }
+
+    /**
+     * Set the handler for every action that starts with a prefix, e.g. "LAUNCH:", replacing any
+     * previous one. Handlers for a whole action are checked first.
+     * @param prefix The start of the actions.
+     * @param handler The handler to run for them.
+     * @return This responder for chaining.
+     */
+    public ConsoleResponder setPrefixHandler(String prefix, ActionHandler handler) {
+        mPrefixHandlers.put(prefix, handler);
+        return this;
+    }
+
+    /**
+     * Set the handler for every action that starts with a prefix and keeps running after the
+     * app is answered; see setJobHandler().
+     * @param prefix The start of the actions.
+     * @param handler The handler that starts them.
+     * @return This responder for chaining.
+     */
+    public ConsoleResponder setPrefixJobHandler(String prefix, JobActionHandler handler) {
+        mPrefixHandlers.put(prefix, (startedAction) -> startJob(startedAction, handler));
+        return this;
+    }
+
+    /**
+     * Set the handler used for actions without their own handler. By default they are answered
+     * with RESPONSE_OK and nothing else happens, which is what the C# responder does.
+     * @param handler The handler to run.
+     * @return This responder for chaining.
+     */
+    public ConsoleResponder setDefaultHandler(ActionHandler handler) {
+        mDefaultHandler = handler;
+        return this;
+    }
+
+    /**
+     * Answer discovery sent to ConsoleProtocol.MULTICAST_GROUP on an interface as well. Only
+     * works when bound to every address, since the group is the datagrams' destination.
+     * @param networkInterface The interface to join the group on.
+     * @return This responder for chaining.
+     * @throws IOException If the group could not be joined, e.g. the interface has no multicast.
+     */
+    public ConsoleResponder joinDiscoveryGroup(NetworkInterface networkInterface)
+            throws IOException {
+        mUdpSocket.joinGroup(new InetSocketAddress(
+                InetAddress.getByName(ConsoleProtocol.MULTICAST_GROUP), 0), networkInterface);
+        return this;
+    }
+
+    /** @return The port the responder is listening on. */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Set what the responder reports it is running and push it to subscribers if it changed.
+     * @param status The status, e.g. "EmulationStation", or an empty string when idle.
+     */
+    public void setStatus(String status) {
+        String old = mStatus;
+        mStatus = status;
+        if (!old.equals(status)) pushStatus();
+    }
+
+    /** Start answering requests on background threads. */
+    public void start() {
+        startThread("ConsoleResponderUdp", this::receiveDatagrams);
+        startThread("ConsoleResponderAccept", this::acceptSessions);
+        mHeartbeat.scheduleAtFixedRate(this::pushStatus, ConsoleProtocol.STATUS_HEARTBEAT_MS,
+                ConsoleProtocol.STATUS_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop answering requests and release the sockets. Actions already running finish. */
+    @Override
+    public void close() {
+        mClosed = true;
+        mUdpSocket.close();
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Nothing else to do; the socket is unusable either way.
+        }
+        mWorkers.shutdown();
+        mHeartbeat.shutdownNow();
+    }
+
+    /**
+     * Start a daemon thread.
+     * @param name The name of the thread.
+     * @param body What the thread runs.
+     */
+    private static void startThread(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Read datagrams and hand each one to a worker until the responder is closed. */
+    private void receiveDatagrams() {
+        byte[] receiveBuffer = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        while (!mClosed) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                mUdpSocket.receive(packet);
+            } catch (IOException e) {
+                if (mClosed) return;
+                continue;
+            }
+
+            // The receive buffer is reused right away, so the worker gets its own copy.
+            byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+            SocketAddress sender = packet.getSocketAddress();
+            submit(() -> answerDatagram(data, sender));
+        }
+    }
+
+    /**
+     * Handle a single datagram. Responses go to the address and port the request came from.
+     * @param data The datagram.
+     * @param sender Where the datagram came from.
+     */
+    private void answerDatagram(byte[] data, SocketAddress sender) {
+        ConsoleMessage request = mRequests.get();
+        if (!MessageCodec.decode(ByteBuffer.wrap(data), request)) return;
+        String action = request.getPayloadString();
+        LargeResponse large;
+        BitSet fragments;
+        ByteBuffer out = mResponseBuffers.get();
+        long replyTo = LargeResponse.getFragmentsRequestId(action);
+        if (replyTo >= 0) {
+            // Lost fragments of an earlier response; nothing is run.
+            large = getRecentLargeResponse(request.getDeviceName(), replyTo);
+            if (large == null) return;
+            fragments = LargeResponse.getRequestedFragments(action, large.getFragmentCount());
+        } else {
+            String response = handleRequest(request, ((InetSocketAddress) sender).getAddress());
+            if (response == null) return;
+            replyTo = request.getTimestamp();
+            if (!LargeResponse.isRequest(action)) {
+                out.clear();
+                mCodecs.get().encode(out, MessageCodec.FORMAT_TEXT, System.currentTimeMillis(),
+                        replyTo, response);
+                sendDatagram(out, sender);
+                return;
+            }
+            large = getLargeResponse(request, action, response);
+            if (large == null) return;
+            fragments = new BitSet();
+            fragments.set(0, large.getFragmentCount());
+        }
+
+        for (int i = fragments.nextSetBit(0); i >= 0; i = fragments.nextSetBit(i + 1)) {
+            out.clear();
+            large.writeFragment(out, replyTo, i);
+            sendDatagram(out, sender);
+        }
+    }
+
+    /**
+     * Send a single datagram.
+     * @param out The buffer holding the datagram from its start to its position.
+     * @param target Where to send it.
+     */
+    private void sendDatagram(ByteBuffer out, SocketAddress target) {
+        try {
+            mUdpSocket.send(new DatagramPacket(out.array(), out.position(), target));
+        } catch (IOException e) {
+            // The app will send the request again if it still cares.
+        }
+    }
+
+    /** Accept sessions until the responder is closed. Each session gets its own reader thread. */
+    private void acceptSessions() {
+        while (!mClosed) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (mClosed) return;
+                continue;
+            }
+            startThread("ConsoleResponderSession", () -> readSession(socket));
+        }
+    }
+
+    /**
+     * Read framed requests from a session and hand each one to a worker. Responses may be written
+     * out of order; the app matches them by their reply ID.
+     * @param socket The session's socket.
+     */
+    private void readSession(Socket socket) {
+        DataOutputStream output = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output = new DataOutputStream(socket.getOutputStream());
+            while (!mClosed) {
+                int length = input.readInt();
+                if (length <= 0 || length > ConsoleProtocol.MAX_PACKET_SIZE) return;
+                byte[] frame = new byte[length];
+                input.readFully(frame);
+                DataOutputStream sessionOutput = output;
+                submit(() -> answerFrame(frame, sessionOutput, socket.getInetAddress()));
+            }
+        } catch (IOException e) {
+            // The app closed the session or it broke; either way it's over.
+        } finally {
+            for (Subscriber subscriber : mSubscribers) {
+                if (subscriber.output == output) mSubscribers.remove(subscriber);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do; the session is over either way.
+            }
+        }
+    }
+
+    /**
+     * Handle a single frame from a session, responding in the format the request used.
+     * @param frame The frame without its length prefix.
+     * @param output The session's output, shared by every worker answering it.
+     * @param sender The address of the app.
+     */
+    private void answerFrame(byte[] frame, DataOutputStream output, InetAddress sender) {
+        ConsoleMessage request = mRequests.get();
+        if (!MessageCodec.decode(ByteBuffer.wrap(frame), request)) return;
+        String action = request.getPayloadString();
+        String response;
+        if (ConsoleProtocol.ACTION_SUBSCRIBE_STATUS.equals(action)) {
+            // The answer is the current status; later ones are pushed.
+            mSubscribers.add(new Subscriber(output, request.getFormat()));
+            response = ConsoleProtocol.STATUS_PREFIX + mStatus;
+        } else {
+            response = handleRequest(request, sender);
+        }
+        if (response == null) return;
+
+        try {
+            // Nothing is lost on a session, so fragments are only ever sent once.
+            if (!LargeResponse.isRequest(action)) {
+                writeFrame(output, request.getFormat(), request.getTimestamp(), response);
+                return;
+            }
+            LargeResponse large = getLargeResponse(request, action, response);
+            if (large == null) return;
+            for (int i = 0; i < large.getFragmentCount(); i++) {
+                writeFragment(output, large, request.getTimestamp(), i);
+            }
+        } catch (IOException e) {
+            // The reader notices the broken session and ends it.
+        }
+    }
+
+    /** Send the current status to every subscriber. */
+    private void pushStatus() {
+        pushToSubscribers(ConsoleProtocol.STATUS_PREFIX + mStatus);
+    }
+
+    /**
+     * Send a message to every subscriber, dropping those that went away.
+     * @param message The message to push.
+     */
+    private void pushToSubscribers(String message) {
+        for (Subscriber subscriber : mSubscribers) {
+            try {
+                writeFrame(subscriber.output, subscriber.format, 0, message);
+            } catch (IOException e) {
+                mSubscribers.remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Write a single framed message to a session.
+     * @param output The session's output.
+     * @param format The format to write in.
+     * @param replyTo The ID of the request being answered or 0 for a push.
+     * @param message The payload.
+     * @throws IOException If the write failed.
+     */
+    private void writeFrame(DataOutputStream output, int format, long replyTo, String message)
+            throws IOException {
+        ByteBuffer out = mResponseBuffers.get();
+        out.clear();
+        out.position(ConsoleProtocol.FRAME_HEADER_SIZE);
+        mCodecs.get().encode(out, format, System.currentTimeMillis(), replyTo, message);
+        out.putInt(0, out.position() - ConsoleProtocol.FRAME_HEADER_SIZE);
+        synchronized (output) {
+            output.write(out.array(), 0, out.position());
+            output.flush();
+        }
+    }
+
+    /**
+     * Write a single fragment of a large response to a session.
+     * @param output The session's output.
+     * @param large The response.
+     * @param replyTo The ID of the request being answered.
+     * @param index The fragment to write.
+     * @throws IOException If the write failed.
+     */
+    private void writeFragment(DataOutputStream output, LargeResponse large, long replyTo,
+            int index) throws IOException {
+        ByteBuffer out = mResponseBuffers.get();
+        out.clear();
+        out.position(ConsoleProtocol.FRAME_HEADER_SIZE);
+        large.writeFragment(out, replyTo, index);
+        out.putInt(0, out.position() - ConsoleProtocol.FRAME_HEADER_SIZE);
+        synchronized (output) {
+            output.write(out.array(), 0, out.position());
+            output.flush();
+        }
+    }
+
+    /**
+     * Split a response into fragments, reusing the fragments made for an earlier copy of the same
+     * request.
+     * @param request A request that asked for a large response.
+     * @param action The request's action.
+     * @param response The response to it.
+     * @return The fragments or null if the response is too large to send at all.
+     */
+    private LargeResponse getLargeResponse(ConsoleMessage request, String action,
+            String response) {
+        String key = request.getDeviceName() + ConsoleProtocol.SEPARATOR + request.getTimestamp();
+        synchronized (mLargeResponses) {
+            LargeResponse large = mLargeResponses.get(key);
+            if (large != null) return large;
+        }
+
+        LargeResponse large;
+        try {
+            large = new LargeResponse(response, LargeResponse.acceptsDeflate(action));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Response to " + action + " dropped: " + e.getMessage());
+            return null;
+        }
+        synchronized (mLargeResponses) {
+            mLargeResponses.put(key, large);
+        }
+        return large;
+    }
+
+    /**
+     * @param deviceName The name of the app that sent the request.
+     * @param requestId The ID of the request.
+     * @return The fragments of the response to it or null if they aren't remembered.
+     */
+    private LargeResponse getRecentLargeResponse(String deviceName, long requestId) {
+        synchronized (mLargeResponses) {
+            return mLargeResponses.get(deviceName + ConsoleProtocol.SEPARATOR + requestId);
+        }
+    }
+
+    /**
+     * Run a task on a worker unless the responder is shutting down.
+     * @param task The task to run.
+     */
+    private void submit(Runnable task) {
+        try {
+            mWorkers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed while the request was being read.
+        }
+    }
+
+    /**
+     * Perform the action for a request unless the same request was already handled, in which
+     * case the app is retrying because it missed the response and gets the same answer again.
+     * A retry that arrives while the first copy is running waits for it. Otherwise the request
+     * is only run if it is new (see ReplayGuard); a late or repeated one that fell out of the
+     * recent responses is dropped.
+     * @param request The decoded request.
+     * @param sender The address of the app.
+     * @return The response to send back or null to send nothing.
+     */
+    private String handleRequest(ConsoleMessage request, InetAddress sender) {
+        String action = request.getPayloadString();
+        String key = request.getDeviceName() + ConsoleProtocol.SEPARATOR
+                + request.getTimestamp() + ConsoleProtocol.SEPARATOR + action;
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> previous;
+        synchronized (mRecentResponses) {
+            previous = mRecentResponses.get(key);
+            if (previous == null) mRecentResponses.put(key, result);
+        }
+        if (previous != null) return previous.join();
+
+        int freshness = getReplayGuard(request.getDeviceName(), sender)
+                .check(request.getTimestamp(), System.currentTimeMillis());
+        if (freshness != ReplayGuard.ACCEPTED) {
+            System.err.println("Dropped " + (freshness == ReplayGuard.REJECTED_STALE
+                    ? "stale" : "repeated") + " request " + action + " from "
+                    + request.getDeviceName());
+            result.complete(null);
+            return null;
+        }
+
+        String response = null;
+        try {
+            response = handleAction(action);
+        } catch (Exception e) {
+            System.err.println("Action " + action + " failed: " + e);
+        } finally {
+            result.complete(response);
+        }
+        return response;
+    }
+
+    /**
+     * @param deviceName The name the app sent.
+     * @param address The address the app sent from.
+     * @return The guard for the app, made if it's new.
+     */
+    private ReplayGuard getReplayGuard(String deviceName, InetAddress address) {
+        String key = deviceName + ConsoleProtocol.SEPARATOR + address.getHostAddress();
+        synchronized (mReplayGuards) {
+            ReplayGuard guard = mReplayGuards.get(key);
+            if (guard == null) {
+                guard = new ReplayGuard();
+                mReplayGuards.put(key, guard);
+            }
+            return guard;
+        }
+    }
+
+    /**
+     * Perform an action requested by the app.
+     * @param action The action to perform.
+     * @return The response to send back or null to send nothing.
+     * @throws Exception If the action failed.
+     */
+    private String handleAction(String action) throws Exception {
+        // The binary format is built into the codec, so it's always available.
+        if (ConsoleProtocol.ACTION_FORMAT_BINARY.equals(action)) {
+            return ConsoleProtocol.RESPONSE_FORMAT_BINARY;
+        }
+        if (LargeResponse.isRequest(action)) {
+            return handleAction(LargeResponse.getInnerAction(action));
+        }
+        if (action.startsWith(ConsoleProtocol.ACTION_JOB_STATUS_PREFIX)) {
+            return getJobStatus(
+                    action.substring(ConsoleProtocol.ACTION_JOB_STATUS_PREFIX.length()));
+        }
+        List<String> steps = ActionBatch.decode(action);
+        if (steps != null) return handleBatch(steps);
+        ActionHandler handler = mHandlers.get(action);
+        if (handler == null) {
+            for (Map.Entry<String, ActionHandler> prefix : mPrefixHandlers.entrySet()) {
+                if (action.startsWith(prefix.getKey())) handler = prefix.getValue();
+            }
+        }
+        return (handler != null ? handler : mDefaultHandler).handleAction(action);
+    }
+
+    /**
+     * Start a job and track it until it ends.
+     * @param action The action to start.
+     * @param handler The handler that starts it.
+     * @return The job's first event, RUNNING or FAILED if it couldn't be started.
+     */
+    private String startJob(String action, JobActionHandler handler) {
+        long jobId = mLastJobId.incrementAndGet();
+        long startNanos = System.nanoTime();
+        CompletableFuture<Integer> completion;
+        try {
+            completion = handler.startJob(action);
+        } catch (Exception e) {
+            System.err.println("Job " + action + " failed to start: " + e);
+            JobEvent failed = new JobEvent(jobId, JobEvent.STATE_FAILED, 0, -1, action);
+            recordJob(failed);
+            return failed.encode();
+        }
+
+        // Recorded before the end can be, in case the job is already over.
+        JobEvent running = new JobEvent(jobId, JobEvent.STATE_RUNNING, 0, 0, action);
+        recordJob(running);
+        completion.whenComplete((exitCode, error) -> {
+            long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+            int code = error != null ? -1 : exitCode;
+            JobEvent end = new JobEvent(jobId,
+                    code == 0 ? JobEvent.STATE_DONE : JobEvent.STATE_FAILED, elapsedMs, code,
+                    action);
+            recordJob(end);
+            pushToSubscribers(end.encode());
+        });
+        return running.encode();
+    }
+
+    /**
+     * @param event The latest event of a job, which replaces any earlier one.
+     */
+    private void recordJob(JobEvent event) {
+        synchronized (mJobs) {
+            mJobs.put(event.jobId, event);
+        }
+    }
+
+    /**
+     * Look up a job for JOB_STATUS.
+     * @param jobId The job ID as sent by the app.
+     * @return The job's latest event or an UNKNOWN event if it isn't remembered.
+     */
+    private String getJobStatus(String jobId) {
+        JobEvent event = null;
+        long id = 0;
+        try {
+            id = Long.parseLong(jobId);
+            synchronized (mJobs) {
+                event = mJobs.get(id);
+            }
+        } catch (NumberFormatException e) {
+            // Answered as unknown below.
+        }
+        if (event == null) return new JobEvent(id, JobEvent.STATE_UNKNOWN, 0, 0, "").encode();
+        return event.encode();
+    }
+
+    /**
+     * Perform the steps of a batch in order, stopping at the first one that fails.
+     * @param steps The actions to perform.
+     * @return The batch response with a result for every step.
+     */
+    private String handleBatch(List<String> steps) {
+        ArrayList<String> results = new ArrayList<>(steps.size());
+        boolean failed = steps.size() > ActionBatch.MAX_STEPS;
+        for (String step : steps) {
+            if (failed) {
+                results.add(ActionBatch.STEP_SKIPPED);
+                continue;
+            }
+            boolean ran = ActionBatch.isBatchable(step);
+            if (ran) {
+                try {
+                    // A job that couldn't be started fails right away.
+                    JobEvent job = JobEvent.decode(handleAction(step));
+                    ran = job == null || !JobEvent.STATE_FAILED.equals(job.state);
+                } catch (Exception e) {
+                    System.err.println("Batch step " + step + " failed: " + e);
+                    ran = false;
+                }
+            }
+            results.add(ran ? ActionBatch.STEP_OK : ActionBatch.STEP_FAILED);
+            failed = !ran;
+        }
+        return ActionBatch.encodeResults(results);
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadReceiver.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: Receives the gamepad stream from the app and delivers it to a virtual controller. Frames
+ *       are handled on a single thread as they arrive, with no queue in between, and every frame
+ *       applied is acked straight away. One phone drives the controller at a time; another can
+ *       take over once the current one has been quiet for STREAM_TIMEOUT_MS, at which point the
+ *       controller is released so nothing stays held down.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import zone.mattjones.consolepad.protocol.GamepadDecoder;
+import zone.mattjones.consolepad.protocol.GamepadFrame;
+import zone.mattjones.consolepad.protocol.GamepadState;
+
+public class GamepadReceiver implements Closeable {
+    /** The time without frames after which a phone is considered gone. */
+    public static final long STREAM_TIMEOUT_MS = 1000;
+
+    /** A frame was dropped because it came from a phone other than the one streaming. */
+    public static final int RESULT_OTHER_SENDER = GamepadDecoder.RESULT_MALFORMED + 1;
+
+    /** The max time between checks for a quiet phone. */
+    private static final int RECEIVE_TIMEOUT_MS = (int) (STREAM_TIMEOUT_MS / 4);
+
+    /** The socket frames arrive on. */
+    private final DatagramSocket mSocket;
+
+    /** Where frames are delivered. */
+    private final VirtualController mController;
+
+    /** The number of frames with each result, indexed by GamepadDecoder.RESULT_* or above. */
+    private final AtomicLongArray mCounts = new AtomicLongArray(RESULT_OTHER_SENDER + 1);
+
+    /** Whether close() was called. */
+    private volatile boolean mClosed;
+
+    /**
+     * Bind the socket. Nothing is received until start() is called.
+     * @param bindAddress The address to listen on, e.g. loopback for local testing.
+     * @param port The port to listen on, usually ConsoleProtocol.GAMEPAD_PORT, or 0 to pick one.
+     * @param controller Where frames are delivered.
+     * @throws IOException If the socket could not be bound.
+     */
+    public GamepadReceiver(InetAddress bindAddress, int port, VirtualController controller)
+            throws IOException {
+        mSocket = new DatagramSocket(new InetSocketAddress(bindAddress, port));
+        mSocket.setSoTimeout(RECEIVE_TIMEOUT_MS);
+        mController = controller;
+    }
+
+    /** @return The port the receiver is listening on. */
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    /**
+     * @param result A GamepadDecoder.RESULT_* value or RESULT_OTHER_SENDER.
+     * @return The number of frames received with that result.
+     */
+    public long getCount(int result) {
+        return mCounts.get(result);
+    }
+
+    /** Start receiving on a background thread. */
+    public void start() {
+        Thread thread = new Thread(this::receiveFrames, "GamepadReceiver");
+        thread.setDaemon(true);
+        // Input latency is the whole point of the stream.
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /** Stop receiving. The controller is released if a phone was streaming. */
+    @Override
+    public void close() {
+        mClosed = true;
+        mSocket.close();
+    }
+
+    /** Receive, apply and ack frames until the receiver is closed. */
+    private void receiveFrames() {
+        GamepadDecoder decoder = new GamepadDecoder();
+        GamepadState state = new GamepadState();
+        byte[] receiveBuffer = new byte[GamepadFrame.MAX_FRAME_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        ByteBuffer ack = ByteBuffer.allocate(GamepadFrame.ACK_SIZE);
+        DatagramPacket ackPacket = new DatagramPacket(ack.array(), ack.capacity());
+
+        // The phone currently streaming and when it was last heard from.
+        SocketAddress sender = null;
+        long lastFrameMs = 0;
+        while (!mClosed) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                mSocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                // Fall through to the quiet check below.
+                packet.setLength(0);
+            } catch (IOException e) {
+                if (mClosed) break;
+                continue;
+            }
+
+            long nowMs = System.currentTimeMillis();
+            if (sender != null && nowMs - lastFrameMs > STREAM_TIMEOUT_MS) {
+                sender = null;
+                decoder.reset();
+                mController.release();
+            }
+            if (packet.getLength() == 0) continue;
+
+            SocketAddress from = packet.getSocketAddress();
+            if (sender != null && !sender.equals(from)) {
+                mCounts.incrementAndGet(RESULT_OTHER_SENDER);
+                continue;
+            }
+
+            int result = decoder.decode(
+                    ByteBuffer.wrap(receiveBuffer, 0, packet.getLength()), state);
+            mCounts.incrementAndGet(result);
+            if (result == GamepadDecoder.RESULT_MALFORMED) continue;
+
+            sender = from;
+            lastFrameMs = nowMs;
+            if (result == GamepadDecoder.RESULT_APPLIED) mController.update(state);
+            if (result == GamepadDecoder.RESULT_STALE) continue;
+
+            ack.clear();
+            decoder.writeAck(ack);
+            ackPacket.setSocketAddress(from);
+            try {
+                mSocket.send(ackPacket);
+            } catch (IOException e) {
+                // The next frame's ack will do.
+            }
+        }
+        if (sender != null) mController.release();
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: JobActionHandler.java
+ * Author: Matt Jones
+ * Date: 2019.10.14
+ * Desc: Something the responder can start when the app asks for an action and that keeps running
+ *       after the app is answered. The responder tracks it as a job; see JobEvent.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface JobActionHandler {
+    /**
+     * Start an action requested by the app. This is called on a worker thread and may be called
+     * for several requests at once.
+     * @param action The action to start.
+     * @return A future that completes with the exit code when the action ends; 0 means it
+     *         succeeded.
+     * @throws Exception If the action could not be started.
+     */
+    CompletableFuture<Integer> startJob(String action) throws Exception;
+}
@@ -0,0 +1,419 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: LossyProxy.java
+ * Author: Matt Jones
+ * Date: 2019.10.20
+ * Desc: Sits between a client and a console on loopback and makes the link between them act like
+ *       a bad Wi-Fi network. It forwards UDP and TCP on one port like the console does. Datagrams
+ *       in either direction can be dropped, sent twice, or held back for a delay plus random
+ *       jitter, so they also arrive out of order. TCP data isn't lost or reordered, because TCP
+ *       retransmits. It is delayed the same way, and a "lost" chunk waits another
+ *       TCP_RETRANSMIT_MS, which is where loss shows up on a real session. The random choices
+ *       come from a seed. Each direction of each client and session has a Random of its own that
+ *       only its thread uses, so a run with the same traffic makes the same choices however the
+ *       threads happen to be scheduled.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+
+public class LossyProxy implements Closeable {
+    /** The extra delay of a lost TCP chunk, Linux's minimum retransmission timeout. */
+    public static final long TCP_RETRANSMIT_MS = 200;
+
+    /** The largest TCP chunk read and forwarded at once. */
+    private static final int TCP_CHUNK_SIZE = 8 * 1024;
+
+    /** Where traffic is forwarded. */
+    private final InetSocketAddress mTarget;
+
+    /** The socket clients send datagrams to; replies to them go out from it too. */
+    private final DatagramSocket mUdpSocket;
+
+    /** The socket sessions are accepted on. */
+    private final ServerSocket mServerSocket;
+
+    /** The socket each client's datagrams are forwarded from, keyed by the client's address. */
+    private final ConcurrentHashMap<SocketAddress, DatagramSocket> mUpstreamSockets =
+            new ConcurrentHashMap<>();
+
+    /** Sends the datagrams that were held back. */
+    private final ScheduledExecutorService mDelayer = Executors.newSingleThreadScheduledExecutor(
+            (runnable) -> {
+                Thread thread = new Thread(runnable, "LossyProxyDelayer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** Makes the choices for datagrams on their way to the target. Only used on its thread. */
+    private final Random mRequestRandom;
+
+    /** Seeds the choices for each client's replies. Only used with mRequestRandom. */
+    private final Random mReplySeeds;
+
+    /** Seeds the choices for each direction of a session. Only used on the accepting thread. */
+    private final Random mSessionSeeds;
+
+    /** The number of datagrams and TCP chunks dropped or made to wait for a retransmit. */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /** The number of extra datagrams sent. */
+    private final AtomicLong mDuplicated = new AtomicLong();
+
+    /** The chance of a datagram or TCP chunk being lost, from 0 to 1. */
+    private volatile double mLoss;
+
+    /** The chance of a datagram being sent twice, from 0 to 1. */
+    private volatile double mDuplication;
+
+    /** The time every datagram and TCP chunk is held back. */
+    private volatile long mDelayMs;
+
+    /** The most extra time a datagram or TCP chunk is held back, picked at random. */
+    private volatile long mJitterMs;
+
+    /** Whether close() was called. */
+    private volatile boolean mClosed;
+
+    /**
+     * Bind the sockets on a free loopback port. Nothing is forwarded until start() is called.
+     * @param target Where traffic is forwarded, usually a ConsoleResponder on loopback.
+     * @param seed The seed for the random choices.
+     * @throws IOException If the sockets could not be bound.
+     */
+    public LossyProxy(InetSocketAddress target, long seed) throws IOException {
+        mTarget = target;
+        Random seeds = new Random(seed);
+        mRequestRandom = new Random(seeds.nextLong());
+        mReplySeeds = new Random(seeds.nextLong());
+        mSessionSeeds = new Random(seeds.nextLong());
+
+        // Bind TCP first so its port can be reused for UDP, like the console.
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        mServerSocket = new ServerSocket(0, 50, loopback);
+        try {
+            mUdpSocket = new DatagramSocket(
+                    new InetSocketAddress(loopback, mServerSocket.getLocalPort()));
+        } catch (IOException e) {
+            mServerSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set the chance of a datagram being dropped, or a TCP chunk waiting for a retransmit.
+     * Applies to each direction on its own.
+     * @param loss The chance from 0 to 1.
+     * @return This proxy for chaining.
+     */
+    public LossyProxy setLoss(double loss) {
+        mLoss = loss;
+        return this;
+    }
+
+    /**
+     * Set the chance of a datagram arriving twice. The copy gets its own delay.
+     * @param duplication The chance from 0 to 1.
+     * @return This proxy for chaining.
+     */
+    public LossyProxy setDuplication(double duplication) {
+        mDuplication = duplication;
+        return this;
+    }
+
+    /**
+     * Set how long everything is held back on the way through.
+     * @param delayMs The time everything waits.
+     * @param jitterMs The most extra time, picked at random each time. Datagrams given more
+     *                 than the ones after them arrive out of order.
+     * @return This proxy for chaining.
+     */
+    public LossyProxy setDelay(long delayMs, long jitterMs) {
+        mDelayMs = delayMs;
+        mJitterMs = jitterMs;
+        return this;
+    }
+
+    /** @return The port clients should send to instead of the target's. */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /** @return The number of datagrams dropped and TCP chunks made to wait for a retransmit. */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /** @return The number of extra datagrams sent. */
+    public long getDuplicated() {
+        return mDuplicated.get();
+    }
+
+    /** Start forwarding on background threads. */
+    public void start() {
+        startThread("LossyProxyUdp", this::forwardFromClients);
+        startThread("LossyProxyAccept", this::acceptSessions);
+    }
+
+    /** Stop forwarding and release every socket. Anything still held back is dropped. */
+    @Override
+    public void close() {
+        mClosed = true;
+        mUdpSocket.close();
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Nothing else to do; the socket is unusable either way.
+        }
+        for (DatagramSocket socket : mUpstreamSockets.values()) socket.close();
+        mDelayer.shutdownNow();
+    }
+
+    /**
+     * Start a daemon thread.
+     * @param name The name of the thread.
+     * @param body What the thread runs.
+     */
+    private static void startThread(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param random Makes the choice.
+     * @return The time to hold something back: the delay plus a random part of the jitter.
+     */
+    private long pickDelayMs(Random random) {
+        long jitterMs = mJitterMs;
+        return mDelayMs + (jitterMs > 0 ? (long) (random.nextDouble() * (jitterMs + 1)) : 0);
+    }
+
+    /** Forward clients' datagrams to the target until the proxy is closed. */
+    private void forwardFromClients() {
+        byte[] receiveBuffer = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        while (!mClosed) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                mUdpSocket.receive(packet);
+            } catch (IOException e) {
+                if (mClosed) return;
+                continue;
+            }
+            SocketAddress client = packet.getSocketAddress();
+            DatagramSocket upstream;
+            try {
+                upstream = getUpstreamSocket(client);
+            } catch (IOException e) {
+                continue;
+            }
+            forward(upstream, Arrays.copyOf(receiveBuffer, packet.getLength()), mTarget,
+                    mRequestRandom);
+        }
+    }
+
+    /**
+     * @param client The address of a client.
+     * @return The socket the client's datagrams are forwarded from, so the target's replies to
+     *         it can be told apart from other clients'.
+     * @throws IOException If a new socket couldn't be opened.
+     */
+    private DatagramSocket getUpstreamSocket(SocketAddress client) throws IOException {
+        DatagramSocket upstream = mUpstreamSockets.get(client);
+        if (upstream != null) return upstream;
+        upstream = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mUpstreamSockets.put(client, upstream);
+        DatagramSocket socket = upstream;
+        Random random = new Random(mReplySeeds.nextLong());
+        startThread("LossyProxyUdpReplies", () -> forwardToClient(socket, client, random));
+        // Closing raced with opening; make sure this one doesn't outlive the proxy.
+        if (mClosed) upstream.close();
+        return upstream;
+    }
+
+    /**
+     * Forward the target's replies to a client until the proxy is closed.
+     * @param upstream The socket the client's datagrams are forwarded from.
+     * @param client The client.
+     * @param random Makes the choices for the replies.
+     */
+    private void forwardToClient(DatagramSocket upstream, SocketAddress client, Random random) {
+        byte[] receiveBuffer = new byte[ConsoleProtocol.MAX_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        while (!mClosed) {
+            try {
+                packet.setLength(receiveBuffer.length);
+                upstream.receive(packet);
+            } catch (IOException e) {
+                if (mClosed) return;
+                continue;
+            }
+            forward(mUdpSocket, Arrays.copyOf(receiveBuffer, packet.getLength()), client, random);
+        }
+    }
+
+    /**
+     * Send a datagram on, or not, once or twice, now or later.
+     * @param socket The socket to send it from.
+     * @param data The datagram.
+     * @param target Where to send it.
+     * @param random Makes the choices; only ever used by the calling thread.
+     */
+    private void forward(DatagramSocket socket, byte[] data, SocketAddress target,
+            Random random) {
+        if (random.nextDouble() < mLoss) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        int copies = 1;
+        if (random.nextDouble() < mDuplication) {
+            mDuplicated.incrementAndGet();
+            copies++;
+        }
+        for (int i = 0; i < copies; i++) {
+            long delayMs = pickDelayMs(random);
+            Runnable send = () -> {
+                try {
+                    socket.send(new DatagramPacket(data, data.length, target));
+                } catch (IOException e) {
+                    // The same as losing it.
+                }
+            };
+            if (delayMs == 0) {
+                send.run();
+            } else {
+                try {
+                    mDelayer.schedule(send, delayMs, TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {
+                    // Closed while forwarding.
+                }
+            }
+        }
+    }
+
+    /** Accept sessions and connect each to the target until the proxy is closed. */
+    private void acceptSessions() {
+        while (!mClosed) {
+            Socket client;
+            try {
+                client = mServerSocket.accept();
+            } catch (IOException e) {
+                if (mClosed) return;
+                continue;
+            }
+            Socket upstream = new Socket();
+            try {
+                upstream.connect(mTarget);
+                client.setTcpNoDelay(true);
+                upstream.setTcpNoDelay(true);
+            } catch (IOException e) {
+                closeQuietly(client);
+                closeQuietly(upstream);
+                continue;
+            }
+            Random upRandom = new Random(mSessionSeeds.nextLong());
+            Random downRandom = new Random(mSessionSeeds.nextLong());
+            startThread("LossyProxyTcpUp", () -> pump(client, upstream, upRandom));
+            startThread("LossyProxyTcpDown", () -> pump(upstream, client, downRandom));
+        }
+    }
+
+    /**
+     * Copy one direction of a session, holding each chunk back without reordering any. Closes
+     * both sockets when either end does.
+     * @param from The socket to read from.
+     * @param to The socket to write to.
+     * @param random Makes the choices for this direction.
+     */
+    private void pump(Socket from, Socket to, Random random) {
+        // One thread per direction writes the chunks in the order they were read, each waiting
+        // until it's due. Due times never go backwards, so none waits behind a later one.
+        ExecutorService writer = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "LossyProxyTcpWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        byte[] buffer = new byte[TCP_CHUNK_SIZE];
+        long lastDueNs = System.nanoTime();
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while (!mClosed && (read = in.read(buffer)) > 0) {
+                long delayMs = pickDelayMs(random);
+                if (random.nextDouble() < mLoss) {
+                    mDropped.incrementAndGet();
+                    delayMs += TCP_RETRANSMIT_MS;
+                }
+                long dueNs = Math.max(lastDueNs, System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(delayMs));
+                lastDueNs = dueNs;
+                byte[] chunk = Arrays.copyOf(buffer, read);
+                writer.execute(() -> {
+                    try {
+                        sleepUntil(dueNs);
+                        out.write(chunk);
+                    } catch (IOException | InterruptedException e) {
+                        closeQuietly(from);
+                        closeQuietly(to);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Either end closing ends the session.
+        }
+        // Let what was already read through before closing.
+        writer.execute(() -> {
+            closeQuietly(from);
+            closeQuietly(to);
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Wait for a time.
+     * @param dueNs The time by System.nanoTime().
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    private static void sleepUntil(long dueNs) throws InterruptedException {
+        long remainingNs;
+        while ((remainingNs = dueNs - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remainingNs);
+        }
+    }
+
+    /**
+     * Close a socket, ignoring any error.
+     * @param socket The socket.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do; the socket is unusable either way.
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ResponderMain.java
+ * Author: Matt Jones
+ * Date: 2019.10.07
+ * Desc: Runs a ConsoleResponder from the command line:
+ *
+ *       responder [--port 19002] [--workers 4] [--loopback] [--name NAME]
+ *                 [--action ACTION=command args...]... [--gamepad]
+ *                 [--roms es_systems.cfg [--rom-index rom_index.tsv]]
+ *
+ *       Actions without a command are answered but do nothing, so by default this is a harmless
+ *       stand-in for the console that can be pointed at by the app or a load test. Commands run
+ *       as jobs, so subscribers hear when they exit. With --gamepad the gamepad stream is
+ *       received on port + 1 and button changes are printed, which is enough to try the app's
+ *       gamepad mode without a virtual controller driver. With --roms the ROM folders of the
+ *       EmulationStation systems are indexed for the app to browse, and games it picks are
+ *       launched with the system's command. Unless bound to loopback, the responder joins the
+ *       discovery multicast group on every interface that supports it.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.GamepadState;
+
+public class ResponderMain {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = ConsoleProtocol.DEFAULT_PORT;
+        int workers = ConsoleResponder.DEFAULT_WORKER_COUNT;
+        InetAddress bindAddress = null;
+        String name = InetAddress.getLocalHost().getHostName();
+        boolean gamepad = false;
+        File systemsFile = null;
+        File romIndexFile = new File("rom_index.tsv");
+
+        // Parse everything before building the responder so bad arguments fail fast.
+        String[][] actions = new String[args.length][];
+        int actionCount = 0;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--port".equals(arg)) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("--workers".equals(arg)) {
+                workers = Integer.parseInt(args[++i]);
+            } else if ("--loopback".equals(arg)) {
+                bindAddress = InetAddress.getLoopbackAddress();
+            } else if ("--gamepad".equals(arg)) {
+                gamepad = true;
+            } else if ("--roms".equals(arg)) {
+                systemsFile = new File(args[++i]);
+            } else if ("--rom-index".equals(arg)) {
+                romIndexFile = new File(args[++i]);
+            } else if ("--name".equals(arg)) {
+                name = args[++i];
+            } else if ("--action".equals(arg)) {
+                String spec = args[++i];
+                int split = spec.indexOf('=');
+                if (split <= 0) throw new IllegalArgumentException("Bad action: " + spec);
+                actions[actionCount++] = new String[] {
+                        spec.substring(0, split), spec.substring(split + 1)};
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        ConsoleResponder responder = new ConsoleResponder(name, bindAddress, port, workers);
+        for (int i = 0; i < actionCount; i++) {
+            responder.setJobHandler(actions[i][0],
+                    new ScriptActionHandler(actions[i][1].trim().split("\\s+")));
+        }
+        if (systemsFile != null) {
+            RomLibrary library = new RomLibrary(systemsFile, romIndexFile);
+            responder.setPrefixHandler(ConsoleProtocol.ACTION_ROM_INDEX_PREFIX, library)
+                    .setPrefixJobHandler(ConsoleProtocol.ACTION_LAUNCH_PREFIX, library);
+            Runtime.getRuntime().addShutdownHook(new Thread(library::close));
+            library.start();
+        }
+        if (bindAddress == null) {
+            for (NetworkInterface networkInterface :
+                    Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()
+                        || !networkInterface.supportsMulticast()) {
+                    continue;
+                }
+                try {
+                    responder.joinDiscoveryGroup(networkInterface);
+                } catch (IOException e) {
+                    // Apps still find the console by broadcast on this interface.
+                    System.err.println("Could not join the discovery group on "
+                            + networkInterface.getName() + ": " + e);
+                }
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(responder::close));
+        responder.start();
+
+        System.out.println("Responding as " + name + " on port " + responder.getPort()
+                + " with " + workers + " workers");
+
+        if (gamepad) {
+            // Keep the same distance from the main port as the defaults so tests can move both.
+            int gamepadPort = responder.getPort()
+                    + ConsoleProtocol.GAMEPAD_PORT - ConsoleProtocol.DEFAULT_PORT;
+            GamepadReceiver receiver =
+                    new GamepadReceiver(bindAddress, gamepadPort, new PrintingController());
+            Runtime.getRuntime().addShutdownHook(new Thread(receiver::close));
+            receiver.start();
+            System.out.println("Receiving the gamepad stream on port " + receiver.getPort());
+        }
+        // The responder's threads are daemons; park here until the process is stopped.
+        Thread.currentThread().join();
+    }
+
+    /** Prints the buttons held whenever they change. */
+    private static class PrintingController implements VirtualController {
+        /** The buttons held at the last update. */
+        private int mButtons;
+
+        @Override
+        public void update(GamepadState state) {
+            if (state.buttons == mButtons) return;
+            mButtons = state.buttons;
+            System.out.println("Gamepad: " + state);
+        }
+
+        @Override
+        public void release() {
+            mButtons = 0;
+            System.out.println("Gamepad: released");
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RomIndex.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: The console's versioned index of its game library. Every game added, changed or removed
+ *       gets the next version number, and the latest change to each game is kept in version
+ *       order, so the changes since any version are a range that can be paged through (see
+ *       RomIndexPage). Removed games are kept as tombstones of a few dozen bytes each, so an app
+ *       however far behind can be told they're gone without fetching everything again. The index
+ *       is saved to a file so versions survive a restart; an index that can't be loaded starts
+ *       over with a new ID, which makes every app start over.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import zone.mattjones.consolepad.protocol.RomEntry;
+import zone.mattjones.consolepad.protocol.RomIndexPage;
+
+public class RomIndex {
+    /** A game and where its file is. */
+    public static class Entry {
+        /** The game as the app sees it. */
+        public final RomEntry rom;
+        /** The path of the game's file. */
+        public final String path;
+        /** The size of the file when it was hashed. */
+        public final long size;
+        /** The modification time of the file when it was hashed. */
+        public final long modifiedMs;
+        /** The version of the last change to the game. */
+        final long version;
+
+        Entry(RomEntry rom, String path, long size, long modifiedMs, long version) {
+            this.rom = rom;
+            this.path = path;
+            this.size = size;
+            this.modifiedMs = modifiedMs;
+            this.version = version;
+        }
+    }
+
+    /** The version of the saved format. */
+    private static final String FORMAT = "rom_index 1";
+
+    /** The delimiter between the fields of a saved line. */
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /** The file the index is saved to. */
+    private final File mFile;
+
+    /** The games keyed by hash. */
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    /** The hash of every game and tombstone keyed by the version of its last change. */
+    private final TreeMap<Long, String> mChanges = new TreeMap<>();
+
+    /** The version each removed game was removed at, keyed by hash. */
+    private final HashMap<String, Long> mTombstones = new HashMap<>();
+
+    /** The ID of the index; apps holding a version of another index start over. */
+    private String mIndexId;
+
+    /** The latest version. */
+    private long mVersion;
+
+    /** Whether there are changes that haven't been saved. */
+    private boolean mDirty;
+
+    /**
+     * Load the index saved in a file, or start a new one if there isn't one that can be read.
+     * @param file Where the index is saved.
+     */
+    public RomIndex(File file) {
+        mFile = file;
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            if (file.exists()) System.err.println("Starting a new game index: " + e);
+            mEntries.clear();
+            mChanges.clear();
+            mTombstones.clear();
+            mIndexId = newIndexId();
+            mVersion = 0;
+            mDirty = true;
+        }
+    }
+
+    /** @return A copy of every game. */
+    public synchronized ArrayList<Entry> getEntries() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * @param hash The hash of a game.
+     * @return The game or null if it isn't in the index.
+     */
+    public synchronized Entry get(String hash) {
+        return mEntries.get(hash);
+    }
+
+    /**
+     * Add a game or update where it is. It only gets a new version if what the app sees changed.
+     * @param rom The game.
+     * @param path The path of its file.
+     * @param size The size of the file.
+     * @param modifiedMs The modification time of the file.
+     */
+    public synchronized void put(RomEntry rom, String path, long size, long modifiedMs) {
+        Entry old = mEntries.get(rom.hash);
+        long version = old != null && old.rom.equals(rom) ? old.version : nextVersion(rom.hash);
+        if (old != null && old.version == version && old.path.equals(path) && old.size == size
+                && old.modifiedMs == modifiedMs) {
+            return;
+        }
+        Long tombstone = mTombstones.remove(rom.hash);
+        if (tombstone != null) mChanges.remove(tombstone);
+        mEntries.put(rom.hash, new Entry(rom, path, size, modifiedMs, version));
+        mDirty = true;
+    }
+
+    /**
+     * Remove a game.
+     * @param hash The hash of the game.
+     */
+    public synchronized void remove(String hash) {
+        if (!mEntries.containsKey(hash)) return;
+        long version = nextVersion(hash);
+        mEntries.remove(hash);
+        mTombstones.put(hash, version);
+        mDirty = true;
+    }
+
+    /**
+     * Build the page of changes an app asked for.
+     * @param indexId The ID of the index the app's version is from.
+     * @param sinceVersion The version the app has.
+     * @return The page.
+     */
+    public synchronized RomIndexPage getPage(String indexId, long sinceVersion) {
+        // A version from another index, or from before this one was lost, means nothing here.
+        boolean reset = !mIndexId.equals(indexId) || sinceVersion > mVersion;
+        long since = reset ? 0 : sinceVersion;
+
+        ArrayList<RomEntry> added = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+        long through = mVersion;
+        for (Map.Entry<Long, String> change : mChanges.tailMap(since, false).entrySet()) {
+            if (added.size() + removed.size() == RomIndexPage.MAX_ENTRIES) {
+                through = change.getKey() - 1;
+                break;
+            }
+            Entry entry = mEntries.get(change.getValue());
+            if (entry != null) {
+                added.add(entry.rom);
+            } else if (!reset) {
+                removed.add(change.getValue());
+            }
+        }
+        return new RomIndexPage(mIndexId, reset, since, through, mVersion, added, removed);
+    }
+
+    /**
+     * Save the index if it changed since it was loaded or last saved. The file is replaced in
+     * one step, so a crash leaves the old index rather than half of the new one.
+     * @throws IOException If the index couldn't be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty) return;
+        File temp = new File(mFile.getPath() + ".tmp");
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), Charset.forName("UTF8")))) {
+            out.write(FORMAT);
+            out.newLine();
+            out.write(mIndexId + FIELD_SEPARATOR + mVersion);
+            out.newLine();
+            for (Entry entry : mEntries.values()) {
+                out.write(String.join(FIELD_SEPARATOR, entry.rom.hash,
+                        Long.toString(entry.version), entry.rom.system, entry.rom.name,
+                        entry.path, Long.toString(entry.size), Long.toString(entry.modifiedMs)));
+                out.newLine();
+            }
+            for (Map.Entry<String, Long> tombstone : mTombstones.entrySet()) {
+                out.write(tombstone.getKey() + FIELD_SEPARATOR + tombstone.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(temp.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        mDirty = false;
+    }
+
+    /**
+     * Read the saved index.
+     * @throws IOException If there is no saved index or it can't be read.
+     */
+    private void load() throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mFile), Charset.forName("UTF8")))) {
+            if (!FORMAT.equals(in.readLine())) throw new IOException("Unknown index format");
+            String[] header = in.readLine().split(FIELD_SEPARATOR);
+            mIndexId = header[0];
+            mVersion = Long.parseLong(header[1]);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(FIELD_SEPARATOR, -1);
+                long version = Long.parseLong(fields[1]);
+                if (fields.length == 2) {
+                    mTombstones.put(fields[0], version);
+                } else {
+                    mEntries.put(fields[0], new Entry(new RomEntry(fields[0], fields[2], fields[3]),
+                            fields[4], Long.parseLong(fields[5]), Long.parseLong(fields[6]),
+                            version));
+                }
+                if (version > mVersion) throw new IOException("Version past the index's");
+                mChanges.put(version, fields[0]);
+            }
+        }
+    }
+
+    /**
+     * Give a game the next version, dropping its previous change.
+     * @param hash The hash of the game.
+     * @return The new version.
+     */
+    private long nextVersion(String hash) {
+        Entry old = mEntries.get(hash);
+        if (old != null) mChanges.remove(old.version);
+        mChanges.put(++mVersion, hash);
+        return mVersion;
+    }
+
+    /** @return A random ID for a new index. */
+    private static String newIndexId() {
+        byte[] bytes = new byte[4];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder id = new StringBuilder();
+        for (byte b : bytes) id.append(String.format("%02x", b & 0xFF));
+        return id.toString();
+    }
+}
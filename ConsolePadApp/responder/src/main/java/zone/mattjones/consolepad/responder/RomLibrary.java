@@ -0,0 +1,256 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: RomLibrary.java
+ * Author: Matt Jones
+ * Date: 2019.10.18
+ * Desc: The games EmulationStation knows about, for apps to browse and launch. The systems and
+ *       their ROM folders come from es_systems.cfg; the folders are scanned in the background
+ *       into a RomIndex, hashing only files that are new or whose size or modification time
+ *       changed, so rescanning a large library is mostly a directory listing. Answers ROM_INDEX
+ *       with pages of the index and starts LAUNCH as a job with the system's command, the same
+ *       way EmulationStation would.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+import zone.mattjones.consolepad.protocol.RomEntry;
+import zone.mattjones.consolepad.protocol.RomIndexPage;
+
+public class RomLibrary implements ActionHandler, JobActionHandler {
+    /** A system from es_systems.cfg. */
+    private static class GameSystem {
+        /** The short name, e.g. "n64". */
+        final String name;
+        /** The folder its ROMs are in. */
+        final Path path;
+        /** The file extensions of its ROMs in lowercase, with the dot. */
+        final List<String> extensions;
+        /** The command that runs a ROM, with %ROM% where the ROM's path goes. */
+        final String command;
+
+        GameSystem(String name, Path path, List<String> extensions, String command) {
+            this.name = name;
+            this.path = path;
+            this.extensions = extensions;
+            this.command = command;
+        }
+    }
+
+    /** How often the ROM folders are scanned for changes. */
+    private static final long RESCAN_INTERVAL_MS = 60000;
+
+    /** The placeholder for the ROM's path in a system's command. */
+    private static final String ROM_PLACEHOLDER = "%ROM%";
+
+    /** The systems keyed by name. */
+    private final HashMap<String, GameSystem> mSystems = new HashMap<>();
+
+    /** The games found so far. */
+    private final RomIndex mIndex;
+
+    /** Runs the scans. */
+    private final ScheduledExecutorService mScanner = Executors.newSingleThreadScheduledExecutor(
+            (runnable) -> {
+                Thread thread = new Thread(runnable, "RomLibraryScanner");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * @param systemsFile EmulationStation's es_systems.cfg.
+     * @param indexFile Where the index is saved between runs.
+     * @throws IOException If the systems couldn't be read.
+     */
+    public RomLibrary(File systemsFile, File indexFile) throws IOException {
+        readSystems(systemsFile);
+        mIndex = new RomIndex(indexFile);
+    }
+
+    /** Scan the ROM folders now and then every RESCAN_INTERVAL_MS until closed. */
+    public void start() {
+        mScanner.scheduleWithFixedDelay(
+                this::scan, 0, RESCAN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop scanning. A scan in progress finishes. */
+    public void close() {
+        mScanner.shutdown();
+    }
+
+    /** Answers ROM_INDEX with a page of the changes the app asked for. */
+    @Override
+    public String handleAction(String action) {
+        String indexId = RomIndexPage.getRequestIndexId(action);
+        long version = RomIndexPage.getRequestVersion(action);
+        if (indexId == null || version < 0) return null;
+        return mIndex.getPage(indexId, version).encode();
+    }
+
+    /** Starts the game named by LAUNCH with its system's command. */
+    @Override
+    public CompletableFuture<Integer> startJob(String action) throws IOException {
+        String hash = action.substring(ConsoleProtocol.ACTION_LAUNCH_PREFIX.length());
+        RomIndex.Entry entry = mIndex.get(hash);
+        if (entry == null) throw new IOException("Unknown game " + hash);
+        GameSystem system = mSystems.get(entry.rom.system);
+        if (system == null) throw new IOException("Unknown system " + entry.rom.system);
+
+        // Split before filling in the path so a path with spaces stays one argument.
+        String[] command = system.command.trim().split("\\s+");
+        for (int i = 0; i < command.length; i++) {
+            command[i] = command[i].replace(ROM_PLACEHOLDER, entry.path);
+        }
+        return new ScriptActionHandler(command).startJob(action);
+    }
+
+    /** Bring the index up to date with the ROM folders and save it. */
+    void scan() {
+        HashMap<String, RomIndex.Entry> byPath = new HashMap<>();
+        for (RomIndex.Entry entry : mIndex.getEntries()) byPath.put(entry.path, entry);
+
+        HashSet<String> found = new HashSet<>();
+        for (GameSystem system : mSystems.values()) {
+            try (Stream<Path> files = Files.walk(system.path)) {
+                files.forEach((file) -> scanFile(system, file, byPath, found));
+            } catch (IOException | RuntimeException e) {
+                // A missing or unreadable folder loses its games until it's back.
+                System.err.println("Could not scan " + system.path + ": " + e);
+            }
+        }
+        for (RomIndex.Entry entry : byPath.values()) {
+            if (!found.contains(entry.rom.hash)) mIndex.remove(entry.rom.hash);
+        }
+
+        try {
+            mIndex.save();
+        } catch (IOException e) {
+            System.err.println("Could not save the game index: " + e);
+        }
+    }
+
+    /**
+     * Add a file to the index if it's a ROM of a system.
+     * @param system The system whose folder the file is in.
+     * @param file The file.
+     * @param byPath The games in the index before the scan, keyed by path.
+     * @param found The hashes of the games found so far in this scan.
+     */
+    private void scanFile(GameSystem system, Path file, HashMap<String, RomIndex.Entry> byPath,
+            HashSet<String> found) {
+        String fileName = file.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= 0 || !system.extensions.contains(
+                fileName.substring(dot).toLowerCase(Locale.ROOT))) {
+            return;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return;
+            String path = file.toString();
+            long size = attributes.size();
+            long modifiedMs = attributes.lastModifiedTime().toMillis();
+            RomIndex.Entry old = byPath.get(path);
+            String hash = old != null && old.size == size && old.modifiedMs == modifiedMs
+                    ? old.rom.hash : hashFile(file);
+            // Copies of a game are one entry; the first one found is launched.
+            if (!found.add(hash)) return;
+            // Tabs and line breaks would break the page format.
+            String name = fileName.substring(0, dot).replaceAll("[\\t\\r\\n]", " ");
+            mIndex.put(new RomEntry(hash, system.name, name), path, size, modifiedMs);
+        } catch (IOException e) {
+            System.err.println("Could not read " + file + ": " + e);
+        }
+    }
+
+    /**
+     * @param file A file.
+     * @return The first RomEntry.HASH_LENGTH hex digits of the SHA-1 of its contents.
+     * @throws IOException If the file couldn't be read.
+     */
+    private static String hashFile(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to have SHA-1.
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file.toFile())) {
+            int read;
+            while ((read = in.read(buffer)) > 0) digest.update(buffer, 0, read);
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder hash = new StringBuilder(RomEntry.HASH_LENGTH);
+        for (int i = 0; i < RomEntry.HASH_LENGTH / 2; i++) {
+            hash.append(String.format("%02x", bytes[i] & 0xFF));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Read the systems from es_systems.cfg.
+     * @param systemsFile The file.
+     * @throws IOException If it couldn't be read or parsed.
+     */
+    private void readSystems(File systemsFile) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(systemsFile);
+        } catch (Exception e) {
+            throw new IOException("Could not read " + systemsFile, e);
+        }
+        NodeList systems = document.getElementsByTagName("system");
+        for (int i = 0; i < systems.getLength(); i++) {
+            Element system = (Element) systems.item(i);
+            String name = getChildText(system, "name");
+            String path = getChildText(system, "path");
+            String command = getChildText(system, "command");
+            if (name.isEmpty() || path.isEmpty() || command.isEmpty()) continue;
+            List<String> extensions = new ArrayList<>(Arrays.asList(
+                    getChildText(system, "extension").toLowerCase(Locale.ROOT).split("\\s+")));
+            mSystems.put(name, new GameSystem(name, Paths.get(path), extensions, command));
+        }
+    }
+
+    /**
+     * @param parent An element.
+     * @param tag The tag of a child element.
+     * @return The trimmed text of the first such child or empty if there isn't one.
+     */
+    private static String getChildText(Element parent, String tag) {
+        NodeList children = parent.getElementsByTagName(tag);
+        return children.getLength() > 0 ? children.item(0).getTextContent().trim() : "";
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: ScriptActionHandler.java
+ * Author: Matt Jones
+ * Date: 2019.10.07
+ * Desc: An action handler that runs a command, the counterpart of runScript() in the C#
+ *       responder. The command is started in the background and the app is answered right away.
+ *       Used as a job handler, the command's exit is reported as the end of the job.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import zone.mattjones.consolepad.protocol.ConsoleProtocol;
+
+public class ScriptActionHandler implements ActionHandler, JobActionHandler {
+    /** The command and its arguments. */
+    private final List<String> mCommand;
+
+    /**
+     * @param command The command and its arguments.
+     */
+    public ScriptActionHandler(String... command) {
+        mCommand = Arrays.asList(command);
+    }
+
+    @Override
+    public String handleAction(String action) throws IOException {
+        start();
+        return ConsoleProtocol.RESPONSE_OK;
+    }
+
+    @Override
+    public CompletableFuture<Integer> startJob(String action) throws IOException {
+        Process process = start();
+        CompletableFuture<Integer> exitCode = new CompletableFuture<>();
+        // Java 8 can only wait for a process by blocking, so each running job has a thread.
+        Thread waiter = new Thread(() -> {
+            try {
+                exitCode.complete(process.waitFor());
+            } catch (InterruptedException e) {
+                exitCode.completeExceptionally(e);
+            }
+        }, "ConsoleResponderJob");
+        waiter.setDaemon(true);
+        waiter.start();
+        return exitCode;
+    }
+
+    /**
+     * Start the command with its output thrown away.
+     * @return The running command.
+     * @throws IOException If the command could not be started.
+     */
+    private Process start() throws IOException {
+        return new ProcessBuilder(mCommand)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(nullDevice())))
+                .start();
+    }
+
+    /** @return The path output is thrown away to on this OS. */
+    private static String nullDevice() {
+        return File.separatorChar == '\\' ? "NUL" : "/dev/null";
+    }
+}
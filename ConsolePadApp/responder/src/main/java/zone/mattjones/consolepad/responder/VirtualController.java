@@ -0,0 +1,27 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: VirtualController.java
+ * Author: Matt Jones
+ * Date: 2019.10.15
+ * Desc: Where a GamepadReceiver delivers the phone's controller state, e.g. a virtual device the
+ *       emulators read like a real controller.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import zone.mattjones.consolepad.protocol.GamepadState;
+
+public interface VirtualController {
+    /**
+     * Show a new state. This is called on the receiver's thread for every frame applied, so it
+     * should return quickly; a slow controller delays every frame after it.
+     * @param state The state. It is reused once this returns, so copy it to keep it.
+     */
+    void update(GamepadState state);
+
+    /**
+     * Let go of everything because the phone stopped streaming, so no button is left held down.
+     */
+    void release();
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2019 Matthew Jones
+ *
+ * File: GamepadReceiverTest.java
+ * Author: Matt Jones
+ * Date: 2019.10.23
+ * Desc: Streams controller state to a GamepadReceiver on a free loopback port the way the app's
+ *       GamepadStream does, and checks what reaches the virtual controller: every state in order,
+ *       nothing from stale or reordered frames, and the newest state after frames are lost.
+ */
+
+package zone.mattjones.consolepad.responder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import zone.mattjones.consolepad.protocol.GamepadDecoder;
+import zone.mattjones.consolepad.protocol.GamepadEncoder;
+import zone.mattjones.consolepad.protocol.GamepadFrame;
+import zone.mattjones.consolepad.protocol.GamepadState;
+
+public class GamepadReceiverTest {
+    /** The longest to wait for a state or an ack on loopback. */
+    private static final long TIMEOUT_MS = 2000;
+
+    /** The time to wait for a state that shouldn't arrive. */
+    private static final long QUIET_MS = 100;
+
+    /** A controller that keeps a copy of every state it is handed. */
+    private static class RecordingController implements VirtualController {
+        /** The states in the order they were handed over. */
+        private final LinkedBlockingQueue<GamepadState> mStates = new LinkedBlockingQueue<>();
+
+        @Override
+        public void update(GamepadState state) {
+            GamepadState copy = new GamepadState();
+            copy.copyFrom(state);
+            mStates.add(copy);
+        }
+
+        @Override
+        public void release() {}
+
+        /**
+         * @param timeoutMs The longest to wait.
+         * @return The next state handed over or null if none was in time.
+         */
+        GamepadState next(long timeoutMs) throws InterruptedException {
+            return mStates.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** The receiver under test. */
+    private GamepadReceiver mReceiver;
+
+    /** Where the receiver hands states. */
+    private final RecordingController mController = new RecordingController();
+
+    /** The phone's socket. */
+    private DatagramSocket mSocket;
+
+    /** Writes the phone's frames. */
+    private final GamepadEncoder mEncoder = new GamepadEncoder();
+
+    /** The buffer frames are encoded into. */
+    private final ByteBuffer mOut = ByteBuffer.allocate(GamepadFrame.MAX_FRAME_SIZE);
+
+    @Before
+    public void setUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        // A free port, so a responder streaming on GAMEPAD_PORT or another test run doesn't clash.
+        mReceiver = new GamepadReceiver(loopback, 0, mController);
+        mReceiver.start();
+        mSocket = new DatagramSocket();
+        mSocket.setSoTimeout((int) TIMEOUT_MS);
+        mSocket.connect(new InetSocketAddress(loopback, mReceiver.getPort()));
+    }
+
+    @After
+    public void tearDown() {
+        mSocket.close();
+        mReceiver.close();
+    }
+
+    @Test
+    public void statesArriveInOrder() throws Exception {
+        // Reading the acks means every frame after the first is a delta from the one before.
+        for (int i = 1; i <= 20; i++) {
+            send(encode(i));
+            receiveAck();
+        }
+        for (int i = 1; i <= 20; i++) assertState(i, mController.next(TIMEOUT_MS));
+        assertNull(mController.next(QUIET_MS));
+        assertEquals(20, mReceiver.getCount(GamepadDecoder.RESULT_APPLIED));
+    }
+
+    @Test
+    public void staleAndReorderedFramesAreDropped() throws Exception {
+        byte[] first = encode(1);
+        byte[] second = encode(2);
+        byte[] third = encode(3);
+        byte[] fourth = encode(4);
+
+        // The third arrives first, so the two before it are late, and then it is duplicated.
+        send(third);
+        send(first);
+        send(second);
+        send(third);
+        send(fourth);
+
+        assertState(3, mController.next(TIMEOUT_MS));
+        assertState(4, mController.next(TIMEOUT_MS));
+        assertNull(mController.next(QUIET_MS));
+        assertEquals(3, mReceiver.getCount(GamepadDecoder.RESULT_STALE));
+        assertEquals(2, mReceiver.getCount(GamepadDecoder.RESULT_APPLIED));
+    }
+
+    @Test
+    public void latestStateWinsAfterLoss() throws Exception {
+        send(encode(1));
+        receiveAck();
+        assertState(1, mController.next(TIMEOUT_MS));
+
+        // Lose every frame in between; the last one is a delta from the acked first frame.
+        encode(2);
+        byte[] lateFrame = encode(3);
+        encode(4);
+        send(encode(5));
+        assertState(5, mController.next(TIMEOUT_MS));
+
+        // A lost frame that turns up after all must not undo the newer state.
+        send(lateFrame);
+        send(encode(6));
+        assertState(6, mController.next(TIMEOUT_MS));
+        assertNull(mController.next(QUIET_MS));
+        assertEquals(1, mReceiver.getCount(GamepadDecoder.RESULT_STALE));
+        assertEquals(0, mReceiver.getCount(GamepadDecoder.RESULT_MISSING_BASE));
+    }
+
+    /**
+     * @param mark A number that identifies the state.
+     * @return A state that changes a different mix of values for each mark.
+     */
+    private static GamepadState makeState(int mark) {
+        GamepadState state = new GamepadState();
+        state.buttons = mark % 2 == 0 ? GamepadState.BUTTON_A : GamepadState.BUTTON_B;
+        state.leftX = mark;
+        state.leftY = mark % 3 == 0 ? GamepadState.AXIS_MAX : 0;
+        state.rightY = -100 * mark;
+        state.rightTrigger = (10 * mark) % (GamepadState.TRIGGER_MAX + 1);
+        return state;
+    }
+
+    /**
+     * Check a state that reached the controller.
+     * @param mark The mark of the state expected.
+     * @param actual The state or null if none arrived.
+     */
+    private static void assertState(int mark, GamepadState actual) {
+        assertNotNull("No state for " + mark, actual);
+        GamepadState expected = makeState(mark);
+        assertTrue("Expected " + expected + " but got " + actual, expected.sameAs(actual));
+    }
+
+    /**
+     * Write the next frame, which the receiver may or may not get.
+     * @param mark The mark of the state to send.
+     * @return The frame.
+     */
+    private byte[] encode(int mark) {
+        mOut.clear();
+        mEncoder.encode(mOut, makeState(mark), System.nanoTime() / 1000);
+        return Arrays.copyOf(mOut.array(), mOut.position());
+    }
+
+    /** @param frame A frame to send to the receiver. */
+    private void send(byte[] frame) throws IOException {
+        mSocket.send(new DatagramPacket(frame, frame.length));
+    }
+
+    /** Wait for an ack and hand it to the encoder. */
+    private void receiveAck() throws IOException {
+        byte[] ack = new byte[GamepadFrame.ACK_SIZE];
+        DatagramPacket packet = new DatagramPacket(ack, ack.length);
+        mSocket.receive(packet);
+        assertTrue(mEncoder.handleAck(ByteBuffer.wrap(ack, 0, packet.getLength())) >= 0);
+    }
+}
@@ -4,9 +4,15 @@
  * File: ConsoleUDPResponder.cs
  * Author: Matt Jones
  * Date: 2019.09.03
- * Desc: Respond to UDP connections with information about the console (name, IP, etc.). This
- *       system is built single-threaded, so it only handles one request at a time, which should
- *       be plenty for this use case.
+ * Desc: Respond to UDP connections with information about the console (name, IP, etc.). UDP
+ *       requests are handled one at a time on the main thread, which is plenty for discovery and
+ *       the odd command sent without a session.
+ *       
+ *       UDP is used by the app to find the console, sent to MULTICAST_GROUP first and broadcast
+ *       if no console answers there. After that, the app opens a TCP connection on the same port
+ *       and keeps it open for the rest of its commands. A background thread accepts sessions and
+ *       each one gets its own thread, so one client's slow command doesn't hold up the others.
+ *       Status changes and ROM scans run on background threads of their own.
  *       
  *       Message format:
  *       
@@ -15,30 +21,706 @@
  *       Example:
  *       
  *       !!ConsoleMessage:|1567889516854|TVBox|SW5mbw==|
+ *       
+ *       Responses add the current_time_ms of the request they answer as a reply_to field so the
+ *       app can match them up when it has several requests in flight. It goes before the message
+ *       since older apps take the last field as the message and skip the ones in between:
+ *       
+ *       magic_string|current_time_ms|machine_name|reply_to|base_64_message|
+ *       
+ *       Over TCP, each message is prefixed with its length in bytes as a 4 byte big-endian int.
+ *       A TCP client may also ask for the compact binary format with the FORMAT_BINARY action,
+ *       after which it sends (and receives) messages laid out as:
+ *       
+ *       [0xC0 0x4D][version:1][current_time_ms:8][name_length:1][name][payload_length:2][payload]
+ *       [reply_to:8]
+ *       
+ *       The app sends a request again with the same current_time_ms if it doesn't hear back in
+ *       time, so recent requests are remembered and a repeat gets the first answer without
+ *       running the action twice.
+ *       
+ *       A request is only run if it is new. Each device's clock is estimated from the times on
+ *       its requests (the lowest apparent delay bounds how far ahead it is), and a request sent
+ *       more than VALID_MESSAGE_LATENCY_MS ago by that clock, or whose time was already seen, is
+ *       dropped. The app gives up on a request before then, so nothing it still waits on is lost.
+ *       
+ *       A TCP client can send SUBSCRIBE_STATUS to have the console's status pushed to it. The
+ *       response is "STATUS:" followed by what is running (empty when idle), and the same message
+ *       is sent with no reply_to whenever that changes and every few seconds as a heartbeat.
+ *       
+ *       Several actions can be sent as one batch, "BATCH:" followed by the actions separated by
+ *       commas. They are started in order, stopping at the first one that fails, and the
+ *       response has a result for each: "BATCH:OK,FAILED,SKIPPED".
+ *       
+ *       Actions that run a script are jobs. The response is the job's RUNNING event, e.g.
+ *       "JOB:17:RUNNING:0:0:HOME", and "JOB:17:DONE:2310:0:HOME" (or FAILED with the exit code)
+ *       is pushed to status subscribers when the script exits. JOB_STATUS:17 asks for the latest
+ *       event of a job in case a push was missed.
+ *       
+ *       A response too large for one message is sent in fragments when the action is wrapped as
+ *       "LARGE:deflate:EMULATORS" (the list says which compressions the app reads). Each
+ *       fragment is its own datagram or frame:
+ *       
+ *       [0xC0 0x46][version:1][flags:1][reply_to:8][body_length:4][payload_length:4][index:2]
+ *       [count:2][data]
+ *       
+ *       The body is the UTF-8 response, raw deflated if flags is 1, cut into pieces of
+ *       FRAGMENT_DATA_SIZE bytes. The last few are kept, and "FRAGMENTS:<reply_to>:3,7,12-15"
+ *       sends just those fragments again.
+ *       
+ *       The games in the ROM folders listed in EmulationStation's es_systems.cfg are scanned
+ *       every minute into an index where every change gets the next version.
+ *       "ROM_INDEX:<index_id>:<version>" asks for the changes since a version, answered with a
+ *       page of at most MAX_ROM_PAGE_ENTRIES of them (normally wrapped with LARGE):
+ *       
+ *       ROMS:<index_id>:<reset>:<since>:<through>:<latest>
+ *       +<hash> <system> <name>     (tab separated, added or changed)
+ *       -<hash>                     (removed)
+ *       
+ *       A game is known by the first 16 hex digits of the SHA-1 of its file. "LAUNCH:<hash>"
+ *       runs it with its system's command as a job.
  */
 
 using System;
+using System.Collections.Generic;
 using System.Diagnostics;
 using System.Net;
+using System.IO;
+using System.IO.Compression;
 using System.Net.Sockets;
+using System.Security.Cryptography;
 using System.Text;
+using System.Text.RegularExpressions;
+using System.Threading;
+using System.Xml;
 
 namespace ConsoleUDPResponder {
     static class ConsoleUDPResponder {
+        /**
+         * Estimates how far a device's clock is ahead of ours from the send times on its
+         * requests. A request can't arrive before it was sent, so remote - local bounds the
+         * offset from below. The best bound of each minute is kept, and once there are a few a
+         * line through them gives the drift between the clocks. The Java responder's
+         * ClockOffsetEstimator works the same way.
+         */
+        private class ClockOffsetEstimator {
+            private const long PERIOD_MS = 60000;
+            private const int PERIOD_COUNT = 8;
+            private const int MIN_PERIODS_FOR_DRIFT = 3;
+            private const double MAX_DRIFT = 500e-6;
+
+            private readonly long[] periodStartMs = new long[PERIOD_COUNT];
+            private readonly long[] bestLocalMs = new long[PERIOD_COUNT];
+            private readonly long[] bestOffsetMs = new long[PERIOD_COUNT];
+            private int current = -1;
+            private int count = 0;
+            private double drift = 0;
+
+            /** Whether there has been at least one sample. */
+            public bool HasEstimate { get { return count > 0; } }
+
+            /**
+             * Add the send time of a request that just arrived.
+             * @param remoteMs The time it was sent by the device's clock.
+             * @param localMs The time it arrived by ours.
+             */
+            public void AddSample(long remoteMs, long localMs) {
+                long bound = remoteMs - localMs;
+                long sincePeriodStartMs = count == 0 ? 0 : localMs - periodStartMs[current];
+                if (count == 0 || sincePeriodStartMs >= PERIOD_MS || sincePeriodStartMs < 0) {
+                    if (count > 0) UpdateDrift();
+                    current = (current + 1) % PERIOD_COUNT;
+                    count = Math.Min(PERIOD_COUNT, count + 1);
+                    periodStartMs[current] = localMs;
+                    bestLocalMs[current] = localMs;
+                    bestOffsetMs[current] = bound;
+                } else if (bound >= bestOffsetMs[current]) {
+                    bestLocalMs[current] = localMs;
+                    bestOffsetMs[current] = bound;
+                }
+            }
+
+            /**
+             * @param localMs A time by our clock.
+             * @return How far the device's clock is ahead of ours then.
+             */
+            public long GetOffsetMs(long localMs) {
+                double best = Double.NegativeInfinity;
+                for (int i = 0; i < count; i++) {
+                    best = Math.Max(best, bestOffsetMs[i] + drift * (localMs - bestLocalMs[i]));
+                }
+                return (long) Math.Round(best);
+            }
+
+            /** Forget every sample. */
+            public void Reset() {
+                current = -1;
+                count = 0;
+                drift = 0;
+            }
+
+            /** Fit a line through the best sample of each period; its slope is the drift. */
+            private void UpdateDrift() {
+                if (count < MIN_PERIODS_FOR_DRIFT) return;
+                long origin = bestLocalMs[current];
+                double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+                for (int i = 0; i < count; i++) {
+                    double x = bestLocalMs[i] - origin;
+                    double y = bestOffsetMs[i];
+                    sumX += x;
+                    sumY += y;
+                    sumXX += x * x;
+                    sumXY += x * y;
+                }
+                double denominator = count * sumXX - sumX * sumX;
+                if (denominator <= 0) return;
+                double slope = (count * sumXY - sumX * sumY) / denominator;
+                drift = Math.Max(-MAX_DRIFT, Math.Min(MAX_DRIFT, slope));
+            }
+        }
+
+        /**
+         * Decides whether a request from one device is new: sent recently by the device's clock
+         * and with a time not seen before. Times already seen are kept as one bit per ms in a
+         * window behind the newest, so each check is constant time. If a device's requests stay
+         * stale for a couple of seconds its clock was probably set back, so it starts over. The
+         * Java responder's ReplayGuard works the same way.
+         */
+        private class ReplayGuard {
+            private const int WINDOW_BITS = 32768;
+            private const int CLOCK_STEP_REJECTIONS = 3;
+            private const long CLOCK_STEP_CONFIRM_MS = 2000;
+
+            private readonly ClockOffsetEstimator clock = new ClockOffsetEstimator();
+            private readonly ulong[] window = new ulong[WINDOW_BITS / 64];
+            private long newestTime = 0;
+            private bool started = false;
+            private int staleCount = 0;
+            private long lastStaleTime = 0;
+            private long firstStaleMs = 0;
+
+            /**
+             * Check a request and remember it if it is new.
+             * @param requestTime The time the request was sent by the device's clock.
+             * @param nowMs The time it arrived by ours.
+             * @return Whether to run it.
+             */
+            public bool Accept(long requestTime, long nowMs) {
+                bool stale = clock.HasEstimate && nowMs + clock.GetOffsetMs(nowMs) - requestTime
+                        > VALID_MESSAGE_LATENCY_MS;
+                bool? added = stale ? (bool?) null : AddToWindow(requestTime);
+                if (added == null) {
+                    if (staleCount == 0) firstStaleMs = nowMs;
+                    if (requestTime != lastStaleTime) staleCount++;
+                    lastStaleTime = requestTime;
+                    if (staleCount < CLOCK_STEP_REJECTIONS
+                            || nowMs - firstStaleMs < CLOCK_STEP_CONFIRM_MS) {
+                        return false;
+                    }
+                    // Consistently stale: the clock moved rather than the packets being late.
+                    clock.Reset();
+                    started = false;
+                    added = AddToWindow(requestTime);
+                }
+                if (added != true) return false;
+
+                staleCount = 0;
+                clock.AddSample(requestTime, nowMs);
+                return true;
+            }
+
+            /**
+             * @param requestTime A request's time.
+             * @return True if it was new and was added, false if it was seen already, or null if
+             *         it is behind the window.
+             */
+            private bool? AddToWindow(long requestTime) {
+                if (!started) {
+                    started = true;
+                    newestTime = requestTime - 1;
+                }
+                int bit = (int) (requestTime & (WINDOW_BITS - 1));
+                ulong mask = 1UL << (bit & 63);
+                if (requestTime > newestTime) {
+                    if (requestTime - newestTime > WINDOW_BITS) {
+                        Array.Clear(window, 0, window.Length);
+                    } else {
+                        for (long time = newestTime + 1; time <= requestTime; time++) {
+                            int cleared = (int) (time & (WINDOW_BITS - 1));
+                            window[cleared >> 6] &= ~(1UL << (cleared & 63));
+                        }
+                    }
+                    newestTime = requestTime;
+                } else if (newestTime - requestTime >= WINDOW_BITS) {
+                    return null;
+                } else if ((window[bit >> 6] & mask) != 0) {
+                    return false;
+                }
+                window[bit >> 6] |= mask;
+                return true;
+            }
+        }
+
+        /** The answer to a recent request, which other copies wait on until the action has run. */
+        private class RecentResponse {
+            /** Whether the action has finished. Locked on this. */
+            private bool done;
+
+            /** The response to send back, or null if there is none. */
+            private String response;
+
+            /**
+             * Publish the response and wake any copies waiting for it.
+             * @param value The response, or null if there is none.
+             */
+            public void Complete(String value) {
+                lock (this) {
+                    response = value;
+                    done = true;
+                    Monitor.PulseAll(this);
+                }
+            }
+
+            /** @return The response, once the action has run. */
+            public String Await() {
+                lock (this) {
+                    while (!done) Monitor.Wait(this);
+                    return response;
+                }
+            }
+        }
+
+        /** A response split into fragments, kept to send lost ones again. */
+        private class LargeResponse {
+            /** FRAGMENT_FLAG_DEFLATE or 0. */
+            private readonly byte flags;
+
+            /** The body that is split into fragments. */
+            private readonly byte[] body;
+
+            /** The size of the UTF-8 response before it was deflated. */
+            private readonly int payloadLength;
+
+            /**
+             * @param response The response.
+             * @param deflate Whether the app can read deflated responses.
+             */
+            public LargeResponse(String response, bool deflate) {
+                byte[] payload = Encoding.UTF8.GetBytes(response);
+                payloadLength = payload.Length;
+                body = payload;
+                if (!deflate || payload.Length < MIN_DEFLATE_SIZE) return;
+
+                MemoryStream deflated = new MemoryStream();
+                using (DeflateStream stream = new DeflateStream(deflated,
+                        CompressionMode.Compress, true)) {
+                    stream.Write(payload, 0, payload.Length);
+                }
+                if (deflated.Length < payload.Length) {
+                    flags = FRAGMENT_FLAG_DEFLATE;
+                    body = deflated.ToArray();
+                }
+            }
+
+            /** @return Whether the response is too large for the app to accept. */
+            public bool IsTooLarge() {
+                return payloadLength > MAX_RESPONSE_SIZE;
+            }
+
+            /** @return The number of fragments the response is sent in. */
+            public int FragmentCount() {
+                return Math.Max(1, (body.Length + FRAGMENT_DATA_SIZE - 1) / FRAGMENT_DATA_SIZE);
+            }
+
+            /**
+             * Build one fragment.
+             * @param replyTo The time of the request being answered.
+             * @param index The fragment to build, less than FragmentCount().
+             * @return The fragment in bytes.
+             */
+            public byte[] BuildFragment(long replyTo, int index) {
+                int start = index * FRAGMENT_DATA_SIZE;
+                int length = Math.Min(FRAGMENT_DATA_SIZE, body.Length - start);
+                byte[] output = new byte[FRAGMENT_HEADER_SIZE + length];
+                int offset = 0;
+                output[offset++] = BINARY_MAGIC_0;
+                output[offset++] = FRAGMENT_MAGIC_1;
+                output[offset++] = FRAGMENT_VERSION;
+                output[offset++] = flags;
+                for (int i = 7; i >= 0; i--) output[offset++] = (byte) (replyTo >> (i * 8));
+                for (int i = 3; i >= 0; i--) output[offset++] = (byte) (body.Length >> (i * 8));
+                for (int i = 3; i >= 0; i--) output[offset++] = (byte) (payloadLength >> (i * 8));
+                output[offset++] = (byte) (index >> 8);
+                output[offset++] = (byte) index;
+                output[offset++] = (byte) (FragmentCount() >> 8);
+                output[offset++] = (byte) FragmentCount();
+                Array.Copy(body, start, output, offset, length);
+                return output;
+            }
+        }
+
+        /** A game found in a system's ROM folder. */
+        private class RomFile {
+            public String Hash, System, Name, Path;
+            public long Size, ModifiedMs;
+            /** The version of the last change to the game. */
+            public long Version;
+        }
+
+        /**
+         * The versioned index of the game library. Every game added, changed or removed gets the
+         * next version and the latest change to each game is kept in version order, so the
+         * changes since any version can be paged through. Removed games are kept as tombstones.
+         * Saved to a file so versions survive a restart. The Java responder's RomIndex works the
+         * same way and reads the same file.
+         */
+        private class RomIndex {
+            private const String FORMAT = "rom_index 1";
+
+            private readonly String file;
+            private readonly Dictionary<String, RomFile> entries =
+                    new Dictionary<String, RomFile>();
+            private readonly SortedDictionary<long, String> changes =
+                    new SortedDictionary<long, String>();
+            private readonly Dictionary<String, long> tombstones = new Dictionary<String, long>();
+            private String indexId;
+            private long version;
+            private bool dirty;
+
+            /**
+             * Load the index saved in a file, or start a new one if it can't be read.
+             * @param file Where the index is saved.
+             */
+            public RomIndex(String file) {
+                this.file = file;
+                try {
+                    Load();
+                } catch (Exception) {
+                    entries.Clear();
+                    changes.Clear();
+                    tombstones.Clear();
+                    byte[] id = new byte[4];
+                    new Random().NextBytes(id);
+                    indexId = BitConverter.ToString(id).Replace("-", "").ToLowerInvariant();
+                    version = 0;
+                    dirty = true;
+                }
+            }
+
+            /** @return A copy of every game. */
+            public List<RomFile> GetEntries() {
+                lock (this) return new List<RomFile>(entries.Values);
+            }
+
+            /**
+             * @param hash The hash of a game.
+             * @return The game or null if it isn't in the index.
+             */
+            public RomFile Get(String hash) {
+                lock (this) {
+                    RomFile entry;
+                    return entries.TryGetValue(hash, out entry) ? entry : null;
+                }
+            }
+
+            /**
+             * Add a game or update where it is. It only gets a new version if what the app sees
+             * changed.
+             * @param rom The game; its Version is set here.
+             */
+            public void Put(RomFile rom) {
+                lock (this) {
+                    RomFile old = Get(rom.Hash);
+                    bool same = old != null && old.System == rom.System && old.Name == rom.Name;
+                    if (same && old.Path == rom.Path && old.Size == rom.Size
+                            && old.ModifiedMs == rom.ModifiedMs) {
+                        return;
+                    }
+                    rom.Version = same ? old.Version : NextVersion(rom.Hash);
+                    long tombstone;
+                    if (tombstones.TryGetValue(rom.Hash, out tombstone)) {
+                        tombstones.Remove(rom.Hash);
+                        changes.Remove(tombstone);
+                    }
+                    entries[rom.Hash] = rom;
+                    dirty = true;
+                }
+            }
+
+            /**
+             * Remove a game.
+             * @param hash The hash of the game.
+             */
+            public void Remove(String hash) {
+                lock (this) {
+                    if (!entries.ContainsKey(hash)) return;
+                    tombstones[hash] = NextVersion(hash);
+                    entries.Remove(hash);
+                    dirty = true;
+                }
+            }
+
+            /**
+             * Build the page of changes the app asked for.
+             * @param requestIndexId The ID of the index the app's version is from.
+             * @param sinceVersion The version the app has.
+             * @return The page.
+             */
+            public String GetPage(String requestIndexId, long sinceVersion) {
+                lock (this) {
+                    bool reset = requestIndexId != indexId || sinceVersion > version;
+                    long since = reset ? 0 : sinceVersion;
+                    StringBuilder lines = new StringBuilder();
+                    int count = 0;
+                    long through = version;
+                    foreach (KeyValuePair<long, String> change in changes) {
+                        if (change.Key <= since) continue;
+                        if (count == MAX_ROM_PAGE_ENTRIES) {
+                            through = change.Key - 1;
+                            break;
+                        }
+                        RomFile entry;
+                        if (entries.TryGetValue(change.Value, out entry)) {
+                            lines.Append('\n').Append('+').Append(entry.Hash).Append('\t')
+                                    .Append(entry.System).Append('\t').Append(entry.Name);
+                            count++;
+                        } else if (!reset) {
+                            lines.Append('\n').Append('-').Append(change.Value);
+                            count++;
+                        }
+                    }
+                    return ROMS_PREFIX + indexId + ":" + (reset ? 1 : 0) + ":" + since + ":"
+                            + through + ":" + version + lines;
+                }
+            }
+
+            /** Save the index if it changed, replacing the file in one step. */
+            public void Save() {
+                lock (this) {
+                    if (!dirty) return;
+                    String temp = file + ".tmp";
+                    using (StreamWriter output = new StreamWriter(temp, false,
+                            new UTF8Encoding(false))) {
+                        output.Write(FORMAT + "\n" + indexId + "\t" + version + "\n");
+                        foreach (RomFile entry in entries.Values) {
+                            output.Write(String.Join("\t", entry.Hash, entry.Version,
+                                    entry.System, entry.Name, entry.Path, entry.Size,
+                                    entry.ModifiedMs) + "\n");
+                        }
+                        foreach (KeyValuePair<String, long> tombstone in tombstones) {
+                            output.Write(tombstone.Key + "\t" + tombstone.Value + "\n");
+                        }
+                    }
+                    if (File.Exists(file)) {
+                        File.Replace(temp, file, null);
+                    } else {
+                        File.Move(temp, file);
+                    }
+                    dirty = false;
+                }
+            }
+
+            /** Read the saved index, throwing if there isn't one that can be read. */
+            private void Load() {
+                String[] lines = File.ReadAllLines(file, Encoding.UTF8);
+                if (lines[0] != FORMAT) throw new IOException("Unknown index format");
+                String[] header = lines[1].Split('\t');
+                indexId = header[0];
+                version = Int64.Parse(header[1]);
+                for (int i = 2; i < lines.Length; i++) {
+                    if (lines[i].Length == 0) continue;
+                    String[] fields = lines[i].Split('\t');
+                    long entryVersion = Int64.Parse(fields[1]);
+                    if (fields.Length == 2) {
+                        tombstones[fields[0]] = entryVersion;
+                    } else {
+                        entries[fields[0]] = new RomFile {
+                            Hash = fields[0], Version = entryVersion, System = fields[2],
+                            Name = fields[3], Path = fields[4], Size = Int64.Parse(fields[5]),
+                            ModifiedMs = Int64.Parse(fields[6])
+                        };
+                    }
+                    if (entryVersion > version) throw new IOException("Version past the index's");
+                    changes[entryVersion] = fields[0];
+                }
+            }
+
+            /**
+             * Give a game the next version, dropping its previous change.
+             * @param hash The hash of the game.
+             * @return The new version.
+             */
+            private long NextVersion(String hash) {
+                RomFile old;
+                if (entries.TryGetValue(hash, out old)) changes.Remove(old.Version);
+                changes[++version] = hash;
+                return version;
+            }
+        }
+
         /** The default port to send and recieve messages on. */
         private static readonly int DEFAULT_PORT = 19002;
 
+        /** The multicast group the app sends discovery to before falling back to broadcast. */
+        private static readonly String MULTICAST_GROUP = "239.255.19.2";
+
         // Different actions this host knows how to handle.
         private static readonly String ACTION_INFO = "INFO";
         private static readonly String ACTION_POWER_OFF = "POWER_OFF";
         private static readonly String ACTION_EMULATION_STATION = "RESTART_EMULATION_STATION";
         private static readonly String ACTION_STEAM = "RESTART_STEAM_BP";
         private static readonly String ACTION_HOME = "HOME";
+        private static readonly String ACTION_FORMAT_BINARY = "FORMAT_BINARY";
+        private static readonly String ACTION_SUBSCRIBE_STATUS = "SUBSCRIBE_STATUS";
+        private static readonly String ACTION_EMULATORS = "EMULATORS";
 
         private static readonly String RESPONSE_OK = "OK";
+        private static readonly String RESPONSE_FORMAT_BINARY = "FORMAT_BINARY";
+
+        /** The start of an action made of several steps, and of the response to one. */
+        private static readonly String ACTION_BATCH_PREFIX = "BATCH:";
+
+        /** The delimiter between the steps of a batch and between their results. */
+        private static readonly char BATCH_SEPARATOR = ',';
+
+        // The results of a batch step other than RESPONSE_OK.
+        private static readonly String STEP_FAILED = "FAILED";
+        private static readonly String STEP_SKIPPED = "SKIPPED";
+
+        /** The max number of steps in a batch. */
+        private static readonly int MAX_BATCH_STEPS = 16;
+
+        /** The start of a request for the latest event of a job; the rest is the job ID. */
+        private static readonly String ACTION_JOB_STATUS_PREFIX = "JOB_STATUS:";
+
+        /**
+         * The start of a job event. The rest is job_id:state:elapsed_ms:exit_code:action, the
+         * same as JobEvent in the app's protocol module.
+         */
+        private static readonly String JOB_PREFIX = "JOB:";
+
+        // The states of a job.
+        private static readonly String JOB_RUNNING = "RUNNING";
+        private static readonly String JOB_DONE = "DONE";
+        private static readonly String JOB_FAILED = "FAILED";
+        private static readonly String JOB_UNKNOWN = "UNKNOWN";
+
+        /** The number of recent jobs whose latest event is remembered for JOB_STATUS. */
+        private static readonly int RECENT_JOB_COUNT = 64;
+
+        /** Where the scripts run by actions live. */
+        private static readonly String SCRIPTS_DIR = "C:/emulator_box/EmulatorBox/scripts/";
+
+        /** The config directory passed to every script. */
+        private static readonly String CONFIGS_DIR = "C:/emulator_box/EmulatorBox/configs";
+
+        /** The actions that can be steps in a batch. */
+        private static readonly String[] BATCH_ACTIONS = {
+            ACTION_INFO, ACTION_HOME, ACTION_EMULATION_STATION, ACTION_STEAM, ACTION_POWER_OFF,
+        };
+
+        /**
+         * The start of an action whose response is sent in fragments. The rest is the
+         * compressions the app reads separated by commas, a colon and the action to run.
+         */
+        private static readonly String ACTION_LARGE_PREFIX = "LARGE:";
+
+        /**
+         * The start of an action asking for fragments again. The rest is the time of the request
+         * the fragments answered, a colon and the fragments as in "3,7,12-15".
+         */
+        private static readonly String ACTION_FRAGMENTS_PREFIX = "FRAGMENTS:";
+
+        /** The name of raw deflate in the compressions of a large action. */
+        private static readonly String ENCODING_DEFLATE = "deflate";
+
+        /** The second byte of a fragment; the first is the same as a binary message's. */
+        private static readonly byte FRAGMENT_MAGIC_1 = 0x46;
+
+        /** The version of the fragment format this host writes. */
+        private static readonly byte FRAGMENT_VERSION = 1;
+
+        /** Set in a fragment's flags when the body is deflated. */
+        private const byte FRAGMENT_FLAG_DEFLATE = 1;
+
+        /** The size of a fragment before its data. */
+        private const int FRAGMENT_HEADER_SIZE = 2 + 1 + 1 + 8 + 4 + 4 + 2 + 2;
+
+        /**
+         * The most data in a fragment. With the headers this stays under the 1280 byte minimum
+         * MTU of IPv6, so fragments are never split by the network.
+         */
+        private const int FRAGMENT_DATA_SIZE = 1200;
+
+        /** The largest response the app accepts. */
+        private const int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+        /** Responses smaller than this aren't worth deflating. */
+        private const int MIN_DEFLATE_SIZE = 256;
+
+        /** The number of recent large responses kept to send lost fragments again. */
+        private static readonly int RECENT_LARGE_RESPONSE_COUNT = 8;
 
-        /** The allowed latency for a message to be considered valid by the system. */
-        private static readonly long VALID_MESSAGE_LATENCY_MS = 3000;
+        /** Asks for the changes to the game library since a version, "ROM_INDEX:id:version". */
+        private static readonly String ACTION_ROM_INDEX_PREFIX = "ROM_INDEX:";
+
+        /** Starts a game from the library by its hash as a job, "LAUNCH:hash". */
+        private static readonly String ACTION_LAUNCH_PREFIX = "LAUNCH:";
+
+        /** The start of a page of changes to the game library. */
+        private static readonly String ROMS_PREFIX = "ROMS:";
+
+        /** The most changes in a page of the game library. */
+        private const int MAX_ROM_PAGE_ENTRIES = 2000;
+
+        /** The number of hex digits in a game's hash: the first 64 bits of its SHA-1. */
+        private const int ROM_HASH_LENGTH = 16;
+
+        /** EmulationStation's list of systems, which says where each one's ROMs are. */
+        private static readonly String ES_SYSTEMS_FILE = Environment.GetFolderPath(
+                Environment.SpecialFolder.UserProfile) + "/.emulationstation/es_systems.cfg";
+
+        /** Where the game library's index is saved between runs. */
+        private static readonly String ROM_INDEX_FILE = CONFIGS_DIR + "/rom_index.tsv";
+
+        /** How often the ROM folders are scanned for changes. */
+        private static readonly int ROM_RESCAN_MS = 60000;
+
+        /** The placeholder for the ROM's path in a system's command. */
+        private static readonly String ROM_PLACEHOLDER = "%ROM%";
+
+        /** The start of a status message; the rest names what is running. */
+        private static readonly String STATUS_PREFIX = "STATUS:";
+
+        /** The longest a subscriber goes without getting the status. */
+        private static readonly int STATUS_HEARTBEAT_MS = 5000;
+
+        /** How often the running programs are checked for a status change. */
+        private static readonly int STATUS_POLL_MS = 1000;
+
+        /**
+         * The programs that make up the status, checked in order: process name, then the name
+         * reported to the app. Games come first since a front-end keeps running behind them.
+         * These match the bins in configs/emulator_info.json and configs/ui_system_info.json.
+         */
+        private static readonly String[,] STATUS_PROCESSES = {
+            {"Dolphin", "GC"},
+            {"Project64_custom", "N64"},
+            {"snes9x-x64", "SNES"},
+            {"VisualBoyAdvance", "GBA"},
+            {"fceux", "NES"},
+            {"emulationstation", "EmulationStation"},
+            {"steam", "Steam"},
+        };
+
+        /**
+         * The oldest a request can be, by the sender's clock, and still be run. This is longer
+         * than the app keeps retrying, so only a request the app already gave up on is refused.
+         */
+        private const long VALID_MESSAGE_LATENCY_MS = 16000;
+
+        /** The number of devices whose clocks and recent requests are remembered. */
+        private static readonly int RECENT_DEVICE_COUNT = 32;
 
         /** A magic string to identify messages using this simple protocol. */
         private static readonly String MAGIC_PREFIX = "!!ConsoleMessage:";
@@ -46,15 +728,97 @@ namespace ConsoleUDPResponder {
         /** A delimited for individual message parts. */
         private static readonly char SEPARATOR = '|';
 
+        /** The max size of a single framed message accepted over TCP. */
+        private static readonly int MAX_FRAME_SIZE = 4096;
+
+        /** The first two bytes of a binary message. */
+        private static readonly byte BINARY_MAGIC_0 = 0xC0;
+        private static readonly byte BINARY_MAGIC_1 = 0x4D;
+
+        /** The version of the binary format this host writes. */
+        private static readonly byte BINARY_VERSION = 1;
+
+        /** The size of a binary message with an empty name and payload. */
+        private static readonly int BINARY_HEADER_SIZE = 2 + 1 + 8 + 1 + 2;
+
         /** The start time for many systems counting MS. */
         private static readonly DateTime EPOCH_1970 = new DateTime(1970, 1, 1, 0, 0, 0, DateTimeKind.Utc);
 
+        /** The number of recent requests remembered to catch retries. */
+        private static readonly int RECENT_REQUEST_COUNT = 64;
+
+        /** The responses to recent requests keyed by device, time and action. */
+        private static readonly Dictionary<String, RecentResponse> recentResponses =
+                new Dictionary<String, RecentResponse>();
+
+        /** The keys of recentResponses in the order they were added, oldest first. */
+        private static readonly Queue<String> recentRequestOrder = new Queue<String>();
+
+        /** What each recent device has sent, keyed by name and address. Locked with responses. */
+        private static readonly Dictionary<String, ReplayGuard> replayGuards =
+                new Dictionary<String, ReplayGuard>();
+
+        /** The keys of replayGuards in the order they were added, oldest first. */
+        private static readonly Queue<String> replayGuardOrder = new Queue<String>();
+
+        /** Recent large responses keyed by device and request time. Locked on itself. */
+        private static readonly Dictionary<String, LargeResponse> recentLargeResponses =
+                new Dictionary<String, LargeResponse>();
+
+        /** The keys of recentLargeResponses in the order they were added, oldest first. */
+        private static readonly Queue<String> recentLargeResponseOrder = new Queue<String>();
+
+        /** The session streams that subscribed to status and whether each uses binary. */
+        private static readonly Dictionary<NetworkStream, bool> statusSubscribers =
+                new Dictionary<NetworkStream, bool>();
+
+        /** What the console is running, or empty when idle. */
+        private static volatile String currentStatus = "";
+
+        /** The latest event of recent jobs keyed by job ID. Locked on itself. */
+        private static readonly Dictionary<long, String> recentJobs = new Dictionary<long, String>();
+
+        /** The keys of recentJobs in the order they were added, oldest first. */
+        private static readonly Queue<long> recentJobOrder = new Queue<long>();
+
+        /** The games found in the ROM folders. */
+        private static RomIndex romIndex;
+
+        /** The folder, extensions and command of each system keyed by name, once scanned. */
+        private static volatile Dictionary<String, String[]> romSystems;
+
+        /** The last job ID handed out. */
+        private static long lastJobId = 0;
+
         [STAThread]
         static void Main(String[] args) {
             int port = DEFAULT_PORT;
             if (args.Length > 0) port = Int32.Parse(args[0]);
 
             UdpClient socket = new UdpClient(port);
+            try {
+                socket.JoinMulticastGroup(IPAddress.Parse(MULTICAST_GROUP));
+            } catch (SocketException e) {
+                // The app falls back to broadcast when nothing answers on the group.
+                Console.Error.WriteLine("Could not join the discovery group: " + e.Message);
+            }
+
+            // Sessions opened by the app after discovery are handled in the background.
+            Thread tcpThread = new Thread(() => listenForSessions(port));
+            tcpThread.IsBackground = true;
+            tcpThread.Start();
+
+            // Subscribers are told about status changes from the background too.
+            currentStatus = readStatus();
+            Thread statusThread = new Thread(watchStatus);
+            statusThread.IsBackground = true;
+            statusThread.Start();
+
+            // The game library is kept current from the background as well.
+            romIndex = new RomIndex(ROM_INDEX_FILE);
+            Thread romThread = new Thread(watchRoms);
+            romThread.IsBackground = true;
+            romThread.Start();
 
             // This object will be populated with the sender's info when a connection is established.
             IPEndPoint senderInfo = new IPEndPoint(IPAddress.Any, 0);
@@ -64,10 +828,13 @@ namespace ConsoleUDPResponder {
             // Keep listening for incoming info requests until the machine turns off.
             while (true) {
                 String incomingMessage = Encoding.UTF8.GetString(socket.Receive(ref senderInfo));
-                String response = handleMessage(incomingMessage);
+                long requestTime;
+                String device, action;
+                String response = handleMessage(incomingMessage, senderInfo.Address,
+                        out requestTime, out device, out action);
 
-                if (response != null) {
-                    byte[] responseBytes = buildMessage(response);
+                foreach (byte[] responseBytes in
+                        buildResponses(device, action, requestTime, response, false)) {
                     socket.Send(responseBytes, responseBytes.Length,
                             new IPEndPoint(senderInfo.Address, port));
                 }
@@ -75,17 +842,391 @@ namespace ConsoleUDPResponder {
             }
         }
 
+        /**
+         * Accept TCP sessions from the app until the machine turns off.
+         * @param port The port to listen on.
+         */
+        private static void listenForSessions(int port) {
+            TcpListener listener = new TcpListener(IPAddress.Any, port);
+            listener.Start();
+
+            while (true) {
+                TcpClient client = listener.AcceptTcpClient();
+                Thread sessionThread = new Thread(() => handleSession(client));
+                sessionThread.IsBackground = true;
+                sessionThread.Start();
+            }
+        }
+
+        /**
+         * Read framed messages from a single client and respond to each one on the same
+         * connection. The session ends when the client disconnects or sends a bad frame.
+         * @param client The connected client.
+         */
+        private static void handleSession(TcpClient client) {
+            client.NoDelay = true;
+            IPAddress address = ((IPEndPoint) client.Client.RemoteEndPoint).Address;
+            try {
+                using (client)
+                using (NetworkStream stream = client.GetStream()) {
+                    while (true) {
+                        byte[] lengthBytes = readFully(stream, 4);
+                        if (lengthBytes == null) return;
+                        int length = IPAddress.NetworkToHostOrder(
+                                BitConverter.ToInt32(lengthBytes, 0));
+                        if (length <= 0 || length >= MAX_FRAME_SIZE) return;
+
+                        byte[] frame = readFully(stream, length);
+                        if (frame == null) return;
+
+                        // Respond in whichever format the client used.
+                        bool binary = frame[0] == BINARY_MAGIC_0;
+                        long requestTime;
+                        String device, action;
+                        String response = binary
+                                ? handleBinaryMessage(frame, address, out requestTime,
+                                        out device, out action)
+                                : handleMessage(Encoding.UTF8.GetString(frame), address,
+                                        out requestTime, out device, out action);
+
+                        foreach (byte[] responseBytes in
+                                buildResponses(device, action, requestTime, response, binary)) {
+                            writeFrame(stream, responseBytes);
+                        }
+
+                        // The status answers a subscription; later changes are pushed.
+                        if (response != null && response.StartsWith(STATUS_PREFIX)) {
+                            lock (statusSubscribers) statusSubscribers[stream] = binary;
+                        }
+                    }
+                }
+            } catch (Exception) {
+                // The client went away or sent bad data; nothing to clean up beyond the using
+                // blocks.
+            } finally {
+                lock (statusSubscribers) {
+                    foreach (NetworkStream subscriber in new List<NetworkStream>(
+                            statusSubscribers.Keys)) {
+                        if (!subscriber.CanWrite) statusSubscribers.Remove(subscriber);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write a framed message. Session threads and the status thread both write to sessions,
+         * so writes to a stream are locked on it.
+         * @param stream The session's stream.
+         * @param message The message without its length prefix.
+         */
+        private static void writeFrame(NetworkStream stream, byte[] message) {
+            byte[] length = BitConverter.GetBytes(IPAddress.HostToNetworkOrder(message.Length));
+            lock (stream) {
+                stream.Write(length, 0, length.Length);
+                stream.Write(message, 0, message.Length);
+            }
+        }
+
+        /**
+         * Check what is running until the machine turns off, pushing the status to subscribers
+         * when it changes and as a heartbeat otherwise.
+         */
+        private static void watchStatus() {
+            Stopwatch sinceLastPush = Stopwatch.StartNew();
+            while (true) {
+                Thread.Sleep(STATUS_POLL_MS);
+                String status = readStatus();
+                if (status == currentStatus
+                        && sinceLastPush.ElapsedMilliseconds < STATUS_HEARTBEAT_MS) {
+                    continue;
+                }
+                currentStatus = status;
+                sinceLastPush.Restart();
+                pushToSubscribers(STATUS_PREFIX + status);
+            }
+        }
+
+        /**
+         * Send a message to every status subscriber, dropping those that went away.
+         * @param message The message to push.
+         */
+        private static void pushToSubscribers(String message) {
+            lock (statusSubscribers) {
+                foreach (KeyValuePair<NetworkStream, bool> subscriber in
+                        new List<KeyValuePair<NetworkStream, bool>>(statusSubscribers)) {
+                    try {
+                        writeFrame(subscriber.Key, subscriber.Value
+                                ? buildBinaryMessage(message, 0)
+                                : buildMessage(message, 0));
+                    } catch (Exception) {
+                        statusSubscribers.Remove(subscriber.Key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Find out what the console is running.
+         * @return The name of the first running program in STATUS_PROCESSES or empty if none.
+         */
+        private static String readStatus() {
+            for (int i = 0; i < STATUS_PROCESSES.GetLength(0); i++) {
+                Process[] running = Process.GetProcessesByName(STATUS_PROCESSES[i, 0]);
+                bool found = running.Length > 0;
+                foreach (Process process in running) process.Dispose();
+                if (found) return STATUS_PROCESSES[i, 1];
+            }
+            return "";
+        }
+
+        /**
+         * Scan the ROM folders until the machine turns off, hashing only files that are new or
+         * whose size or modification time changed.
+         */
+        private static void watchRoms() {
+            while (true) {
+                try {
+                    scanRoms();
+                } catch (Exception e) {
+                    Console.Error.WriteLine("Could not scan the games: " + e.Message);
+                }
+                Thread.Sleep(ROM_RESCAN_MS);
+            }
+        }
+
+        /** Bring the game index up to date with the ROM folders of every system and save it. */
+        private static void scanRoms() {
+            Dictionary<String, String[]> systems = readSystems();
+            romSystems = systems;
+
+            Dictionary<String, RomFile> byPath = new Dictionary<String, RomFile>();
+            foreach (RomFile entry in romIndex.GetEntries()) byPath[entry.Path] = entry;
+            HashSet<String> found = new HashSet<String>();
+            foreach (KeyValuePair<String, String[]> system in systems) {
+                String[] extensions = system.Value[1].ToLowerInvariant().Split(
+                        new char[] { ' ' }, StringSplitOptions.RemoveEmptyEntries);
+                try {
+                    foreach (String path in Directory.EnumerateFiles(system.Value[0], "*",
+                            SearchOption.AllDirectories)) {
+                        String extension = Path.GetExtension(path).ToLowerInvariant();
+                        if (extension.Length == 0 || Array.IndexOf(extensions, extension) < 0) {
+                            continue;
+                        }
+                        FileInfo info = new FileInfo(path);
+                        long modifiedMs = (long) (info.LastWriteTimeUtc - EPOCH_1970)
+                                .TotalMilliseconds;
+                        RomFile old;
+                        byPath.TryGetValue(path, out old);
+                        String hash = old != null && old.Size == info.Length
+                                && old.ModifiedMs == modifiedMs ? old.Hash : hashRom(path);
+                        // Copies of a game are one entry; the first one found is launched.
+                        if (!found.Add(hash)) continue;
+                        romIndex.Put(new RomFile {
+                            Hash = hash, System = system.Key,
+                            Name = Regex.Replace(Path.GetFileNameWithoutExtension(path),
+                                    "[\t\r\n]", " "),
+                            Path = path, Size = info.Length, ModifiedMs = modifiedMs
+                        });
+                    }
+                } catch (Exception e) {
+                    // A missing or unreadable folder loses its games until it's back.
+                    Console.Error.WriteLine("Could not scan " + system.Value[0] + ": "
+                            + e.Message);
+                }
+            }
+            foreach (RomFile entry in byPath.Values) {
+                if (!found.Contains(entry.Hash)) romIndex.Remove(entry.Hash);
+            }
+            romIndex.Save();
+        }
+
+        /**
+         * Read the systems from es_systems.cfg.
+         * @return The folder, extensions and command of each system keyed by name.
+         */
+        private static Dictionary<String, String[]> readSystems() {
+            XmlDocument document = new XmlDocument();
+            document.Load(ES_SYSTEMS_FILE);
+            Dictionary<String, String[]> systems = new Dictionary<String, String[]>();
+            foreach (XmlNode system in document.GetElementsByTagName("system")) {
+                String name = getChildText(system, "name");
+                String path = getChildText(system, "path");
+                String command = getChildText(system, "command");
+                if (name.Length == 0 || path.Length == 0 || command.Length == 0) continue;
+                systems[name] = new String[] {
+                    Environment.ExpandEnvironmentVariables(path.Replace("~",
+                            Environment.GetFolderPath(Environment.SpecialFolder.UserProfile))),
+                    getChildText(system, "extension"), command };
+            }
+            return systems;
+        }
+
+        /**
+         * @param parent An element.
+         * @param name The name of a child element.
+         * @return The trimmed text of the child or empty if there isn't one.
+         */
+        private static String getChildText(XmlNode parent, String name) {
+            XmlNode child = parent[name];
+            return child != null ? child.InnerText.Trim() : "";
+        }
+
+        /**
+         * @param path A ROM file.
+         * @return The first ROM_HASH_LENGTH hex digits of the SHA-1 of its contents.
+         */
+        private static String hashRom(String path) {
+            using (SHA1 sha1 = SHA1.Create())
+            using (FileStream stream = File.OpenRead(path)) {
+                byte[] digest = sha1.ComputeHash(stream);
+                return BitConverter.ToString(digest, 0, ROM_HASH_LENGTH / 2).Replace("-", "")
+                        .ToLowerInvariant();
+            }
+        }
+
+        /**
+         * Answer ROM_INDEX with the page of changes the app asked for.
+         * @param request The index ID and version the app has, "id:version".
+         * @return The page or null if the request is malformed.
+         */
+        private static String getRomPage(String request) {
+            int split = request.LastIndexOf(':');
+            long version;
+            if (split < 0 || !Int64.TryParse(request.Substring(split + 1), out version)
+                    || version < 0) {
+                return null;
+            }
+            return romIndex.GetPage(request.Substring(0, split), version);
+        }
+
+        /**
+         * Start a game from the library as a job with its system's command, the same way
+         * EmulationStation would.
+         * @param action The LAUNCH action.
+         * @return The job's first event, FAILED if the game or its system isn't known.
+         */
+        private static String launchRom(String action) {
+            RomFile rom = romIndex.Get(action.Substring(ACTION_LAUNCH_PREFIX.Length));
+            String[] system = null;
+            if (rom != null && romSystems != null) romSystems.TryGetValue(rom.System, out system);
+            if (system == null) {
+                return buildJobEvent(Interlocked.Increment(ref lastJobId), JOB_FAILED, 0, -1,
+                        action);
+            }
+
+            // The program may be quoted since its path can have spaces.
+            String command = system[2].Trim();
+            int split = command.StartsWith("\"") ? command.IndexOf('"', 1) + 1
+                    : command.IndexOf(' ');
+            if (split <= 0) split = command.Length;
+            String fileName = command.Substring(0, split).Trim('"');
+            String arguments = command.Substring(split).Trim()
+                    .Replace(ROM_PLACEHOLDER, "\"" + rom.Path + "\"");
+            return startJob(action, fileName, arguments);
+        }
+
+        /**
+         * Read an exact number of bytes from a stream.
+         * @param stream The stream to read from.
+         * @param count The number of bytes to read.
+         * @return The bytes or null if the stream ended first.
+         */
+        private static byte[] readFully(Stream stream, int count) {
+            byte[] buffer = new byte[count];
+            int offset = 0;
+            while (offset < count) {
+                int read = stream.Read(buffer, offset, count - offset);
+                if (read <= 0) return null;
+                offset += read;
+            }
+            return buffer;
+        }
+
         /** @return The current time in ms since 1970/01/01. */
         private static long getCurrentTimeMs() {
             return (long) Math.Floor((DateTime.UtcNow - EPOCH_1970).TotalMilliseconds);
         }
 
+        /**
+         * Build what to send back for a request: a single message, all the fragments of a large
+         * response, or the fragments of an earlier one that were asked for again.
+         * @param device The name of the device that sent the request, or null if it was bad.
+         * @param action The action of the request.
+         * @param requestTime The time the request was sent.
+         * @param response The response to the action if any.
+         * @param binary Whether a single message uses the binary format.
+         * @return The messages to send, in order.
+         */
+        private static List<byte[]> buildResponses(String device, String action,
+                long requestTime, String response, bool binary) {
+            List<byte[]> responses = new List<byte[]>();
+            if (device == null) return responses;
+
+            LargeResponse large;
+            if (action.StartsWith(ACTION_FRAGMENTS_PREFIX)) {
+                // Lost fragments of an earlier response; nothing was run.
+                String[] fields = action.Substring(ACTION_FRAGMENTS_PREFIX.Length).Split(':');
+                long replyTo;
+                if (fields.Length != 2 || !long.TryParse(fields[0], out replyTo)) {
+                    return responses;
+                }
+                lock (recentLargeResponses) {
+                    if (!recentLargeResponses.TryGetValue(device + SEPARATOR + replyTo,
+                            out large)) {
+                        return responses;
+                    }
+                }
+                foreach (String range in fields[1].Split(BATCH_SEPARATOR)) {
+                    String[] ends = range.Split('-');
+                    int first, last;
+                    if (!int.TryParse(ends[0], out first)) continue;
+                    if (ends.Length < 2 || !int.TryParse(ends[1], out last)) last = first;
+                    last = Math.Min(last, large.FragmentCount() - 1);
+                    for (int i = Math.Max(first, 0); i <= last; i++) {
+                        responses.Add(large.BuildFragment(replyTo, i));
+                    }
+                }
+                return responses;
+            }
+
+            if (response == null) return responses;
+            if (!action.StartsWith(ACTION_LARGE_PREFIX) || action.IndexOf(':',
+                    ACTION_LARGE_PREFIX.Length) < 0) {
+                responses.Add(binary ? buildBinaryMessage(response, requestTime)
+                        : buildMessage(response, requestTime));
+                return responses;
+            }
+
+            // A retry gets the fragments made the first time.
+            String key = device + SEPARATOR + requestTime;
+            lock (recentLargeResponses) {
+                if (!recentLargeResponses.TryGetValue(key, out large)) {
+                    String encodings = action.Substring(ACTION_LARGE_PREFIX.Length,
+                            action.IndexOf(':', ACTION_LARGE_PREFIX.Length)
+                                    - ACTION_LARGE_PREFIX.Length);
+                    large = new LargeResponse(response,
+                            Array.IndexOf(encodings.Split(BATCH_SEPARATOR), ENCODING_DEFLATE) >= 0);
+                    if (large.IsTooLarge()) return responses;
+                    recentLargeResponses[key] = large;
+                    recentLargeResponseOrder.Enqueue(key);
+                    if (recentLargeResponseOrder.Count > RECENT_LARGE_RESPONSE_COUNT) {
+                        recentLargeResponses.Remove(recentLargeResponseOrder.Dequeue());
+                    }
+                }
+            }
+            for (int i = 0; i < large.FragmentCount(); i++) {
+                responses.Add(large.BuildFragment(requestTime, i));
+            }
+            return responses;
+        }
+
         /**
          * Build a new message to send over the network.
          * @param message The message to append. This will be converted to a base 64 string.
+         * @param replyTo The time of the request being responded to, or 0 to leave it off.
          * @return The message in bytes.
          */
-        private static byte[] buildMessage(String message) {
+        private static byte[] buildMessage(String message, long replyTo) {
             StringBuilder builder = new StringBuilder();
             builder.Append(MAGIC_PREFIX);
             builder.Append(SEPARATOR);
@@ -93,73 +1234,352 @@ namespace ConsoleUDPResponder {
             builder.Append(SEPARATOR);
             builder.Append(Environment.MachineName);
             builder.Append(SEPARATOR);
+            if (replyTo != 0) {
+                builder.Append(replyTo);
+                builder.Append(SEPARATOR);
+            }
             builder.Append(Convert.ToBase64String(Encoding.UTF8.GetBytes(message)));
+            builder.Append(SEPARATOR);
             return Encoding.UTF8.GetBytes(builder.ToString());
         }
 
+        /**
+         * Build a new message to send over the network in the binary format.
+         * @param message The message to append.
+         * @param replyTo The time of the request being responded to.
+         * @return The message in bytes.
+         */
+        private static byte[] buildBinaryMessage(String message, long replyTo) {
+            byte[] name = Encoding.UTF8.GetBytes(Environment.MachineName);
+            byte[] payload = Encoding.UTF8.GetBytes(message);
+            int nameLength = Math.Min(name.Length, 255);
+
+            byte[] output = new byte[BINARY_HEADER_SIZE + nameLength + payload.Length + 8];
+            int offset = 0;
+            output[offset++] = BINARY_MAGIC_0;
+            output[offset++] = BINARY_MAGIC_1;
+            output[offset++] = BINARY_VERSION;
+            long time = getCurrentTimeMs();
+            for (int i = 7; i >= 0; i--) output[offset++] = (byte) (time >> (i * 8));
+            output[offset++] = (byte) nameLength;
+            Array.Copy(name, 0, output, offset, nameLength);
+            offset += nameLength;
+            output[offset++] = (byte) (payload.Length >> 8);
+            output[offset++] = (byte) payload.Length;
+            Array.Copy(payload, 0, output, offset, payload.Length);
+            offset += payload.Length;
+            for (int i = 7; i >= 0; i--) output[offset++] = (byte) (replyTo >> (i * 8));
+            return output;
+        }
+
+        /**
+         * Parse a binary message if it is valid.
+         * @param message The message being parsed.
+         * @param sender The address the message came from.
+         * @param requestTime Set to the time the message was sent.
+         * @param device Set to the name of the device that sent it, or null if it was bad.
+         * @param action Set to the action it asked for.
+         * @param A response to send back if any.
+         */
+        private static string handleBinaryMessage(byte[] message, IPAddress sender,
+                out long requestTime, out String device, out String action) {
+            requestTime = 0;
+            device = null;
+            action = null;
+            if (message.Length < BINARY_HEADER_SIZE || message[1] != BINARY_MAGIC_1) return null;
+
+            // Skip the magic and version; newer versions only add to the end.
+            int offset = 2 + 1;
+            for (int i = 0; i < 8; i++) requestTime = (requestTime << 8) | message[offset++];
+            int nameLength = message[offset++];
+            if (offset + nameLength + 2 > message.Length) return null;
+            String name = Encoding.UTF8.GetString(message, offset, nameLength);
+            offset += nameLength;
+
+            int payloadLength = (message[offset] << 8) | message[offset + 1];
+            offset += 2;
+            if (offset + payloadLength > message.Length) return null;
+
+            device = name;
+            action = Encoding.UTF8.GetString(message, offset, payloadLength);
+            return handleActionOnce(device, sender, requestTime, action);
+        }
+
         /**
          * Parse a message if it is valid.
          * @param message The message being parsed.
+         * @param sender The address the message came from.
+         * @param requestTime Set to the time the message was sent.
+         * @param device Set to the name of the device that sent it, or null if it was bad.
+         * @param action Set to the action it asked for.
          * @param A response to send back if any.
          */
-        private static string handleMessage(String message) {
+        private static string handleMessage(String message, IPAddress sender,
+                out long requestTime, out String device, out String action) {
+            requestTime = 0;
+            device = null;
+            action = null;
             String[] parts = message.Split(SEPARATOR);
 
             // Make sure the message is intended for this system.
             if (!MAGIC_PREFIX.Equals(parts[0])) return null;
 
-            // Make sure we're not getting an old message.
+            // Whether it's too old is decided once the device is known.
             try {
-                long remoteTime = long.Parse(parts[1]);
-                long curTime = getCurrentTimeMs();
-                long timeDiff = getCurrentTimeMs() - long.Parse(parts[1]);
-                if (timeDiff > Math.Abs(VALID_MESSAGE_LATENCY_MS)) {
-                    // TODO(Matt): Time skew causes some real issues here. Use UDP to find the
-                    //             console then switch to TCP.
-                    // return null;
-                }
+                requestTime = long.Parse(parts[1]);
             } catch (Exception) {
                 // If we failed to parse the time piece of the message, do nothing.
                 return null;
             }
 
-            String decodedAction = Encoding.UTF8.GetString(Convert.FromBase64String(parts[3]));
-            if (ACTION_HOME.Equals(decodedAction)) {
-                runScript("node.exe "
-                    + "C:/emulator_box/EmulatorBox/scripts/KillGames.js "
-                    + "C:/emulator_box/EmulatorBox/configs");
+            action = Encoding.UTF8.GetString(Convert.FromBase64String(parts[3]));
+            device = parts[2];
+            return handleActionOnce(device, sender, requestTime, action);
+        }
+
+        /**
+         * Perform an action unless the same request was already handled, in which case the app is
+         * retrying because it missed the response and gets the same answer again. Otherwise the
+         * request is only performed if it is new; a late or repeated one is dropped.
+         * @param device The name of the device that sent the request.
+         * @param sender The address the request came from.
+         * @param requestTime The time the request was sent, which identifies it.
+         * @param decodedAction The action to perform.
+         * @param A response to send back if any.
+         */
+        private static string handleActionOnce(String device, IPAddress sender,
+                long requestTime, String decodedAction) {
+            String key = device + SEPARATOR + requestTime + SEPARATOR + decodedAction;
+            RecentResponse recent;
+            bool accepted;
+            // Only held to claim the key; a retry arriving over another connection while the
+            // action runs waits on the first copy's entry instead of running it again.
+            lock (recentResponses) {
+                if (recentResponses.TryGetValue(key, out recent)) {
+                    accepted = false;
+                } else {
+                    accepted = getReplayGuard(device, sender).Accept(
+                            requestTime, getCurrentTimeMs());
+                    recent = new RecentResponse();
+                    recentResponses[key] = recent;
+                    recentRequestOrder.Enqueue(key);
+                    if (recentRequestOrder.Count > RECENT_REQUEST_COUNT) {
+                        recentResponses.Remove(recentRequestOrder.Dequeue());
+                    }
+                    if (!accepted) recent.Complete(null);
+                }
+            }
+            if (!accepted) return recent.Await();
+
+            String response = null;
+            try {
+                response = handleAction(decodedAction);
+            } finally {
+                recent.Complete(response);
+            }
+            return response;
+        }
+
+        /**
+         * Get the guard for a device, making one if it's new. Called with recentResponses held.
+         * @param device The name of the device.
+         * @param sender The address the device sent from.
+         * @return The device's guard.
+         */
+        private static ReplayGuard getReplayGuard(String device, IPAddress sender) {
+            String key = device + SEPARATOR + sender;
+            ReplayGuard guard;
+            if (replayGuards.TryGetValue(key, out guard)) return guard;
+
+            guard = new ReplayGuard();
+            replayGuards[key] = guard;
+            replayGuardOrder.Enqueue(key);
+            if (replayGuardOrder.Count > RECENT_DEVICE_COUNT) {
+                replayGuards.Remove(replayGuardOrder.Dequeue());
+            }
+            return guard;
+        }
+
+        /**
+         * Perform an action requested by the app.
+         * @param decodedAction The action to perform.
+         * @param A response to send back if any.
+         */
+        private static string handleAction(String decodedAction) {
+            if (decodedAction.StartsWith(ACTION_LARGE_PREFIX)
+                    && decodedAction.IndexOf(':', ACTION_LARGE_PREFIX.Length) >= 0) {
+                // How the response is sent is up to buildResponses().
+                return handleAction(decodedAction.Substring(
+                        decodedAction.IndexOf(':', ACTION_LARGE_PREFIX.Length) + 1));
+            } else if (decodedAction.StartsWith(ACTION_FRAGMENTS_PREFIX)) {
+                // Answered from recentLargeResponses by buildResponses().
+                return null;
+            } else if (decodedAction.StartsWith(ACTION_BATCH_PREFIX)) {
+                return handleBatch(decodedAction.Substring(ACTION_BATCH_PREFIX.Length));
+            } else if (decodedAction.StartsWith(ACTION_JOB_STATUS_PREFIX)) {
+                return getJobStatus(decodedAction.Substring(ACTION_JOB_STATUS_PREFIX.Length));
+            } else if (decodedAction.StartsWith(ACTION_ROM_INDEX_PREFIX)) {
+                return getRomPage(decodedAction.Substring(ACTION_ROM_INDEX_PREFIX.Length));
+            } else if (decodedAction.StartsWith(ACTION_LAUNCH_PREFIX)) {
+                return launchRom(decodedAction);
+            } else if (ACTION_HOME.Equals(decodedAction)) {
+                return startScriptJob(decodedAction, "KillGames.js");
             } else if (ACTION_EMULATION_STATION.Equals(decodedAction)) {
-                runScript("node.exe "
-                    + "C:/emulator_box/EmulatorBox/scripts/RestartEmulationStation.js "
-                    + "C:/emulator_box/EmulatorBox/configs");
+                return startScriptJob(decodedAction, "RestartEmulationStation.js");
             } else if (ACTION_STEAM.Equals(decodedAction)) {
-                runScript("node.exe "
-                    + "C:/emulator_box/EmulatorBox/scripts/RestartSteamBP.js "
-                    + "C:/emulator_box/EmulatorBox/configs");
+                return startScriptJob(decodedAction, "RestartSteamBP.js");
             } else if (ACTION_POWER_OFF.Equals(decodedAction)) {
-                runScript("node.exe "
-                    + "C:/emulator_box/EmulatorBox/scripts/PowerOff.js "
-                    + "C:/emulator_box/EmulatorBox/configs");
+                return startScriptJob(decodedAction, "PowerOff.js");
             } else if (ACTION_INFO.Equals(decodedAction)) {
                 // Intentionally do nothing for this command.
+            } else if (ACTION_FORMAT_BINARY.Equals(decodedAction)) {
+                return RESPONSE_FORMAT_BINARY;
+            } else if (ACTION_SUBSCRIBE_STATUS.Equals(decodedAction)) {
+                return STATUS_PREFIX + currentStatus;
+            } else if (ACTION_EMULATORS.Equals(decodedAction)) {
+                return readEmulators();
             }
 
             return RESPONSE_OK;
         }
 
+        /** @return The contents of configs/emulator_info.json, or null if it can't be read. */
+        private static String readEmulators() {
+            try {
+                return File.ReadAllText(CONFIGS_DIR + "/emulator_info.json");
+            } catch (Exception) {
+                return null;
+            }
+        }
+
+        /**
+         * Perform the steps of a batch in order, stopping at the first one that fails.
+         * @param steps The steps separated by BATCH_SEPARATOR.
+         * @param The batch response with a result for every step.
+         */
+        private static string handleBatch(String steps) {
+            String[] actions = steps.Split(BATCH_SEPARATOR);
+            String[] results = new String[actions.Length];
+            bool failed = actions.Length > MAX_BATCH_STEPS;
+            for (int i = 0; i < actions.Length; i++) {
+                if (failed) {
+                    results[i] = STEP_SKIPPED;
+                    continue;
+                }
+                bool ran = Array.IndexOf(BATCH_ACTIONS, actions[i]) >= 0;
+                if (ran) {
+                    // A script that couldn't be started fails right away; later steps likely
+                    // need the same things it did.
+                    String[] jobFields = handleAction(actions[i]).Split(':');
+                    ran = !(jobFields[0] + ":" == JOB_PREFIX && jobFields.Length > 2
+                            && JOB_FAILED.Equals(jobFields[2]));
+                }
+                results[i] = ran ? RESPONSE_OK : STEP_FAILED;
+                failed = !ran;
+            }
+            return ACTION_BATCH_PREFIX + String.Join(BATCH_SEPARATOR.ToString(), results);
+        }
+
+        /**
+         * Run a script as a job. The job's RUNNING event is the response and its DONE or FAILED
+         * event is pushed to status subscribers when the script exits. Node is run directly with
+         * no window, rather than through RunProgramSilent.exe, so its exit can be seen.
+         * @param action The action the script performs.
+         * @param script The file name of the script in SCRIPTS_DIR.
+         * @return The job's first event.
+         */
+        private static String startScriptJob(String action, String script) {
+            return startJob(action, "node.exe", SCRIPTS_DIR + script + " " + CONFIGS_DIR);
+        }
+
         /**
-         * Run a script via RunProgramSilent.exe.
-         * @param args The arguments to pass to the script runner.
+         * Run a program as a job, the same way as startScriptJob().
+         * @param action The action the program performs.
+         * @param fileName The program.
+         * @param arguments Its arguments.
+         * @return The job's first event.
          */
-        private static void runScript(String args) {
+        private static String startJob(String action, String fileName, String arguments) {
+            long jobId = Interlocked.Increment(ref lastJobId);
+            Stopwatch elapsed = Stopwatch.StartNew();
+
             ProcessStartInfo info = new ProcessStartInfo();
-            info.FileName = "C:/emulator_box/EmulatorBox/scripts/RunProgramSilent.exe";
+            info.FileName = fileName;
+            info.Arguments = arguments;
+            info.UseShellExecute = false;
+            info.CreateNoWindow = true;
             info.WindowStyle = ProcessWindowStyle.Hidden;
-            info.Arguments = args;
 
             Process nodeProcess = new Process();
             nodeProcess.StartInfo = info;
-            nodeProcess.Start();
+            nodeProcess.EnableRaisingEvents = true;
+            nodeProcess.Exited += (sender, e) => {
+                int exitCode = nodeProcess.ExitCode;
+                nodeProcess.Dispose();
+                String end = buildJobEvent(jobId, exitCode == 0 ? JOB_DONE : JOB_FAILED,
+                        elapsed.ElapsedMilliseconds, exitCode, action);
+                recordJob(jobId, end);
+                pushToSubscribers(end);
+            };
+
+            // Recorded before starting in case the script exits right away.
+            String running = buildJobEvent(jobId, JOB_RUNNING, 0, 0, action);
+            recordJob(jobId, running);
+            try {
+                nodeProcess.Start();
+            } catch (Exception) {
+                String failed = buildJobEvent(jobId, JOB_FAILED, 0, -1, action);
+                recordJob(jobId, failed);
+                return failed;
+            }
+            return running;
+        }
+
+        /**
+         * Build a job event.
+         * @param jobId The ID of the job.
+         * @param state The state of the job, e.g. JOB_RUNNING.
+         * @param elapsedMs The time the job has run for.
+         * @param exitCode The exit code once the job ended.
+         * @param action The action the job runs.
+         * @return The event.
+         */
+        private static String buildJobEvent(long jobId, String state, long elapsedMs,
+                int exitCode, String action) {
+            return JOB_PREFIX + jobId + ":" + state + ":" + elapsedMs + ":" + exitCode + ":"
+                    + action;
+        }
+
+        /**
+         * Remember the latest event of a job, forgetting the oldest job if there are too many.
+         * @param jobId The ID of the job.
+         * @param jobEvent The event.
+         */
+        private static void recordJob(long jobId, String jobEvent) {
+            lock (recentJobs) {
+                if (!recentJobs.ContainsKey(jobId)) {
+                    recentJobOrder.Enqueue(jobId);
+                    if (recentJobOrder.Count > RECENT_JOB_COUNT) {
+                        recentJobs.Remove(recentJobOrder.Dequeue());
+                    }
+                }
+                recentJobs[jobId] = jobEvent;
+            }
+        }
+
+        /**
+         * Look up a job for JOB_STATUS.
+         * @param jobId The job ID as sent by the app.
+         * @return The job's latest event or an UNKNOWN event if it isn't remembered.
+         */
+        private static String getJobStatus(String jobId) {
+            long id;
+            if (!Int64.TryParse(jobId, out id)) id = 0;
+            lock (recentJobs) {
+                String jobEvent;
+                if (recentJobs.TryGetValue(id, out jobEvent)) return jobEvent;
+            }
+            return buildJobEvent(id, JOB_UNKNOWN, 0, 0, "");
         }
     }
 }